@@ -130,6 +130,8 @@ public class ImportConfig {
 
     public final BoolValue debug;
     public final BoolValue contOnError;
+    public final IntValue parallelFileset;
+    public final IntValue parallelUpload;
     public final BoolValue sendReport;
     public final BoolValue sendFiles;
     public final BoolValue sendLogFile;
@@ -275,6 +277,8 @@ public class ImportConfig {
 
         debug        = new BoolValue("debug", this, false);
         contOnError  = new BoolValue("contOnError", this, false);
+        parallelFileset = new IntValue("parallelFileset", this, 1);
+        parallelUpload = new IntValue("parallelUpload", this, 1);
         sendReport   = new BoolValue("sendReport", this, false);
         sendFiles    = new BoolValue("sendFiles", this, true);
         sendLogFile  = new BoolValue("sendLogFile", this, true);
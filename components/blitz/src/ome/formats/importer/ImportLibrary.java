@@ -27,6 +27,14 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import loci.common.Location;
 import loci.formats.FormatException;
@@ -38,6 +46,7 @@ import ome.formats.importer.transfers.FileTransfer;
 import ome.formats.importer.transfers.TransferState;
 import ome.formats.importer.transfers.UploadFileTransfer;
 import ome.formats.importer.util.ErrorHandler;
+import ome.formats.importer.util.OrderedEvents;
 import ome.formats.importer.util.ProportionalTimeEstimatorImpl;
 import ome.formats.importer.util.TimeEstimator;
 import ome.services.blitz.repo.path.ClientFilePathTransformer;
@@ -50,6 +59,8 @@ import ome.util.checksum.ChecksumProviderFactory;
 import ome.util.checksum.ChecksumProviderFactoryImpl;
 import ome.util.checksum.ChecksumType;
 import omero.ChecksumValidationException;
+import omero.ConcurrencyException;
+import omero.OverUsageException;
 import omero.ServerError;
 import omero.api.IMetadataPrx;
 import omero.api.RawFileStorePrx;
@@ -145,6 +156,70 @@ public class ImportLibrary implements IObservable
      */
     private final String category;
 
+    /**
+     * The events of the fileset or file being imported by the current
+     * thread, if imported concurrently by
+     * {@link #importCandidates(ImportConfig, ImportCandidates)}.
+     */
+    private final ThreadLocal<OrderedEvents> orderedEvents =
+            new ThreadLocal<OrderedEvents>();
+
+    /**
+     * Uploads the used files of a fileset concurrently, if so configured.
+     */
+    private volatile ExecutorService uploadThreadPool = null;
+
+    /**
+     * Limits the filesets imported concurrently, if any.
+     */
+    private volatile FilesetLimit filesetLimit = null;
+
+    /**
+     * How many times the creation of an import is retried while the server
+     * is busy, when importing concurrently.
+     */
+    private static final int BUSY_RETRIES = 5;
+
+    /**
+     * Minimum time to wait before retrying the creation of an import while
+     * the server is busy, in milliseconds.
+     */
+    private static final long BUSY_BACK_OFF = 1000L;
+
+    /**
+     * Limit on the number of filesets imported concurrently, lowered each
+     * time the server reports being busy and raised back to the configured
+     * number as imports succeed.
+     */
+    @SuppressWarnings("serial")
+    private static final class FilesetLimit extends Semaphore {
+
+        private final int maximum;
+
+        private int limit;
+
+        FilesetLimit(int maximum) {
+            super(maximum);
+            this.maximum = maximum;
+            this.limit = maximum;
+        }
+
+        synchronized void lower() {
+            if (limit > 1) {
+                limit--;
+                reducePermits(1);
+                log.info("Server busy, importing {} filesets at a time", limit);
+            }
+        }
+
+        synchronized void raise() {
+            if (limit < maximum) {
+                limit++;
+                release();
+            }
+        }
+    }
+
     static {
         final Set<ChecksumType> availableTypes = checksumProviderFactory.getAvailableTypes();
         final ImmutableList.Builder<ChecksumAlgorithm> builder = ImmutableList.builder();
@@ -242,8 +317,16 @@ public class ImportLibrary implements IObservable
      */
     public void notifyObservers(ImportEvent event)
     {
-        for (IObserver observer : observers) {
-            observer.update(this, event);
+        final OrderedEvents events = orderedEvents.get();
+        if (events != null) {
+            events.notifyObservers(event);
+            return;
+        }
+        // Observers are not expected to be thread-safe.
+        synchronized (observers) {
+            for (IObserver observer : observers) {
+                observer.update(this, event);
+            }
         }
     }
 
@@ -261,42 +344,22 @@ public class ImportLibrary implements IObservable
     {
         List<ImportContainer> containers = candidates.getContainers();
         if (containers != null) {
+            final int filesetThreads = Math.max(1, config.parallelFileset.get());
+            final int uploadThreads = Math.max(1, config.parallelUpload.get());
+            if (filesetThreads > 1 || uploadThreads > 1) {
+                return importCandidates(config, containers, filesetThreads,
+                        uploadThreads);
+            }
             int numDone = 0;
             for (int index = 0; index < containers.size(); index++) {
                 ImportContainer ic = containers.get(index);
-                ImportTarget target = config.getTarget();
-                if (target != null) {
-                    try {
-                        IObject obj = target.load(store, ic);
-                        if (!(obj instanceof Annotation)) {
-                            ic.setTarget(obj);
-                        } else {
-                            // This is likely a "post-processing" annotation
-                            // so that we don't have to resolve the target
-                            // until later.
-                            ic.getCustomAnnotationList().add((Annotation) obj);
-                        }
-                    } catch (Exception e) {
-                        log.error("Could not load target: {}", target);
-                        throw new RuntimeException("Failed to load target", e);
-                    }
-                }
-                if (config.checksumAlgorithm.get() != null) {
-                    ic.setChecksumAlgorithm(config.checksumAlgorithm.get());
-                }
+                prepareContainer(config, ic);
 
                 try {
                     importImage(ic,index,numDone,containers.size());
                     numDone++;
                 } catch (Throwable t) {
-                    String message = "Error on import";
-                    if (t instanceof ServerError) {
-                        final ServerError se = (ServerError) t;
-                        if (StringUtils.isNotBlank(se.message)) {
-                            message += ": " + se.message;
-                        }
-                    }
-                    log.error(message, t);
+                    logImportError(t);
                     if (!config.contOnError.get()) {
                         log.info("Exiting on error");
                         return false;
@@ -309,6 +372,152 @@ public class ImportLibrary implements IObservable
         return true;
     }
 
+    /**
+     * Imports the containers with a number of filesets and of files in
+     * flight. Targets are still loaded one container after another on the
+     * calling thread and events are reported as if the containers were
+     * imported one after another. While the server is busy fewer filesets
+     * are imported at a time. On error, unless continuing after errors, no
+     * further fileset is started, those in flight are completed.
+     * @param config The configuration information.
+     * @param containers The containers to import.
+     * @param filesetThreads The number of filesets to import at a time.
+     * @param uploadThreads The number of files of a fileset to upload at
+     * a time.
+     * @return if the import did not exit because of an error
+     */
+    private boolean importCandidates(final ImportConfig config,
+            final List<ImportContainer> containers, int filesetThreads,
+            int uploadThreads)
+    {
+        final ExecutorService filesetThreadPool =
+                Executors.newFixedThreadPool(filesetThreads);
+        final FilesetLimit limit = new FilesetLimit(filesetThreads);
+        final OrderedEvents events = new OrderedEvents(this, new IObserver() {
+            public void update(IObservable observable, ImportEvent event) {
+                synchronized (observers) {
+                    for (IObserver observer : observers) {
+                        observer.update(observable, event);
+                    }
+                }
+            }
+        });
+        final AtomicInteger numDone = new AtomicInteger();
+        final AtomicBoolean failed = new AtomicBoolean();
+        final List<Future<?>> imports = new ArrayList<Future<?>>();
+        final List<OrderedEvents> filesetsEvents = new ArrayList<OrderedEvents>();
+        filesetLimit = limit;
+        uploadThreadPool = uploadThreads > 1 ?
+                Executors.newFixedThreadPool(uploadThreads) : null;
+        try {
+            for (int i = 0; i < containers.size(); i++) {
+                final int index = i;
+                final ImportContainer ic = containers.get(index);
+                limit.acquire();
+                if (failed.get() && !config.contOnError.get()) {
+                    limit.release();
+                    break;
+                }
+                try {
+                    prepareContainer(config, ic);
+                } catch (RuntimeException e) {
+                    limit.release();
+                    throw e;
+                }
+                final OrderedEvents filesetEvents = events.open();
+                filesetsEvents.add(filesetEvents);
+                imports.add(filesetThreadPool.submit(new Runnable() {
+                    public void run() {
+                        orderedEvents.set(filesetEvents);
+                        try {
+                            importImage(ic, index, numDone.get(),
+                                    containers.size());
+                            numDone.incrementAndGet();
+                            limit.raise();
+                        } catch (Throwable t) {
+                            logImportError(t);
+                            failed.set(true);
+                            if (!config.contOnError.get()) {
+                                log.info("Exiting on error");
+                            } else {
+                                log.info("Continuing after error");
+                            }
+                        } finally {
+                            orderedEvents.remove();
+                            filesetEvents.close();
+                            limit.release();
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : imports) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while importing");
+            return false;
+        } catch (ExecutionException e) {
+            log.error("Error on import", e.getCause());
+            return false;
+        } finally {
+            filesetThreadPool.shutdownNow();
+            if (uploadThreadPool != null) {
+                uploadThreadPool.shutdownNow();
+            }
+            uploadThreadPool = null;
+            filesetLimit = null;
+            // Report the events of any fileset that never ran.
+            for (OrderedEvents filesetEvents : filesetsEvents) {
+                filesetEvents.close();
+            }
+            events.close();
+        }
+        return !failed.get() || config.contOnError.get();
+    }
+
+    /**
+     * Loads the configured target of a container and sets its checksum
+     * algorithm.
+     * @param config The configuration information.
+     * @param ic The container to be imported.
+     */
+    private void prepareContainer(ImportConfig config, ImportContainer ic)
+    {
+        ImportTarget target = config.getTarget();
+        if (target != null) {
+            try {
+                IObject obj = target.load(store, ic);
+                if (!(obj instanceof Annotation)) {
+                    ic.setTarget(obj);
+                } else {
+                    // This is likely a "post-processing" annotation
+                    // so that we don't have to resolve the target
+                    // until later.
+                    ic.getCustomAnnotationList().add((Annotation) obj);
+                }
+            } catch (Exception e) {
+                log.error("Could not load target: {}", target);
+                throw new RuntimeException("Failed to load target", e);
+            }
+        }
+        if (config.checksumAlgorithm.get() != null) {
+            ic.setChecksumAlgorithm(config.checksumAlgorithm.get());
+        }
+    }
+
+    private void logImportError(Throwable t)
+    {
+        String message = "Error on import";
+        if (t instanceof ServerError) {
+            final ServerError se = (ServerError) t;
+            if (StringUtils.isNotBlank(se.message)) {
+                message += ": " + se.message;
+            }
+        }
+        log.error(message, t);
+    }
+
     /**
      * Delete files from the managed repository.
      * @param container The current import container containing usedFiles to be
@@ -374,6 +583,47 @@ public class ImportLibrary implements IObservable
         return repo.importFileset(fs, settings);
     }
 
+    /**
+     * Calls {@link #createImport(ImportContainer)}, retrying after the
+     * back-off period requested by the server if it is busy and lowering
+     * the number of filesets imported at a time, when importing
+     * concurrently.
+     * @param container the import container
+     * @return the new import process from the server
+     * @throws ServerError if the import process could not be created
+     * @throws IOException if the used files' absolute path could not be found
+     */
+    private ImportProcessPrx createImportWithBackOff(
+            final ImportContainer container) throws ServerError, IOException {
+        final FilesetLimit limit = filesetLimit;
+        int attempt = 0;
+        while (true) {
+            try {
+                return createImport(container);
+            } catch (ServerError e) {
+                if (limit == null || attempt++ >= BUSY_RETRIES
+                        || !(e instanceof ConcurrencyException
+                                || e instanceof OverUsageException)) {
+                    throw e;
+                }
+                limit.lower();
+                long backOff = BUSY_BACK_OFF;
+                if (e instanceof ConcurrencyException) {
+                    backOff = Math.max(backOff,
+                            ((ConcurrencyException) e).backOff);
+                }
+                log.warn("Server busy, retrying import in {} ms",
+                        backOff * attempt);
+                try {
+                    Thread.sleep(backOff * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
     /**
      * Upload files to the managed repository.
      *
@@ -496,7 +746,7 @@ public class ImportLibrary implements IObservable
                 return Collections.emptyList();
             }
         }
-        final ImportProcessPrx proc = createImport(container);
+        final ImportProcessPrx proc = createImportWithBackOff(container);
         final String[] srcFiles = container.getUsedFiles();
         final List<String> checksums = new ArrayList<String>();
         final byte[] buf = new byte[store.getDefaultBlockSize()];
@@ -507,9 +757,14 @@ public class ImportLibrary implements IObservable
         notifyObservers(new ImportEvent.FILESET_UPLOAD_START(
                 null, index, srcFiles.length, null, null, null));
 
-        for (int i = 0; i < srcFiles.length; i++) {
-            checksums.add(uploadFile(proc, srcFiles, i, checksumProviderFactory,
-                    estimator, buf));
+        final ExecutorService uploads = uploadThreadPool;
+        if (uploads == null || srcFiles.length < 2) {
+            for (int i = 0; i < srcFiles.length; i++) {
+                checksums.add(uploadFile(proc, srcFiles, i, checksumProviderFactory,
+                        estimator, buf));
+            }
+        } else {
+            checksums.addAll(uploadFiles(proc, srcFiles, uploads));
         }
 
         try {
@@ -569,6 +824,82 @@ public class ImportLibrary implements IObservable
         }
     }
 
+    /**
+     * Uploads the used files of a fileset concurrently, each with its own
+     * buffer and time estimator. The events of each file are reported in
+     * file order.
+     * @param proc the server import process to use for the upload
+     * @param srcFiles the files to upload
+     * @param uploads the executor to upload the files on
+     * @return the client-side checksums of the files, in order
+     * @throws ServerError if a file could not be uploaded
+     * @throws IOException if a file could not be read
+     */
+    private List<String> uploadFiles(final ImportProcessPrx proc,
+            final String[] srcFiles, ExecutorService uploads)
+            throws ServerError, IOException
+    {
+        final OrderedEvents events = orderedEvents.get();
+        final List<Future<String>> futures = new ArrayList<Future<String>>();
+        final List<OrderedEvents> filesEvents = new ArrayList<OrderedEvents>();
+        try {
+            for (int i = 0; i < srcFiles.length; i++) {
+                final int index = i;
+                final OrderedEvents fileEvents =
+                        events == null ? null : events.open();
+                if (fileEvents != null) {
+                    filesEvents.add(fileEvents);
+                }
+                futures.add(uploads.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        orderedEvents.set(fileEvents);
+                        try {
+                            final File file = new File(
+                                    Location.getMappedId(srcFiles[index]));
+                            return uploadFile(proc, srcFiles, index,
+                                    checksumProviderFactory,
+                                    new ProportionalTimeEstimatorImpl(
+                                            file.length()),
+                                    new byte[store.getDefaultBlockSize()]);
+                        } finally {
+                            orderedEvents.remove();
+                            if (fileEvents != null) {
+                                fileEvents.close();
+                            }
+                        }
+                    }
+                }));
+            }
+            final List<String> checksums =
+                    new ArrayList<String>(srcFiles.length);
+            for (Future<String> future : futures) {
+                checksums.add(future.get());
+            }
+            return checksums;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while uploading", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof ServerError) {
+                throw (ServerError) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException("Unexpected exception thrown!", cause);
+        } finally {
+            for (Future<String> future : futures) {
+                future.cancel(true);
+            }
+            // Report the events of any file whose upload never ran.
+            for (OrderedEvents fileEvents : filesEvents) {
+                fileEvents.close();
+            }
+        }
+    }
+
     public ImportCallback createCallback(ImportProcessPrx proc,
         HandlePrx handle, ImportContainer container) throws ServerError {
         return new ImportCallback(proc, handle, container);
@@ -588,6 +919,12 @@ public class ImportLibrary implements IObservable
          */
         volatile ImportResponse importResponse = null;
 
+        /**
+         * The events of the fileset if imported concurrently, as the
+         * callback is notified on other threads.
+         */
+        final OrderedEvents events = orderedEvents.get();
+
         public ImportCallback(ImportProcessPrx proc, HandlePrx handle,
                 ImportContainer container) throws ServerError {
                 super(oa, category, handle);
@@ -599,6 +936,14 @@ public class ImportLibrary implements IObservable
                         null, null, 0, null, 0, 0, logFileId));
         }
 
+        private void notifyObservers(ImportEvent event) {
+            if (events == null) {
+                ImportLibrary.this.notifyObservers(event);
+            } else {
+                events.notifyObservers(event);
+            }
+        }
+
         protected Long loadLogFile() throws ServerError {
             final ImportRequest req = (ImportRequest) handle.getRequest();
             final Long fsId = req.activity.getParent().getId().getValue();
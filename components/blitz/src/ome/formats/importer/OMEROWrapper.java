@@ -247,6 +247,21 @@ public class OMEROWrapper extends MinMaxCalculator {
             super.updateMinMax(no, buf, len);
     }
 
+    /**
+     * Updates the min/max values with a tile that was read through another
+     * reader opened on the same file, as if it had been read through this
+     * one. Tiles must be given in the order this reader would have read them.
+     * @param no the plane number of the tile, for the current series
+     * @param buf the bytes of the tile
+     * @throws FormatException if the min/max values could not be updated
+     * @throws IOException if the min/max values could not be updated
+     * @since 5.3
+     */
+    public void updateTileMinMax(int no, byte[] buf)
+        throws FormatException, IOException {
+        updateMinMax(no, buf, buf.length);
+    }
+
     /* (non-Javadoc)
      * @see loci.formats.ReaderWrapper#close()
      */
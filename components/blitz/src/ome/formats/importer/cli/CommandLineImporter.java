@@ -463,6 +463,12 @@ public class CommandLineImporter {
             + "    --no-upgrade-check\t\tDisable upgrade check for each import\n"
             + "  e.g. $ bin/omero import -- --no-upgrade-check foo.tiff\n"
             + "       $ ./importer-cli --no-upgrade-check bar.tiff\n\n"
+            + "    --parallel-fileset=ARG\tNumber of filesets to import at the same time (default: 1)\n"
+            + "    --parallel-upload=ARG\tNumber of files of a fileset to upload at the same time (default: 1)\n"
+            + "                            \tFewer filesets are imported at the same time while the server is busy.\n"
+            + "                            \tProgress is still reported fileset by fileset, in order.\n"
+            + "  e.g. $ bin/omero import -- --parallel-fileset=4 --parallel-upload=8 some_directory/\n"
+            + "       $ ./importer-cli --parallel-fileset=4 some_directory/\n\n"
             + "\n"
             + "  Feedback:\n"
             + "  ---------\n\n"
@@ -608,6 +614,11 @@ public class CommandLineImporter {
         LongOpt outputFormat =
                 new LongOpt("output", LongOpt.REQUIRED_ARGUMENT, null, 25);
 
+        LongOpt parallelFileset =
+                new LongOpt("parallel-fileset", LongOpt.REQUIRED_ARGUMENT, null, 26);
+        LongOpt parallelUpload =
+                new LongOpt("parallel-upload", LongOpt.REQUIRED_ARGUMENT, null, 27);
+
         // DEPRECATED OPTIONS
         LongOpt minutesWaitDeprecated =
                 new LongOpt("minutes_wait", LongOpt.REQUIRED_ARGUMENT, null, 86);
@@ -646,6 +657,7 @@ public class CommandLineImporter {
                                 exclude, target, noStatsInfo,
                                 noUpgradeCheck, qaBaseURL,
                                 outputFormat,
+                                parallelFileset, parallelUpload,
                                 plateName, plateName2,
                                 plateDescription, plateDescription2,
                                 noThumbnailsDeprecated,
@@ -804,6 +816,18 @@ public class CommandLineImporter {
                 outputChoice = ImportOutput.valueOf(outputArg);
                 break;
             }
+            case 26: {
+                int count = Integer.parseInt(g.getOptarg());
+                log.info("Importing {} filesets at a time", count);
+                config.parallelFileset.set(count);
+                break;
+            }
+            case 27: {
+                int count = Integer.parseInt(g.getOptarg());
+                log.info("Uploading {} files at a time", count);
+                config.parallelUpload.set(count);
+                break;
+            }
             // ADVANCED END ---------------------------------------------------
             // DEPRECATED OPTIONS
             case 90:
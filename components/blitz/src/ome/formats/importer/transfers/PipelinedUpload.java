@@ -0,0 +1,265 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.formats.importer.transfers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import ome.util.checksum.ChecksumProvider;
+import omero.ServerError;
+
+/**
+ * Uploads a stream block by block without waiting for each block to be
+ * written before reading the next. Several writes are kept in flight at
+ * once, each for its own offset, and the blocks are checksummed on a
+ * separate thread while the next ones are read and written. Blocks are
+ * still checksummed in order and the completed writes are reported in
+ * order, so the result is the same as that of a serial upload.
+ * <em>Not thread safe</em>
+ *
+ * @since 5.3
+ */
+public class PipelinedUpload {
+
+    /**
+     * Writes blocks to the server asynchronously.
+     *
+     * @param <H> the type of handle on a write that has begun
+     */
+    public interface AsyncWriter<H> {
+
+        /**
+         * Begins writing a block. The content of the buffer must be taken,
+         * e.g. marshaled for sending, before the method returns because the
+         * buffer is then reused.
+         * @param buf the buffer holding the block
+         * @param offset where the block is to be written
+         * @param length the length of the block
+         * @return a handle on the write
+         * @throws ServerError if the write could not begin
+         */
+        H beginWrite(byte[] buf, long offset, int length) throws ServerError;
+
+        /**
+         * Waits for a write to complete.
+         * @param handle a handle from {@link #beginWrite(byte[], long, int)}
+         * @throws ServerError if the write failed
+         */
+        void endWrite(H handle) throws ServerError;
+    }
+
+    /**
+     * Notified of the progress of an upload, on the uploading thread.
+     */
+    public interface Listener {
+
+        /**
+         * A block was written. Blocks are reported in order.
+         * @param length the length of the block
+         * @param offset how many bytes are now written
+         */
+        void blockWritten(int length, long offset);
+    }
+
+    /** The default number of writes kept in flight. */
+    public static final int DEFAULT_WRITES_IN_FLIGHT = 4;
+
+    private static final ThreadFactory CHECKSUM_THREADS = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "upload-checksum");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    private static class Write<H> {
+        final H handle;
+        final int length;
+        final long end;
+
+        Write(H handle, int length, long end) {
+            this.handle = handle;
+            this.length = length;
+            this.end = end;
+        }
+    }
+
+    private final int writesInFlight;
+
+    private final int blockSize;
+
+    /** Buffers whose blocks are written and checksummed. */
+    private final BlockingQueue<byte[]> free;
+
+    private int allocated = 0;
+
+    private ExecutorService checksummer = null;
+
+    private volatile RuntimeException checksumFailure = null;
+
+    private int maxInFlight = 0;
+
+    /**
+     * @param buf the first buffer to read blocks into, also setting the
+     * size of the blocks
+     * @param writesInFlight how many writes may be in flight at once,
+     * at least one
+     */
+    public PipelinedUpload(byte[] buf, int writesInFlight) {
+        if (writesInFlight < 1) {
+            throw new IllegalArgumentException(
+                    "writes in flight must be positive: " + writesInFlight);
+        }
+        this.writesInFlight = writesInFlight;
+        this.blockSize = buf.length;
+        /* a buffer is free again once its block is checksummed, which may
+         * lag the writes by a few blocks before the reading waits */
+        this.free = new ArrayBlockingQueue<byte[]>(writesInFlight + 1);
+        this.free.add(buf);
+        this.allocated = 1;
+    }
+
+    /**
+     * @return the most writes that were in flight at once
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Uploads the remainder of a stream.
+     * @param stream the stream to read blocks from
+     * @param writer the writer of the blocks
+     * @param cp the checksum provider to put the blocks to
+     * @param offset the offset to write the first block to
+     * @param listener notified of each block that is written, may be null
+     * @param <H> the type of handle on a write
+     * @return the offset after the last block
+     * @throws IOException if the stream could not be read
+     * @throws ServerError if a write failed
+     */
+    public <H> long upload(InputStream stream, AsyncWriter<H> writer,
+            ChecksumProvider cp, long offset, Listener listener)
+            throws IOException, ServerError {
+        final Deque<Write<H>> inFlight = new ArrayDeque<Write<H>>();
+        try {
+            while (true) {
+                final byte[] block = nextBuffer();
+                final int rlen = stream.read(block);
+                if (rlen == -1) {
+                    free.add(block);
+                    break;
+                }
+                if (inFlight.size() == writesInFlight) {
+                    complete(writer, inFlight.removeFirst(), listener);
+                }
+                final H handle = writer.beginWrite(block, offset, rlen);
+                offset += rlen;
+                inFlight.addLast(new Write<H>(handle, rlen, offset));
+                maxInFlight = Math.max(maxInFlight, inFlight.size());
+                checksum(cp, block, rlen);
+            }
+            while (!inFlight.isEmpty()) {
+                complete(writer, inFlight.removeFirst(), listener);
+            }
+            awaitChecksums();
+            return offset;
+        } finally {
+            if (checksummer != null) {
+                checksummer.shutdownNow();
+                checksummer = null;
+            }
+        }
+    }
+
+    private <H> void complete(AsyncWriter<H> writer, Write<H> write,
+            Listener listener) throws ServerError {
+        writer.endWrite(write.handle);
+        if (listener != null) {
+            listener.blockWritten(write.length, write.end);
+        }
+    }
+
+    /**
+     * Takes a free buffer, allocating another if the checksums lag but not
+     * more than the pipeline can use.
+     */
+    private byte[] nextBuffer() throws IOException {
+        byte[] buf = free.poll();
+        if (buf == null) {
+            if (allocated <= writesInFlight) {
+                allocated++;
+                return new byte[blockSize];
+            }
+            try {
+                buf = free.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted awaiting checksum");
+            }
+        }
+        if (checksumFailure != null) {
+            throw checksumFailure;
+        }
+        return buf;
+    }
+
+    /**
+     * Checksums a block. A short block read before any full one is
+     * checksummed on this thread so that small files need no other.
+     */
+    private void checksum(final ChecksumProvider cp, final byte[] block,
+            final int length) {
+        if (checksummer == null && length < blockSize) {
+            cp.putBytes(block, 0, length);
+            free.add(block);
+            return;
+        }
+        if (checksummer == null) {
+            checksummer = Executors.newSingleThreadExecutor(CHECKSUM_THREADS);
+        }
+        checksummer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (checksumFailure == null) {
+                        cp.putBytes(block, 0, length);
+                    }
+                } catch (RuntimeException e) {
+                    checksumFailure = e;
+                } finally {
+                    free.add(block);
+                }
+            }
+        });
+    }
+
+    private void awaitChecksums() throws IOException {
+        if (checksummer != null) {
+            checksummer.shutdown();
+            try {
+                while (!checksummer.awaitTermination(1, TimeUnit.SECONDS)) {
+                    /* keep waiting: the blocks are all read */
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted awaiting checksum");
+            }
+        }
+        if (checksumFailure != null) {
+            throw checksumFailure;
+        }
+    }
+}
@@ -35,13 +35,37 @@ import org.apache.commons.lang.ArrayUtils;
  * files using the API. This is done by reading from
  * {@link TransferState#getFile()} into {@link TransferState#getBuffer()}
  * and then {@link RawFileStorePrx#write(byte[], long, int) writing} to the
- * server. <em>Not thread safe</em>
+ * server. The writes are {@link PipelinedUpload pipelined}: several are
+ * kept in flight at once and the file is checksummed on a separate thread
+ * meanwhile. <em>Not thread safe</em>
  *
  * @since 5.0
  */
 public class UploadFileTransfer extends AbstractFileTransfer {
 
-    public String transfer(TransferState state) throws IOException, ServerError {
+    private int writesInFlight = PipelinedUpload.DEFAULT_WRITES_IN_FLIGHT;
+
+    /**
+     * Set how many writes to keep in flight for each file. A value of
+     * {@code 1} writes each block before reading the next.
+     * @param writesInFlight the number of writes, at least one
+     */
+    public void setWritesInFlight(int writesInFlight) {
+        if (writesInFlight < 1) {
+            throw new IllegalArgumentException(
+                    "writes in flight must be positive: " + writesInFlight);
+        }
+        this.writesInFlight = writesInFlight;
+    }
+
+    /**
+     * @return how many writes are kept in flight for each file
+     */
+    public int getWritesInFlight() {
+        return writesInFlight;
+    }
+
+    public String transfer(final TransferState state) throws IOException, ServerError {
 
         final RawFileStorePrx rawFileStore = start(state);
         final File file = state.getFile();
@@ -52,7 +76,6 @@ public class UploadFileTransfer extends AbstractFileTransfer {
 
         try {
             stream = new FileInputStream(file);
-            int rlen = 0;
             long offset = 0;
 
             state.uploadStarted();
@@ -61,26 +84,19 @@ public class UploadFileTransfer extends AbstractFileTransfer {
             rawFileStore.write(ArrayUtils.EMPTY_BYTE_ARRAY, offset, 0);
             state.stop();
             state.uploadBytes(offset);
-    
-            while (true) {
-                state.start();
-                rlen = stream.read(buf);
-                if (rlen == -1) {
-                    break;
-                }
-                cp.putBytes(buf, 0, rlen);
-                final byte[] bufferToWrite;
-                if (rlen < buf.length) {
-                    bufferToWrite = new byte[rlen];
-                    System.arraycopy(buf, 0, bufferToWrite, 0, rlen);
-                } else {
-                    bufferToWrite = buf;
-                }
-                rawFileStore.write(bufferToWrite, offset, rlen);
-                offset += rlen;
-                state.stop(rlen);
-                state.uploadBytes(offset);
-            }
+            state.start();
+
+            final PipelinedUpload upload =
+                    new PipelinedUpload(buf, writesInFlight);
+            offset = upload.upload(stream, new StoreWriter(rawFileStore), cp,
+                    offset, new PipelinedUpload.Listener() {
+                        @Override
+                        public void blockWritten(int length, long written) {
+                            state.stop(length);
+                            state.uploadBytes(written);
+                            state.start();
+                        }
+                    });
 
             return finish(state, offset);
         } finally {
@@ -95,4 +111,36 @@ public class UploadFileTransfer extends AbstractFileTransfer {
     public void afterTransfer(int errors, List<String> srcFiles) throws CleanupFailure {
         // no-op
     }
+
+    /**
+     * Writes blocks with asynchronous invocations on the raw file store.
+     * Ice marshals the block before {@code begin_write} returns so the
+     * buffer may then be reused.
+     */
+    private static class StoreWriter
+            implements PipelinedUpload.AsyncWriter<Ice.AsyncResult> {
+
+        private final RawFileStorePrx rawFileStore;
+
+        StoreWriter(RawFileStorePrx rawFileStore) {
+            this.rawFileStore = rawFileStore;
+        }
+
+        @Override
+        public Ice.AsyncResult beginWrite(byte[] buf, long offset, int length) {
+            final byte[] bufferToWrite;
+            if (length < buf.length) {
+                bufferToWrite = new byte[length];
+                System.arraycopy(buf, 0, bufferToWrite, 0, length);
+            } else {
+                bufferToWrite = buf;
+            }
+            return rawFileStore.begin_write(bufferToWrite, offset, length);
+        }
+
+        @Override
+        public void endWrite(Ice.AsyncResult handle) throws ServerError {
+            rawFileStore.end_write(handle);
+        }
+    }
 }
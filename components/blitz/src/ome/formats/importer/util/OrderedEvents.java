@@ -0,0 +1,161 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.formats.importer.util;
+
+import java.util.LinkedList;
+
+import ome.formats.importer.IObservable;
+import ome.formats.importer.IObserver;
+import ome.formats.importer.ImportEvent;
+
+/**
+ * Reports the {@link ImportEvent}s raised by concurrent work in the order
+ * the work would have raised them had it run sequentially. A sequence of
+ * events may open child sequences, e.g. one per fileset or per uploaded
+ * file, which take their place in their parent at the point they were
+ * opened. The events of the earliest open sequence are reported as soon as
+ * they are raised, those of later ones are held back until every sequence
+ * before them is closed.
+ * <p>
+ * Events are reported to a single {@link IObserver}, one at a time, so
+ * observers that are not thread-safe may still be used.
+ * </p>
+ *
+ * @since 5.3
+ */
+public class OrderedEvents {
+
+    private final IObservable source;
+
+    private final IObserver observer;
+
+    private final OrderedEvents parent;
+
+    /** Guards the whole tree of sequences and the reporting of events. */
+    private final Object lock;
+
+    /** Events and child sequences not yet reported, in order. */
+    private final LinkedList<Object> pending = new LinkedList<Object>();
+
+    private boolean closed = false;
+
+    /** If the sequence was reported in full and removed from its parent. */
+    private boolean done = false;
+
+    /**
+     * Creates a root sequence, whose events are reported immediately.
+     * @param source The observable the events are reported as coming from.
+     * @param observer The observer the events are reported to.
+     */
+    public OrderedEvents(IObservable source, IObserver observer) {
+        this(source, observer, null, new Object());
+    }
+
+    private OrderedEvents(IObservable source, IObserver observer,
+            OrderedEvents parent, Object lock) {
+        this.source = source;
+        this.observer = observer;
+        this.parent = parent;
+        this.lock = lock;
+    }
+
+    /**
+     * Opens a sequence whose events are reported after those raised in
+     * this sequence so far and before those raised later.
+     * @return The child sequence, to be closed once complete.
+     */
+    public OrderedEvents open() {
+        synchronized (lock) {
+            OrderedEvents child =
+                    new OrderedEvents(source, observer, this, lock);
+            pending.add(child);
+            return child;
+        }
+    }
+
+    /**
+     * Raises an event, reporting it at once if every sequence before this
+     * one is closed and reported.
+     * @param event The event to report.
+     */
+    public void notifyObservers(ImportEvent event) {
+        synchronized (lock) {
+            if (done || (pending.isEmpty() && isCurrent())) {
+                // Events raised after a sequence was closed and reported
+                // are late but still reported.
+                observer.update(source, event);
+            } else {
+                pending.add(event);
+            }
+        }
+    }
+
+    /**
+     * Closes the sequence: no further child sequences are expected. Its
+     * pending events are reported once every sequence before it is closed.
+     */
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            root().drain();
+        }
+    }
+
+    /**
+     * Returns whether every event of the sequence has been reported.
+     * @return See above.
+     */
+    public boolean isDone() {
+        synchronized (lock) {
+            return done;
+        }
+    }
+
+    private OrderedEvents root() {
+        OrderedEvents root = this;
+        while (root.parent != null) {
+            root = root.parent;
+        }
+        return root;
+    }
+
+    /**
+     * Returns whether the events of this sequence may be reported now, i.e.
+     * it is at the head of each of its ancestors.
+     */
+    private boolean isCurrent() {
+        OrderedEvents child = this;
+        while (child.parent != null) {
+            if (child.parent.pending.peekFirst() != child) {
+                return false;
+            }
+            child = child.parent;
+        }
+        return true;
+    }
+
+    /**
+     * Reports the pending events of a current sequence up to its first
+     * child sequence that is still open.
+     * @return If the sequence is now closed and fully reported.
+     */
+    private boolean drain() {
+        while (!pending.isEmpty()) {
+            Object head = pending.peekFirst();
+            if (head instanceof OrderedEvents) {
+                OrderedEvents child = (OrderedEvents) head;
+                if (!child.drain()) {
+                    return false;
+                }
+                child.done = true;
+            } else {
+                observer.update(source, (ImportEvent) head);
+            }
+            pending.removeFirst();
+        }
+        return closed;
+    }
+}
@@ -22,6 +22,7 @@ import omero.api.AMD_RawPixelsStore_getPixelsId;
 import omero.api.AMD_RawPixelsStore_getPixelsPath;
 import omero.api.AMD_RawPixelsStore_getPlane;
 import omero.api.AMD_RawPixelsStore_getPlaneOffset;
+import omero.api.AMD_RawPixelsStore_getPlaneStatistics;
 import omero.api.AMD_RawPixelsStore_getPlaneRegion;
 import omero.api.AMD_RawPixelsStore_getPlaneSize;
 import omero.api.AMD_RawPixelsStore_getRegion;
@@ -257,6 +258,12 @@ public class RawPixelsStoreI extends AbstractPyramidServant implements
         callInvokerOnRawArgs(__cb, __current, channels);
     }
 
+    public void getPlaneStatistics_async(
+            AMD_RawPixelsStore_getPlaneStatistics __cb, int[] channels,
+            int z, int t, Current __current) throws ServerError {
+        callInvokerOnRawArgs(__cb, __current, channels, z, t);
+    }
+
     public void getCol_async(AMD_RawPixelsStore_getCol __cb, int x, int z,
             int c, int t, Current __current) throws ServerError
     {
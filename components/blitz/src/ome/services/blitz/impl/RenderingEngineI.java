@@ -26,6 +26,7 @@ import omero.api.AMD_RenderingEngine_getChannelStats;
 import omero.api.AMD_RenderingEngine_getChannelWindowEnd;
 import omero.api.AMD_RenderingEngine_getChannelWindowStart;
 import omero.api.AMD_RenderingEngine_getCodomainMapContext;
+import omero.api.AMD_RenderingEngine_getCompressionFormat;
 import omero.api.AMD_RenderingEngine_getCompressionLevel;
 import omero.api.AMD_RenderingEngine_getDefaultT;
 import omero.api.AMD_RenderingEngine_getDefaultZ;
@@ -56,6 +57,7 @@ import omero.api.AMD_RenderingEngine_setActive;
 import omero.api.AMD_RenderingEngine_setChannelLookupTable;
 import omero.api.AMD_RenderingEngine_setChannelWindow;
 import omero.api.AMD_RenderingEngine_setCodomainInterval;
+import omero.api.AMD_RenderingEngine_setCompressionFormat;
 import omero.api.AMD_RenderingEngine_setCompressionLevel;
 import omero.api.AMD_RenderingEngine_setDefaultT;
 import omero.api.AMD_RenderingEngine_setDefaultZ;
@@ -170,6 +172,12 @@ public class RenderingEngineI extends AbstractPyramidServant implements
         callInvokerOnRawArgs(__cb, __current, w);
     }
 
+    public void getCompressionFormat_async(
+            AMD_RenderingEngine_getCompressionFormat __cb, Current __current)
+            throws ServerError {
+        callInvokerOnRawArgs(__cb, __current);
+    }
+
     public void getCompressionLevel_async(
             AMD_RenderingEngine_getCompressionLevel __cb, Current __current)
             throws ServerError {
@@ -409,6 +417,12 @@ public class RenderingEngineI extends AbstractPyramidServant implements
         callInvokerOnRawArgs(__cb, __current, start, end);
     }
 
+    public void setCompressionFormat_async(
+            AMD_RenderingEngine_setCompressionFormat __cb, String format,
+            Current __current) throws ServerError {
+        callInvokerOnRawArgs(__cb, __current, format);
+    }
+
     public void setCompressionLevel_async(
             AMD_RenderingEngine_setCompressionLevel __cb, float percentage,
             Current __current) throws ServerError {
@@ -30,6 +30,7 @@ import omero.api.AMD_RawPixelsStore_getPixelsId;
 import omero.api.AMD_RawPixelsStore_getPixelsPath;
 import omero.api.AMD_RawPixelsStore_getPlane;
 import omero.api.AMD_RawPixelsStore_getPlaneOffset;
+import omero.api.AMD_RawPixelsStore_getPlaneStatistics;
 import omero.api.AMD_RawPixelsStore_getPlaneRegion;
 import omero.api.AMD_RawPixelsStore_getPlaneSize;
 import omero.api.AMD_RawPixelsStore_getRegion;
@@ -355,6 +356,12 @@ public class BfPixelsStoreI extends _RawPixelsStoreDisp {
             int[] channels, Current __current) throws ServerError {
         throw new UnsupportedOperationException("NYI");
     }
+
+    public void getPlaneStatistics_async(
+            AMD_RawPixelsStore_getPlaneStatistics __cb, int[] channels,
+            int z, int t, Current __current) throws ServerError {
+        throw new UnsupportedOperationException("NYI");
+    }
     
     public void activate_async(AMD_StatefulServiceInterface_activate __cb,
             Current __current) throws ServerError {
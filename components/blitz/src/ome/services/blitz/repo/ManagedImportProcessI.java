@@ -17,9 +17,12 @@
  */
 package ome.services.blitz.repo;
 
+import java.util.Iterator;
 import java.util.Map;
 import java.util.List;
 import java.util.HashMap;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -67,8 +70,13 @@ public class ManagedImportProcessI extends AbstractCloseableAmdServant
 
     static class UploadState {
         final RawFileStorePrx prx;
-        /** Next byte which should be written */
+        /** Next byte which should be written: all before it have been */
         long offset = 0;
+        /**
+         * Ranges written beyond {@link #offset}, start to end. Writes may
+         * complete out of order so these await the writes before them.
+         */
+        final SortedMap<Long, Long> written = new TreeMap<Long, Long>();
 
         UploadState(RawFileStorePrx prx) {
             if (prx == null) {
@@ -77,8 +85,33 @@ public class ManagedImportProcessI extends AbstractCloseableAmdServant
             this.prx = prx;
         }
 
-        void setOffset(long offset) {
-            this.offset = offset;
+        /**
+         * Note that a range has been written. The offset advances only
+         * over contiguous written ranges so never passes a gap.
+         * @param position the first byte written
+         * @param end the byte after the last written
+         */
+        synchronized void written(long position, long end) {
+            if (end <= offset) {
+                return;
+            }
+            final Long previousEnd = written.get(position);
+            if (previousEnd == null || previousEnd < end) {
+                written.put(position, end);
+            }
+            final Iterator<Map.Entry<Long, Long>> ranges = written.entrySet().iterator();
+            while (ranges.hasNext()) {
+                final Map.Entry<Long, Long> range = ranges.next();
+                if (range.getKey() > offset) {
+                    break;
+                }
+                offset = Math.max(offset, range.getValue());
+                ranges.remove();
+            }
+        }
+
+        synchronized long getOffset() {
+            return offset;
         }
     }
 
@@ -264,7 +297,7 @@ public class ManagedImportProcessI extends AbstractCloseableAmdServant
 
             @Override
             public void onWrite(byte[] buf, long position, long length) {
-                proc.setOffset(idx, position+length);
+                proc.written(idx, position, position+length);
             }
 
             /**
@@ -350,7 +383,7 @@ public class ManagedImportProcessI extends AbstractCloseableAmdServant
         if (state == null) {
             return 0;
         }
-        return state.offset;
+        return state.getOffset();
     }
 
     public HandlePrx getHandle(Ice.Current ignore) {
@@ -361,13 +394,13 @@ public class ManagedImportProcessI extends AbstractCloseableAmdServant
     // OTHER LOCAL INVOCATIONS
     //
 
-    public void setOffset(int idx, long offset) {
+    public void written(int idx, long position, long end) {
         final UploadState state = uploaders.getIfPresent(idx);
         if (state == null) {
-            log.warn(String.format("setOffset(%s, %s) - no such object", idx, offset));
+            log.warn(String.format("written(%s, %s, %s) - no such object", idx, position, end));
         } else {
-            state.setOffset(offset);
-            log.debug(String.format("setOffset(%s, %s) successfully", idx, offset));
+            state.written(position, end);
+            log.debug(String.format("written(%s, %s, %s) successfully", idx, position, end));
         }
     }
 
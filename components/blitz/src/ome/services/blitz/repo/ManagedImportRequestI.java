@@ -21,9 +21,18 @@ import java.io.File;
 import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import loci.formats.FormatException;
 import loci.formats.FormatReader;
@@ -128,6 +137,21 @@ public class ManagedImportRequestI extends ImportRequest implements IRequest {
 
     private OMEROWrapper reader = null;
 
+    /**
+     * Number of further readers decoding tiles concurrently in
+     * {@link #parseData(String, int, ImportSize)}. With fewer than two the
+     * tiles are read through {@link #reader} on the calling thread.
+     */
+    private int tileReaders = 1;
+
+    private long memoizerWait = -1;
+
+    private File memoizerDirectory = null;
+
+    /** Further readers opened on {@link #file}, created on first use. */
+    private final List<OMEROWrapper> extraReaders =
+            new ArrayList<OMEROWrapper>();
+
     private CheckedPath file = null;
 
     private IObject userSpecifiedTarget = null; // TODO: remove?
@@ -189,6 +213,22 @@ public class ManagedImportRequestI extends ImportRequest implements IRequest {
         this.resources = resources;
     }
 
+    /**
+     * Late injection of the number of readers that decode tiles concurrently
+     * while the pixel data is checksummed. Each reader is a further
+     * {@link OMEROWrapper} on the same file, memoized as {@link #reader}.
+     * @param tileReaders the number of readers, less than two to read the
+     * tiles in turn through the import's own reader
+     * @param memoizerWait the memoizer wait of the readers
+     * @param memoizerDirectory the memoizer directory of the readers
+     */
+    public void setTileReaders(int tileReaders, long memoizerWait,
+            File memoizerDirectory) {
+        this.tileReaders = tileReaders;
+        this.memoizerWait = memoizerWait;
+        this.memoizerDirectory = memoizerDirectory;
+    }
+
     /**
      * @param callContext the call context to set
      */
@@ -322,6 +362,14 @@ public class ManagedImportRequestI extends ImportRequest implements IRequest {
     }
 
     private void cleanupReader() {
+        for (OMEROWrapper extraReader : extraReaders) {
+            try {
+                extraReader.close();
+            } catch (Throwable e) {
+                log.error("Failed to close tile reader", e);
+            }
+        }
+        extraReaders.clear();
         try {
             if (reader != null) {
                 try {
@@ -780,6 +828,11 @@ public class ManagedImportRequestI extends ImportRequest implements IRequest {
             throw new RuntimeException(
                 "Required SHA-1 message digest algorithm unavailable.");
         }
+        if (tileReaders > 1 && (long) size.sizeZ * size.sizeC * size.sizeT
+                * getTilesPerPlane(size) > 1) {
+            parseDataByTile(size, series, bytesPerPixel, md);
+            return md;
+        }
         int planeNo = 1;
         for (int t = 0; t < size.sizeT; t++) {
             for (int c = 0; c < size.sizeC; c++) {
@@ -866,6 +919,164 @@ public class ManagedImportRequestI extends ImportRequest implements IRequest {
         }
     }
 
+    private int getTilesPerPlane(ImportSize size) {
+        int tileWidth = reader.getOptimalTileWidth();
+        int tileHeight = reader.getOptimalTileHeight();
+        return ((size.sizeX + tileWidth - 1) / tileWidth)
+                * ((size.sizeY + tileHeight - 1) / tileHeight);
+    }
+
+    /**
+     * Read the tiles of a series through {@link #tileReaders} readers
+     * concurrently and update the pixels checksum and the min/max values with
+     * them in the order {@link #parseDataByPlane} reads them, so that both
+     * are the same as if read in turn. At most two tiles per reader are held
+     * ahead of the digest.
+     *
+     * @param size Sizes of the Pixels set.
+     * @param series The series being read.
+     * @param bytesPerPixel Number of bytes per pixel.
+     * @param md Current Pixels set message digest.
+     * @throws FormatException If there is an error reading Pixel data via
+     * Bio-Formats.
+     * @throws IOException If there is an I/O error reading Pixel data via
+     * Bio-Formats.
+     */
+    private void parseDataByTile(ImportSize size, int series,
+            int bytesPerPixel, MessageDigest md)
+        throws FormatException, IOException
+    {
+        final int tileWidth = reader.getOptimalTileWidth();
+        final int tileHeight = reader.getOptimalTileHeight();
+        final int tilesPerRow = (size.sizeX + tileWidth - 1) / tileWidth;
+        final int tilesPerPlane = getTilesPerPlane(size);
+        final int totalTiles =
+                size.sizeZ * size.sizeC * size.sizeT * tilesPerPlane;
+        final BlockingQueue<OMEROWrapper> readers = openTileReaders();
+        final ExecutorService executor =
+                Executors.newFixedThreadPool(readers.size());
+        final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+        final int window = 2 * readers.size();
+        final int[][] tiles = new int[window + 1][];
+        int submitted = 0;
+        try {
+            for (int tileCount = 0; tileCount < totalTiles; tileCount++) {
+                while (submitted < totalTiles
+                        && submitted - tileCount < window) {
+                    // The plane and tile of the submitted'th tile, in the
+                    // order of parseData then parseDataByPlane.
+                    int plane = submitted / tilesPerPlane;
+                    int tileInPlane = submitted % tilesPerPlane;
+                    int z = plane % size.sizeZ;
+                    int c = (plane / size.sizeZ) % size.sizeC;
+                    int t = plane / (size.sizeZ * size.sizeC);
+                    int x = (tileInPlane % tilesPerRow) * tileWidth;
+                    int y = (tileInPlane / tilesPerRow) * tileHeight;
+                    int[] tile = new int[] { reader.getIndex(z, c, t), x, y,
+                            Math.min(tileWidth, size.sizeX - x),
+                            Math.min(tileHeight, size.sizeY - y) };
+                    tiles[submitted % tiles.length] = tile;
+                    pending.add(executor.submit(new TileRead(readers, series,
+                            tile, bytesPerPixel)));
+                    submitted++;
+                }
+                final int planeNumber = tiles[tileCount % tiles.length][0];
+                final byte[] buf = awaitTile(pending.poll());
+                md.update(buf);
+                reader.updateTileMinMax(planeNumber, buf);
+                if ((tileCount + 1) % tilesPerPlane == 0) {
+                    notifyObservers(new ImportEvent.IMPORT_STEP(
+                            (tileCount + 1) / tilesPerPlane, series,
+                            reader.getSeriesCount()));
+                }
+            }
+        } finally {
+            for (Future<byte[]> future : pending) {
+                future.cancel(true);
+            }
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Opens the further readers of {@link #file} for reading tiles, if not
+     * already open.
+     * @return the readers, to be taken and returned by each tile read
+     */
+    private BlockingQueue<OMEROWrapper> openTileReaders()
+        throws FormatException, IOException
+    {
+        while (extraReaders.size() < tileReaders) {
+            // No metadata or min/max store: only the import's reader
+            // populates those.
+            OMEROWrapper extraReader = new OMEROWrapper(
+                    new ImportConfig(), memoizerWait, memoizerDirectory);
+            extraReaders.add(extraReader);
+            file.bfSetId(extraReader);
+        }
+        return new ArrayBlockingQueue<OMEROWrapper>(
+                extraReaders.size(), false, extraReaders);
+    }
+
+    private byte[] awaitTile(Future<byte[]> future)
+        throws FormatException, IOException
+    {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted reading tile", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof FormatException) {
+                throw (FormatException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Error reading tile", cause);
+        }
+    }
+
+    /**
+     * Reads a tile through any idle tile reader.
+     */
+    private static class TileRead implements Callable<byte[]> {
+
+        private final BlockingQueue<OMEROWrapper> readers;
+
+        private final int series;
+
+        /** The plane number, x, y, width and height of the tile. */
+        private final int[] tile;
+
+        private final int bytesPerPixel;
+
+        TileRead(BlockingQueue<OMEROWrapper> readers, int series, int[] tile,
+                int bytesPerPixel) {
+            this.readers = readers;
+            this.series = series;
+            this.tile = tile;
+            this.bytesPerPixel = bytesPerPixel;
+        }
+
+        public byte[] call() throws Exception {
+            // There are as many readers as reading threads.
+            OMEROWrapper tileReader = readers.take();
+            try {
+                if (tileReader.getSeries() != series) {
+                    tileReader.setSeries(series);
+                }
+                byte[] buf = new byte[tile[3] * tile[4] * bytesPerPixel];
+                return tileReader.openBytes(
+                        tile[0], buf, tile[1], tile[2], tile[3], tile[4]);
+            } finally {
+                readers.add(tileReader);
+            }
+        }
+    }
+
     /**
      * If available, populates overlays for a given set of pixels objects.
      * @param pixelsList Pixels objects to populate overlays for.
@@ -56,6 +56,8 @@ public class RequestObjectFactoryRegistry extends
 
     private/* final */OmeroContext ctx;
 
+    private int importReaders = 1;
+
     public RequestObjectFactoryRegistry(Registry reg, TileSizes sizes,
             RepositoryDao repositoryDao, Ring ring,
             PixelsService pixels) {
@@ -72,6 +74,16 @@ public class RequestObjectFactoryRegistry extends
         this.resources = resources;
     }
 
+    /**
+     * Sets the number of readers decoding tiles concurrently while each
+     * import checksums the pixel data.
+     * @param importReaders the number of readers, less than two to read
+     * the tiles in turn
+     */
+    public void setImportReaders(int importReaders) {
+        this.importReaders = importReaders;
+    }
+
     public void setApplicationContext(ApplicationContext ctx)
             throws BeansException {
         this.ctx = (OmeroContext) ctx;
@@ -90,6 +102,9 @@ public class RequestObjectFactoryRegistry extends
                                 pixels.getMemoizerDirectory()),
                         ring.uuid);
                 mir.setResources(resources);
+                mir.setTileReaders(importReaders,
+                        pixels.getMemoizerWait(),
+                        pixels.getMemoizerDirectory());
                 return mir;
             }
 
@@ -0,0 +1,432 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.throttling;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ome.api.ServiceInterface;
+import ome.conditions.OverUsageException;
+import ome.security.basic.CurrentDetails;
+import ome.services.blitz.util.IceMethodInvoker;
+import ome.system.metrics.Counter;
+import ome.system.metrics.Histogram;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.Timer;
+import omero.util.IceMapper;
+
+import Ice.Current;
+
+/**
+ * Throttling implementation which runs invocations on a bounded pool of
+ * threads, taking turns between the sessions which have invocations waiting
+ * and, within a session, between the methods being called. A session may
+ * only have its fair share of the running invocations while other sessions
+ * are waiting, so one heavy client can no longer starve the others.
+ * <p>
+ * How many invocations run at once is adapted to the time they take: the
+ * limit shrinks while recent invocations are slower than the long-term
+ * average and grows back while they are not, between one and the number of
+ * threads. Invocations are rejected with an {@link OverUsageException} once
+ * too many are waiting. The time waited, the time run and the rejections are
+ * reported to the {@link Metrics}.
+ * </p>
+ *
+ * @since 5.3
+ */
+public class FairThrottlingStrategy extends AbstractThrottlingStrategy {
+
+    /** How much slower than the long-term average may be tolerated. */
+    private static final double TOLERANCE = 1.5;
+
+    /** Weight of each new sample in the short-term average run time. */
+    private static final double SHORT_WEIGHT = 0.1;
+
+    /** Weight of each new sample in the long-term average run time. */
+    private static final double LONG_WEIGHT = 0.01;
+
+    /** Weight of each new limit in the smoothed limit. */
+    private static final double LIMIT_WEIGHT = 0.2;
+
+    /**
+     * An invocation waiting for its turn.
+     */
+    private static class Job {
+        final Current current;
+        final Task task;
+        final long queued = System.nanoTime();
+
+        Job(Current current, Task task) {
+            this.current = current;
+            this.task = task;
+        }
+    }
+
+    /**
+     * The invocations of a single session, queued per method.
+     */
+    private static class SessionQueue {
+        final String session;
+        final Map<String, ArrayDeque<Job>> methods =
+                new LinkedHashMap<String, ArrayDeque<Job>>();
+        int running = 0;
+
+        SessionQueue(String session) {
+            this.session = session;
+        }
+
+        /**
+         * Takes the oldest invocation of the method at the head of the
+         * rotation, then moves that method to the back.
+         */
+        Job take() {
+            final Iterator<Map.Entry<String, ArrayDeque<Job>>> it =
+                    methods.entrySet().iterator();
+            final Map.Entry<String, ArrayDeque<Job>> head = it.next();
+            final Job job = head.getValue().removeFirst();
+            it.remove();
+            if (!head.getValue().isEmpty()) {
+                methods.put(head.getKey(), head.getValue());
+            }
+            return job;
+        }
+    }
+
+    private final CurrentDetails cd;
+
+    private final int threads;
+
+    private final int maxQueued;
+
+    private final ExecutorService pool;
+
+    /** Guards the queues and the counts below. */
+    private final Object lock = new Object();
+
+    /** Every session with invocations waiting or running. */
+    private final Map<String, SessionQueue> sessions =
+            new HashMap<String, SessionQueue>();
+
+    /** The sessions with invocations waiting, in the order of their turns. */
+    private final ArrayDeque<SessionQueue> waiting =
+            new ArrayDeque<SessionQueue>();
+
+    private int queued = 0;
+
+    private int running = 0;
+
+    private long rejections = 0;
+
+    private double limit;
+
+    private double shortTime = 0;
+
+    private double longTime = 0;
+
+    private final Histogram queueTime;
+
+    private final Timer runTime;
+
+    private final Counter rejected;
+
+    /**
+     * @param cd the current details to set the context of each invocation on
+     * @param metrics the metrics to report to
+     * @param threads the number of threads to run invocations on
+     * @param maxQueued how many invocations may wait before more are rejected
+     */
+    public FairThrottlingStrategy(CurrentDetails cd, Metrics metrics,
+            int threads, int maxQueued) {
+        if (threads < 1) {
+            throw new IllegalArgumentException(
+                    "threads must be positive: " + threads);
+        }
+        this.cd = cd;
+        this.threads = threads;
+        this.maxQueued = maxQueued;
+        this.limit = threads;
+        this.queueTime = metrics.histogram(this, "queueTime");
+        this.runTime = metrics.timer(this, "runTime");
+        this.rejected = metrics.counter(this, "rejected");
+        final AtomicInteger count = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "throttling-" + count.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * Stops taking invocations, rejecting those still waiting.
+     */
+    public void destroy() {
+        pool.shutdown();
+        synchronized (lock) {
+            for (SessionQueue sq : waiting) {
+                for (ArrayDeque<Job> jobs : sq.methods.values()) {
+                    for (Job job : jobs) {
+                        reject(job, "Server shutting down");
+                    }
+                }
+                sq.methods.clear();
+            }
+            waiting.clear();
+            queued = 0;
+        }
+    }
+
+    // Metrics
+    // =========================================================================
+
+    /**
+     * @return the number of invocations waiting for their turn
+     */
+    public int getQueued() {
+        synchronized (lock) {
+            return queued;
+        }
+    }
+
+    /**
+     * @return the number of invocations running
+     */
+    public int getRunning() {
+        synchronized (lock) {
+            return running;
+        }
+    }
+
+    /**
+     * @return how many invocations may currently run at once
+     */
+    public int getLimit() {
+        synchronized (lock) {
+            return currentLimit();
+        }
+    }
+
+    /**
+     * @return the number of invocations rejected so far
+     */
+    public long getRejected() {
+        synchronized (lock) {
+            return rejections;
+        }
+    }
+
+    // BlitzExecutor
+    // =========================================================================
+
+    public void callInvokerOnRawArgs(ServiceInterface service,
+            IceMethodInvoker invoker, Object __cb, Ice.Current __current,
+            Object... args) {
+        IceMapper mapper = new IceMapper();
+        Callback cb = new Callback(service, invoker, mapper, __cb, __current,
+                args);
+        submit(new Job(__current, cb));
+    }
+
+    public void callInvokerWithMappedArgs(ServiceInterface service,
+            IceMethodInvoker invoker, IceMapper mapper, Object __cb,
+            Current __current, Object... args) {
+        Callback cb = new Callback(service, invoker, mapper, __cb, __current,
+                args);
+        submit(new Job(__current, cb));
+    }
+
+    public <R> void safeRunnableCall(Current __current, Object __cb,
+            boolean isVoid, Callable<R> callable) {
+        Callback2<R> cb = new Callback2<R>(__current, __cb, isVoid, callable);
+        submit(new Job(__current, cb));
+    }
+
+    public void runnableCall(Current __current, Task runnable) {
+        submit(new Job(__current, runnable));
+    }
+
+    // Scheduling
+    // =========================================================================
+
+    private void submit(Job job) {
+        final String session = key(job.current == null ? null
+                : job.current.id == null ? null : job.current.id.category);
+        final String method = key(job.current == null ? null
+                : job.current.operation);
+        synchronized (lock) {
+            if (pool.isShutdown()) {
+                reject(job, "Server shutting down");
+                return;
+            }
+            if (queued >= maxQueued) {
+                reject(job, queued + " invocations already waiting");
+                return;
+            }
+            SessionQueue sq = sessions.get(session);
+            if (sq == null) {
+                sq = new SessionQueue(session);
+                sessions.put(session, sq);
+            }
+            if (sq.methods.isEmpty()) {
+                waiting.addLast(sq);
+            }
+            ArrayDeque<Job> jobs = sq.methods.get(method);
+            if (jobs == null) {
+                jobs = new ArrayDeque<Job>();
+                sq.methods.put(method, jobs);
+            }
+            jobs.addLast(job);
+            queued++;
+            dispatch();
+        }
+    }
+
+    private static String key(String str) {
+        return str == null ? "" : str;
+    }
+
+    /**
+     * Starts waiting invocations while fewer than the limit are running,
+     * taking turns between the sessions which are within their share.
+     * Must be called holding {@link #lock}.
+     */
+    private void dispatch() {
+        final int max = currentLimit();
+        int skipped = 0;
+        while (running < max && !waiting.isEmpty()
+                && skipped < waiting.size()) {
+            final SessionQueue sq = waiting.removeFirst();
+            if (sq.running >= share(max)) {
+                waiting.addLast(sq);
+                skipped++;
+                continue;
+            }
+            skipped = 0;
+            final Job job = sq.take();
+            queued--;
+            if (!sq.methods.isEmpty()) {
+                waiting.addLast(sq);
+            }
+            sq.running++;
+            running++;
+            queueTime.update((int) TimeUnit.NANOSECONDS.toMillis(
+                    System.nanoTime() - job.queued));
+            try {
+                pool.execute(new Runnable() {
+                    public void run() {
+                        execute(sq, job);
+                    }
+                });
+            } catch (RejectedExecutionException ree) {
+                finished(sq);
+                reject(job, "Server shutting down");
+            }
+        }
+    }
+
+    /**
+     * The most invocations a session may have running at once: the limit
+     * divided between the sessions with invocations waiting or running.
+     */
+    private int share(int max) {
+        return Math.max(1, max / Math.max(1, sessions.size()));
+    }
+
+    private int currentLimit() {
+        return Math.max(1, (int) limit);
+    }
+
+    private void execute(SessionQueue sq, Job job) {
+        final long start = System.nanoTime();
+        final Timer.Context time = runTime.time();
+        try {
+            if (job.current != null) {
+                cd.setContext(job.current.ctx);
+            }
+            job.task.run(ctx);
+        } catch (Exception e) {
+            log.error("Exception during invocation of " + job.task, e);
+        } finally {
+            cd.setContext(null);
+            time.stop();
+            synchronized (lock) {
+                adapt(System.nanoTime() - start);
+                finished(sq);
+                dispatch();
+            }
+        }
+    }
+
+    /**
+     * Notes that an invocation of the session is no longer running.
+     * Must be called holding {@link #lock}.
+     */
+    private void finished(SessionQueue sq) {
+        sq.running--;
+        running--;
+        if (sq.running == 0 && sq.methods.isEmpty()) {
+            sessions.remove(sq.session);
+        }
+    }
+
+    /**
+     * Adapts the limit to the time taken by an invocation, following the
+     * ratio of the long-term to the short-term average time. The limit only
+     * grows while it is in use. Must be called holding {@link #lock}.
+     */
+    private void adapt(long nanos) {
+        final double sample = Math.max(1, nanos);
+        if (longTime == 0) {
+            shortTime = longTime = sample;
+            return;
+        }
+        shortTime += (sample - shortTime) * SHORT_WEIGHT;
+        longTime += (sample - longTime) * LONG_WEIGHT;
+        if (longTime > 2 * shortTime) {
+            /* let the long-term average recover after a slow period */
+            longTime *= 0.95;
+        }
+        final double gradient =
+                Math.max(0.5, Math.min(1.0, TOLERANCE * longTime / shortTime));
+        final boolean inUse = running + queued >= limit / 2;
+        if (gradient == 1.0 && !inUse) {
+            return;
+        }
+        final double next = limit * gradient + Math.sqrt(limit);
+        limit += (next - limit) * LIMIT_WEIGHT;
+        limit = Math.max(1, Math.min(threads, limit));
+    }
+
+    /**
+     * Rejects an invocation. Must be called holding {@link #lock}.
+     */
+    private void reject(Job job, String reason) {
+        rejections++;
+        rejected.inc();
+        final String msg = String.format(
+                "Rejecting %s: %s", job.current == null ? "invocation"
+                        : job.current.operation, reason);
+        log.warn(msg);
+        if (job.task.cb == null) {
+            return;
+        }
+        try {
+            job.task.exception(new OverUsageException(msg), ctx);
+        } catch (RuntimeException e) {
+            log.error("Failed to reject " + job.task, e);
+        }
+    }
+
+}
@@ -94,6 +94,8 @@ public class ManageImageBinariesI extends ManageImageBinaries implements
 
     private PixelFiles files;
 
+    private long pixelsId;
+
     private List<File> thumbnailFiles = new ArrayList<File>();
 
     public ManageImageBinariesI(PixelsService pixelsService,
@@ -196,7 +198,8 @@ public class ManageImageBinariesI extends ManageImageBinaries implements
                 "select tb from Thumbnail tb where " +
                 "tb.pixels.id = :id", new Parameters().addId(pixels.getId()));
 
-        String path = pixelsService.getPixelsPath(pixels.getId());
+        pixelsId = pixels.getId();
+        String path = pixelsService.getPixelsPath(pixelsId);
         files = new PixelFiles(path);
         files.update(rsp);
         for (Thumbnail tb: thumbs) {
@@ -239,6 +242,7 @@ public class ManageImageBinariesI extends ManageImageBinaries implements
         if (deletePyramid) {
             requireFileset("pyramid");
             processFile("pyramid", files.pyramid, null);
+            pixelsService.invalidatePyramidTiles(pixelsId);
             files.update(rsp);
         }
     }
@@ -431,6 +431,7 @@ public class DiskUsage2I extends DiskUsage2 implements IRequest {
                         usage.bumpTotals().add(ownerId, groupId, className, getFileSize(pixelsPath + PixelsService.PYRAMID_SUFFIX));
                         usage.bumpTotals().add(ownerId, groupId, className, getFileSize(pixelsPath + PixelsService.PYRAMID_SUFFIX +
                                 BfPyramidPixelBuffer.PYR_LOCK_EXT));
+                        usage.bumpTotals().add(ownerId, groupId, className, getFileSize(pixelsPath + PixelsService.STATS_SUFFIX));
                     }
                 }
             } else if ("Thumbnail".equals(className)) {
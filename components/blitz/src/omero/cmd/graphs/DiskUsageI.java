@@ -547,6 +547,7 @@ public class DiskUsageI extends DiskUsage implements IRequest {
                         usage.bumpTotals().add(ownerId, groupId, className, getFileSize(pixelsPath + PixelsService.PYRAMID_SUFFIX));
                         usage.bumpTotals().add(ownerId, groupId, className, getFileSize(pixelsPath + PixelsService.PYRAMID_SUFFIX +
                                 BfPyramidPixelBuffer.PYR_LOCK_EXT));
+                        usage.bumpTotals().add(ownerId, groupId, className, getFileSize(pixelsPath + PixelsService.STATS_SUFFIX));
                     }
                 }
             } else if ("Thumbnail".equals(className)) {
@@ -0,0 +1,174 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.formats.importer.transfers;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import ome.util.checksum.ChecksumProvider;
+import ome.util.checksum.ChecksumProviderFactoryImpl;
+import ome.util.checksum.ChecksumType;
+import omero.ServerError;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link PipelinedUpload} against a local stand-in for the server
+ * whose writes each take a round trip, checking that the uploaded file and
+ * its checksum match those of a serial upload and that keeping writes in
+ * flight improves the throughput.
+ *
+ * @since 5.3
+ */
+@Test
+public class PipelinedUploadTest {
+
+    private static final int BLOCK_SIZE = 1024;
+
+    private static final int BLOCKS = 64;
+
+    private static final long ROUND_TRIP_MS = 5;
+
+    private final ChecksumProviderFactoryImpl checksums =
+            new ChecksumProviderFactoryImpl();
+
+    private ScheduledExecutorService server;
+
+    private byte[] data;
+
+    /** Writes to a byte array after a delay, like a remote file store. */
+    class StandInStore implements PipelinedUpload.AsyncWriter<Future<?>> {
+        final byte[] written;
+        final int failAt;
+
+        StandInStore(int length, int failAt) {
+            this.written = new byte[length];
+            this.failAt = failAt;
+        }
+
+        public Future<?> beginWrite(byte[] buf, long offset, int length) {
+            // The block is taken when the write begins, as Ice marshals it.
+            final byte[] block = Arrays.copyOf(buf, length);
+            final int position = (int) offset;
+            return server.schedule(new Callable<Void>() {
+                public Void call() throws ServerError {
+                    if (position == failAt) {
+                        throw new ServerError();
+                    }
+                    synchronized (written) {
+                        System.arraycopy(block, 0, written, position,
+                                block.length);
+                    }
+                    return null;
+                }
+            }, ROUND_TRIP_MS, TimeUnit.MILLISECONDS);
+        }
+
+        public void endWrite(Future<?> handle) throws ServerError {
+            try {
+                handle.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ServerError();
+            } catch (ExecutionException e) {
+                throw (ServerError) e.getCause();
+            }
+        }
+    }
+
+    @BeforeClass
+    public void setup() {
+        server = Executors.newScheduledThreadPool(16);
+        data = new byte[BLOCKS * BLOCK_SIZE + BLOCK_SIZE / 3];
+        new Random(42).nextBytes(data);
+    }
+
+    @AfterClass
+    public void tearDown() {
+        server.shutdownNow();
+    }
+
+    private String checksum(byte[] bytes) {
+        return checksums.getProvider(ChecksumType.SHA1)
+                .putBytes(bytes).checksumAsString();
+    }
+
+    /**
+     * Uploads the data, returning the time taken in milliseconds.
+     */
+    private long upload(int writesInFlight) throws Exception {
+        final StandInStore store = new StandInStore(data.length, -1);
+        final ChecksumProvider cp = checksums.getProvider(ChecksumType.SHA1);
+        final PipelinedUpload upload =
+                new PipelinedUpload(new byte[BLOCK_SIZE], writesInFlight);
+        final List<Long> reported = new ArrayList<Long>();
+        final long start = System.nanoTime();
+        final long end = upload.upload(new ByteArrayInputStream(data), store,
+                cp, 0, new PipelinedUpload.Listener() {
+                    public void blockWritten(int length, long offset) {
+                        Assert.assertEquals(
+                                store.written[(int) offset - 1],
+                                data[(int) offset - 1]);
+                        reported.add(offset);
+                    }
+                });
+        final long elapsed = (System.nanoTime() - start) / 1000000;
+        Assert.assertEquals(end, data.length);
+        Assert.assertEquals(store.written, data);
+        Assert.assertEquals(cp.checksumAsString(), checksum(data));
+        Assert.assertEquals(reported.size(), BLOCKS + 1);
+        for (int i = 0; i < BLOCKS; i++) {
+            Assert.assertEquals(reported.get(i).longValue(),
+                    (i + 1L) * BLOCK_SIZE);
+        }
+        Assert.assertEquals(upload.getMaxInFlight(),
+                Math.min(writesInFlight, BLOCKS + 1));
+        return elapsed;
+    }
+
+    public void testSerialUpload() throws Exception {
+        upload(1);
+    }
+
+    @Test(timeOut = 30000)
+    public void testPipelinedThroughput() throws Exception {
+        final long serial = upload(1);
+        final long pipelined = upload(8);
+        Assert.assertTrue(pipelined * 2 < serial,
+                "pipelined " + pipelined + "ms, serial " + serial + "ms");
+    }
+
+    public void testSmallFile() throws Exception {
+        final byte[] small = Arrays.copyOf(data, BLOCK_SIZE / 2);
+        final StandInStore store = new StandInStore(small.length, -1);
+        final ChecksumProvider cp = checksums.getProvider(ChecksumType.SHA1);
+        final long end = new PipelinedUpload(new byte[BLOCK_SIZE], 4).upload(
+                new ByteArrayInputStream(small), store, cp, 0, null);
+        Assert.assertEquals(end, small.length);
+        Assert.assertEquals(store.written, small);
+        Assert.assertEquals(cp.checksumAsString(), checksum(small));
+    }
+
+    @Test(expectedExceptions = ServerError.class)
+    public void testWriteFailure() throws Exception {
+        final StandInStore store =
+                new StandInStore(data.length, 10 * BLOCK_SIZE);
+        new PipelinedUpload(new byte[BLOCK_SIZE], 4).upload(
+                new ByteArrayInputStream(data), store,
+                checksums.getProvider(ChecksumType.SHA1), 0, null);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.formats.importer.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import ome.formats.importer.IObservable;
+import ome.formats.importer.IObserver;
+import ome.formats.importer.ImportEvent;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that {@link OrderedEvents} reports the events of concurrent
+ * sequences in the order of the sequences.
+ *
+ * @since 5.3
+ */
+@Test
+public class OrderedEventsTest {
+
+    static class Labelled extends ImportEvent {
+        final String label;
+        Labelled(String label) {
+            this.label = label;
+        }
+    }
+
+    /** Records the labels reported, failing on concurrent reports. */
+    static class Recorder implements IObserver {
+        final List<String> labels =
+                Collections.synchronizedList(new ArrayList<String>());
+        volatile boolean reporting = false;
+
+        public void update(IObservable observable, ImportEvent event) {
+            Assert.assertFalse(reporting, "concurrent report");
+            reporting = true;
+            labels.add(((Labelled) event).label);
+            reporting = false;
+        }
+    }
+
+    public void testLaterSequencesAreHeldBack() {
+        Recorder recorder = new Recorder();
+        OrderedEvents root = new OrderedEvents(null, recorder);
+        root.notifyObservers(new Labelled("start"));
+        OrderedEvents first = root.open();
+        OrderedEvents second = root.open();
+        root.notifyObservers(new Labelled("end"));
+        second.notifyObservers(new Labelled("second"));
+        first.notifyObservers(new Labelled("first.1"));
+        Assert.assertEquals(recorder.labels,
+                Arrays.asList("start", "first.1"));
+        second.close();
+        Assert.assertFalse(second.isDone());
+        first.notifyObservers(new Labelled("first.2"));
+        first.close();
+        Assert.assertTrue(first.isDone());
+        Assert.assertTrue(second.isDone());
+        Assert.assertEquals(recorder.labels, Arrays.asList(
+                "start", "first.1", "first.2", "second", "end"));
+        // Late events are still reported.
+        first.notifyObservers(new Labelled("late"));
+        Assert.assertEquals(recorder.labels.get(5), "late");
+    }
+
+    public void testNestedSequences() {
+        Recorder recorder = new Recorder();
+        OrderedEvents root = new OrderedEvents(null, recorder);
+        OrderedEvents fileset = root.open();
+        fileset.notifyObservers(new Labelled("fileset.start"));
+        OrderedEvents file1 = fileset.open();
+        OrderedEvents file2 = fileset.open();
+        fileset.notifyObservers(new Labelled("fileset.end"));
+        OrderedEvents nextFileset = root.open();
+        nextFileset.notifyObservers(new Labelled("next"));
+        nextFileset.close();
+        file2.notifyObservers(new Labelled("file2"));
+        file2.close();
+        fileset.close();
+        file1.notifyObservers(new Labelled("file1"));
+        Assert.assertEquals(recorder.labels,
+                Arrays.asList("fileset.start", "file1"));
+        file1.close();
+        Assert.assertEquals(recorder.labels, Arrays.asList(
+                "fileset.start", "file1", "file2", "fileset.end", "next"));
+    }
+
+    @Test(timeOut = 30000)
+    public void testConcurrentSequences() throws Exception {
+        final int count = 50;
+        final int eventsEach = 20;
+        Recorder recorder = new Recorder();
+        OrderedEvents root = new OrderedEvents(null, recorder);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        List<String> expected = new ArrayList<String>();
+        try {
+            // Later sequences are started first to force holding back.
+            List<Runnable> tasks = new ArrayList<Runnable>();
+            for (int i = 0; i < count; i++) {
+                final int index = i;
+                final OrderedEvents sequence = root.open();
+                for (int j = 0; j < eventsEach; j++) {
+                    expected.add(index + "." + j);
+                }
+                tasks.add(new Runnable() {
+                    public void run() {
+                        try {
+                            start.await();
+                            for (int j = 0; j < eventsEach; j++) {
+                                sequence.notifyObservers(
+                                        new Labelled(index + "." + j));
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            sequence.close();
+                        }
+                    }
+                });
+            }
+            Collections.reverse(tasks);
+            for (Runnable task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        root.close();
+        Assert.assertEquals(recorder.labels, expected);
+    }
+}
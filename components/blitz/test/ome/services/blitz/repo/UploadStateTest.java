@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package ome.services.blitz.repo;
+
+import omero.api.RawFileStorePrxHelper;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that the upload offset of {@link ManagedImportProcessI} advances
+ * only over contiguous writes when they complete out of order.
+ *
+ * @since 5.3
+ */
+@Test(groups = {"fs"})
+public class UploadStateTest {
+
+    private ManagedImportProcessI.UploadState state() {
+        return new ManagedImportProcessI.UploadState(new RawFileStorePrxHelper());
+    }
+
+    @Test
+    public void testInOrder() {
+        ManagedImportProcessI.UploadState state = state();
+        state.written(0, 100);
+        Assert.assertEquals(state.getOffset(), 100);
+        state.written(100, 200);
+        Assert.assertEquals(state.getOffset(), 200);
+    }
+
+    @Test
+    public void testGapHoldsOffset() {
+        ManagedImportProcessI.UploadState state = state();
+        state.written(0, 100);
+        state.written(200, 300);
+        state.written(300, 400);
+        Assert.assertEquals(state.getOffset(), 100);
+        state.written(100, 200);
+        Assert.assertEquals(state.getOffset(), 400);
+    }
+
+    @Test
+    public void testOffsetNeverMovesBack() {
+        ManagedImportProcessI.UploadState state = state();
+        state.written(100, 200);
+        state.written(0, 100);
+        Assert.assertEquals(state.getOffset(), 200);
+        state.written(0, 50);
+        state.written(50, 150);
+        Assert.assertEquals(state.getOffset(), 200);
+    }
+
+    @Test
+    public void testOverlappingWrites() {
+        ManagedImportProcessI.UploadState state = state();
+        state.written(150, 250);
+        state.written(100, 200);
+        state.written(0, 120);
+        Assert.assertEquals(state.getOffset(), 250);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.services.blitz.test.utests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import ome.security.basic.CurrentDetails;
+import ome.services.throttling.FairThrottlingStrategy;
+import ome.services.throttling.Task;
+import ome.system.OmeroContext;
+import ome.system.metrics.NullMetrics;
+import omero.api.AMD_IQuery_findAllByQuery;
+import omero.model.IObject;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that the {@link FairThrottlingStrategy} takes turns between sessions
+ * and methods and rejects invocations once too many are waiting.
+ *
+ * @since 5.3
+ */
+@Test
+public class FairThrottlingStrategyTest {
+
+    private FairThrottlingStrategy strategy;
+
+    /** The labels of the tasks, in the order they started. */
+    private final List<String> started =
+            Collections.synchronizedList(new ArrayList<String>());
+
+    /** Permits for blocking tasks to finish. */
+    private final Semaphore permits = new Semaphore(0);
+
+    @AfterMethod
+    public void tearDown() {
+        permits.release(1000);
+        if (strategy != null) {
+            strategy.destroy();
+        }
+        started.clear();
+    }
+
+    private static Ice.Current current(String session, String operation) {
+        Ice.Current current = new Ice.Current();
+        current.id = new Ice.Identity("servant", session);
+        current.operation = operation;
+        return current;
+    }
+
+    /**
+     * Submits a task which notes it started then waits for a permit.
+     */
+    private void submit(String session, String operation, final String label,
+            final CountDownLatch done) {
+        strategy.runnableCall(current(session, operation),
+                new Task(null, null, true) {
+                    @Override
+                    public void run(OmeroContext ctx) {
+                        started.add(label);
+                        permits.acquireUninterruptibly();
+                        done.countDown();
+                    }
+                });
+    }
+
+    public void testSessionsTakeTurns() throws Exception {
+        strategy = new FairThrottlingStrategy(new CurrentDetails(),
+                new NullMetrics(), 2, 100);
+        final CountDownLatch done = new CountDownLatch(7);
+        for (int i = 0; i < 6; i++) {
+            submit("heavy", "getPlane", "heavy", done);
+        }
+        submit("light", "getPlane", "light", done);
+        Assert.assertEquals(strategy.getRunning(), 2);
+        Assert.assertEquals(strategy.getQueued(), 5);
+        permits.release();
+        while (started.size() < 3) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(started,
+                Arrays.asList("heavy", "heavy", "light"));
+        permits.release(5);
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(strategy.getQueued(), 0);
+    }
+
+    public void testMethodsTakeTurns() throws Exception {
+        strategy = new FairThrottlingStrategy(new CurrentDetails(),
+                new NullMetrics(), 1, 100);
+        final CountDownLatch done = new CountDownLatch(5);
+        submit("session", "a", "a1", done);
+        submit("session", "a", "a2", done);
+        submit("session", "a", "a3", done);
+        submit("session", "a", "a4", done);
+        submit("session", "b", "b1", done);
+        permits.release(5);
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(started,
+                Arrays.asList("a1", "a2", "b1", "a3", "a4"));
+    }
+
+    public void testRejectsWhenTooManyWait() throws Exception {
+        strategy = new FairThrottlingStrategy(new CurrentDetails(),
+                new NullMetrics(), 1, 1);
+        final CountDownLatch done = new CountDownLatch(2);
+        submit("session", "a", "running", done);
+        submit("session", "a", "waiting", done);
+        final Exception[] thrown = new Exception[1];
+        strategy.safeRunnableCall(current("other", "findAllByQuery"),
+                new AMD_IQuery_findAllByQuery() {
+                    public void ice_exception(Exception ex) {
+                        thrown[0] = ex;
+                    }
+                    public void ice_response(List<IObject> __ret) {
+                        Assert.fail("should be rejected");
+                    }
+                }, false, new Callable<List<IObject>>() {
+                    public List<IObject> call() {
+                        return null;
+                    }
+                });
+        Assert.assertTrue(thrown[0] instanceof omero.OverUsageException);
+        Assert.assertEquals(strategy.getRejected(), 1);
+        permits.release(2);
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(started, Arrays.asList("running", "waiting"));
+    }
+}
@@ -31,11 +31,19 @@ public interface IProjection extends ServiceInterface
     /** Sum intensity projection */
     public static final int SUM_INTENSITY = 2;
     
+    /** Median intensity projection */
+    public static final int MEDIAN_INTENSITY = 3;
+    
+    /** Standard deviation projection */
+    public static final int STANDARD_DEVIATION = 4;
+    
     /** Methodology strings */
     public static final String[] METHODOLOGY_STRINGS = 
         new String[] { "MAXIMUM_INTENSITY_PROJECTION",
                        "MEAN_INTENSITY_PROJECTION",
-                       "SUM_INTENSITY_PROJECTION" };
+                       "SUM_INTENSITY_PROJECTION",
+                       "MEDIAN_INTENSITY_PROJECTION",
+                       "STANDARD_DEVIATION_PROJECTION" };
     
     /**
      * Performs a projection through the optical sections of a particular 
@@ -44,7 +52,9 @@ public interface IProjection extends ServiceInterface
      * @param pixelsType The destination Pixels type. If <code>null</code>, the
      * source Pixels set pixels type will be used.
      * @param algorithm <code>MAXIMUM_INTENSITY</code>,
-     * <code>MEAN_INTENSITY</code> or <code>SUM_INTENSITY</code>. <b>NOTE:</b> 
+     * <code>MEAN_INTENSITY</code>, <code>SUM_INTENSITY</code>,
+     * <code>MEDIAN_INTENSITY</code> or <code>STANDARD_DEVIATION</code>.
+     * <b>NOTE:</b> 
      * When performing a <code>SUM_INTENSITY</code> projection, pixel values 
      * will be <i>pinned</i> to the maximum pixel value of the destination 
      * Pixels type.
@@ -85,7 +95,9 @@ public interface IProjection extends ServiceInterface
      * @param pixelsType The destination Pixels type. If <code>null</code>, the
      * source Pixels set pixels type will be used.
      * @param algorithm <code>MAXIMUM_INTENSITY</code>,
-     * <code>MEAN_INTENSITY</code> or <code>SUM_INTENSITY</code>. <b>NOTE:</b> 
+     * <code>MEAN_INTENSITY</code>, <code>SUM_INTENSITY</code>,
+     * <code>MEDIAN_INTENSITY</code> or <code>STANDARD_DEVIATION</code>.
+     * <b>NOTE:</b> 
      * When performing a <code>SUM_INTENSITY</code> projection, pixel values 
      * will be <i>pinned</i> to the maximum pixel value of the destination 
      * Pixels type.
@@ -94,6 +94,8 @@ public interface RawPixelsStore extends StatefulServiceInterface {
     
     public Map<Integer, double[]> findMinMax(int[] channels);
     
+    public Map<Integer, double[]> getPlaneStatistics(int[] channels, int z, int t);
+    
     public byte[] getHypercube(@Validate(Integer.class) List<Integer> offset, @Validate(Integer.class) List<Integer> size, @Validate(Integer.class) List<Integer> step);
 
     public byte[] getPlaneRegion(int z, int c, int t, int count, int offset);
@@ -571,6 +571,25 @@ public interface RenderingEngine extends StatefulServiceInterface {
 	 * @return See above.
 	 */
 	public float getCompressionLevel();
+
+	/**
+	 * Sets the format images are compressed to: <code>jpeg</code> (the
+	 * default) or the lossless <code>png</code> for clients analysing the
+	 * rendered images. The compression level only applies to
+	 * <code>jpeg</code>.
+	 * 
+	 * @param format The format.
+	 * @throws ome.conditions.ApiUsageException if the format is not
+	 * supported.
+	 */
+	public void setCompressionFormat(String format);
+
+	/**
+	 * Returns the format images are compressed to.
+	 * 
+	 * @return See above.
+	 */
+	public String getCompressionFormat();
 	
 	/**
      * Returns <code>true</code> if the pixels type is signed, 
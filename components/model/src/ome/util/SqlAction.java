@@ -23,11 +23,15 @@ import java.util.UUID;
 
 import ome.conditions.InternalException;
 import ome.model.core.Channel;
+import ome.model.core.PlaneInfo;
 import ome.model.enums.AdminPrivilege;
 import ome.model.internal.Details;
 import ome.model.internal.Permissions;
 import ome.model.meta.ExperimenterGroup;
 import ome.model.stats.StatsInfo;
+import ome.model.units.Length;
+import ome.model.units.Time;
+import ome.model.units.UNITS;
 
 import org.aopalliance.intercept.MethodInterceptor;
 import org.aopalliance.intercept.MethodInvocation;
@@ -488,8 +492,21 @@ public interface SqlAction {
     void setPixelsNamePathRepo(long pixId, String name, String path,
             String repoId);
 
+    void setPixelsSha1(long pixId, String sha1);
+
     long setStatsInfo(Channel ch, StatsInfo si);
 
+    /**
+     * Inserts the given plane infos with JDBC batches rather than through
+     * Hibernate. Each plane info must link to saved pixels, whose details
+     * the plane info is given, and an INSERT event log is written for each
+     * of them. The ids are allocated in a single block and set on the plane
+     * infos.
+     *
+     * @param planeInfos new plane infos of saved pixels
+     */
+    void insertPlaneInfo(List<PlaneInfo> planeInfos);
+
     // TODO this should probably return an iterator.
     List<Long> getDeletedIds(String entityType);
 
@@ -1110,6 +1127,59 @@ public interface SqlAction {
             return id;
         }
 
+        public void insertPlaneInfo(List<PlaneInfo> planeInfos) {
+            if (planeInfos.isEmpty()) {
+                return; // EARLY EXIT
+            }
+            long planeId = nextValue("seq_planeinfo", planeInfos.size())
+                    - planeInfos.size() + 1;
+            long logId = nextValue("seq_eventlog", planeInfos.size())
+                    - planeInfos.size() + 1;
+            for (List<PlaneInfo> batch : Lists.partition(planeInfos,
+                    MAX_IN_SIZE)) {
+                final List<Object[]> rows = new ArrayList<Object[]>();
+                final List<Object[]> logs = new ArrayList<Object[]>();
+                for (PlaneInfo pi : batch) {
+                    final Details d = pi.getPixels().getDetails();
+                    final Time deltaT = pi.getDeltaT();
+                    final Time exposureTime = pi.getExposureTime();
+                    final Length positionX = pi.getPositionX();
+                    final Length positionY = pi.getPositionY();
+                    final Length positionZ = pi.getPositionZ();
+                    pi.setId(planeId++);
+                    rows.add(new Object[] { pi.getId(),
+                            Utils.internalForm(d.getPermissions()),
+                            d.getCreationEvent().getId(),
+                            d.getGroup().getId(), d.getOwner().getId(),
+                            d.getUpdateEvent().getId(),
+                            pi.getPixels().getId(),
+                            pi.getTheZ(), pi.getTheC(), pi.getTheT(),
+                            deltaT == null ? null : deltaT.getValue(),
+                            deltaT == null ? null : UNITS.TIME.todbvalue(
+                                    deltaT.getUnit()),
+                            exposureTime == null ? null
+                                    : exposureTime.getValue(),
+                            exposureTime == null ? null : UNITS.TIME
+                                    .todbvalue(exposureTime.getUnit()),
+                            positionX == null ? null : positionX.getValue(),
+                            positionX == null ? null : UNITS.LENGTH
+                                    .todbvalue(positionX.getUnit()),
+                            positionY == null ? null : positionY.getValue(),
+                            positionY == null ? null : UNITS.LENGTH
+                                    .todbvalue(positionY.getUnit()),
+                            positionZ == null ? null : positionZ.getValue(),
+                            positionZ == null ? null : UNITS.LENGTH
+                                    .todbvalue(positionZ.getUnit()) });
+                    logs.add(new Object[] { logId++, -35L, pi.getId(),
+                            PlaneInfo.class.getName(), "INSERT",
+                            d.getCreationEvent().getId() });
+                }
+                _jdbc().batchUpdate(_lookup("insert_plane_info"), //$NON-NLS-1$
+                        rows);
+                insertLogs(logs);
+            }
+        }
+
 
         //
         // CONFIGURATION
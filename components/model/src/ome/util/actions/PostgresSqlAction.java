@@ -267,6 +267,10 @@ public class PostgresSqlAction extends SqlAction.Impl {
                 pixId);
     }
 
+    public void setPixelsSha1(long pixId, String sha1) {
+        _jdbc().update(_lookup("update_pixels_sha1"), sha1, pixId); //$NON-NLS-1$
+    }
+
     public List<Long> getDeletedIds(String entityType) {
         List<Long> list;
 
@@ -12,9 +12,6 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 import org.apache.commons.io.FilenameUtils;
 import org.slf4j.Logger;
@@ -44,8 +41,9 @@ import omeis.providers.re.quantum.QuantumStrategy;
  * rendering context.
  * <p>
  * This strategy renders the in "regions", dividing the planar data up based
- * on {@link #maxTasks} and assigning each task to its own thread. This should
- * result in parallel rendering on multi-processor machines.
+ * on {@link #maxTasks} and handing the tasks over to the shared
+ * {@link RenderingScheduler}. This should result in parallel rendering on
+ * multi-processor machines.
  * </p>
  * <p>
  * Thread-safety relies on the fact that the rendering context is not going to
@@ -66,7 +64,16 @@ class HSBStrategy extends RenderingStrategy {
 	
     /** The logger for this particular class */
     private static Logger log = LoggerFactory.getLogger(HSBStrategy.class);
-    
+
+    /** The maximum width, in pixels, of a tile when tiled rendering. */
+    static final int TILE_WIDTH = 1024;
+
+    /**
+     * The maximum number of pixels of a tile when tiled rendering, chosen so
+     * that the data read and written by a task fit in the CPU cache.
+     */
+    static final int TILE_PIXELS = 64 * 1024;
+
     /**
      * Retrieves the maximum number of reasonable tasks to schedule based on
      * image size and <i>maxTasks</i>.
@@ -267,6 +274,64 @@ class HSBStrategy extends RenderingStrategy {
         return strats;
     }
 
+    /**
+     * Builds, for each channel, the table mapping every possible pixel value
+     * onto its quantized and transformed value. Tables are only built for
+     * 8 and 16-bit <i>XY</i> planes, <code>null</code> is used otherwise.
+     *
+     * @param wData The wavelength data.
+     * @param strategies The quantum strategy for each wavelength.
+     * @param chains The spatial transformations for each active channel.
+     * @return See above.
+     * @throws QuantizationException If an error occurs while quantizing.
+     */
+    private List<int[]> getQuantizationTables(List<Plane2D> wData,
+            List<QuantumStrategy> strategies, List<CodomainChain> chains)
+        throws QuantizationException
+    {
+        List<int[]> tables = new ArrayList<int[]>();
+        for (int w = 0; w < wData.size(); w++) {
+            tables.add(null);
+            Plane2D plane = wData.get(w);
+            QuantumStrategy qs = strategies.get(w);
+            if (w >= chains.size() || !plane.isXYPlanar()
+                    || qs instanceof BinaryMaskQuantizer) {
+                continue;
+            }
+            PixelData data = plane.getData();
+            int size;
+            switch (data.javaType()) {
+                case PixelData.BYTE:
+                    size = 1 << 8;
+                    break;
+                case PixelData.SHORT:
+                    size = 1 << 16;
+                    break;
+                default:
+                    continue;
+            }
+            // Signed values are shifted so that the table starts at 0.
+            int start = data.isSigned() ? -size/2 : 0;
+            int[] table = new int[size];
+            qs.quantize(start, table);
+            CodomainChain cc = chains.get(w);
+            boolean valid = true;
+            for (int i = 0; i < size; i++) {
+                if (cc.hasMapContext()) {
+                    table[i] = cc.transform(table[i]);
+                }
+                if (table[i] < 0 || table[i] > 255) {
+                    valid = false;
+                    break;
+                }
+            }
+            if (valid) {
+                tables.set(w, table);
+            }
+        }
+        return tables;
+    }
+
     /**
      * Creates a set of rendering tasks for the image based on the calling
      * buffer type.
@@ -276,8 +341,11 @@ class HSBStrategy extends RenderingStrategy {
      * @param buf
      *            The buffer to render into.
      * @return An array containing the tasks.
+     * @throws QuantizationException
+     *             If an error occurs while quantizing a pixels intensity value.
      */
-    private RenderingTask[] makeRenderingTasks(PlaneDef def, RGBBuffer buf) {
+    private RenderingTask[] makeRenderingTasks(PlaneDef def, RGBBuffer buf)
+        throws QuantizationException {
         List<RenderHSBRegionTask> tasks = new ArrayList<RenderHSBRegionTask>();
 
         //RenderingStats performanceStats = renderer.getStats();
@@ -285,19 +353,47 @@ class HSBStrategy extends RenderingStrategy {
         List<int[]> colors = getColors();
         List<LutReader> readers = getLutReaders();
         List<QuantumStrategy> strategies = getStrategies();
-        // Create a number of rendering tasks.
-        int taskCount = numTasks(sizeX2);
-        int delta = sizeX2/taskCount;
-        int x1Start = 0;
-        int x1End = sizeX1;
-        int x2Start, x2End;
-        log.info("taskCount: "+taskCount+" delta: "+delta);
-        for (int i = 0; i < taskCount; i++) {
-            x2Start = i*delta;
-            x2End = (i+1)*delta;
-            tasks.add(new RenderHSBRegionTask(buf, wData, strategies,
-                    getChains(), colors, renderer.getOptimizations(),
-                    x1Start, x1End, x2Start, x2End, readers));
+        List<CodomainChain> chains = getChains();
+        Optimizations optimizations = renderer.getOptimizations();
+        List<int[]> tables = null;
+        if (optimizations.isKernelRendering()) {
+            tables = getQuantizationTables(wData, strategies, chains);
+        }
+        if (optimizations.isTiledRendering()) {
+            // Split the plane into tiles, making sure that there are enough
+            // of them to keep all the cores busy.
+            int tileWidth = Math.min(sizeX1, TILE_WIDTH);
+            int tileHeight = Math.max(1, TILE_PIXELS / tileWidth);
+            int bands = (sizeX2 + maxTasks - 1) / maxTasks;
+            tileHeight = Math.max(1, Math.min(tileHeight, bands));
+            for (int x2Start = 0; x2Start < sizeX2; x2Start += tileHeight) {
+                int x2End = Math.min(x2Start + tileHeight, sizeX2);
+                for (int x1Start = 0; x1Start < sizeX1; x1Start += tileWidth) {
+                    int x1End = Math.min(x1Start + tileWidth, sizeX1);
+                    tasks.add(new RenderHSBRegionTask(buf, wData, strategies,
+                            chains, colors, optimizations,
+                            x1Start, x1End, x2Start, x2End, sizeX1, readers,
+                            tables));
+                }
+            }
+            log.debug("tileWidth: "+tileWidth+" tileHeight: "+tileHeight+
+                    " taskCount: "+tasks.size());
+        } else {
+            // Create a number of rendering tasks.
+            int taskCount = numTasks(sizeX2);
+            int delta = sizeX2/taskCount;
+            int x1Start = 0;
+            int x1End = sizeX1;
+            int x2Start, x2End;
+            log.info("taskCount: "+taskCount+" delta: "+delta);
+            for (int i = 0; i < taskCount; i++) {
+                x2Start = i*delta;
+                x2End = (i+1)*delta;
+                tasks.add(new RenderHSBRegionTask(buf, wData, strategies,
+                        chains, colors, optimizations,
+                        x1Start, x1End, x2Start, x2End, sizeX1, readers,
+                        tables));
+            }
         }
 
         // Turn the list into an array an return it.
@@ -374,38 +470,12 @@ class HSBStrategy extends RenderingStrategy {
     private void render(RGBBuffer buf, PlaneDef planeDef) throws IOException,
             QuantizationException {
         RenderingStats performanceStats = renderer.getStats();
-        // Process each active wavelength. If their number N > 1, then
-        // process N-1 async and one in the current thread. If N = 1,
-        // just use the current thread.
+        // Process each region. If their number N > 1, then process N-1
+        // async on the shared scheduler and one in the current thread.
+        // If N = 1, just use the current thread.
         RenderingTask[] tasks = makeRenderingTasks(planeDef, buf);
         performanceStats.startRendering();
-        int n = tasks.length;
-        Future[] rndTskFutures = new Future[n]; // [0] unused.
-        ExecutorService processor = Executors.newCachedThreadPool();
-
-        while (0 < --n) {
-            rndTskFutures[n] = processor.submit(tasks[n]);
-        }
-
-        // Call the task in the current thread.
-        if (n == 0) {
-            tasks[0].call();
-        }
-
-        // Wait for all forked tasks (if any) to complete.
-        for (n = 1; n < rndTskFutures.length; ++n) {
-            try {
-                rndTskFutures[n].get();
-            } catch (Exception e) {
-                if (e instanceof QuantizationException) {
-                    throw (QuantizationException) e;
-                }
-                throw new RuntimeException(e);
-            }
-        }
-
-        // Shutdown the task processor
-        processor.shutdown();
+        RenderingScheduler.getInstance().invokeAll(tasks);
 
         // End the performance metrics for this rendering event.
         performanceStats.endRendering();
@@ -16,12 +16,25 @@ package omeis.providers.re;
  */
 public class Optimizations
 {
+	/**
+	 * The default maximum number of tasks a plane is split into. This is also
+	 * the number of worker threads of the shared {@link RenderingScheduler}.
+	 */
+	public static final int DEFAULT_MAX_TASKS =
+		Runtime.getRuntime().availableProcessors();
+
 	/** The channel bindings are only "primary" colors. (Red, Green or Blue) */
 	public boolean primaryColorEnabled = false;
 	
 	/** We can do alphaless rendering */
 	public boolean alphalessRendering = false;
 
+	/** The plane is split into cache-sized tiles rather than row bands. */
+	public boolean tiledRendering = true;
+
+	/** 8 and 16-bit channels are rendered through quantization tables. */
+	public boolean kernelRendering = true;
+
 	/**
 	 * Enable or disable the primary color optimization.
 	 * @param enabled whether or not to enable the primary color optimization.
@@ -64,4 +77,48 @@ public class Optimizations
 	{
 		return alphalessRendering;
 	}
+
+	/**
+	 * Enable or disable the tiled rendering. When enabled, planes are split
+	 * into cache-sized tiles across all the available cores, otherwise they
+	 * are split into bands of rows whose number divides the plane height.
+	 * @param enabled whether or not to enable the tiled rendering.
+	 */
+	public void setTiledRendering(boolean enabled)
+	{
+		tiledRendering = enabled;
+	}
+
+	/**
+	 * Returns <code>true</code> if the tiled rendering is enabled,
+	 * and <code>false</code> if it is not.
+	 * @return See above.
+	 */
+	public boolean isTiledRendering()
+	{
+		return tiledRendering;
+	}
+
+	/**
+	 * Enable or disable the kernel rendering. When enabled, 8 and 16-bit
+	 * <i>XY</i> planes are quantized through a table covering every possible
+	 * pixel value and read row by row straight from the pixel buffer. When
+	 * disabled, each pixel value is read and quantized individually, which
+	 * is the reference implementation.
+	 * @param enabled whether or not to enable the kernel rendering.
+	 */
+	public void setKernelRendering(boolean enabled)
+	{
+		kernelRendering = enabled;
+	}
+
+	/**
+	 * Returns <code>true</code> if the kernel rendering is enabled,
+	 * and <code>false</code> if it is not.
+	 * @return See above.
+	 */
+	public boolean isKernelRendering()
+	{
+		return kernelRendering;
+	}
 }
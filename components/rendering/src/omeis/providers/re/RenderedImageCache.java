@@ -0,0 +1,225 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ome.system.metrics.Counter;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide, size-bounded cache of compressed rendered images, so that
+ * the tiles of shared images which many users view with the same settings
+ * are rendered and compressed once.
+ * <p>
+ * An image is cached by the id of its pixels set and a description of the
+ * effective rendering state which produced it, from the rendering model
+ * and channel bindings down to the region, stride and compression level.
+ * The whole description is compared on lookup, not only its hash, so an
+ * image is never served for a different state. The state includes the
+ * version of the file holding the pixel data, so images rendered before
+ * the pixels are written or the pyramid is regenerated are not served. The
+ * images of a pixels set are also invalidated when its rendering settings
+ * are saved or updated and when its pixels are written. The
+ * least recently used images are evicted first once {@link #getMaxBytes()}
+ * is exceeded.
+ * </p>
+ *
+ * @since 5.3
+ */
+public class RenderedImageCache {
+
+    private final static Logger log =
+            LoggerFactory.getLogger(RenderedImageCache.class);
+
+    /** Key of an image: its pixels set and rendering state. */
+    private static final class ImageKey {
+
+        final long pixelsId;
+
+        final String state;
+
+        ImageKey(long pixelsId, String state) {
+            this.pixelsId = pixelsId;
+            this.state = state;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ImageKey)) {
+                return false;
+            }
+            ImageKey o = (ImageKey) obj;
+            return pixelsId == o.pixelsId && state.equals(o.state);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (pixelsId ^ (pixelsId >>> 32))
+                    + state.hashCode();
+        }
+    }
+
+    /** Images in access order, the eldest first. */
+    private final LinkedHashMap<ImageKey, byte[]> images =
+            new LinkedHashMap<ImageKey, byte[]>(1024, 0.75f, true);
+
+    /** Maximum number of bytes of images held. */
+    private final long maxBytes;
+
+    /** Number of bytes of images currently held. */
+    private long bytes = 0;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final Counter hits;
+
+    private final Counter misses;
+
+    private final Counter evictions;
+
+    /**
+     * Creates a cache without metrics.
+     * @param maxBytes Maximum number of bytes of images held.
+     */
+    public RenderedImageCache(long maxBytes) {
+        this(maxBytes, new NullMetrics());
+    }
+
+    /**
+     * Creates a cache.
+     * @param maxBytes Maximum number of bytes of images held. If not
+     * positive, nothing is ever cached.
+     * @param metrics Metrics used to report hits, misses and evictions.
+     */
+    public RenderedImageCache(long maxBytes, Metrics metrics) {
+        this.maxBytes = maxBytes;
+        this.hits = metrics.counter(this, "hits");
+        this.misses = metrics.counter(this, "misses");
+        this.evictions = metrics.counter(this, "evictions");
+        log.info("Rendered image cache of {} bytes", maxBytes);
+    }
+
+    /**
+     * Returns whether images are cached at all.
+     * @return See above.
+     */
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Returns the maximum number of bytes of images held.
+     * @return See above.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the number of bytes of images currently held.
+     * @return See above.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the fraction of the lookups which found an image.
+     * @return See above, <code>0</code> if there was no lookup yet.
+     */
+    public double getHitRatio() {
+        final long h = hitCount.get();
+        final long total = h + missCount.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * Returns a copy of a cached image.
+     * @param pixelsId The id of the pixels set.
+     * @param state The rendering state which produced the image.
+     * @return See above or <code>null</code> if the image is not cached.
+     */
+    public byte[] get(long pixelsId, String state) {
+        if (!isEnabled()) {
+            return null;
+        }
+        byte[] cached;
+        synchronized (this) {
+            cached = images.get(new ImageKey(pixelsId, state));
+        }
+        if (cached == null) {
+            missCount.incrementAndGet();
+            misses.inc();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        hits.inc();
+        // Cached arrays are never handed out, callers may modify theirs.
+        return cached.clone();
+    }
+
+    /**
+     * Caches a copy of an image, evicting the least recently used ones if
+     * required.
+     * @param pixelsId The id of the pixels set.
+     * @param state The rendering state which produced the image.
+     * @param buf The compressed image.
+     */
+    public void put(long pixelsId, String state, byte[] buf) {
+        if (buf.length > maxBytes) {
+            return;
+        }
+        ImageKey key = new ImageKey(pixelsId, state);
+        byte[] copy = buf.clone();
+        synchronized (this) {
+            byte[] old = images.put(key, copy);
+            if (old != null) {
+                bytes -= old.length;
+            }
+            bytes += copy.length;
+            Iterator<byte[]> it = images.values().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                bytes -= it.next().length;
+                it.remove();
+                evictions.inc();
+            }
+        }
+    }
+
+    /**
+     * Removes all the cached images of a pixels set.
+     * @param pixelsId The id of the pixels set.
+     */
+    public synchronized void invalidate(long pixelsId) {
+        Iterator<Map.Entry<ImageKey, byte[]>> it =
+                images.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<ImageKey, byte[]> entry = it.next();
+            if (entry.getKey().pixelsId == pixelsId) {
+                bytes -= entry.getValue().length;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all the cached images.
+     */
+    public synchronized void clear() {
+        images.clear();
+        bytes = 0;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ *   Copyright 2016 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ome.system.metrics.Histogram;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+import ome.system.metrics.Timer;
+import omeis.providers.re.quantum.QuantizationException;
+
+/**
+ * Server-wide scheduler for the {@link RenderingTask}s created by the
+ * rendering strategies. A single work-stealing pool, sized from
+ * {@link Optimizations#DEFAULT_MAX_TASKS}, is shared by all {@link Renderer}
+ * instances so that rendering a plane no longer creates and destroys a thread
+ * pool of its own.
+ * <p>
+ * The queue depth seen at submission time, the time spent by tasks waiting in
+ * the queue and the time spent rendering are reported through the
+ * {@link Metrics} set via {@link #setMetrics(Metrics)}. Until then, a
+ * {@link NullMetrics} instance is used.
+ * </p>
+ *
+ * @since 5.3
+ */
+public class RenderingScheduler {
+
+    /** The logger for this particular class */
+    private static Logger log =
+            LoggerFactory.getLogger(RenderingScheduler.class);
+
+    /** The instance shared by all the renderers. */
+    private static final RenderingScheduler INSTANCE =
+            new RenderingScheduler(Optimizations.DEFAULT_MAX_TASKS);
+
+    /** The work-stealing pool the tasks are submitted to. */
+    private final ForkJoinPool pool;
+
+    /** Number of tasks queued in the pool when a task is submitted. */
+    private volatile Histogram queueDepth;
+
+    /** Time spent by a task between its submission and its execution. */
+    private volatile Timer queueTimes;
+
+    /** Time spent by a task rendering. */
+    private volatile Timer taskTimes;
+
+    /**
+     * Returns the scheduler shared by all the renderers of this JVM.
+     *
+     * @return See above.
+     */
+    public static RenderingScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param parallelism The number of worker threads. Must be positive.
+     */
+    RenderingScheduler(int parallelism) {
+        pool = new ForkJoinPool(parallelism);
+        setMetrics(new NullMetrics());
+        log.info("Rendering scheduler created with parallelism: "
+                + parallelism);
+    }
+
+    /**
+     * Sets the metrics used to report the queue depth and task latencies.
+     *
+     * @param metrics The metrics to use. Mustn't be <code>null</code>.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.queueDepth = metrics.histogram(this, "queueDepth");
+        this.queueTimes = metrics.timer(this, "queueTimes");
+        this.taskTimes = metrics.timer(this, "taskTimes");
+    }
+
+    /**
+     * Returns the number of worker threads of the shared pool.
+     *
+     * @return See above.
+     */
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Returns the number of tasks currently waiting to be executed.
+     *
+     * @return See above.
+     */
+    public long getQueueDepth() {
+        return pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount();
+    }
+
+    /**
+     * Executes the given tasks and waits for all of them to complete. The
+     * first task is run in the calling thread while the others are submitted
+     * to the shared pool.
+     *
+     * @param tasks The tasks to execute.
+     * @throws QuantizationException
+     *             If an error occurs while quantizing a pixels intensity value.
+     */
+    void invokeAll(RenderingTask[] tasks) throws QuantizationException {
+        int n = tasks.length;
+        if (n == 0) {
+            return;
+        }
+        Future<?>[] futures = new Future<?>[n]; // [0] unused.
+        while (0 < --n) {
+            queueDepth.update((int) getQueueDepth());
+            futures[n] = pool.submit(new TimedTask(tasks[n]));
+        }
+
+        // Call the task in the current thread.
+        Timer.Context ctx = taskTimes.time();
+        try {
+            tasks[0].call();
+        } finally {
+            ctx.stop();
+        }
+
+        // Wait for all forked tasks (if any) to complete.
+        for (n = 1; n < futures.length; ++n) {
+            try {
+                futures[n].get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof QuantizationException) {
+                    throw (QuantizationException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Wraps a {@link RenderingTask} to record the time it spent queued and
+     * running.
+     */
+    private class TimedTask implements RenderingTask {
+
+        /** The wrapped task. */
+        private final RenderingTask task;
+
+        /** Started on submission, stopped when the task starts running. */
+        private final Timer.Context queued;
+
+        TimedTask(RenderingTask task) {
+            this.task = task;
+            this.queued = queueTimes.time();
+        }
+
+        public Object call() throws QuantizationException {
+            queued.stop();
+            Timer.Context ctx = taskTimes.time();
+            try {
+                return task.call();
+            } finally {
+                ctx.stop();
+            }
+        }
+    }
+}
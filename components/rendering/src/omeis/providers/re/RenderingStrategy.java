@@ -151,7 +151,7 @@ abstract class RenderingStrategy {
      */
     protected RenderingStrategy()
     {
-    	maxTasks = Runtime.getRuntime().availableProcessors();
+    	maxTasks = Optimizations.DEFAULT_MAX_TASKS;
     }
 
     /**
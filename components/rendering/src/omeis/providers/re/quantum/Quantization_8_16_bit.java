@@ -321,4 +321,22 @@ public class Quantization_8_16_bit extends QuantumStrategy {
         return i & 0xFF;
     }
 
+    /**
+     * Implemented as specified by superclass. Values within the lookup table
+     * are copied from it, others go through {@link #quantize(double)}.
+     * 
+     * @see QuantumStrategy#quantize(int, int[])
+     */
+    @Override
+    public void quantize(int start, int[] values) throws QuantizationException {
+        for (int i = 0; i < values.length; i++) {
+            int x = start + i;
+            if (x < lutMin || x > lutMax) {
+                values[i] = quantize(x);
+            } else {
+                values[i] = LUT[x - lutMin] & 0xFF;
+            }
+        }
+    }
+
 }
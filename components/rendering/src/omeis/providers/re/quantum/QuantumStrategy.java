@@ -451,4 +451,24 @@ public abstract class QuantumStrategy {
      */
     public abstract int quantize(double value) throws QuantizationException;
 
+    /**
+     * Maps the consecutive integral values <code>start</code> to
+     * <code>start + values.length - 1</code> to values in the codomain
+     * interval. This is equivalent to calling {@link #quantize(double)} for
+     * each value but allows subclasses to build the table in bulk.
+     * 
+     * @param start
+     *            The first pixel intensity value.
+     * @param values
+     *            The array to fill with the quantized values.
+     * @throws QuantizationException
+     *             If one of the values is not in the interval [globalMin,
+     *             globalMax].
+     */
+    public void quantize(int start, int[] values) throws QuantizationException {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = quantize(start + i);
+        }
+    }
+
 }
@@ -30,8 +30,10 @@ import ome.conditions.ResourceError;
 import ome.io.nio.ConfiguredTileSizes;
 import ome.io.nio.DimensionsOutOfBoundsException;
 import ome.io.nio.PixelBuffer;
+import ome.io.nio.PyramidTileCache;
 import ome.io.nio.TileSizes;
 import ome.model.core.Pixels;
+import ome.system.metrics.Metrics;
 import ome.util.PixelData;
 import ome.xml.model.enums.DimensionOrder;
 import ome.xml.model.enums.EnumerationException;
@@ -123,6 +125,40 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
 
     public static final String PYR_LOCK_EXT = ".pyr_lock";
 
+    /** Default maximum number of concurrent readers on the pyramid file. */
+    public static final int DEFAULT_MAX_READERS =
+        Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Independent read handles used to decode tiles concurrently, obtained
+     * from {@link #readerPools} or created on the first read.
+     */
+    private PyramidReaderPool readers;
+
+    /**
+     * Pools shared with the other pixel buffers of the server, may be
+     * <code>null</code> for this instance to have its own pool.
+     */
+    private PyramidReaderPools readerPools;
+
+    /** Maximum number of handles of {@link #readers}. */
+    private int maxReaders = DEFAULT_MAX_READERS;
+
+    /** Metrics given to {@link #readers}, may be <code>null</code>. */
+    private Metrics metrics;
+
+    /**
+     * Resolution level set via {@link #setResolutionLevel(int)} and applied
+     * to the read handles or <code>-1</code> if none has been set.
+     */
+    private volatile int resolutionLevel = -1;
+
+    /** Shared cache of decoded tiles, may be <code>null</code>. */
+    private PyramidTileCache tileCache;
+
+    /** Version of {@link #readerFile} the cached tiles are keyed on. */
+    private PyramidTileCache.FileVersion tileVersion;
+
     /**
      * We may want a constructor that takes the id of an imported file
      * or that takes a File object?
@@ -489,6 +525,79 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
         return delegate;
     }
 
+    /**
+     * Returns the pool of read handles, switching to read-only mode and
+     * creating the pool if required. Read methods borrow a handle from the
+     * pool rather than synchronizing on this instance so that concurrent
+     * requests are decoded in parallel.
+     */
+    private synchronized PyramidReaderPool readerPool()
+    {
+        delegate();
+        if (resolutionLevel < 0)
+        {
+            // Tiles are cached by resolution level.
+            resolutionLevel = delegate.getResolutionLevel();
+        }
+        if (readerPools != null)
+        {
+            if (readers == null || !readers.isCurrent())
+            {
+                readers = readerPools.get(readerFile);
+            }
+        }
+        else if (readers == null)
+        {
+            readers = new PyramidReaderPool(
+                    readerFile.getAbsolutePath(), maxReaders, metrics);
+        }
+        return readers;
+    }
+
+    /**
+     * Sets the pools of read handles shared with the other pixel buffers, in
+     * which case {@link #setMaxReaders(int)} does not apply. Must be called
+     * before the first read.
+     * @param readerPools The pools or <code>null</code> for this instance to
+     * have its own pool.
+     */
+    public synchronized void setReaderPools(PyramidReaderPools readerPools)
+    {
+        this.readerPools = readerPools;
+    }
+
+    /**
+     * Sets the metrics used to report the contention on the read handles.
+     * Must be called before the first read.
+     * @param metrics The metrics to use.
+     */
+    public synchronized void setMetrics(Metrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets the maximum number of read handles concurrently opened on the
+     * pyramid file. Must be called before the first read.
+     * @param maxReaders The maximum number of handles. Must be positive.
+     */
+    public synchronized void setMaxReaders(int maxReaders)
+    {
+        this.maxReaders = maxReaders;
+    }
+
+    /**
+     * Sets the cache decoded tiles are looked up in and added to.
+     * Must be called before the first read.
+     * @param tileCache The cache to use or <code>null</code> to disable
+     * caching.
+     */
+    public synchronized void setTileCache(PyramidTileCache tileCache)
+    {
+        this.tileVersion = PyramidTileCache.FileVersion.of(readerFile);
+        this.tileCache = tileCache;
+    }
+
     /* (non-Javadoc)
      * @see ome.io.bioformats.BfPixelBuffer#setTile(byte[], java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer)
      */
@@ -596,7 +705,7 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
      * @throws IOException If there is a problem with the parameters or a
      * problem checking them.
      */
-    private synchronized void checkTileParameters(int x, int y, int w, int h)
+    private void checkTileParameters(int x, int y, int w, int h)
         throws IOException
     {
         // No-op.
@@ -658,6 +767,13 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
         }
         delegate = null;
 
+        if (readers != null) {
+            if (readerPools == null) {
+                readers.close();
+            }
+            readers = null;
+        }
+
         if (reader != null) {
             try {
                 reader.close();
@@ -683,29 +799,46 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getCol(java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer)
      */
-    public synchronized PixelData getCol(Integer x, Integer z, Integer c,
-                                         Integer t)
+    public PixelData getCol(Integer x, Integer z, Integer c, Integer t)
             throws IOException, DimensionsOutOfBoundsException
     {
         t = getRasterizedT(z, c, t);
         c = 0;
         z = 0;
-        PixelData data = delegate().getCol(x, z, c, t);
-        data.setOrder(byteOrder);
-        return data;
+        PyramidReaderPool pool = readerPool();
+        BfPixelBuffer handle = pool.borrow(resolutionLevel);
+        try
+        {
+            PixelData data = handle.getCol(x, z, c, t);
+            data.setOrder(byteOrder);
+            return data;
+        }
+        finally
+        {
+            pool.release(handle);
+        }
     }
 
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getColDirect(java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, byte[])
      */
-    public synchronized byte[] getColDirect(Integer x, Integer z, Integer c,
+    public byte[] getColDirect(Integer x, Integer z, Integer c,
             Integer t, byte[] buffer)
         throws IOException, DimensionsOutOfBoundsException
     {
         t = getRasterizedT(z, c, t);
         c = 0;
         z = 0;
-        return delegate().getColDirect(x, z, c, t, buffer);
+        PyramidReaderPool pool = readerPool();
+        BfPixelBuffer handle = pool.borrow(resolutionLevel);
+        try
+        {
+            return handle.getColDirect(x, z, c, t, buffer);
+        }
+        finally
+        {
+            pool.release(handle);
+        }
     }
 
     /* (non-Javadoc)
@@ -765,28 +898,46 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getPlane(java.lang.Integer, java.lang.Integer, java.lang.Integer)
      */
-    public synchronized PixelData getPlane(Integer z, Integer c, Integer t)
+    public PixelData getPlane(Integer z, Integer c, Integer t)
             throws IOException, DimensionsOutOfBoundsException
     {
         t = getRasterizedT(z, c, t);
         c = 0;
         z = 0;
-        PixelData data = delegate().getPlane(z, c, t);
-        data.setOrder(byteOrder);
-        return data;
+        PyramidReaderPool pool = readerPool();
+        BfPixelBuffer handle = pool.borrow(resolutionLevel);
+        try
+        {
+            PixelData data = handle.getPlane(z, c, t);
+            data.setOrder(byteOrder);
+            return data;
+        }
+        finally
+        {
+            pool.release(handle);
+        }
     }
 
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getPlaneDirect(java.lang.Integer, java.lang.Integer, java.lang.Integer, byte[])
      */
-    public synchronized byte[] getPlaneDirect(Integer z, Integer c, Integer t,
-                                              byte[] buffer)
+    public byte[] getPlaneDirect(Integer z, Integer c, Integer t,
+                                 byte[] buffer)
             throws IOException, DimensionsOutOfBoundsException
     {
         t = getRasterizedT(z, c, t);
         c = 0;
         z = 0;
-        return delegate().getPlaneDirect(z, c, t, buffer);
+        PyramidReaderPool pool = readerPool();
+        BfPixelBuffer handle = pool.borrow(resolutionLevel);
+        try
+        {
+            return handle.getPlaneDirect(z, c, t, buffer);
+        }
+        finally
+        {
+            pool.release(handle);
+        }
     }
 
     /* (non-Javadoc)
@@ -804,7 +955,7 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getPlaneRegion(java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer)
      */
-    public synchronized PixelData getPlaneRegion(Integer x, Integer y,
+    public PixelData getPlaneRegion(Integer x, Integer y,
             Integer width, Integer height, Integer z, Integer c, Integer t,
             Integer stride)
             throws IOException, DimensionsOutOfBoundsException
@@ -812,10 +963,18 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
         t = getRasterizedT(z, c, t);
         c = 0;
         z = 0;
-        PixelData data =
-            delegate().getPlaneRegion(x, y, width, height, z, c, t, stride);
-        data.setOrder(byteOrder);
-        return data;
+        PyramidReaderPool pool = readerPool();
+        BfPixelBuffer handle = pool.borrow(resolutionLevel);
+        try
+        {
+            PixelData data = handle.getPlaneRegion(x, y, width, height, z, c, t, stride);
+            data.setOrder(byteOrder);
+            return data;
+        }
+        finally
+        {
+            pool.release(handle);
+        }
     }
 
     /* (non-Javadoc)
@@ -859,29 +1018,46 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getRow(java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer)
      */
-    public synchronized PixelData getRow(Integer y, Integer z, Integer c,
-                                         Integer t)
+    public PixelData getRow(Integer y, Integer z, Integer c, Integer t)
             throws IOException, DimensionsOutOfBoundsException
     {
         t = getRasterizedT(z, c, t);
         c = 0;
         z = 0;
-        PixelData data = delegate().getRow(y, z, c, t);
-        data.setOrder(byteOrder);
-        return data;
+        PyramidReaderPool pool = readerPool();
+        BfPixelBuffer handle = pool.borrow(resolutionLevel);
+        try
+        {
+            PixelData data = handle.getRow(y, z, c, t);
+            data.setOrder(byteOrder);
+            return data;
+        }
+        finally
+        {
+            pool.release(handle);
+        }
     }
 
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getRowDirect(java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, byte[])
      */
-    public synchronized byte[] getRowDirect(Integer y, Integer z, Integer c,
+    public byte[] getRowDirect(Integer y, Integer z, Integer c,
             Integer t, byte[] buffer)
         throws IOException, DimensionsOutOfBoundsException
     {
         t = getRasterizedT(z, c, t);
         c = 0;
         z = 0;
-        return delegate().getRowDirect(y, z, c, t, buffer);
+        PyramidReaderPool pool = readerPool();
+        BfPixelBuffer handle = pool.borrow(resolutionLevel);
+        try
+        {
+            return handle.getRowDirect(y, z, c, t, buffer);
+        }
+        finally
+        {
+            pool.release(handle);
+        }
     }
 
     /* (non-Javadoc)
@@ -1003,22 +1179,39 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getTile(java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer)
      */
-    public synchronized PixelData getTile(Integer z, Integer c, Integer t,
+    public PixelData getTile(Integer z, Integer c, Integer t,
             Integer x, Integer y, Integer w, Integer h) throws IOException
     {
+        if (tileCache != null)
+        {
+            byte[] buffer = new byte[w * h * getByteWidth()];
+            PixelData data = new PixelData(pixels.getPixelsType().getValue(),
+                    ByteBuffer.wrap(getTileDirect(z, c, t, x, y, w, h, buffer)));
+            data.setOrder(byteOrder);
+            return data;
+        }
         checkTileParameters(x, y, w, h);
         t = getRasterizedT(z, c, t);
         c = 0;
         z = 0;
-        PixelData data = delegate().getTile(z, c, t, x, y, w, h);
-        data.setOrder(byteOrder);
-        return data;
+        PyramidReaderPool pool = readerPool();
+        BfPixelBuffer handle = pool.borrow(resolutionLevel);
+        try
+        {
+            PixelData data = handle.getTile(z, c, t, x, y, w, h);
+            data.setOrder(byteOrder);
+            return data;
+        }
+        finally
+        {
+            pool.release(handle);
+        }
     }
 
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getTileDirect(java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, byte[])
      */
-    public synchronized byte[] getTileDirect(Integer z, Integer c, Integer t,
+    public byte[] getTileDirect(Integer z, Integer c, Integer t,
             Integer x, Integer y, Integer w, Integer h, byte[] buffer)
         throws IOException
     {
@@ -1026,7 +1219,33 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
         t = getRasterizedT(z, c, t);
         c = 0;
         z = 0;
-        return delegate().getTileDirect(z, c, t, x, y, w, h, buffer);
+        PyramidReaderPool pool = readerPool();
+        // Read after readerPool() so that the default level is known.
+        int level = resolutionLevel;
+        if (tileCache != null)
+        {
+            byte[] cached = tileCache.get(pixels.getId(), tileVersion, level,
+                    z, c, t, x, y, w, h, buffer);
+            if (cached != null)
+            {
+                return cached;
+            }
+        }
+        BfPixelBuffer handle = pool.borrow(level);
+        try
+        {
+            buffer = handle.getTileDirect(z, c, t, x, y, w, h, buffer);
+        }
+        finally
+        {
+            pool.release(handle);
+        }
+        if (tileCache != null)
+        {
+            tileCache.put(pixels.getId(), tileVersion, level, z, c, t,
+                    x, y, w, h, buffer, w * h * getByteWidth());
+        }
+        return buffer;
     }
 
     /* (non-Javadoc)
@@ -1238,5 +1457,6 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
             throw new ApiUsageException("In write mode!");
         }
         delegate().setResolutionLevel(resolutionLevel);
+        this.resolutionLevel = resolutionLevel;
     }
 }
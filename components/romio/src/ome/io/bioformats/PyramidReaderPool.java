@@ -0,0 +1,388 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.bioformats;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import ome.conditions.ResourceError;
+import ome.io.nio.PyramidTileCache.FileVersion;
+import ome.system.metrics.Counter;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+import ome.system.metrics.Timer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded pool of independent read handles on a single pixels pyramid file.
+ * Each handle is a {@link BfPixelBuffer} backed by its own
+ * {@link OmeroPixelsPyramidReader} so that concurrent tile requests on the
+ * same pyramid can be decoded in parallel rather than being serialized on a
+ * single reader. Handles are created lazily, up to {@link #getMaxReaders()},
+ * after which borrowers wait for a handle to be released. Pools belonging to
+ * {@link PyramidReaderPools} also share a bound on the number of handles
+ * opened on all the pyramid files and synchronize on it.
+ * <p>
+ * The time spent waiting for a handle is reported through the
+ * <code>readerWaits</code> timer and the number of borrowers which had to
+ * wait through the <code>readerContention</code> counter.
+ * </p>
+ *
+ * @since 5.3
+ */
+class PyramidReaderPool {
+
+    private final static Logger log =
+            LoggerFactory.getLogger(PyramidReaderPool.class);
+
+    /** Path of the pyramid file the handles are opened on. */
+    private final String filePath;
+
+    /** The pools this pool belongs to, may be <code>null</code>. */
+    private final PyramidReaderPools owner;
+
+    /** Monitor guarding the state of this pool and of {@link #owner}. */
+    private final Object lock;
+
+    /**
+     * Version of the pyramid file when this pool was created, if it belongs
+     * to {@link #owner}.
+     */
+    final FileVersion version;
+
+    /**
+     * Whether {@link #owner} currently returns this pool for its file.
+     * Handles released to a pool which is not are closed.
+     */
+    boolean mapped;
+
+    /** Maximum number of handles opened at any one time. */
+    private final int maxReaders;
+
+    /** Handles which are not currently in use. */
+    private final Deque<BfPixelBuffer> idle = new ArrayDeque<BfPixelBuffer>();
+
+    /** Number of handles currently opened, idle or in use. */
+    private int opened = 0;
+
+    /** Set once {@link #close()} has been called. */
+    private boolean closed = false;
+
+    private Timer readerWaits;
+
+    private Counter readerContention;
+
+    /**
+     * Creates a new pool.
+     * @param filePath Path of the pyramid file.
+     * @param maxReaders Maximum number of handles. Must be positive.
+     * @param metrics Metrics used to report contention. May be
+     * <code>null</code>.
+     */
+    PyramidReaderPool(String filePath, int maxReaders, Metrics metrics)
+    {
+        this(filePath, maxReaders, metrics, null, null);
+    }
+
+    /**
+     * Creates a new pool.
+     * @param filePath Path of the pyramid file.
+     * @param maxReaders Maximum number of handles. Must be positive.
+     * @param metrics Metrics used to report contention. May be
+     * <code>null</code>.
+     * @param owner The pools sharing the bound on the number of handles or
+     * <code>null</code> if this pool is on its own.
+     * @param version The version of the pyramid file, if it has an owner.
+     */
+    PyramidReaderPool(String filePath, int maxReaders, Metrics metrics,
+            PyramidReaderPools owner, FileVersion version)
+    {
+        if (maxReaders < 1)
+        {
+            throw new IllegalArgumentException(
+                    "Invalid number of readers: " + maxReaders);
+        }
+        this.filePath = filePath;
+        this.maxReaders = maxReaders;
+        this.owner = owner;
+        this.lock = owner == null ? this : owner;
+        this.version = version;
+        if (metrics == null)
+        {
+            metrics = new NullMetrics();
+        }
+        this.readerWaits = metrics.timer(this, "readerWaits");
+        this.readerContention = metrics.counter(this, "readerContention");
+    }
+
+    /**
+     * Returns the path of the pyramid file the handles are opened on.
+     * @return See above.
+     */
+    String getFilePath()
+    {
+        return filePath;
+    }
+
+    /**
+     * Returns the maximum number of handles opened at any one time.
+     * @return See above.
+     */
+    int getMaxReaders()
+    {
+        return maxReaders;
+    }
+
+    /**
+     * Borrows a handle, opening a new one if none is idle and the maximum
+     * has not been reached, otherwise waiting for one to be released.
+     * @param resolutionLevel The resolution level the handle should be set
+     * to or <code>-1</code> to keep the default one.
+     * @return A handle which must be given back via {@link #release}.
+     */
+    BfPixelBuffer borrow(int resolutionLevel)
+    {
+        BfPixelBuffer handle = take();
+        try
+        {
+            if (resolutionLevel >= 0
+                && handle.getResolutionLevel() != resolutionLevel)
+            {
+                handle.setResolutionLevel(resolutionLevel);
+            }
+        }
+        catch (RuntimeException e)
+        {
+            discard(handle);
+            throw e;
+        }
+        return handle;
+    }
+
+    /**
+     * Gives a handle back to the pool.
+     * @param handle A handle obtained via {@link #borrow(int)}.
+     */
+    void release(BfPixelBuffer handle)
+    {
+        synchronized (lock)
+        {
+            if (!closed && (owner == null || mapped))
+            {
+                idle.push(handle);
+                lock.notifyAll();
+                return;
+            }
+        }
+        discard(handle);
+    }
+
+    /**
+     * Closes all the idle handles. Handles in use are closed when released.
+     */
+    void close()
+    {
+        List<BfPixelBuffer> toClose;
+        synchronized (lock)
+        {
+            toClose = closeIdle();
+        }
+        for (BfPixelBuffer handle : toClose)
+        {
+            discard(handle);
+        }
+    }
+
+    /**
+     * Marks this pool as closed and removes its idle handles, which the
+     * caller must {@link #discard} outside of the lock.
+     * Must be called with the lock held.
+     * @return The idle handles.
+     */
+    List<BfPixelBuffer> closeIdle()
+    {
+        closed = true;
+        List<BfPixelBuffer> toClose = new ArrayList<BfPixelBuffer>(idle);
+        idle.clear();
+        lock.notifyAll();
+        return toClose;
+    }
+
+    /**
+     * Removes the least recently used idle handle so that another pool may
+     * open one in its place. The handle is no longer counted as opened by
+     * this pool and must be closed by the caller outside of the lock.
+     * Must be called with the lock held.
+     * @return The handle or <code>null</code> if none is idle.
+     */
+    BfPixelBuffer evictIdle()
+    {
+        BfPixelBuffer handle = idle.pollLast();
+        if (handle != null)
+        {
+            opened--;
+        }
+        return handle;
+    }
+
+    /**
+     * Returns the number of handles currently opened, idle or in use.
+     * Must be called with the lock held.
+     * @return See above.
+     */
+    int getOpened()
+    {
+        return opened;
+    }
+
+    /**
+     * Returns whether this pool is still the one its owner returns for its
+     * file. Otherwise, it has been closed or replaced and should be looked
+     * up again.
+     * @return See above.
+     */
+    boolean isCurrent()
+    {
+        synchronized (lock)
+        {
+            return !closed && (owner == null || mapped);
+        }
+    }
+
+    private BfPixelBuffer take()
+    {
+        BfPixelBuffer evicted = null;
+        synchronized (lock)
+        {
+            checkOpen();
+            Timer.Context ctx = null;
+            try
+            {
+                while (true)
+                {
+                    BfPixelBuffer handle = idle.poll();
+                    if (handle != null)
+                    {
+                        return handle;
+                    }
+                    if (opened < maxReaders)
+                    {
+                        if (owner == null)
+                        {
+                            break;
+                        }
+                        List<BfPixelBuffer> freed =
+                                new ArrayList<BfPixelBuffer>(1);
+                        if (owner.reserve(this, freed))
+                        {
+                            evicted = freed.isEmpty() ? null : freed.get(0);
+                            break;
+                        }
+                    }
+                    if (ctx == null)
+                    {
+                        readerContention.inc();
+                        ctx = readerWaits.time();
+                    }
+                    lock.wait();
+                    checkOpen();
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new ResourceError(
+                        "Interrupted waiting for a reader on " + filePath);
+            }
+            finally
+            {
+                if (ctx != null)
+                {
+                    ctx.stop();
+                }
+            }
+            opened++;
+        }
+        if (evicted != null)
+        {
+            // Opened on another pyramid file, which is no longer counted.
+            close(evicted);
+        }
+        // Open outside of the lock since parsing the IFDs may be slow.
+        try
+        {
+            BfPixelBuffer handle = new BfPixelBuffer(filePath,
+                    new OmeroPixelsPyramidReader());
+            log.debug("Opened pyramid reader on {}", filePath);
+            return handle;
+        }
+        catch (Exception e)
+        {
+            closed(1);
+            throw new ResourceError("Failed to open pyramid reader on "
+                    + filePath + ": " + e.getMessage());
+        }
+    }
+
+    private void checkOpen()
+    {
+        if (closed)
+        {
+            throw new ResourceError("Pyramid reader pool closed: " + filePath);
+        }
+    }
+
+    /**
+     * Closes a handle of this pool and stops counting it as opened.
+     * @param handle The handle.
+     */
+    void discard(BfPixelBuffer handle)
+    {
+        try
+        {
+            close(handle);
+        }
+        finally
+        {
+            closed(1);
+        }
+    }
+
+    /**
+     * Stops counting handles as opened, waking up the borrowers waiting for
+     * one.
+     * @param count The number of handles.
+     */
+    private void closed(int count)
+    {
+        synchronized (lock)
+        {
+            opened -= count;
+            if (owner != null)
+            {
+                owner.closed(count);
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private void close(BfPixelBuffer handle)
+    {
+        try
+        {
+            handle.close();
+        }
+        catch (IOException e)
+        {
+            log.warn("Failed to close pyramid reader on " + filePath, e);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.bioformats;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ome.io.nio.PyramidTileCache.FileVersion;
+import ome.system.metrics.Metrics;
+
+/**
+ * Pools of read handles on pixels pyramid files shared by all the
+ * {@link BfPyramidPixelBuffer} instances of the server, one pool per pyramid
+ * file, so that viewers and rendering sessions of the same pyramid reuse the
+ * same handles. The number of handles opened on all the files is bounded:
+ * once reached, idle handles of the least recently used pyramids are closed
+ * to open new ones, otherwise borrowers wait for a handle to be released.
+ * A pool is replaced once its pyramid file has been rewritten.
+ *
+ * @since 5.3
+ */
+public class PyramidReaderPools
+{
+
+    /** Default maximum number of handles opened on all the pyramid files. */
+    public static final int DEFAULT_MAX_READERS = 32;
+
+    /** Maximum number of handles opened on all the pyramid files. */
+    private final int maxReaders;
+
+    /** Maximum number of handles opened on a single pyramid file. */
+    private final int maxReadersPerPyramid;
+
+    private final Metrics metrics;
+
+    /** The pools by pyramid file path, least recently used first. */
+    private final Map<String, PyramidReaderPool> pools =
+            new LinkedHashMap<String, PyramidReaderPool>(16, 0.75f, true);
+
+    /** Number of handles currently opened by all the pools. */
+    private int opened = 0;
+
+    /**
+     * Creates the pools.
+     * @param maxReaders Maximum number of handles opened on all the pyramid
+     * files. Must be positive.
+     * @param metrics Metrics used to report contention. May be
+     * <code>null</code>.
+     */
+    public PyramidReaderPools(int maxReaders, Metrics metrics)
+    {
+        if (maxReaders < 1)
+        {
+            throw new IllegalArgumentException(
+                    "Invalid number of readers: " + maxReaders);
+        }
+        this.maxReaders = maxReaders;
+        this.maxReadersPerPyramid = Math.min(maxReaders,
+                BfPyramidPixelBuffer.DEFAULT_MAX_READERS);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the maximum number of handles opened on all the pyramid files.
+     * @return See above.
+     */
+    public int getMaxReaders()
+    {
+        return maxReaders;
+    }
+
+    /**
+     * Returns the pool of a pyramid file, replacing it if the file has been
+     * rewritten since it was created.
+     * @param file The pyramid file.
+     * @return See above.
+     */
+    PyramidReaderPool get(File file)
+    {
+        String path = file.getAbsolutePath();
+        FileVersion version = FileVersion.of(file);
+        PyramidReaderPool stale = null;
+        PyramidReaderPool pool;
+        List<BfPixelBuffer> toClose = null;
+        synchronized (this)
+        {
+            pool = pools.get(path);
+            if (pool != null && !version.equals(pool.version))
+            {
+                stale = remove(path);
+                toClose = stale.closeIdle();
+                pool = null;
+            }
+            if (pool == null)
+            {
+                pool = new PyramidReaderPool(
+                        path, maxReadersPerPyramid, metrics, this, version);
+                put(pool);
+            }
+        }
+        discard(stale, toClose);
+        return pool;
+    }
+
+    /**
+     * Closes the pool of a pyramid file which has been deleted or is about to
+     * be rewritten. Handles in use are closed when released.
+     * @param path The path of the pyramid file.
+     */
+    public void invalidate(String path)
+    {
+        PyramidReaderPool pool;
+        List<BfPixelBuffer> toClose = null;
+        synchronized (this)
+        {
+            pool = remove(new File(path).getAbsolutePath());
+            if (pool != null)
+            {
+                toClose = pool.closeIdle();
+            }
+        }
+        discard(pool, toClose);
+    }
+
+    /**
+     * Reserves a handle to be opened by a pool, evicting an idle handle of
+     * the least recently used pyramid if all the handles are opened.
+     * Called with the lock held.
+     * @param pool The pool which is to open the handle.
+     * @param evicted Filled with the evicted handle, which is no longer
+     * counted and must be closed by the caller outside of the lock.
+     * @return <code>true</code> if the handle may be opened.
+     */
+    boolean reserve(PyramidReaderPool pool, List<BfPixelBuffer> evicted)
+    {
+        if (!pool.mapped && !pools.containsKey(pool.getFilePath()))
+        {
+            // Unmapped once its last handle was evicted but still in use.
+            put(pool);
+        }
+        if (opened < maxReaders)
+        {
+            opened++;
+            return true;
+        }
+        Iterator<PyramidReaderPool> it = pools.values().iterator();
+        while (it.hasNext())
+        {
+            PyramidReaderPool other = it.next();
+            if (other == pool)
+            {
+                continue;
+            }
+            BfPixelBuffer handle = other.evictIdle();
+            if (handle != null)
+            {
+                if (other.getOpened() == 0)
+                {
+                    // Mapped again if still in use, so that pools of
+                    // pyramids no longer read are not kept.
+                    it.remove();
+                    other.mapped = false;
+                }
+                evicted.add(handle);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stops counting handles closed by a pool. Called with the lock held.
+     * @param count The number of handles.
+     */
+    void closed(int count)
+    {
+        opened -= count;
+    }
+
+    private void put(PyramidReaderPool pool)
+    {
+        pools.put(pool.getFilePath(), pool);
+        pool.mapped = true;
+    }
+
+    private PyramidReaderPool remove(String path)
+    {
+        PyramidReaderPool pool = pools.remove(path);
+        if (pool != null)
+        {
+            pool.mapped = false;
+        }
+        return pool;
+    }
+
+    private void discard(PyramidReaderPool pool, List<BfPixelBuffer> toClose)
+    {
+        if (toClose != null)
+        {
+            for (BfPixelBuffer handle : toClose)
+            {
+                pool.discard(handle);
+            }
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ome.system.metrics.Counter;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide set of read-only memory mapped windows on ROMIO pixels files,
+ * shared by all the read-only {@link RomioPixelBuffer} instances created by
+ * the {@link PixelsService}. A window covers one plane so that planes, rows
+ * and tiles can be read from it without a system call or a copy.
+ * <p>
+ * The file is only opened while a window is mapped, a mapping remaining
+ * valid once its file is closed, so no file handle is held. The total size
+ * of the windows is bounded by {@link #getMaxBytes()}, the least recently
+ * used being dropped first. A dropped window is unmapped as soon as all the
+ * views handed out on it have been released, so that the memory mapped stays
+ * within the bound as long as the readers release their views. Windows whose
+ * views are never released are left to the garbage collector, as are all the
+ * windows if the JVM does not allow unmapping them.
+ * </p>
+ *
+ * @since 5.3
+ */
+public class MappedPixelsWindows {
+
+    private final static Logger log =
+            LoggerFactory.getLogger(MappedPixelsWindows.class);
+
+    /** Key of a window: the file path and the offset of the window. */
+    private static final class WindowKey {
+
+        final String path;
+
+        final long offset;
+
+        WindowKey(String path, long offset) {
+            this.path = path;
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof WindowKey)) {
+                return false;
+            }
+            WindowKey o = (WindowKey) obj;
+            return offset == o.offset && path.equals(o.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * path.hashCode() + (int) (offset ^ (offset >>> 32));
+        }
+    }
+
+    /** A mapped window and the number of views in use on it. */
+    private static final class Window {
+
+        final MappedByteBuffer buffer;
+
+        /** Number of views handed out and not yet released. */
+        int views = 0;
+
+        /** Set once the window is no longer in {@link #windows}. */
+        boolean dropped = false;
+
+        Window(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * A read-only view on a window, positioned at the start of the window,
+     * which must be released once no longer read from.
+     */
+    public final class View {
+
+        private final Window window;
+
+        private final ByteBuffer buffer;
+
+        private boolean released = false;
+
+        private View(Window window) {
+            this.window = window;
+            this.buffer = window.buffer.duplicate();
+        }
+
+        /**
+         * Returns the bytes of the window. Must not be read from once the
+         * view has been released.
+         * @return See above.
+         */
+        public ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        /**
+         * Gives the view back, unmapping its window if it has been dropped
+         * and this was its last view. Subsequent calls have no effect.
+         */
+        public void release() {
+            synchronized (MappedPixelsWindows.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                window.views--;
+                if (!window.dropped || window.views > 0) {
+                    return;
+                }
+            }
+            unmap(window.buffer);
+        }
+    }
+
+    /**
+     * <code>sun.nio.ch.DirectBuffer.cleaner()</code> and the
+     * <code>clean()</code> method of the cleaner, or <code>null</code> if the
+     * JVM does not allow unmapping a buffer.
+     */
+    private static final Method CLEANER, CLEAN;
+
+    static {
+        Method cleaner = null;
+        Method clean = null;
+        try {
+            cleaner = Class.forName("sun.nio.ch.DirectBuffer")
+                    .getMethod("cleaner");
+            clean = cleaner.getReturnType().getMethod("clean");
+        } catch (Exception e) {
+            log.warn("Dropped mapped pixels windows cannot be unmapped, " +
+                    "leaving them to the garbage collector", e);
+            cleaner = null;
+            clean = null;
+        }
+        CLEANER = cleaner;
+        CLEAN = clean;
+    }
+
+    /** Windows in access order, the eldest first. */
+    private final LinkedHashMap<WindowKey, Window> windows =
+            new LinkedHashMap<WindowKey, Window>(256, 0.75f, true);
+
+    /** Maximum number of bytes mapped through the windows. */
+    private final long maxBytes;
+
+    /** Number of bytes currently mapped through the windows. */
+    private long bytes = 0;
+
+    private final Counter hits;
+
+    private final Counter maps;
+
+    /**
+     * Creates windows without metrics.
+     * @param maxBytes Maximum number of bytes mapped.
+     */
+    public MappedPixelsWindows(long maxBytes) {
+        this(maxBytes, new NullMetrics());
+    }
+
+    /**
+     * Creates windows.
+     * @param maxBytes Maximum number of bytes mapped. If not positive,
+     * nothing is ever mapped.
+     * @param metrics Metrics used to report the windows reused and mapped.
+     */
+    public MappedPixelsWindows(long maxBytes, Metrics metrics) {
+        this.maxBytes = maxBytes;
+        this.hits = metrics.counter(this, "hits");
+        this.maps = metrics.counter(this, "maps");
+        log.info("Mapped pixels windows of {} bytes", maxBytes);
+    }
+
+    /**
+     * Returns the maximum number of bytes mapped through the windows.
+     * @return See above.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the number of bytes currently mapped through the windows.
+     * @return See above.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns a read-only view of a window, mapping it if required.
+     * @param path Path of the pixels file.
+     * @param offset Offset of the window in the file.
+     * @param size Size of the window.
+     * @return A view which must be {@link View#release() released} or
+     * <code>null</code> if the window cannot be mapped, either because it is
+     * larger than {@link #getMaxBytes()} or because it is not fully written
+     * yet, in which case the caller should read from the file itself.
+     * @throws IOException If the file cannot be mapped.
+     */
+    public View getWindow(String path, long offset, int size)
+            throws IOException {
+        if (size > maxBytes) {
+            return null;
+        }
+        WindowKey key = new WindowKey(path, offset);
+        synchronized (this) {
+            Window window = windows.get(key);
+            if (window != null && window.buffer.capacity() == size) {
+                hits.inc();
+                window.views++;
+                return new View(window);
+            }
+        }
+        MappedByteBuffer buffer;
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            if (offset + size > file.length()) {
+                return null;
+            }
+            buffer = file.getChannel().map(MapMode.READ_ONLY, offset, size);
+        } finally {
+            file.close();
+        }
+        maps.inc();
+        Window window = new Window(buffer);
+        List<Window> toUnmap = new ArrayList<Window>();
+        synchronized (this) {
+            window.views++;
+            Window old = windows.put(key, window);
+            if (old != null) {
+                bytes -= old.buffer.capacity();
+                drop(old, toUnmap);
+            }
+            bytes += size;
+            Iterator<Window> it = windows.values().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                Window eldest = it.next();
+                bytes -= eldest.buffer.capacity();
+                it.remove();
+                drop(eldest, toUnmap);
+            }
+        }
+        unmap(toUnmap);
+        return new View(window);
+    }
+
+    /**
+     * Drops all the windows of a pixels file, unmapping those which are not
+     * in use.
+     * @param path Path of the pixels file.
+     */
+    public void invalidate(String path) {
+        List<Window> toUnmap = new ArrayList<Window>();
+        synchronized (this) {
+            Iterator<Map.Entry<WindowKey, Window>> it =
+                    windows.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<WindowKey, Window> entry = it.next();
+                if (entry.getKey().path.equals(path)) {
+                    bytes -= entry.getValue().buffer.capacity();
+                    it.remove();
+                    drop(entry.getValue(), toUnmap);
+                }
+            }
+        }
+        unmap(toUnmap);
+    }
+
+    /**
+     * Marks a window removed from {@link #windows} as dropped. Must be called
+     * with the lock held.
+     * @param window The window.
+     * @param toUnmap Filled with the window if none of its views is in use,
+     * to be unmapped by the caller outside of the lock.
+     */
+    private void drop(Window window, List<Window> toUnmap) {
+        window.dropped = true;
+        if (window.views == 0) {
+            toUnmap.add(window);
+        }
+    }
+
+    private static void unmap(List<Window> toUnmap) {
+        for (Window window : toUnmap) {
+            unmap(window.buffer);
+        }
+    }
+
+    /**
+     * Unmaps a buffer which must no longer be read from, if the JVM allows.
+     * @param buffer The buffer.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        if (CLEANER == null) {
+            return;
+        }
+        try {
+            Object cleaner = CLEANER.invoke(buffer);
+            if (cleaner != null) {
+                CLEAN.invoke(cleaner);
+            }
+        } catch (Exception e) {
+            log.debug("Failed to unmap pixels window", e);
+        }
+    }
+}
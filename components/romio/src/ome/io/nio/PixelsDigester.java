@@ -0,0 +1,218 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ome.util.checksum.ChecksumProvider;
+import ome.util.checksum.ChecksumProviderFactory;
+import ome.util.checksum.ChecksumProviderFactoryImpl;
+import ome.util.checksum.ChecksumType;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Calculates the checksum of the whole of a pixel buffer, in XYZCT order,
+ * while reading it ahead on a second thread so that I/O and hashing overlap.
+ * A {@link RomioPixelBuffer} is read sequentially from its file in large
+ * chunks, any other buffer plane by plane. Two chunk sized buffers are
+ * allocated per calculation whatever the size of the pixels set.
+ * <p>
+ * The throughput of every calculation is logged.
+ * </p>
+ *
+ * @since 5.3
+ */
+public class PixelsDigester {
+
+    private final static Logger log =
+            LoggerFactory.getLogger(PixelsDigester.class);
+
+    /** Default size of the chunks read from ROMIO pixels files. (4MB) */
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private final ChecksumProviderFactory checksumProviderFactory;
+
+    private final ChecksumType checksumType;
+
+    private final int chunkSize;
+
+    /**
+     * Creates a digester calculating SHA-1 checksums, as returned by
+     * {@link PixelBuffer#calculateMessageDigest()}.
+     */
+    public PixelsDigester() {
+        this(new ChecksumProviderFactoryImpl(), ChecksumType.SHA1,
+                DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates a digester.
+     * @param checksumProviderFactory Factory of the checksum providers.
+     * @param checksumType The type of checksum to calculate.
+     * @param chunkSize Size of the chunks read from ROMIO pixels files.
+     */
+    public PixelsDigester(ChecksumProviderFactory checksumProviderFactory,
+            ChecksumType checksumType, int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid chunk size: " + chunkSize);
+        }
+        this.checksumProviderFactory = checksumProviderFactory;
+        this.checksumType = checksumType;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Calculates the checksum of a pixel buffer.
+     * @param pixelBuffer The buffer to read.
+     * @return The checksum.
+     * @throws IOException If the buffer cannot be read.
+     */
+    public byte[] digest(PixelBuffer pixelBuffer) throws IOException {
+        ChecksumProvider provider =
+                checksumProviderFactory.getProvider(checksumType);
+        long start = System.currentTimeMillis();
+        long size;
+        ExecutorService readAhead = Executors.newSingleThreadExecutor();
+        try {
+            if (pixelBuffer instanceof RomioPixelBuffer) {
+                size = digestFile((RomioPixelBuffer) pixelBuffer, provider,
+                        readAhead);
+            } else {
+                size = digestPlanes(pixelBuffer, provider, readAhead);
+            }
+        } finally {
+            readAhead.shutdownNow();
+        }
+        byte[] checksum = provider.checksumAsBytes();
+        if (log.isInfoEnabled()) {
+            long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+            log.info(String.format(
+                    "%s of %s: %d bytes in %d ms (%.1f MB/s)",
+                    checksumType, pixelBuffer, size, elapsed,
+                    size / 1024.0 / 1024.0 / (elapsed / 1000.0)));
+        }
+        return checksum;
+    }
+
+    /**
+     * Reads the pixels file in chunks through its own read-only handle.
+     */
+    private long digestFile(RomioPixelBuffer pixelBuffer,
+            ChecksumProvider provider, ExecutorService readAhead)
+            throws IOException {
+        final long size = pixelBuffer.getTotalSize();
+        final RandomAccessFile file =
+                new RandomAccessFile(pixelBuffer.getPath(), "r");
+        try {
+            if (file.length() < size) {
+                throw new IOException(String.format(
+                        "Pixels file %s is %d bytes long, expected %d.",
+                        pixelBuffer.getPath(), file.length(), size));
+            }
+            byte[] current = new byte[(int) Math.min(chunkSize, size)];
+            byte[] next = new byte[current.length];
+            long offset = 0;
+            Future<Integer> pending = readAhead.submit(
+                    readChunk(file, offset, size, current));
+            while (pending != null) {
+                int length = await(pending);
+                offset += length;
+                pending = offset < size ?
+                        readAhead.submit(readChunk(file, offset, size, next))
+                        : null;
+                provider.putBytes(current, 0, length);
+                byte[] swap = current;
+                current = next;
+                next = swap;
+            }
+            return size;
+        } finally {
+            file.close();
+        }
+    }
+
+    private Callable<Integer> readChunk(final RandomAccessFile file,
+            final long offset, final long size, final byte[] chunk) {
+        return new Callable<Integer>() {
+            public Integer call() throws IOException {
+                int length = (int) Math.min(chunk.length, size - offset);
+                file.seek(offset);
+                file.readFully(chunk, 0, length);
+                return length;
+            }
+        };
+    }
+
+    /**
+     * Reads any other buffer plane by plane.
+     */
+    private long digestPlanes(final PixelBuffer pixelBuffer,
+            ChecksumProvider provider, ExecutorService readAhead)
+            throws IOException {
+        final int sizeZ = pixelBuffer.getSizeZ();
+        final int sizeC = pixelBuffer.getSizeC();
+        final int planeCount = sizeZ * sizeC * pixelBuffer.getSizeT();
+        int planeSize =
+                RomioPixelBuffer.safeLongToInteger(pixelBuffer.getPlaneSize());
+        byte[] current = new byte[planeSize];
+        byte[] next = new byte[planeSize];
+        Future<Integer> pending =
+                readAhead.submit(readPlane(pixelBuffer, 0, sizeZ, sizeC, current));
+        for (int i = 0; i < planeCount; i++) {
+            await(pending);
+            pending = i + 1 < planeCount ?
+                    readAhead.submit(
+                            readPlane(pixelBuffer, i + 1, sizeZ, sizeC, next))
+                    : null;
+            provider.putBytes(current);
+            byte[] swap = current;
+            current = next;
+            next = swap;
+        }
+        return (long) planeCount * planeSize;
+    }
+
+    private Callable<Integer> readPlane(final PixelBuffer pixelBuffer,
+            final int index, final int sizeZ, final int sizeC,
+            final byte[] plane) {
+        return new Callable<Integer>() {
+            public Integer call() throws Exception {
+                int z = index % sizeZ;
+                int c = (index / sizeZ) % sizeC;
+                int t = index / (sizeZ * sizeC);
+                pixelBuffer.getPlaneDirect(z, c, t, plane);
+                return plane.length;
+            }
+        };
+    }
+
+    private int await(Future<Integer> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted reading pixels", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Error reading pixels", cause);
+        }
+    }
+}
@@ -12,6 +12,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
@@ -29,6 +30,7 @@ import ome.conditions.MissingPyramidException;
 import ome.conditions.ResourceError;
 import ome.io.bioformats.BfPixelBuffer;
 import ome.io.bioformats.BfPyramidPixelBuffer;
+import ome.io.bioformats.PyramidReaderPools;
 import ome.io.messages.MissingPyramidMessage;
 import ome.io.messages.MissingStatsInfoMessage;
 import ome.parameters.Parameters;
@@ -65,12 +67,25 @@ public class PixelsService extends AbstractFileSystemService
 	/** Suffix for an the image pyramid of a given pixels set. */
 	public static final String PYRAMID_SUFFIX = "_pyramid";
 
+	/** Suffix for the per-plane statistics of a given pixels set. */
+	public static final String STATS_SUFFIX = "_stats";
+
+	/**
+	 * Default maximum number of pixels of a plane read to compute its
+	 * statistics; larger planes are read from a lower resolution level of
+	 * their pyramid.
+	 */
+	public static final long STATS_MAX_PIXELS = 4096L * 4096L;
+
 	/** Null plane size constant. */
 	public static final int NULL_PLANE_SIZE = 64;
 
 	/** Default of 100 ms for {@link #memoizerWait} */
 	public static final long MEMOIZER_WAIT = 100;
 
+	/** Default of 2 source readers for {@link #pyramidReaders} */
+	public static final int DEFAULT_PYRAMID_READERS = 2;
+
 	/** Resolver of archived original file paths for pixels sets. */
 	protected FilePathResolver resolver;
 
@@ -90,6 +105,24 @@ public class PixelsService extends AbstractFileSystemService
 	 */
 	protected final long memoizerWait;
 
+	/** Metrics given to the pyramid pixel buffers, may be <code>null</code>. */
+	private Metrics metrics;
+
+	/** Cache of decoded pyramid tiles, may be <code>null</code>. */
+	private PyramidTileCache tileCache;
+
+	/** Read handles shared by the pyramid pixel buffers, may be <code>null</code>. */
+	private PyramidReaderPools readerPools;
+
+	/** Windows read-only ROMIO pixels are read through, may be <code>null</code>. */
+	private MappedPixelsWindows mappedWindows;
+
+	/** Number of source readers used concurrently to generate a pyramid. */
+	private int pyramidReaders = DEFAULT_PYRAMID_READERS;
+
+	/** Maximum number of pixels of a plane read to compute its statistics. */
+	private long statsMaxPixels = STATS_MAX_PIXELS;
+
 	private Timer tileTimes;
 
 	private Timer minmaxTimes;
@@ -184,10 +217,81 @@ public class PixelsService extends AbstractFileSystemService
     }
 
     public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
         this.tileTimes = metrics.timer(this, "tileTimes");
         this.minmaxTimes = metrics.timer(this, "minmaxTimes");
     }
 
+    /**
+     * Sets the cache of decoded tiles shared by all the pyramid pixel buffers.
+     * @param tileCache The cache or <code>null</code> to disable caching.
+     */
+    public void setTileCache(PyramidTileCache tileCache) {
+        this.tileCache = tileCache;
+    }
+
+    /**
+     * Sets the pools of read handles shared by all the pyramid pixel buffers,
+     * one pool per pyramid file.
+     * @param readerPools The pools or <code>null</code> for every pixel
+     * buffer to have its own handles.
+     */
+    public void setReaderPools(PyramidReaderPools readerPools) {
+        this.readerPools = readerPools;
+    }
+
+    /**
+     * Drops the cached tiles and the pooled read handles of the pyramid of a
+     * pixels set, once the pyramid has been deleted outside of this service.
+     * @param id The id of the pixels set.
+     */
+    public void invalidatePyramidTiles(long id) {
+        if (tileCache != null) {
+            tileCache.invalidate(id);
+        }
+        if (readerPools != null) {
+            readerPools.invalidate(getPixelsPath(id) + PYRAMID_SUFFIX);
+        }
+    }
+
+    /**
+     * Sets the memory mapped windows shared by all the read-only ROMIO pixel
+     * buffers.
+     * @param mappedWindows The windows or <code>null</code> to map every
+     * region read on its own.
+     */
+    public void setMappedWindows(MappedPixelsWindows mappedWindows) {
+        this.mappedWindows = mappedWindows;
+    }
+
+    /**
+     * Sets the number of source readers used concurrently to generate a
+     * pyramid. Each reader is an independent handle on the pixels file or
+     * the original file.
+     * @param pyramidReaders The number of readers. Must be positive.
+     */
+    public void setPyramidReaders(int pyramidReaders) {
+        if (pyramidReaders < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid number of pyramid readers: " + pyramidReaders);
+        }
+        this.pyramidReaders = pyramidReaders;
+    }
+
+    /**
+     * Sets the maximum number of pixels of a plane read to compute the
+     * statistics stored along with its pyramid. This should be the same as
+     * for the statistics computed on request so that the two agree.
+     * @param statsMaxPixels The number of pixels. Must be positive.
+     */
+    public void setStatisticsMaxPixels(long statsMaxPixels) {
+        if (statsMaxPixels < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid maximum number of pixels: " + statsMaxPixels);
+        }
+        this.statsMaxPixels = statsMaxPixels;
+    }
+
     public long getMemoizerWait() {
         return memoizerWait;
     }
@@ -223,6 +327,21 @@ public class PixelsService extends AbstractFileSystemService
 		return pixbuf;
 	}
 
+    /**
+     * Receives the SHA-1 digest of a pixels set computed while its pyramid
+     * is made.
+     * @since 5.3
+     */
+    public interface DigestListener
+    {
+        /**
+         * @param sha1 The SHA-1 digest of the pixel data, in the same order
+         * as the import digests it: plane by plane, tile by tile in the
+         * reader's own tile size.
+         */
+        void setSha1(byte[] sha1);
+    }
+
     /**
      * Creates a pixels pyramid for a given set of pixels. If the pyramid file
      * already exists, then a DEBUG message is logged and this method returns.
@@ -231,6 +350,24 @@ public class PixelsService extends AbstractFileSystemService
      * @since OMERO-Beta4.3
      */
     public StatsInfo[] makePyramid(Pixels pixels)
+    {
+        return makePyramid(pixels, null);
+    }
+
+    /**
+     * Creates a pixels pyramid for a given set of pixels. If the pyramid file
+     * already exists, then a DEBUG message is logged and this method returns.
+     * The pass over the source data that writes the pyramid also computes the
+     * channel statistics and, where the pyramid is built from the original
+     * file in the reader's own tile size, the SHA-1 digest of the pixel data.
+     *
+     * @param pixels Pixels set to retrieve a pixel buffer for.
+     * @param digestListener Notified of the SHA-1 digest if it could be
+     * computed, may be <code>null</code>.
+     * @since 5.3
+     */
+    public StatsInfo[] makePyramid(Pixels pixels,
+            DigestListener digestListener)
     {
         final String pixelsFilePath = getPixelsPath(pixels.getId());
         final File pixelsFile = new File(pixelsFilePath);
@@ -256,6 +393,9 @@ public class PixelsService extends AbstractFileSystemService
             BfPixelBuffer bfPixelBuffer = createMinMaxBfPixelBuffer(
                     originalFilePath, series, minMaxStore);
 
+            // The planes are read anyway so take their statistics as well.
+            final PlaneStatistics[] planeStats = new PlaneStatistics[
+                    pixels.getSizeZ() * pixels.getSizeC() * pixels.getSizeT()];
             try
             {
                 for (int t = 0; t < pixels.getSizeT(); t++)
@@ -267,7 +407,10 @@ public class PixelsService extends AbstractFileSystemService
                             Timer.Context ctx = minmaxTimes == null ?
                                 null : minmaxTimes.time();
                             try {
-                                bfPixelBuffer.getPlane(z, c, t);
+                                PixelData plane = bfPixelBuffer.getPlane(z, c, t);
+                                planeStats[PlaneStatisticsFile.index(z, c, t,
+                                        pixels.getSizeZ(), pixels.getSizeC())] =
+                                    PlaneStatistics.compute(plane);
                             } finally {
                                 if (ctx != null) {
                                     ctx.stop();
@@ -276,6 +419,8 @@ public class PixelsService extends AbstractFileSystemService
                         }
                     }
                 }
+                writePlaneStatistics(pixels, pixels.getSizeX(),
+                        pixels.getSizeY(), planeStats);
                 return minMaxStore.createStatsInfo();
             }
             catch (IOException e)
@@ -287,6 +432,7 @@ public class PixelsService extends AbstractFileSystemService
 
         final BfPyramidPixelBuffer pixelsPyramid = createPyramidPixelBuffer(
                 pixels, pixelsPyramidFilePath, true);
+        boolean written = false;
 
         try
         {
@@ -305,7 +451,9 @@ public class PixelsService extends AbstractFileSystemService
 
             PixelsPyramidMinMaxStore minMaxStore = performWrite(
                     pixels, pixelsPyramidFile, pixelsPyramid,
-                    pixelsFile, pixelsFilePath, originalFilePath);
+                    pixelsFile, pixelsFilePath, originalFilePath,
+                    digestListener);
+            written = true;
             if (minMaxStore != null)
             {
                 return minMaxStore.createStatsInfo();
@@ -326,22 +474,179 @@ public class PixelsService extends AbstractFileSystemService
                     log.error("Error closing pixel pyramid.", e);
                 }
             }
+            if (tileCache != null)
+            {
+                // Tiles of any previous pyramid are stale.
+                tileCache.invalidate(pixels.getId());
+            }
+            if (readerPools != null)
+            {
+                // So are the handles opened on it.
+                readerPools.invalidate(pixelsPyramidFilePath);
+            }
+            if (written)
+            {
+                // Only readable once closed.
+                makePlaneStatistics(pixels, pixelsPyramidFilePath);
+            }
+        }
+    }
+
+    /**
+     * Returns the per-plane statistics of a pixels set, computed along with
+     * its pixels pyramid or channel statistics.
+     * @param id The id of the pixels set.
+     * @return See above or <code>null</code> if they have not been computed.
+     * @since 5.3
+     */
+    public PlaneStatisticsFile getPlaneStatistics(long id)
+    {
+        final File file = new File(getPixelsPath(id) + STATS_SUFFIX);
+        try
+        {
+            return PlaneStatisticsFile.open(file);
+        }
+        catch (IOException e)
+        {
+            log.warn("Could not read plane statistics: " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Removes the per-plane statistics of a pixels set, once its pixel data
+     * has changed.
+     * @param id The id of the pixels set.
+     * @since 5.3
+     */
+    public void removePlaneStatistics(long id)
+    {
+        final File file = new File(getPixelsPath(id) + STATS_SUFFIX);
+        if (file.exists() && !file.delete())
+        {
+            log.warn("Could not delete plane statistics: " + file);
+        }
+    }
+
+    /**
+     * Writes the per-plane statistics of a pixels set, logging rather than
+     * throwing on failure since they can always be computed again.
+     */
+    private void writePlaneStatistics(Pixels pixels, int sizeX, int sizeY,
+            PlaneStatistics[] planeStats)
+    {
+        final File file =
+            new File(getPixelsPath(pixels.getId()) + STATS_SUFFIX);
+        try
+        {
+            PlaneStatisticsFile.write(file, sizeX, sizeY, pixels.getSizeZ(),
+                    pixels.getSizeC(), pixels.getSizeT(), planeStats);
+        }
+        catch (IOException e)
+        {
+            log.warn("Could not write plane statistics: " + file, e);
+        }
+    }
+
+    /**
+     * Computes the per-plane statistics of a pixels set from its newly
+     * written pyramid, reading each plane whole from the largest resolution
+     * level with no more than {@link #setStatisticsMaxPixels(long)} pixels.
+     * The pyramid is read without the tile cache: each tile is read once.
+     */
+    private void makePlaneStatistics(Pixels pixels,
+            String pixelsPyramidFilePath)
+    {
+        if (!new File(pixelsPyramidFilePath).exists())
+        {
+            return;
+        }
+        PixelBuffer pyramid = null;
+        try
+        {
+            pyramid = createPyramidPixelBuffer(
+                    pixels, pixelsPyramidFilePath, false, false);
+            final List<List<Integer>> levels =
+                pyramid.getResolutionDescriptions();
+            // Descriptions go from the largest level, numbered levels - 1.
+            int i = 0;
+            while (i < levels.size() - 1 && (long) levels.get(i).get(0)
+                    * levels.get(i).get(1) > statsMaxPixels)
+            {
+                i++;
+            }
+            pyramid.setResolutionLevel(levels.size() - 1 - i);
+            final int sizeX = levels.get(i).get(0);
+            final int sizeY = levels.get(i).get(1);
+            final PlaneStatistics[] planeStats = new PlaneStatistics[
+                    pixels.getSizeZ() * pixels.getSizeC() * pixels.getSizeT()];
+            for (int t = 0; t < pixels.getSizeT(); t++)
+            {
+                for (int c = 0; c < pixels.getSizeC(); c++)
+                {
+                    for (int z = 0; z < pixels.getSizeZ(); z++)
+                    {
+                        PixelData plane =
+                            pyramid.getTile(z, c, t, 0, 0, sizeX, sizeY);
+                        try
+                        {
+                            planeStats[PlaneStatisticsFile.index(z, c, t,
+                                    pixels.getSizeZ(), pixels.getSizeC())] =
+                                PlaneStatistics.compute(plane);
+                        }
+                        finally
+                        {
+                            plane.dispose();
+                        }
+                    }
+                }
+            }
+            writePlaneStatistics(pixels, sizeX, sizeY, planeStats);
+        }
+        catch (Exception e)
+        {
+            log.warn("Could not compute plane statistics of pixels "
+                    + pixels.getId(), e);
+        }
+        finally
+        {
+            if (pyramid != null)
+            {
+                try
+                {
+                    pyramid.close();
+                }
+                catch (IOException e)
+                {
+                    log.error("Error closing pixel pyramid.", e);
+                }
+            }
         }
     }
 
     private PixelsPyramidMinMaxStore performWrite(
             final Pixels pixels,final File pixelsPyramidFile,
             final BfPyramidPixelBuffer pixelsPyramid, final File pixelsFile,
-            final String pixelsFilePath, final String originalFilePath) {
+            final String pixelsFilePath, final String originalFilePath,
+            final DigestListener digestListener) {
 
         final PixelBuffer source;
         final Dimension tileSize;
+        // The tiles hash as the import would only in the reader's tile size.
+        boolean canDigest = false;
         final PixelsPyramidMinMaxStore minMaxStore;
+        final List<PixelBuffer> sources = new ArrayList<PixelBuffer>();
 
         if (pixelsFile.exists())
         {
             minMaxStore = null;
             source = createRomioPixelBuffer(pixelsFilePath, pixels, false);
+            sources.add(source);
+            for (int i = 1; i < pyramidReaders; i++)
+            {
+                sources.add(createRomioPixelBuffer(
+                        pixelsFilePath, pixels, false));
+            }
             // FIXME: This should be configuration or service driven
             // FIXME: Also implemented in RenderingBean.getTileSize()
             tileSize = new Dimension(Math.min(pixels.getSizeX(), sizes.getTileWidth()),
@@ -351,8 +656,17 @@ public class PixelsService extends AbstractFileSystemService
         {
             minMaxStore = new PixelsPyramidMinMaxStore(pixels.getSizeC());
             int series = getSeries(pixels);
-            BfPixelBuffer bfPixelBuffer = createMinMaxBfPixelBuffer(
-                    originalFilePath, series, minMaxStore);
+            // A MinMaxCalculator only sees the tiles read through it so
+            // with several readers the pipeline computes min/max itself.
+            BfPixelBuffer bfPixelBuffer = pyramidReaders > 1?
+                    createBfPixelBuffer(originalFilePath, series)
+                    : createMinMaxBfPixelBuffer(
+                            originalFilePath, series, minMaxStore);
+            sources.add(bfPixelBuffer);
+            for (int i = 1; i < pyramidReaders; i++)
+            {
+                sources.add(createBfPixelBuffer(originalFilePath, series));
+            }
             pixelsPyramid.setByteOrder(
                     bfPixelBuffer.isLittleEndian()? ByteOrder.LITTLE_ENDIAN
                             : ByteOrder.BIG_ENDIAN);
@@ -388,60 +702,58 @@ public class PixelsService extends AbstractFileSystemService
             else
             {
                 tileSize = sourceTileSize;
+                canDigest = true;
             }
         }
         log.info("Destination pyramid tile size: " + tileSize);
 
         try
         {
-            final double totalTiles =
-                source.getSizeZ() * source.getSizeC() * source.getSizeT() *
-                (Math.ceil(source.getSizeX() / tileSize.getWidth())) *
-                (Math.ceil(source.getSizeY() / tileSize.getHeight()));
-            final int tenPercent = Math.max((int) totalTiles / 10, 1);
-            Utils.forEachTile(new TileLoopIteration() {
-                public void run(int z, int c, int t, int x, int y, int w,
-                            int h, int tileCount)
+            PyramidTilePipeline pipeline = new PyramidTilePipeline(sources,
+                    pixelsPyramid, (int) tileSize.getWidth(),
+                    (int) tileSize.getHeight(), tileTimes);
+            if (minMaxStore != null && sources.size() > 1)
             {
-                if (log.isInfoEnabled()
-                    && tileCount % tenPercent == 0)
+                pipeline.computeMinMax();
+            }
+            final boolean digest = canDigest && digestListener != null;
+            if (digest)
+            {
+                pipeline.computeDigest();
+            }
+            try
+            {
+                pipeline.run(pixels.getId());
+            }
+            catch (IOException e1)
+            {
+                log.error("FAIL -- Error during tile population", e1);
+                try
                 {
-                    log.info(String.format(
-                            "Pyramid creation for Pixels:%d %d/%d (%d%%).",
-                            pixels.getId(), tileCount + 1, (int) totalTiles,
-                            (int) (tileCount / totalTiles * 100)));
+                    pixelsPyramidFile.delete();
+                    FileUtils.touch(pixelsPyramidFile); // ticket:5189
                 }
-                try
+                catch (Exception e2)
                 {
-                    Timer.Context ctx = tileTimes == null ? null : tileTimes.time();
-                    try {
-                        PixelData tile = source.getTile(z, c, t, x, y, w, h);
-                        pixelsPyramid.setTile(
-                            tile.getData().array(), z, c, t, x, y, w, h);
-                        tile.dispose();
-                    } finally {
-                        if (ctx != null) {
-                            ctx.stop();
-                        }
-                    }
+                    log.warn("Error clearing empty or incomplete pixel " +
+                             "buffer.", e2);
                 }
-                catch (IOException e1)
+                return minMaxStore;
+            }
+            double[][] minMax = pipeline.getMinMax();
+            if (minMax != null)
+            {
+                for (int c = 0; c < minMax.length; c++)
                 {
-                    log.error("FAIL -- Error during tile population", e1);
-                    try
-                    {
-                        pixelsPyramidFile.delete();
-                        FileUtils.touch(pixelsPyramidFile); // ticket:5189
-                    }
-                    catch (Exception e2)
-                    {
-                        log.warn("Error clearing empty or incomplete pixel " +
-                                 "buffer.", e2);
-                    }
-                    return;
+                    minMaxStore.setChannelGlobalMinMax(
+                            c, minMax[c][0], minMax[c][1], 0);
                 }
             }
-            }, source, (int) tileSize.getWidth(), (int) tileSize.getHeight());
+
+            if (digest)
+            {
+                digestListener.setSha1(pipeline.getDigest());
+            }
 
             log.info("SUCCESS -- Pyramid created for pixels id:" + pixels.getId());
 
@@ -449,11 +761,11 @@ public class PixelsService extends AbstractFileSystemService
 
         finally
         {
-            if (source != null)
+            for (PixelBuffer handle : sources)
             {
                 try
                 {
-                    source.close();
+                    handle.close();
                 }
                 catch (IOException e)
                 {
@@ -826,6 +1138,16 @@ public class PixelsService extends AbstractFileSystemService
      */
     protected BfPyramidPixelBuffer createPyramidPixelBuffer(final Pixels pixels,
             final String filePath, boolean write) {
+        return createPyramidPixelBuffer(pixels, filePath, write, !write);
+    }
+
+    /**
+     * @param filePath Non-null.
+     * @param cached If tiles read are to go through the tile cache.
+     * @return the initialized {@link BfPyramidPixelBuffer}
+     */
+    private BfPyramidPixelBuffer createPyramidPixelBuffer(final Pixels pixels,
+            final String filePath, boolean write, boolean cached) {
 
         try
         {
@@ -833,7 +1155,16 @@ public class PixelsService extends AbstractFileSystemService
                 // #5159. Creating the path if we need to write.
                 createSubpath(filePath);
             }
-            return new BfPyramidPixelBuffer(pixels, filePath, write);
+            BfPyramidPixelBuffer pixelBuffer =
+                new BfPyramidPixelBuffer(pixels, filePath, write);
+            if (metrics != null) {
+                pixelBuffer.setMetrics(metrics);
+            }
+            if (tileCache != null && cached) {
+                pixelBuffer.setTileCache(tileCache);
+            }
+            pixelBuffer.setReaderPools(readerPools);
+            return pixelBuffer;
         }
         catch (Exception e)
         {
@@ -855,7 +1186,12 @@ public class PixelsService extends AbstractFileSystemService
      */
     protected PixelBuffer createRomioPixelBuffer(String pixelsFilePath,
         Pixels pixels, boolean allowModification) {
-        return new RomioPixelBuffer(pixelsFilePath, pixels, allowModification);
+        RomioPixelBuffer pixelBuffer =
+            new RomioPixelBuffer(pixelsFilePath, pixels, allowModification);
+        if (!allowModification) {
+            pixelBuffer.setMappedWindows(mappedWindows);
+        }
+        return pixelBuffer;
     }
 
     /**
@@ -872,8 +1208,18 @@ public class PixelsService extends AbstractFileSystemService
 
 		for (Iterator<Long> iter = pixelIds.iterator(); iter.hasNext();) {
 			Long id = iter.next();
+			if (tileCache != null) {
+				tileCache.invalidate(id);
+			}
 
 			String pixelPath = getPixelsPath(id);
+			if (mappedWindows != null) {
+				mappedWindows.invalidate(pixelPath);
+			}
+			if (readerPools != null) {
+				readerPools.invalidate(pixelPath + PYRAMID_SUFFIX);
+			}
+			removePlaneStatistics(id);
 			file = new File(pixelPath);
 			fileName = file.getName();
 			if (file.exists()) {
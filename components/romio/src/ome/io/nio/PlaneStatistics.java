@@ -0,0 +1,179 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import ome.util.PixelData;
+
+/**
+ * The minimum, maximum, mean, percentiles and histogram of the pixel values
+ * of a plane, as stored in a {@link PlaneStatisticsFile}. The histogram has
+ * {@link #BIN_COUNT} bins spanning the minimum to the maximum of the plane,
+ * binned as <code>RawPixelsStore.getHistogram</code> bins them.
+ *
+ * @since 5.3
+ */
+public class PlaneStatistics {
+
+    /** Number of bins of the histogram. */
+    public static final int BIN_COUNT = 256;
+
+    /** The percentiles computed, in percent. */
+    public static final double[] PERCENTILES =
+        { 0.1, 1, 5, 25, 50, 75, 95, 99, 99.9 };
+
+    /**
+     * Number of bins of the histogram the percentiles are taken from. Integer
+     * planes whose range is smaller have one bin per value, so that their
+     * percentiles are exact.
+     */
+    private static final int FINE_BIN_COUNT = 65536;
+
+    private final double min;
+
+    private final double max;
+
+    private final double mean;
+
+    private final double[] percentiles;
+
+    private final int[] histogram;
+
+    /**
+     * Creates the statistics of a plane.
+     * @param min The minimum pixel value.
+     * @param max The maximum pixel value.
+     * @param mean The mean pixel value.
+     * @param percentiles The values at {@link #PERCENTILES}.
+     * @param histogram The counts of the {@link #BIN_COUNT} bins.
+     */
+    public PlaneStatistics(double min, double max, double mean,
+            double[] percentiles, int[] histogram) {
+        if (percentiles.length != PERCENTILES.length) {
+            throw new IllegalArgumentException(
+                    "Expected " + PERCENTILES.length + " percentiles");
+        }
+        if (histogram.length != BIN_COUNT) {
+            throw new IllegalArgumentException(
+                    "Expected " + BIN_COUNT + " bins");
+        }
+        this.min = min;
+        this.max = max;
+        this.mean = mean;
+        this.percentiles = percentiles.clone();
+        this.histogram = histogram.clone();
+    }
+
+    /**
+     * Computes the statistics of a plane.
+     * @param px The pixel values of the plane.
+     * @return See above.
+     */
+    public static PlaneStatistics compute(PixelData px) {
+        final int size = px.size();
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            final double value = px.getPixelValue(i);
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+        }
+        if (size == 0) {
+            return new PlaneStatistics(0, 0, 0,
+                    new double[PERCENTILES.length], new int[BIN_COUNT]);
+        }
+
+        final int[] histogram = new int[BIN_COUNT];
+        final double binRange = (max - min + 1) / BIN_COUNT;
+        final double range = max - min;
+        final double fineScale = range == 0 ? 0
+                : !px.isFloat() && range < FINE_BIN_COUNT ? 1
+                : (FINE_BIN_COUNT - 1) / range;
+        final int[] fine = new int[FINE_BIN_COUNT];
+        for (int i = 0; i < size; i++) {
+            final double value = px.getPixelValue(i);
+            int bin = (int) ((value - min) / binRange);
+            // offset as RawPixelsStore.getHistogram offsets it
+            if (bin > 0 && binRange < 1)
+                bin++;
+            if (bin >= 0 && bin < BIN_COUNT)
+                histogram[bin]++;
+            fine[(int) ((value - min) * fineScale)]++;
+        }
+
+        final double[] percentiles = new double[PERCENTILES.length];
+        long seen = 0;
+        int bin = 0;
+        for (int p = 0; p < PERCENTILES.length; p++) {
+            // the value of rank ceil(p% of the pixels), counting from one
+            final long rank = Math.max(1,
+                    (long) Math.ceil(PERCENTILES[p] / 100 * size));
+            while (seen + fine[bin] < rank) {
+                seen += fine[bin++];
+            }
+            percentiles[p] = fineScale == 0 ? min : min + bin / fineScale;
+        }
+        return new PlaneStatistics(min, max, sum / size, percentiles,
+                histogram);
+    }
+
+    /**
+     * Returns the minimum pixel value.
+     * @return See above.
+     */
+    public double getMin() {
+        return min;
+    }
+
+    /**
+     * Returns the maximum pixel value.
+     * @return See above.
+     */
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * Returns the mean pixel value.
+     * @return See above.
+     */
+    public double getMean() {
+        return mean;
+    }
+
+    /**
+     * Returns the pixel values at {@link #PERCENTILES}.
+     * @return See above.
+     */
+    public double[] getPercentiles() {
+        return percentiles.clone();
+    }
+
+    /**
+     * Returns the value at one of the {@link #PERCENTILES}.
+     * @param percentile The percentile, in percent.
+     * @return See above.
+     * @throws IllegalArgumentException If the percentile was not computed.
+     */
+    public double getPercentile(double percentile) {
+        for (int p = 0; p < PERCENTILES.length; p++) {
+            if (PERCENTILES[p] == percentile) {
+                return percentiles[p];
+            }
+        }
+        throw new IllegalArgumentException(
+                "Percentile not computed: " + percentile);
+    }
+
+    /**
+     * Returns the counts of the {@link #BIN_COUNT} bins of the histogram.
+     * @return See above.
+     */
+    public int[] getHistogram() {
+        return histogram.clone();
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Side file holding the {@link PlaneStatistics} of every plane of a pixels
+ * set, written next to its pixels file once the data has been read and read
+ * back a plane at a time. Planes are stored in fixed-size records, so a
+ * plane is read without reading the others.
+ * <p>
+ * The header records the size of the planes the statistics were computed
+ * from, which is smaller than the size of the pixels set if they were read
+ * from a lower resolution level of its pyramid.
+ * </p>
+ *
+ * @since 5.3
+ */
+public class PlaneStatisticsFile {
+
+    /** Identifies the files, "OPST". */
+    private static final int MAGIC = 0x4f505354;
+
+    private static final int VERSION = 1;
+
+    /** Number of bytes of the header. */
+    private static final int HEADER_SIZE = 9 * 4;
+
+    /** Number of bytes of each plane. */
+    private static final int RECORD_SIZE = 1
+            + 8 * (3 + PlaneStatistics.PERCENTILES.length)
+            + 4 * PlaneStatistics.BIN_COUNT;
+
+    private final File file;
+
+    private final int sizeX, sizeY, sizeZ, sizeC, sizeT;
+
+    private PlaneStatisticsFile(File file, int sizeX, int sizeY, int sizeZ,
+            int sizeC, int sizeT) {
+        this.file = file;
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.sizeC = sizeC;
+        this.sizeT = sizeT;
+    }
+
+    /**
+     * Opens a file.
+     * @param file The file.
+     * @return See above or <code>null</code> if the file does not exist or
+     * is not a statistics file of this version.
+     * @throws IOException If the file could not be read.
+     */
+    public static PlaneStatisticsFile open(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC
+                    || raf.readInt() != VERSION) {
+                return null;
+            }
+            final int sizeX = raf.readInt();
+            final int sizeY = raf.readInt();
+            final int sizeZ = raf.readInt();
+            final int sizeC = raf.readInt();
+            final int sizeT = raf.readInt();
+            if (raf.readInt() != PlaneStatistics.BIN_COUNT
+                    || raf.readInt() != PlaneStatistics.PERCENTILES.length
+                    || raf.length() != HEADER_SIZE
+                            + (long) sizeZ * sizeC * sizeT * RECORD_SIZE) {
+                return null;
+            }
+            return new PlaneStatisticsFile(file, sizeX, sizeY, sizeZ, sizeC,
+                    sizeT);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes a file, replacing any previous one only once it is complete.
+     * @param file The file.
+     * @param sizeX The width of the planes the statistics were computed from.
+     * @param sizeY The height of the planes the statistics were computed
+     * from.
+     * @param sizeZ The number of optical sections.
+     * @param sizeC The number of channels.
+     * @param sizeT The number of timepoints.
+     * @param planes The statistics of every plane, in the order of
+     * {@link #index(int, int, int, int, int)}; <code>null</code> for planes
+     * which could not be read.
+     * @throws IOException If the file could not be written.
+     */
+    public static void write(File file, int sizeX, int sizeY, int sizeZ,
+            int sizeC, int sizeT, PlaneStatistics[] planes)
+            throws IOException {
+        if (planes.length != sizeZ * sizeC * sizeT) {
+            throw new IllegalArgumentException("Expected "
+                    + sizeZ * sizeC * sizeT + " planes: " + planes.length);
+        }
+        final File tmp = new File(file.getParentFile(),
+                "." + file.getName() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sizeX);
+            out.writeInt(sizeY);
+            out.writeInt(sizeZ);
+            out.writeInt(sizeC);
+            out.writeInt(sizeT);
+            out.writeInt(PlaneStatistics.BIN_COUNT);
+            out.writeInt(PlaneStatistics.PERCENTILES.length);
+            for (PlaneStatistics plane : planes) {
+                if (plane == null) {
+                    out.write(new byte[RECORD_SIZE]);
+                    continue;
+                }
+                out.writeByte(1);
+                out.writeDouble(plane.getMin());
+                out.writeDouble(plane.getMax());
+                out.writeDouble(plane.getMean());
+                for (double value : plane.getPercentiles()) {
+                    out.writeDouble(value);
+                }
+                for (int count : plane.getHistogram()) {
+                    out.writeInt(count);
+                }
+            }
+        } catch (IOException e) {
+            out.close();
+            tmp.delete();
+            throw e;
+        }
+        out.close();
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Could not rename " + tmp + " to "
+                        + file);
+            }
+        }
+    }
+
+    /**
+     * Returns the position of a plane in the file.
+     * @param z The optical section.
+     * @param c The channel.
+     * @param t The timepoint.
+     * @param sizeZ The number of optical sections.
+     * @param sizeC The number of channels.
+     * @return See above.
+     */
+    public static int index(int z, int c, int t, int sizeZ, int sizeC) {
+        return (t * sizeC + c) * sizeZ + z;
+    }
+
+    /**
+     * Reads the statistics of a plane.
+     * @param z The optical section.
+     * @param c The channel.
+     * @param t The timepoint.
+     * @return See above or <code>null</code> if the plane is out of bounds
+     * or was not read.
+     * @throws IOException If the file could not be read.
+     */
+    public PlaneStatistics get(int z, int c, int t) throws IOException {
+        if (z < 0 || z >= sizeZ || c < 0 || c >= sizeC || t < 0
+                || t >= sizeT) {
+            return null;
+        }
+        final byte[] record = new byte[RECORD_SIZE];
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(HEADER_SIZE
+                    + (long) index(z, c, t, sizeZ, sizeC) * RECORD_SIZE);
+            raf.readFully(record);
+        } finally {
+            raf.close();
+        }
+        final ByteBuffer buf = ByteBuffer.wrap(record);
+        if (buf.get() == 0) {
+            return null;
+        }
+        final double min = buf.getDouble();
+        final double max = buf.getDouble();
+        final double mean = buf.getDouble();
+        final double[] percentiles =
+                new double[PlaneStatistics.PERCENTILES.length];
+        for (int p = 0; p < percentiles.length; p++) {
+            percentiles[p] = buf.getDouble();
+        }
+        final int[] histogram = new int[PlaneStatistics.BIN_COUNT];
+        for (int b = 0; b < histogram.length; b++) {
+            histogram[b] = buf.getInt();
+        }
+        return new PlaneStatistics(min, max, mean, percentiles, histogram);
+    }
+
+    /**
+     * Returns the width of the planes the statistics were computed from.
+     * @return See above.
+     */
+    public int getSizeX() {
+        return sizeX;
+    }
+
+    /**
+     * Returns the height of the planes the statistics were computed from.
+     * @return See above.
+     */
+    public int getSizeY() {
+        return sizeY;
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ome.system.metrics.Counter;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide, size-bounded cache of decoded pyramid tiles shared by all the
+ * {@link ome.io.bioformats.BfPyramidPixelBuffer} instances created by the
+ * {@link PixelsService}. Decoding a JPEG-2000 tile is expensive and many
+ * users commonly browse the same region of the same image at the same
+ * resolution level.
+ * <p>
+ * Tiles are stored on the heap and evicted in least recently used order once
+ * {@link #getMaxBytes()} is exceeded. Hits, misses and evictions are reported
+ * through the {@link Metrics} given on construction.
+ * </p>
+ * <p>
+ * Tiles are keyed on the {@link FileVersion} of the pyramid file they were
+ * read from, so that the tiles of a pyramid which has been regenerated, for
+ * instance by another process, are never served. The stale tiles are left
+ * to be evicted unless they are dropped via {@link #invalidate(long)}, which
+ * should be called when a pyramid is deleted or regenerated.
+ * </p>
+ *
+ * @since 5.3
+ */
+public class PyramidTileCache {
+
+    private final static Logger log =
+            LoggerFactory.getLogger(PyramidTileCache.class);
+
+    /**
+     * Identifies the contents of a pyramid file by its length and the time
+     * it was last modified.
+     */
+    public static final class FileVersion {
+
+        private final long length;
+
+        private final long lastModified;
+
+        private FileVersion(long length, long lastModified) {
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Returns the current version of a file.
+         * @param file The file.
+         * @return See above.
+         */
+        public static FileVersion of(File file) {
+            return new FileVersion(file.length(), file.lastModified());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof FileVersion)) {
+                return false;
+            }
+            FileVersion o = (FileVersion) obj;
+            return length == o.length && lastModified == o.lastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (length ^ (length >>> 32)
+                    ^ lastModified ^ (lastModified >>> 32));
+        }
+
+        @Override
+        public String toString() {
+            return length + "@" + lastModified;
+        }
+    }
+
+    /**
+     * Key of a tile: the pixels set, the version of its pyramid file, the
+     * resolution level, the plane and the tile region.
+     */
+    private static final class TileKey {
+
+        final long pixelsId;
+
+        final FileVersion version;
+
+        final int level, z, c, t, x, y, w, h;
+
+        TileKey(long pixelsId, FileVersion version, int level, int z, int c,
+                int t, int x, int y, int w, int h) {
+            this.pixelsId = pixelsId;
+            this.version = version;
+            this.level = level;
+            this.z = z;
+            this.c = c;
+            this.t = t;
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof TileKey)) {
+                return false;
+            }
+            TileKey o = (TileKey) obj;
+            return pixelsId == o.pixelsId && version.equals(o.version)
+                    && level == o.level
+                    && z == o.z && c == o.c && t == o.t
+                    && x == o.x && y == o.y && w == o.w && h == o.h;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = (int) (pixelsId ^ (pixelsId >>> 32));
+            hash = 31 * hash + version.hashCode();
+            hash = 31 * hash + level;
+            hash = 31 * hash + z;
+            hash = 31 * hash + c;
+            hash = 31 * hash + t;
+            hash = 31 * hash + x;
+            hash = 31 * hash + y;
+            hash = 31 * hash + w;
+            hash = 31 * hash + h;
+            return hash;
+        }
+    }
+
+    /** Tiles in access order, the eldest first. */
+    private final LinkedHashMap<TileKey, byte[]> tiles =
+            new LinkedHashMap<TileKey, byte[]>(1024, 0.75f, true);
+
+    /** Maximum number of bytes of tile data held. */
+    private final long maxBytes;
+
+    /** Number of bytes of tile data currently held. */
+    private long bytes = 0;
+
+    private final Counter hits;
+
+    private final Counter misses;
+
+    private final Counter evictions;
+
+    /**
+     * Creates a cache without metrics.
+     * @param maxBytes Maximum number of bytes of tile data held.
+     */
+    public PyramidTileCache(long maxBytes) {
+        this(maxBytes, new NullMetrics());
+    }
+
+    /**
+     * Creates a cache.
+     * @param maxBytes Maximum number of bytes of tile data held. If not
+     * positive, nothing is ever cached.
+     * @param metrics Metrics used to report hits, misses and evictions.
+     */
+    public PyramidTileCache(long maxBytes, Metrics metrics) {
+        this.maxBytes = maxBytes;
+        this.hits = metrics.counter(this, "hits");
+        this.misses = metrics.counter(this, "misses");
+        this.evictions = metrics.counter(this, "evictions");
+        log.info("Pyramid tile cache of {} bytes", maxBytes);
+    }
+
+    /**
+     * Returns the maximum number of bytes of tile data held.
+     * @return See above.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the number of bytes of tile data currently held.
+     * @return See above.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Copies a cached tile into <code>buffer</code>.
+     * @param version The version of the pyramid file read from.
+     * @param buffer The buffer to copy the tile into or <code>null</code>
+     * to allocate a new one. Must be at least the tile size.
+     * @return The buffer the tile was copied into or <code>null</code> if
+     * the tile was not cached, in which case <code>buffer</code> is left
+     * untouched.
+     */
+    public byte[] get(long pixelsId, FileVersion version, int level, int z,
+            int c, int t, int x, int y, int w, int h, byte[] buffer) {
+        byte[] tile;
+        synchronized (this) {
+            tile = tiles.get(new TileKey(pixelsId, version, level, z, c, t,
+                    x, y, w, h));
+        }
+        if (tile == null) {
+            misses.inc();
+            return null;
+        }
+        if (buffer == null) {
+            buffer = new byte[tile.length];
+        }
+        // Tiles are never modified once cached.
+        System.arraycopy(tile, 0, buffer, 0, tile.length);
+        hits.inc();
+        return buffer;
+    }
+
+    /**
+     * Caches a copy of a decoded tile, evicting the least recently used ones
+     * if required.
+     * @param version The version of the pyramid file read from.
+     * @param tile The decoded tile data.
+     * @param length The number of bytes of <code>tile</code> to cache.
+     */
+    public void put(long pixelsId, FileVersion version, int level, int z,
+            int c, int t, int x, int y, int w, int h, byte[] tile,
+            int length) {
+        if (length > maxBytes) {
+            return;
+        }
+        byte[] copy = new byte[length];
+        System.arraycopy(tile, 0, copy, 0, length);
+        TileKey key = new TileKey(pixelsId, version, level, z, c, t,
+                x, y, w, h);
+        synchronized (this) {
+            byte[] old = tiles.put(key, copy);
+            if (old != null) {
+                bytes -= old.length;
+            }
+            bytes += length;
+            Iterator<byte[]> it = tiles.values().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                bytes -= it.next().length;
+                it.remove();
+                evictions.inc();
+            }
+        }
+    }
+
+    /**
+     * Removes all the cached tiles of a pixels set, whatever the version of
+     * its pyramid file they were read from.
+     * @param pixelsId The id of the pixels set.
+     */
+    public synchronized void invalidate(long pixelsId) {
+        Iterator<Map.Entry<TileKey, byte[]>> it =
+                tiles.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<TileKey, byte[]> entry = it.next();
+            if (entry.getKey().pixelsId == pixelsId) {
+                bytes -= entry.getValue().length;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all the cached tiles.
+     */
+    public synchronized void clear() {
+        tiles.clear();
+        bytes = 0;
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ome.io.bioformats.BfPyramidPixelBuffer;
+import ome.system.metrics.Timer;
+import ome.util.PixelData;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copies every tile of a source pixel buffer into a pyramid. Tiles are read
+ * concurrently, one source handle per reading thread, while the calling
+ * thread writes and compresses them into the pyramid in the order of
+ * {@link Utils#forEachTile(TileLoopIteration, int, int, int, int, int, int, int)}
+ * as required by the sequential TIFF writer. At most two tiles per reading
+ * thread are held in memory ahead of the writer. The writing thread may also
+ * fan each tile out to the channel min/max and to a SHA-1 digest so that the
+ * one pass over the source data yields all three.
+ *
+ * @since 5.3
+ */
+class PyramidTilePipeline {
+
+    private final static Logger log =
+            LoggerFactory.getLogger(PyramidTilePipeline.class);
+
+    /** Source handles, all opened on the same pixels set. */
+    private final List<PixelBuffer> sources;
+
+    /** Pyramid the tiles are written to. */
+    private final BfPyramidPixelBuffer destination;
+
+    private final int tileWidth;
+
+    private final int tileHeight;
+
+    private final int sizeX, sizeY, sizeZ, sizeC, sizeT;
+
+    /** Times the write of every tile, may be <code>null</code>. */
+    private final Timer tileTimes;
+
+    /** Per channel minimum and maximum, if requested. */
+    private double[][] minMax;
+
+    /** Digest of the tiles in order, if requested. */
+    private MessageDigest digest;
+
+    /**
+     * Creates a new pipeline.
+     * @param sources Independent handles on the source pixels set. One
+     * reading thread is used per handle.
+     * @param destination The pyramid to write to.
+     * @param tileWidth Maximum width of the tiles.
+     * @param tileHeight Maximum height of the tiles.
+     * @param tileTimes Timer of the tile writes, may be <code>null</code>.
+     */
+    PyramidTilePipeline(List<PixelBuffer> sources,
+            BfPyramidPixelBuffer destination, int tileWidth, int tileHeight,
+            Timer tileTimes) {
+        this.sources = sources;
+        this.destination = destination;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.tileTimes = tileTimes;
+        // Cached as the handles are in use by the reading threads.
+        PixelBuffer source = sources.get(0);
+        this.sizeX = source.getSizeX();
+        this.sizeY = source.getSizeY();
+        this.sizeZ = source.getSizeZ();
+        this.sizeC = source.getSizeC();
+        this.sizeT = source.getSizeT();
+    }
+
+    /**
+     * Keeps track of the minimum and maximum of every channel while reading
+     * the tiles. Required when several source handles are used since a
+     * Bio-Formats <code>MinMaxCalculator</code> only sees its share of the
+     * tiles.
+     */
+    void computeMinMax() {
+        minMax = new double[sizeC][];
+        for (int c = 0; c < sizeC; c++) {
+            minMax[c] = new double[] {
+                    Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+        }
+    }
+
+    /**
+     * Returns the minimum and maximum of every channel, indexed by channel
+     * then <code>0</code> for the minimum and <code>1</code> for the maximum.
+     * @return See above or <code>null</code> if {@link #computeMinMax()} has
+     * not been called.
+     */
+    double[][] getMinMax() {
+        return minMax;
+    }
+
+    /**
+     * Computes the SHA-1 digest of the tiles, in the order they are written,
+     * while copying them.
+     */
+    void computeDigest() {
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(
+                    "Required SHA-1 message digest algorithm unavailable.");
+        }
+    }
+
+    /**
+     * Returns the SHA-1 digest of the tiles copied.
+     * @return See above or <code>null</code> if {@link #computeDigest()} has
+     * not been called.
+     */
+    byte[] getDigest() {
+        return digest == null ? null : digest.digest();
+    }
+
+    /**
+     * Copies all the tiles, stopping at the first error.
+     * @param pixelsId The id of the pixels set, for logging.
+     * @throws IOException If a tile cannot be read or written.
+     */
+    void run(final long pixelsId) throws IOException {
+        final int totalTiles = getTileCount();
+        final int tenPercent = Math.max(totalTiles / 10, 1);
+
+        final BlockingQueue<PixelBuffer> handles =
+                new ArrayBlockingQueue<PixelBuffer>(sources.size(), false,
+                        sources);
+        ExecutorService readers = Executors.newFixedThreadPool(sources.size());
+        Deque<Future<PixelData>> pending = new ArrayDeque<Future<PixelData>>();
+        int window = 2 * sources.size();
+        int submitted = 0;
+        try {
+            for (int tileCount = 0; tileCount < totalTiles; tileCount++) {
+                while (submitted < totalTiles
+                        && submitted - tileCount < window) {
+                    pending.add(readers.submit(
+                            new TileRead(handles, getTile(submitted))));
+                    submitted++;
+                }
+                if (log.isInfoEnabled() && tileCount % tenPercent == 0) {
+                    log.info(String.format(
+                            "Pyramid creation for Pixels:%d %d/%d (%d%%).",
+                            pixelsId, tileCount + 1, totalTiles,
+                            (int) ((double) tileCount / totalTiles * 100)));
+                }
+                int[] tile = getTile(tileCount);
+                PixelData data = await(pending.poll());
+                Timer.Context ctx =
+                        tileTimes == null ? null : tileTimes.time();
+                try {
+                    if (minMax != null) {
+                        updateMinMax(data, minMax[tile[1]]);
+                    }
+                    if (digest != null) {
+                        digest.update(data.getData().array());
+                    }
+                    destination.setTile(data.getData().array(),
+                            tile[0], tile[1], tile[2],
+                            tile[3], tile[4], tile[5], tile[6]);
+                } finally {
+                    data.dispose();
+                    if (ctx != null) {
+                        ctx.stop();
+                    }
+                }
+            }
+        } finally {
+            for (Future<PixelData> future : pending) {
+                future.cancel(true);
+            }
+            readers.shutdownNow();
+        }
+    }
+
+    private int getTilesPerRow() {
+        return (sizeX + tileWidth - 1) / tileWidth;
+    }
+
+    private int getTilesPerColumn() {
+        return (sizeY + tileHeight - 1) / tileHeight;
+    }
+
+    private int getTileCount() {
+        return sizeZ * sizeC * sizeT * getTilesPerRow() * getTilesPerColumn();
+    }
+
+    /**
+     * Returns the <code>z, c, t, x, y, w, h</code> of a tile, numbered in the
+     * same order as {@link Utils#forEachTile}.
+     */
+    private int[] getTile(int tileCount) {
+        int tilesPerRow = getTilesPerRow();
+        int tilesPerPlane = tilesPerRow * getTilesPerColumn();
+        int plane = tileCount / tilesPerPlane;
+        int tileInPlane = tileCount % tilesPerPlane;
+        int z = plane % sizeZ;
+        int c = (plane / sizeZ) % sizeC;
+        int t = plane / (sizeZ * sizeC);
+        int x = (tileInPlane % tilesPerRow) * tileWidth;
+        int y = (tileInPlane / tilesPerRow) * tileHeight;
+        int w = Math.min(tileWidth, sizeX - x);
+        int h = Math.min(tileHeight, sizeY - y);
+        return new int[] { z, c, t, x, y, w, h };
+    }
+
+    /**
+     * Waits for a tile to be read, rethrowing its failure.
+     */
+    private PixelData await(Future<PixelData> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted reading tile", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Error reading tile", cause);
+        }
+    }
+
+    private static void updateMinMax(PixelData data, double[] minMax) {
+        double min = minMax[0];
+        double max = minMax[1];
+        int size = data.size();
+        for (int i = 0; i < size; i++) {
+            double value = data.getPixelValue(i);
+            if (value < min) {
+                min = value;
+            }
+            if (value > max) {
+                max = value;
+            }
+        }
+        minMax[0] = min;
+        minMax[1] = max;
+    }
+
+    /**
+     * Reads a tile through any idle source handle.
+     */
+    private static class TileRead implements Callable<PixelData> {
+
+        private final BlockingQueue<PixelBuffer> handles;
+
+        private final int[] tile;
+
+        TileRead(BlockingQueue<PixelBuffer> handles, int[] tile) {
+            this.handles = handles;
+            this.tile = tile;
+        }
+
+        public PixelData call() throws Exception {
+            // There are as many handles as reading threads.
+            PixelBuffer handle = handles.take();
+            try {
+                return handle.getTile(tile[0], tile[1], tile[2],
+                        tile[3], tile[4], tile[5], tile[6]);
+            } finally {
+                handles.add(handle);
+            }
+        }
+    }
+}
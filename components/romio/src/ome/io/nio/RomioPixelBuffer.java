@@ -17,8 +17,6 @@ import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -80,6 +78,12 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
      */
     private final boolean permitModification;
 
+    /**
+     * Shared windows planes are read through in read-only mode, may be
+     * <code>null</code>.
+     */
+    private MappedPixelsWindows windows;
+
     /**
      * Creates a new instance. {@link #permitModification} defaults to false.
      * 
@@ -106,6 +110,16 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
         this.permitModification = permitModification;
     }
 
+    /**
+     * Sets the shared memory mapped windows planes, rows and tiles are read
+     * through. Ignored if modifications are permitted.
+     * @param windows The windows or <code>null</code> to map every region
+     * read on its own.
+     */
+    public void setMappedWindows(MappedPixelsWindows windows) {
+        this.windows = windows;
+    }
+
     private void throwIfReadOnly() {
         if (!permitModification) {
             throw new ApiUsageException("Write-method not permitted.");
@@ -335,6 +349,10 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
 	 */
     public PixelData getRegion(Integer size, Long offset)
             throws IOException {
+        PixelData view = getWindowView(size, offset);
+        if (view != null) {
+            return view;
+        }
         FileChannel fileChannel = getFileChannel();
 
         /*
@@ -346,6 +364,41 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
         return new PixelData(pixels.getPixelsType().getValue(), b);
     }
     
+    /**
+     * Returns a view of a region through the plane window holding it, which
+     * is released when the returned pixel data is disposed.
+     * @return See above or <code>null</code> if there are no windows or the
+     * region spans several planes or is not fully written yet.
+     */
+    private PixelData getWindowView(Integer size, Long offset)
+            throws IOException {
+        if (windows == null || permitModification) {
+            return null;
+        }
+        long planeSize = getPlaneSize();
+        long windowOffset = offset - offset % planeSize;
+        if (offset + size > windowOffset + planeSize) {
+            return null;
+        }
+        final MappedPixelsWindows.View view = windows.getWindow(
+                getPath(), windowOffset, safeLongToInteger(planeSize));
+        if (view == null) {
+            return null;
+        }
+        ByteBuffer window = view.getBuffer();
+        int start = (int) (offset - windowOffset);
+        window.limit(start + size);
+        window.position(start);
+        return new PixelData(pixels.getPixelsType().getValue(),
+                window.slice()) {
+            @Override
+            public void dispose() {
+                super.dispose();
+                view.release();
+            }
+        };
+    }
+
     /**
      * Implemented as specified by {@link PixelBuffer} I/F.
      * @see PixelBuffer#getRegionDirect(Integer, Long, byte[])
@@ -522,15 +575,17 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
     	int offset;
     	
     	if (stride == 0) {
-    		size =  width*height*getByteWidth();
-            buf = ByteBuffer.wrap(new byte[size]);
-            region = new PixelData(pixels.getPixelsType().getValue(), buf);
-            for (int i = 0; i < height; i++) {
-            	for (int j = 0; j < width; j++) {
-            		offset = (i+y)*getSizeX()+x+j;
-            		region.setPixelValue(i*width+j, plane.getPixelValue(offset));
-            	}
-            }
+    		int byteWidth = getByteWidth();
+    		int rowSize = width*byteWidth;
+    		byte[] bytes = new byte[width*height*byteWidth];
+    		// Rows of the region are contiguous in the plane, copy in bulk.
+    		ByteBuffer src = plane.getData().duplicate();
+    		for (int i = 0; i < height; i++) {
+    			src.position(((i+y)*getSizeX()+x)*byteWidth);
+    			src.get(bytes, i*rowSize, rowSize);
+    		}
+            region = new PixelData(pixels.getPixelsType().getValue(),
+                    ByteBuffer.wrap(bytes));
             plane.dispose();
             return region;
     	}
@@ -759,31 +814,7 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
      * @see PixelBuffer#calculateMessageDigest()
 	 */
     public byte[] calculateMessageDigest() throws IOException {
-        MessageDigest md;
-
-        try {
-            md = MessageDigest.getInstance("SHA-1");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(
-                    "Required SHA-1 message digest algorithm unavailable.");
-        }
-
-        for (int t = 0; t < getSizeT(); t++) {
-            for (int c = 0; c < getSizeC(); c++) {
-                for (int z = 0; z < getSizeZ(); z++) {
-                    try {
-                        final PixelData pd = getPlane(z, c, t);
-                        md.update(pd.getData());
-                        pd.dispose();
-                    } catch (DimensionsOutOfBoundsException e) {
-                        // This better not happen. :)
-                        throw new RuntimeException(e);
-                    }
-                }
-            }
-        }
-
-        return md.digest();
+        return new PixelsDigester().digest(this);
     }
 
     /**
@@ -989,21 +1020,24 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
         int xStripes = (size.get(0) + step.get(0) - 1) / step.get(0);
         int pixelSize = getByteWidth();
         int tileRowSize = pixelSize * xStripes;
-        byte[] plane = new byte[safeLongToInteger(getPlaneSize())];
         for(int t = offset.get(4); t < size.get(4)+offset.get(4); t += step.get(4))
         {
             for(int c = offset.get(3); c < size.get(3)+offset.get(3); c += step.get(3))
             {
                 for(int z = offset.get(2); z < size.get(2)+offset.get(2); z += step.get(2))
                 {
-                    getPlaneDirect(z,c,t,plane);
+                    // Read from the plane buffer itself, which may be a
+                    // view of a mapped window, rather than from a copy.
+                    PixelData pd = getPlane(z,c,t);
+                    ByteBuffer plane = pd.getData().duplicate();
                     int rowOffset = offset.get(1)*getRowSize();
                     if(step.get(0)==1)
                     {
                         int byteOffset = rowOffset + offset.get(0)*pixelSize;
                         for(int y = offset.get(1); y < size.get(1)+offset.get(1); y += step.get(1))
                         {
-                            System.arraycopy(plane, byteOffset, cube, cubeOffset, tileRowSize);
+                            plane.position(byteOffset);
+                            plane.get(cube, cubeOffset, tileRowSize);
                             cubeOffset += tileRowSize;
                             byteOffset += getRowSize()*step.get(1);
                         }
@@ -1015,14 +1049,15 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
                             int byteOffset = offset.get(0)*pixelSize;
                             for(int x = offset.get(0); x < size.get(0)+offset.get(0); x += step.get(0))
                             {
-                                System.arraycopy(plane, rowOffset+byteOffset, cube, cubeOffset, pixelSize);
+                                plane.position(rowOffset+byteOffset);
+                                plane.get(cube, cubeOffset, pixelSize);
                                 cubeOffset += pixelSize;
                                 byteOffset += step.get(0)*pixelSize;
                             }
                             rowOffset += getRowSize()*step.get(1);
                         }
                     }
-
+                    pd.dispose();
                 }
             }
         }
@@ -0,0 +1,216 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ome.model.display.Thumbnail;
+import ome.system.metrics.Counter;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide, size-bounded cache of the compressed thumbnails read and
+ * written by the {@link ThumbnailService}, so that the thumbnails of the
+ * grids commonly browsed are served without reading the repository.
+ * <p>
+ * A thumbnail is cached by the id, version and size of its metadata: a
+ * thumbnail regenerated by another server, whose metadata version was
+ * bumped, is never served stale. Thumbnails regenerated or removed through
+ * the {@link ThumbnailService} of this server are invalidated by it. The
+ * least recently used thumbnails are evicted first once
+ * {@link #getMaxBytes()} is exceeded.
+ * </p>
+ *
+ * @since 5.3
+ */
+public class ThumbnailCache {
+
+    private final static Logger log =
+            LoggerFactory.getLogger(ThumbnailCache.class);
+
+    /** Key of a thumbnail: the id, version and size of its metadata. */
+    private static final class ThumbnailKey {
+
+        final long id;
+
+        final Integer version;
+
+        final Integer sizeX, sizeY;
+
+        ThumbnailKey(Thumbnail thumbnail) {
+            this.id = thumbnail.getId();
+            this.version = thumbnail.getVersion();
+            this.sizeX = thumbnail.getSizeX();
+            this.sizeY = thumbnail.getSizeY();
+        }
+
+        private static boolean equal(Integer a, Integer b) {
+            return a == null ? b == null : a.equals(b);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ThumbnailKey)) {
+                return false;
+            }
+            ThumbnailKey o = (ThumbnailKey) obj;
+            return id == o.id && equal(version, o.version)
+                    && equal(sizeX, o.sizeX) && equal(sizeY, o.sizeY);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = (int) (id ^ (id >>> 32));
+            hash = 31 * hash + (version == null ? 0 : version);
+            hash = 31 * hash + (sizeX == null ? 0 : sizeX);
+            hash = 31 * hash + (sizeY == null ? 0 : sizeY);
+            return hash;
+        }
+    }
+
+    /** Thumbnails in access order, the eldest first. */
+    private final LinkedHashMap<ThumbnailKey, byte[]> thumbnails =
+            new LinkedHashMap<ThumbnailKey, byte[]>(1024, 0.75f, true);
+
+    /** Maximum number of bytes of thumbnails held. */
+    private final long maxBytes;
+
+    /** Number of bytes of thumbnails currently held. */
+    private long bytes = 0;
+
+    private final Counter hits;
+
+    private final Counter misses;
+
+    private final Counter evictions;
+
+    /**
+     * Creates a cache without metrics.
+     * @param maxBytes Maximum number of bytes of thumbnails held.
+     */
+    public ThumbnailCache(long maxBytes) {
+        this(maxBytes, new NullMetrics());
+    }
+
+    /**
+     * Creates a cache.
+     * @param maxBytes Maximum number of bytes of thumbnails held. If not
+     * positive, nothing is ever cached.
+     * @param metrics Metrics used to report hits, misses and evictions.
+     */
+    public ThumbnailCache(long maxBytes, Metrics metrics) {
+        this.maxBytes = maxBytes;
+        this.hits = metrics.counter(this, "hits");
+        this.misses = metrics.counter(this, "misses");
+        this.evictions = metrics.counter(this, "evictions");
+        log.info("Thumbnail cache of {} bytes", maxBytes);
+    }
+
+    /**
+     * Returns the maximum number of bytes of thumbnails held.
+     * @return See above.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the number of bytes of thumbnails currently held.
+     * @return See above.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns whether a thumbnail is cached, without counting a hit or miss.
+     * @param thumbnail The thumbnail metadata.
+     * @return See above.
+     */
+    public synchronized boolean contains(Thumbnail thumbnail) {
+        return thumbnail.getId() != null
+                && thumbnails.containsKey(new ThumbnailKey(thumbnail));
+    }
+
+    /**
+     * Returns a copy of a cached thumbnail.
+     * @param thumbnail The thumbnail metadata.
+     * @return See above or <code>null</code> if the thumbnail is not cached.
+     */
+    public byte[] get(Thumbnail thumbnail) {
+        if (thumbnail.getId() == null) {
+            return null;
+        }
+        byte[] cached;
+        synchronized (this) {
+            cached = thumbnails.get(new ThumbnailKey(thumbnail));
+        }
+        if (cached == null) {
+            misses.inc();
+            return null;
+        }
+        hits.inc();
+        // Cached arrays are never handed out, callers may modify theirs.
+        return cached.clone();
+    }
+
+    /**
+     * Caches a copy of a thumbnail, evicting the least recently used ones if
+     * required.
+     * @param thumbnail The thumbnail metadata.
+     * @param buf The compressed thumbnail.
+     */
+    public void put(Thumbnail thumbnail, byte[] buf) {
+        if (thumbnail.getId() == null || buf.length > maxBytes) {
+            return;
+        }
+        ThumbnailKey key = new ThumbnailKey(thumbnail);
+        byte[] copy = buf.clone();
+        synchronized (this) {
+            byte[] old = thumbnails.put(key, copy);
+            if (old != null) {
+                bytes -= old.length;
+            }
+            bytes += copy.length;
+            Iterator<byte[]> it = thumbnails.values().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                bytes -= it.next().length;
+                it.remove();
+                evictions.inc();
+            }
+        }
+    }
+
+    /**
+     * Removes all the cached versions of a thumbnail.
+     * @param thumbnailId The id of the thumbnail metadata.
+     */
+    public synchronized void invalidate(long thumbnailId) {
+        Iterator<Map.Entry<ThumbnailKey, byte[]>> it =
+                thumbnails.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<ThumbnailKey, byte[]> entry = it.next();
+            if (entry.getKey().id == thumbnailId) {
+                bytes -= entry.getValue().length;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all the cached thumbnails.
+     */
+    public synchronized void clear() {
+        thumbnails.clear();
+        bytes = 0;
+    }
+}
@@ -29,6 +29,9 @@ public class ThumbnailService extends AbstractFileSystemService {
     private transient static Logger log = LoggerFactory
             .getLogger(ThumbnailService.class);
 
+    /** In-memory cache of the thumbnails, may be <code>null</code>. */
+    private ThumbnailCache cache;
+
     /**
      * Constructor
      * @param path
@@ -37,6 +40,15 @@ public class ThumbnailService extends AbstractFileSystemService {
         super(path);
     }
 
+    /**
+     * Sets the in-memory cache the thumbnails read and created are kept in.
+     * @param cache The cache or <code>null</code> to always read the
+     * thumbnails from disk.
+     */
+    public void setCache(ThumbnailCache cache) {
+        this.cache = cache;
+    }
+
     /**
      * Creates thumbnail on disk using byte array
      *
@@ -49,9 +61,15 @@ public class ThumbnailService extends AbstractFileSystemService {
         String path = getThumbnailPath(thumbnail.getId());
         createSubpath(path);
 
+        if (cache != null) {
+            cache.invalidate(thumbnail.getId());
+        }
         FileOutputStream stream = new FileOutputStream(path);
         stream.write(buf);
         stream.close();
+        if (cache != null) {
+            cache.put(thumbnail, buf);
+        }
     }
 
     /**
@@ -72,8 +90,18 @@ public class ThumbnailService extends AbstractFileSystemService {
      * @throws IOException
      */
     public byte[] getThumbnail(Thumbnail thumbnail) throws IOException {
+        if (cache != null) {
+            byte[] cached = cache.get(thumbnail);
+            if (cached != null) {
+                return cached;
+            }
+        }
         byte[] buf = new byte[(int) getThumbnailLength(thumbnail)];
-        return getThumbnail(thumbnail, buf);
+        getThumbnail(thumbnail, buf);
+        if (cache != null) {
+            cache.put(thumbnail, buf);
+        }
+        return buf;
     }
 
     /**
@@ -107,6 +135,9 @@ public class ThumbnailService extends AbstractFileSystemService {
             throws IOException {
         String path = getThumbnailPath(thumbnail.getId());
         createSubpath(path);
+        if (cache != null) {
+            cache.invalidate(thumbnail.getId());
+        }
         return new FileOutputStream(path);
     }
 
@@ -118,6 +149,9 @@ public class ThumbnailService extends AbstractFileSystemService {
      */
     public boolean getThumbnailExists(Thumbnail thumbnail)
             throws IOException {
+        if (cache != null && cache.contains(thumbnail)) {
+            return true;
+        }
         String path = getThumbnailPath(thumbnail.getId());
         return new File(path).exists();
     }
@@ -136,6 +170,10 @@ public class ThumbnailService extends AbstractFileSystemService {
 
         for (Long id : thumbnailIds)
         {
+            if (cache != null)
+            {
+                cache.invalidate(id);
+            }
             String thumbnailPath = getThumbnailPath(id);
             file = new File(thumbnailPath);
             if (file.exists())
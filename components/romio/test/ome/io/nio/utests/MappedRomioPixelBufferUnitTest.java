@@ -0,0 +1,157 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import ome.io.nio.MappedPixelsWindows;
+import ome.io.nio.RomioPixelBuffer;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.util.PixelData;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that reads through {@link MappedPixelsWindows} return the same data
+ * as reads mapping every region on its own.
+ * @since 5.3
+ */
+public class MappedRomioPixelBufferUnitTest {
+
+    private static final int SIZE_X = 301;
+
+    private static final int SIZE_Y = 203;
+
+    private static final int SIZE_Z = 3;
+
+    private static final int PLANE_SIZE = SIZE_X * SIZE_Y * 2;
+
+    private String root;
+
+    private String path;
+
+    private Pixels pixels;
+
+    private RomioPixelBuffer reference;
+
+    private RomioPixelBuffer mapped;
+
+    private MappedPixelsWindows windows;
+
+    @BeforeClass
+    public void setup() throws IOException {
+        root = PathUtil.getInstance().getTemporaryDataFilePath();
+        path = new File(root, "1").getAbsolutePath();
+        new File(root).mkdirs();
+        PixelsType type = new PixelsType();
+        type.setValue("uint16");
+        pixels = new Pixels();
+        pixels.setId(1L);
+        pixels.setSizeX(SIZE_X);
+        pixels.setSizeY(SIZE_Y);
+        pixels.setSizeZ(SIZE_Z);
+        pixels.setSizeC(1);
+        pixels.setSizeT(1);
+        pixels.setPixelsType(type);
+        RomioPixelBuffer writer = new RomioPixelBuffer(path, pixels, true);
+        try {
+            for (int z = 0; z < SIZE_Z; z++) {
+                byte[] plane = new byte[PLANE_SIZE];
+                for (int i = 0; i < plane.length; i++) {
+                    plane[i] = (byte) (i * 13 + z);
+                }
+                writer.setPlane(plane, z, 0, 0);
+            }
+        } finally {
+            writer.close();
+        }
+        reference = new RomioPixelBuffer(path, pixels);
+        mapped = new RomioPixelBuffer(path, pixels);
+        // Room for two planes only, to exercise the eviction.
+        windows = new MappedPixelsWindows(2 * PLANE_SIZE);
+        mapped.setMappedWindows(windows);
+    }
+
+    @AfterClass
+    public void tearDown() throws IOException {
+        reference.close();
+        mapped.close();
+        FileUtils.deleteDirectory(new File(root));
+    }
+
+    private byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testPlanes() throws IOException {
+        for (int z = 0; z < SIZE_Z; z++) {
+            Assert.assertEquals(bytes(mapped.getPlane(z, 0, 0).getData()),
+                    bytes(reference.getPlane(z, 0, 0).getData()));
+        }
+        Assert.assertEquals(windows.getBytes(), 2 * PLANE_SIZE);
+    }
+
+    @Test
+    public void testRows() throws IOException {
+        for (int z = 0; z < SIZE_Z; z++) {
+            for (int y = 0; y < SIZE_Y; y += 50) {
+                Assert.assertEquals(
+                        bytes(mapped.getRow(y, z, 0, 0).getData()),
+                        bytes(reference.getRow(y, z, 0, 0).getData()));
+            }
+        }
+    }
+
+    @Test
+    public void testTiles() throws IOException {
+        for (int z = 0; z < SIZE_Z; z++) {
+            Assert.assertEquals(
+                    bytes(mapped.getTile(z, 0, 0, 17, 9, 100, 64).getData()),
+                    bytes(reference.getTile(z, 0, 0, 17, 9, 100, 64).getData()));
+            byte[] expected = new byte[100 * 64 * 2];
+            byte[] actual = new byte[100 * 64 * 2];
+            reference.getTileDirect(z, 0, 0, 201, 139, 100, 64, expected);
+            mapped.getTileDirect(z, 0, 0, 201, 139, 100, 64, actual);
+            Assert.assertEquals(actual, expected);
+        }
+    }
+
+    @Test
+    public void testStackSpansWindows() throws IOException {
+        Assert.assertEquals(bytes(mapped.getStack(0, 0).getData()),
+                bytes(reference.getStack(0, 0).getData()));
+    }
+
+    @Test(dependsOnMethods = { "testPlanes", "testRows", "testTiles",
+            "testStackSpansWindows" })
+    public void testInvalidate() {
+        windows.invalidate(path);
+        Assert.assertEquals(windows.getBytes(), 0);
+    }
+
+    @Test(dependsOnMethods = { "testInvalidate" })
+    public void testInvalidateWhileInUse() throws IOException {
+        PixelData plane = mapped.getPlane(1, 0, 0);
+        try {
+            windows.invalidate(path);
+            Assert.assertEquals(windows.getBytes(), 0);
+            // Not unmapped until disposed.
+            Assert.assertEquals(bytes(plane.getData()),
+                    bytes(reference.getPlane(1, 0, 0).getData()));
+        } finally {
+            plane.dispose();
+        }
+    }
+}
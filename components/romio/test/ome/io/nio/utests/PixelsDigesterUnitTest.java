@@ -0,0 +1,103 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import java.io.File;
+import java.io.IOException;
+
+import ome.io.nio.PixelsDigester;
+import ome.io.nio.RomioPixelBuffer;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.util.checksum.ChecksumProvider;
+import ome.util.checksum.ChecksumProviderFactory;
+import ome.util.checksum.ChecksumProviderFactoryImpl;
+import ome.util.checksum.ChecksumType;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that the chunked checksums of {@link PixelsDigester} match the ones
+ * calculated over the planes in XYZCT order.
+ * @since 5.3
+ */
+public class PixelsDigesterUnitTest {
+
+    private final ChecksumProviderFactory cpf =
+            new ChecksumProviderFactoryImpl();
+
+    private String root;
+
+    private RomioPixelBuffer pixelBuffer;
+
+    @BeforeClass
+    public void setup() throws IOException {
+        root = PathUtil.getInstance().getTemporaryDataFilePath();
+        new File(root).mkdirs();
+        PixelsType type = new PixelsType();
+        type.setValue("uint8");
+        Pixels pixels = new Pixels();
+        pixels.setId(1L);
+        pixels.setSizeX(97);
+        pixels.setSizeY(89);
+        pixels.setSizeZ(3);
+        pixels.setSizeC(2);
+        pixels.setSizeT(2);
+        pixels.setPixelsType(type);
+        String path = new File(root, "1").getAbsolutePath();
+        pixelBuffer = new RomioPixelBuffer(path, pixels, true);
+        for (int t = 0; t < 2; t++) {
+            for (int c = 0; c < 2; c++) {
+                for (int z = 0; z < 3; z++) {
+                    byte[] plane = new byte[97 * 89];
+                    for (int i = 0; i < plane.length; i++) {
+                        plane[i] = (byte) (i * 7 + z * 3 + c * 5 + t);
+                    }
+                    pixelBuffer.setPlane(plane, z, c, t);
+                }
+            }
+        }
+    }
+
+    @AfterClass
+    public void tearDown() throws IOException {
+        pixelBuffer.close();
+        FileUtils.deleteDirectory(new File(root));
+    }
+
+    private byte[] planarChecksum(ChecksumType type) throws IOException {
+        ChecksumProvider provider = cpf.getProvider(type);
+        byte[] plane = new byte[97 * 89];
+        for (int t = 0; t < 2; t++) {
+            for (int c = 0; c < 2; c++) {
+                for (int z = 0; z < 3; z++) {
+                    pixelBuffer.getPlaneDirect(z, c, t, plane);
+                    provider.putBytes(plane);
+                }
+            }
+        }
+        return provider.checksumAsBytes();
+    }
+
+    @Test
+    public void testSha1() throws IOException {
+        Assert.assertEquals(pixelBuffer.calculateMessageDigest(),
+                planarChecksum(ChecksumType.SHA1));
+    }
+
+    @Test
+    public void testChunksNotAlignedToPlanes() throws IOException {
+        for (ChecksumType type : new ChecksumType[] {
+                ChecksumType.MD5, ChecksumType.MURMUR128 }) {
+            PixelsDigester digester = new PixelsDigester(cpf, type, 1000);
+            Assert.assertEquals(digester.digest(pixelBuffer),
+                    planarChecksum(type));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import ome.io.nio.PlaneStatistics;
+import ome.io.nio.PlaneStatisticsFile;
+import ome.util.PixelData;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the computation of {@link PlaneStatistics} and their storage in a
+ * {@link PlaneStatisticsFile}.
+ * @since 5.3
+ */
+public class PlaneStatisticsUnitTest {
+
+    /** The values 0 to 199, shuffled. */
+    private PixelData plane() {
+        byte[] data = new byte[200];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ((i * 7) % 200);
+        }
+        return new PixelData("uint8", ByteBuffer.wrap(data));
+    }
+
+    @Test
+    public void testCompute() {
+        PlaneStatistics stats = PlaneStatistics.compute(plane());
+        Assert.assertEquals(stats.getMin(), 0.0);
+        Assert.assertEquals(stats.getMax(), 199.0);
+        Assert.assertEquals(stats.getMean(), 99.5);
+        Assert.assertEquals(stats.getPercentile(0.1), 0.0);
+        Assert.assertEquals(stats.getPercentile(1), 1.0);
+        Assert.assertEquals(stats.getPercentile(50), 99.0);
+        Assert.assertEquals(stats.getPercentile(99.9), 199.0);
+        int[] histogram = stats.getHistogram();
+        int total = 0;
+        for (int count : histogram) {
+            total += count;
+        }
+        Assert.assertEquals(total, 200);
+        Assert.assertEquals(histogram[0], 1);
+        Assert.assertEquals(histogram[255], 1);
+    }
+
+    @Test
+    public void testConstantPlane() {
+        PlaneStatistics stats = PlaneStatistics.compute(
+                new PixelData("uint8", ByteBuffer.wrap(new byte[] {
+                        5, 5, 5, 5 })));
+        Assert.assertEquals(stats.getMin(), 5.0);
+        Assert.assertEquals(stats.getMax(), 5.0);
+        Assert.assertEquals(stats.getPercentile(50), 5.0);
+        Assert.assertEquals(stats.getHistogram()[0], 4);
+    }
+
+    @Test
+    public void testFileRoundTrip() throws Exception {
+        File file = File.createTempFile("planes", "_stats");
+        try {
+            PlaneStatistics stats = PlaneStatistics.compute(plane());
+            // sizeZ = 2, sizeC = 1, sizeT = 2; z = 1, t = 0 not read
+            PlaneStatistics[] planes = new PlaneStatistics[4];
+            planes[PlaneStatisticsFile.index(0, 0, 0, 2, 1)] = stats;
+            planes[PlaneStatisticsFile.index(1, 0, 1, 2, 1)] = stats;
+            PlaneStatisticsFile.write(file, 20, 10, 2, 1, 2, planes);
+
+            PlaneStatisticsFile stored = PlaneStatisticsFile.open(file);
+            Assert.assertEquals(stored.getSizeX(), 20);
+            Assert.assertEquals(stored.getSizeY(), 10);
+            PlaneStatistics read = stored.get(1, 0, 1);
+            Assert.assertEquals(read.getMin(), stats.getMin());
+            Assert.assertEquals(read.getMax(), stats.getMax());
+            Assert.assertEquals(read.getMean(), stats.getMean());
+            Assert.assertEquals(read.getPercentiles(), stats.getPercentiles());
+            Assert.assertEquals(read.getHistogram(), stats.getHistogram());
+            Assert.assertNotNull(stored.get(0, 0, 0));
+            Assert.assertNull(stored.get(1, 0, 0));
+            Assert.assertNull(stored.get(0, 1, 0));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testTruncatedFileIgnored() throws Exception {
+        File file = File.createTempFile("planes", "_stats");
+        try {
+            PlaneStatisticsFile.write(file, 20, 10, 1, 1, 1,
+                    new PlaneStatistics[] { PlaneStatistics.compute(plane()) });
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(raf.length() - 1);
+            raf.close();
+            Assert.assertNull(PlaneStatisticsFile.open(file));
+            file.delete();
+            Assert.assertNull(PlaneStatisticsFile.open(file));
+        } finally {
+            file.delete();
+        }
+    }
+}
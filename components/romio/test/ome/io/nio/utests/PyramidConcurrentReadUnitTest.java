@@ -0,0 +1,104 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ome.io.bioformats.BfPyramidPixelBuffer;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that tiles read concurrently from a {@link BfPyramidPixelBuffer}
+ * through its pool of readers are identical to the ones read serially.
+ * @since 5.3
+ */
+public class PyramidConcurrentReadUnitTest
+    extends AbstractPyramidPixelBufferUnitTest {
+
+    private static final int THREADS = 8;
+
+    private List<String> hashDigests = new ArrayList<String>();
+
+    @BeforeClass
+    public void setup() throws IOException {
+        createService();
+        pixelBuffer = service._getPixelBuffer(pixels, true);
+        writeTiles(hashDigests);
+        pixelBuffer.close();
+        pixelBuffer = service._getPixelBuffer(pixels, false);
+        ((BfPyramidPixelBuffer) pixelBuffer).setMaxReaders(THREADS / 2);
+    }
+
+    @AfterClass
+    public void tearDown() throws IOException {
+        if (pixelBuffer != null) {
+            pixelBuffer.close();
+        }
+        deleteRoot();
+    }
+
+    private byte[] readTile(int z, int c, int t, int x, int y)
+            throws IOException {
+        int w = Math.min(tileWidth, pixelBuffer.getSizeX() - x);
+        int h = Math.min(tileHeight, pixelBuffer.getSizeY() - y);
+        byte[] buffer = new byte[w * h * bytesPerPixel];
+        return pixelBuffer.getTileDirect(z, c, t, x, y, w, h, buffer);
+    }
+
+    private void assertConcurrentReads() throws Exception {
+        final List<int[]> offsets = new ArrayList<int[]>();
+        for (int t = 0; t < sizeT; t++) {
+            for (int y = 0; y < pixelBuffer.getSizeY(); y += tileHeight) {
+                for (int x = 0; x < pixelBuffer.getSizeX(); x += tileWidth) {
+                    offsets.add(new int[] { 0, 1, t, x, y });
+                }
+            }
+        }
+        List<byte[]> expected = new ArrayList<byte[]>();
+        for (int[] o : offsets) {
+            expected.add(readTile(o[0], o[1], o[2], o[3], o[4]));
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+            for (final int[] o : offsets) {
+                futures.add(pool.submit(new Callable<byte[]>() {
+                    public byte[] call() throws Exception {
+                        return readTile(o[0], o[1], o[2], o[3], o[4]);
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                Assert.assertTrue(
+                        Arrays.equals(expected.get(i), futures.get(i).get()),
+                        "Tile mismatch: " + Arrays.toString(offsets.get(i)));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testConcurrentReads() throws Exception {
+        assertConcurrentReads();
+    }
+
+    @Test(dependsOnMethods={"testConcurrentReads"})
+    public void testConcurrentReadsLowerResolutionLevel() throws Exception {
+        pixelBuffer.setResolutionLevel(pixelBuffer.getResolutionLevels() - 2);
+        assertConcurrentReads();
+    }
+}
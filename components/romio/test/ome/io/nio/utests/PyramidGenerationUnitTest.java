@@ -0,0 +1,101 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+import ome.io.nio.PixelBuffer;
+import ome.io.nio.PixelsService;
+import ome.io.nio.RomioPixelBuffer;
+import ome.io.nio.TileLoopIteration;
+import ome.io.nio.Utils;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that a pyramid generated from a ROMIO pixels file with several
+ * concurrent source readers holds the same tiles as the source.
+ * @since 5.3
+ */
+public class PyramidGenerationUnitTest
+    extends AbstractPyramidPixelBufferUnitTest {
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        createService();
+        pixels.setSizeZ(1);
+        pixels.setSizeT(2);
+        String path = service.getPixelsPath(pixels.getId());
+        new File(path).getParentFile().mkdirs();
+        RomioPixelBuffer source = new RomioPixelBuffer(path, pixels, true);
+        try {
+            int planeSize = sizeX * sizeY;
+            for (int t = 0; t < pixels.getSizeT(); t++) {
+                for (int c = 0; c < sizeC; c++) {
+                    byte[] plane = new byte[planeSize * bytesPerPixel];
+                    ShortBuffer shorts = ByteBuffer.wrap(plane).asShortBuffer();
+                    for (int i = 0; i < planeSize; i++) {
+                        shorts.put(i, (short) (i * 31 + c * 7 + t));
+                    }
+                    source.setPlane(plane, 0, c, t);
+                }
+            }
+        } finally {
+            source.close();
+        }
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        if (pixelBuffer != null) {
+            pixelBuffer.close();
+        }
+        deleteRoot();
+    }
+
+    private void assertPyramid(int readers) throws IOException {
+        service.setPyramidReaders(readers);
+        service.makePyramid(pixels);
+        pixelBuffer = service._getPixelBuffer(pixels, false);
+        final PixelBuffer source = new RomioPixelBuffer(
+                service.getPixelsPath(pixels.getId()), pixels);
+        try {
+            Utils.forEachTile(new TileLoopIteration() {
+                public void run(int z, int c, int t, int x, int y, int w,
+                        int h, int tileCount) {
+                    try {
+                        byte[] expected = new byte[w * h * bytesPerPixel];
+                        byte[] actual = new byte[w * h * bytesPerPixel];
+                        source.getTileDirect(z, c, t, x, y, w, h, expected);
+                        pixelBuffer.getTileDirect(z, c, t, x, y, w, h, actual);
+                        Assert.assertTrue(Arrays.equals(expected, actual),
+                                "Tile mismatch: " + tileCount);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }, source, tileWidth, tileHeight);
+        } finally {
+            source.close();
+        }
+    }
+
+    @Test
+    public void testSingleReader() throws IOException {
+        assertPyramid(1);
+    }
+
+    @Test
+    public void testConcurrentReaders() throws IOException {
+        assertPyramid(PixelsService.DEFAULT_PYRAMID_READERS + 3);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import loci.formats.FormatException;
+import ome.io.bioformats.BfPyramidPixelBuffer;
+import ome.io.nio.PixelsService;
+import ome.model.core.Pixels;
+import ome.model.stats.StatsInfo;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that a pyramid generated from an original file with several
+ * concurrent source readers has the same channel statistics as one generated
+ * with a single reader, and that every tile is written exactly once.
+ * @since 5.3
+ */
+public class PyramidMinMaxUnitTest
+    extends AbstractPyramidPixelBufferUnitTest {
+
+    /** The tiles written to the pyramid, with the number of writes. */
+    private final Map<String, Integer> tilesWritten =
+            new HashMap<String, Integer>();
+
+    /** Number of pixels written to the pyramid. */
+    private long pixelsWritten;
+
+    private File originalFile;
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        createService();
+        pixels.setSizeZ(1);
+        pixels.setSizeT(2);
+        originalFile = new File(root, String.format(
+                "test&pixelType=uint16&sizeX=%d&sizeY=%d&sizeZ=1&sizeC=%d"
+                + "&sizeT=2.fake", sizeX, sizeY, sizeC));
+        originalFile.getParentFile().mkdirs();
+        originalFile.createNewFile();
+        new File(service.getPixelsPath(pixels.getId()))
+                .getParentFile().mkdirs();
+        service = new PixelsService(root) {
+            public boolean requiresPixelsPyramid(Pixels pixels) {
+                return true;
+            }
+
+            protected String getOriginalFilePath(Pixels pixels) {
+                return originalFile.getAbsolutePath();
+            }
+
+            protected BfPyramidPixelBuffer createPyramidPixelBuffer(
+                    Pixels pixels, String filePath, boolean write) {
+                if (!write) {
+                    return super.createPyramidPixelBuffer(
+                            pixels, filePath, write);
+                }
+                try {
+                    return new BfPyramidPixelBuffer(pixels, filePath, true) {
+                        public synchronized void setTile(byte[] buffer,
+                                Integer z, Integer c, Integer t, Integer x,
+                                Integer y, Integer w, Integer h)
+                                throws IOException {
+                            String tile = Arrays.toString(
+                                    new Integer[] { z, c, t, x, y, w, h });
+                            Integer writes = tilesWritten.get(tile);
+                            tilesWritten.put(tile,
+                                    writes == null ? 1 : writes + 1);
+                            pixelsWritten += (long) w * h;
+                            super.setTile(buffer, z, c, t, x, y, w, h);
+                        }
+                    };
+                } catch (FormatException e) {
+                    throw new RuntimeException(e);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        if (pixelBuffer != null) {
+            pixelBuffer.close();
+            pixelBuffer = null;
+        }
+        deleteRoot();
+    }
+
+    /**
+     * Generates the pyramid.
+     * @param readers The number of source readers.
+     * @return The channel statistics.
+     */
+    private StatsInfo[] makePyramid(int readers) {
+        new File(service.getPixelsPath(pixels.getId())
+                + PixelsService.PYRAMID_SUFFIX).delete();
+        tilesWritten.clear();
+        pixelsWritten = 0;
+        service.setPyramidReaders(readers);
+        StatsInfo[] statsInfo = service.makePyramid(pixels);
+        Assert.assertNotNull(statsInfo);
+        Assert.assertEquals(statsInfo.length, sizeC);
+        for (Map.Entry<String, Integer> tile : tilesWritten.entrySet()) {
+            Assert.assertEquals(tile.getValue().intValue(), 1,
+                    "Tile written more than once: " + tile.getKey());
+        }
+        Assert.assertEquals(pixelsWritten,
+                (long) sizeX * sizeY * sizeC * pixels.getSizeT());
+        return statsInfo;
+    }
+
+    @Test
+    public void testConcurrentReadersMinMax() {
+        StatsInfo[] expected = makePyramid(1);
+        StatsInfo[] actual = makePyramid(
+                PixelsService.DEFAULT_PYRAMID_READERS + 1);
+        for (int c = 0; c < sizeC; c++) {
+            Assert.assertEquals(actual[c].getGlobalMin(),
+                    expected[c].getGlobalMin(), "Minimum of channel " + c);
+            Assert.assertEquals(actual[c].getGlobalMax(),
+                    expected[c].getGlobalMax(), "Maximum of channel " + c);
+            Assert.assertTrue(expected[c].getGlobalMin()
+                    < expected[c].getGlobalMax(), "Range of channel " + c);
+        }
+    }
+}
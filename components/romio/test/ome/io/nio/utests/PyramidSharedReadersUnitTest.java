@@ -0,0 +1,124 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ome.io.bioformats.PyramidReaderPools;
+import ome.io.nio.PixelBuffer;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that pixel buffers of the same pyramid read through the
+ * {@link PyramidReaderPools} of their service share a bounded number of
+ * readers, and keep reading once their pyramid has been invalidated.
+ * @since 5.3
+ */
+public class PyramidSharedReadersUnitTest
+    extends AbstractPyramidPixelBufferUnitTest {
+
+    private static final int THREADS = 4;
+
+    private List<String> hashDigests = new ArrayList<String>();
+
+    private PixelBuffer other;
+
+    private List<int[]> offsets = new ArrayList<int[]>();
+
+    private List<byte[]> expected = new ArrayList<byte[]>();
+
+    @BeforeClass
+    public void setup() throws IOException {
+        createService();
+        pixelBuffer = service._getPixelBuffer(pixels, true);
+        writeTiles(hashDigests);
+        pixelBuffer.close();
+        // Tiles read through a pool of its own.
+        pixelBuffer = service._getPixelBuffer(pixels, false);
+        for (int y = 0; y < pixelBuffer.getSizeY(); y += tileHeight) {
+            for (int x = 0; x < pixelBuffer.getSizeX(); x += tileWidth) {
+                offsets.add(new int[] { x, y });
+                expected.add(readTile(pixelBuffer, x, y));
+            }
+        }
+        pixelBuffer.close();
+        // A single reader shared by both buffers.
+        service.setReaderPools(new PyramidReaderPools(1, null));
+        pixelBuffer = service._getPixelBuffer(pixels, false);
+        other = service._getPixelBuffer(pixels, false);
+    }
+
+    @AfterClass
+    public void tearDown() throws IOException {
+        if (pixelBuffer != null) {
+            pixelBuffer.close();
+        }
+        if (other != null) {
+            other.close();
+        }
+        deleteRoot();
+    }
+
+    private byte[] readTile(PixelBuffer buffer, int x, int y)
+            throws IOException {
+        int w = Math.min(tileWidth, buffer.getSizeX() - x);
+        int h = Math.min(tileHeight, buffer.getSizeY() - y);
+        byte[] tile = new byte[w * h * bytesPerPixel];
+        return buffer.getTileDirect(0, 1, 0, x, y, w, h, tile);
+    }
+
+    private void assertSharedReads(final PixelBuffer... buffers)
+            throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+            for (int i = 0; i < offsets.size(); i++) {
+                final PixelBuffer buffer = buffers[i % buffers.length];
+                final int[] o = offsets.get(i);
+                futures.add(pool.submit(new Callable<byte[]>() {
+                    public byte[] call() throws Exception {
+                        return readTile(buffer, o[0], o[1]);
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                Assert.assertTrue(
+                        Arrays.equals(expected.get(i), futures.get(i).get()),
+                        "Tile mismatch: " + Arrays.toString(offsets.get(i)));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testSharedReads() throws Exception {
+        assertSharedReads(pixelBuffer, other);
+    }
+
+    @Test(dependsOnMethods={"testSharedReads"})
+    public void testReadsAfterInvalidation() throws Exception {
+        service.invalidatePyramidTiles(pixels.getId());
+        assertSharedReads(pixelBuffer, other);
+    }
+
+    @Test(dependsOnMethods={"testReadsAfterInvalidation"})
+    public void testReadsAfterOtherClosed() throws Exception {
+        other.close();
+        other = null;
+        assertSharedReads(pixelBuffer);
+    }
+}
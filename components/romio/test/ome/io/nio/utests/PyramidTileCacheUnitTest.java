@@ -0,0 +1,117 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+import ome.io.nio.PyramidTileCache;
+import ome.io.nio.PyramidTileCache.FileVersion;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the eviction, invalidation and versioning of the
+ * {@link PyramidTileCache}.
+ * @since 5.3
+ */
+public class PyramidTileCacheUnitTest {
+
+    private static final int SIZE = 16;
+
+    /** Version of a pyramid file which does not exist. */
+    private static final FileVersion NONE =
+            FileVersion.of(new File("/does/not/exist_pyramid"));
+
+    private byte[] tile(int value) {
+        byte[] tile = new byte[SIZE];
+        Arrays.fill(tile, (byte) value);
+        return tile;
+    }
+
+    private void put(PyramidTileCache cache, long id, int x, int value) {
+        cache.put(id, NONE, 0, 0, 0, 0, x, 0, 4, 4, tile(value), SIZE);
+    }
+
+    private byte[] get(PyramidTileCache cache, long id, int x) {
+        return cache.get(id, NONE, 0, 0, 0, 0, x, 0, 4, 4, new byte[SIZE]);
+    }
+
+    @Test
+    public void testHitAndMiss() {
+        PyramidTileCache cache = new PyramidTileCache(SIZE * 4);
+        put(cache, 1L, 0, 7);
+        Assert.assertEquals(get(cache, 1L, 0), tile(7));
+        Assert.assertNull(get(cache, 1L, 4));
+        Assert.assertNull(get(cache, 2L, 0));
+        Assert.assertNull(
+                cache.get(1L, NONE, 1, 0, 0, 0, 0, 0, 4, 4, new byte[SIZE]));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        PyramidTileCache cache = new PyramidTileCache(SIZE * 2);
+        put(cache, 1L, 0, 0);
+        put(cache, 1L, 4, 1);
+        // Touch the first tile so that the second one is the eldest.
+        Assert.assertNotNull(get(cache, 1L, 0));
+        put(cache, 1L, 8, 2);
+        Assert.assertEquals(cache.getBytes(), SIZE * 2);
+        Assert.assertNotNull(get(cache, 1L, 0));
+        Assert.assertNull(get(cache, 1L, 4));
+        Assert.assertNotNull(get(cache, 1L, 8));
+    }
+
+    @Test
+    public void testInvalidate() {
+        PyramidTileCache cache = new PyramidTileCache(SIZE * 4);
+        put(cache, 1L, 0, 0);
+        put(cache, 1L, 4, 1);
+        put(cache, 2L, 0, 2);
+        cache.invalidate(1L);
+        Assert.assertEquals(cache.getBytes(), SIZE);
+        Assert.assertNull(get(cache, 1L, 0));
+        Assert.assertNull(get(cache, 1L, 4));
+        Assert.assertEquals(get(cache, 2L, 0), tile(2));
+    }
+
+    @Test
+    public void testDisabled() {
+        PyramidTileCache cache = new PyramidTileCache(0);
+        put(cache, 1L, 0, 0);
+        Assert.assertEquals(cache.getBytes(), 0);
+        Assert.assertNull(get(cache, 1L, 0));
+    }
+
+    @Test
+    public void testRegeneratedPyramidMisses() throws Exception {
+        File file = File.createTempFile("pixels", "_pyramid");
+        try {
+            PyramidTileCache cache = new PyramidTileCache(SIZE * 4);
+            FileVersion before = FileVersion.of(file);
+            cache.put(1L, before, 0, 0, 0, 0, 0, 0, 4, 4, tile(1), SIZE);
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(tile(2));
+            out.close();
+            FileVersion after = FileVersion.of(file);
+            Assert.assertNull(cache.get(1L, after, 0, 0, 0, 0, 0, 0, 4, 4,
+                    new byte[SIZE]));
+            Assert.assertEquals(cache.get(1L, before, 0, 0, 0, 0, 0, 0, 4, 4,
+                    null), tile(1));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testHitWithoutBuffer() {
+        PyramidTileCache cache = new PyramidTileCache(SIZE * 4);
+        put(cache, 1L, 0, 3);
+        Assert.assertEquals(
+                cache.get(1L, NONE, 0, 0, 0, 0, 0, 0, 4, 4, null), tile(3));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import ome.io.nio.ThumbnailCache;
+import ome.io.nio.ThumbnailService;
+import ome.model.display.Thumbnail;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that a {@link ThumbnailService} with a {@link ThumbnailCache} serves
+ * the thumbnails last written and never a stale version.
+ * @since 5.3
+ */
+public class ThumbnailCacheUnitTest {
+
+    private static final int SIZE = 64;
+
+    private String root;
+
+    private ThumbnailCache cache;
+
+    private ThumbnailService service;
+
+    @BeforeMethod
+    public void setup() {
+        root = PathUtil.getInstance().getTemporaryDataFilePath();
+        new File(root).mkdirs();
+        cache = new ThumbnailCache(SIZE * 2);
+        service = new ThumbnailService(root);
+        service.setCache(cache);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(new File(root));
+    }
+
+    private Thumbnail thumbnail(long id, int version) {
+        Thumbnail thumbnail = new Thumbnail();
+        thumbnail.setId(id);
+        thumbnail.setVersion(version);
+        thumbnail.setSizeX(96);
+        thumbnail.setSizeY(96);
+        return thumbnail;
+    }
+
+    private byte[] bytes(int value) {
+        byte[] bytes = new byte[SIZE];
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+
+    private void write(Thumbnail thumbnail, byte[] bytes) throws IOException {
+        FileOutputStream stream = service.getThumbnailOutputStream(thumbnail);
+        try {
+            stream.write(bytes);
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Test
+    public void testReadIsCached() throws IOException {
+        Thumbnail thumbnail = thumbnail(1L, 0);
+        write(thumbnail, bytes(1));
+        Assert.assertEquals(service.getThumbnail(thumbnail), bytes(1));
+        Assert.assertTrue(cache.contains(thumbnail));
+        Assert.assertEquals(cache.getBytes(), SIZE);
+        // Callers cannot alter the cached copy.
+        service.getThumbnail(thumbnail)[0] = 9;
+        Assert.assertEquals(service.getThumbnail(thumbnail), bytes(1));
+    }
+
+    @Test
+    public void testWriteInvalidates() throws IOException {
+        Thumbnail thumbnail = thumbnail(1L, 0);
+        write(thumbnail, bytes(1));
+        service.getThumbnail(thumbnail);
+        write(thumbnail, bytes(2));
+        Assert.assertFalse(cache.contains(thumbnail));
+        Assert.assertEquals(service.getThumbnail(thumbnail), bytes(2));
+        service.createThumbnail(thumbnail, bytes(3));
+        Assert.assertEquals(service.getThumbnail(thumbnail), bytes(3));
+    }
+
+    @Test
+    public void testVersionMismatchMisses() throws IOException {
+        write(thumbnail(1L, 0), bytes(1));
+        service.getThumbnail(thumbnail(1L, 0));
+        Assert.assertFalse(cache.contains(thumbnail(1L, 1)));
+        Assert.assertNull(cache.get(thumbnail(1L, 1)));
+    }
+
+    @Test
+    public void testEviction() throws IOException {
+        for (long id = 1; id <= 3; id++) {
+            service.createThumbnail(thumbnail(id, 0), bytes((int) id));
+        }
+        Assert.assertFalse(cache.contains(thumbnail(1L, 0)));
+        Assert.assertTrue(cache.contains(thumbnail(3L, 0)));
+        Assert.assertEquals(cache.getBytes(), SIZE * 2);
+        Assert.assertEquals(service.getThumbnail(thumbnail(1L, 0)), bytes(1));
+    }
+
+    @Test
+    public void testRemoveInvalidates() throws IOException {
+        Thumbnail thumbnail = thumbnail(1L, 0);
+        service.createThumbnail(thumbnail, bytes(1));
+        service.removeThumbnails(Collections.singletonList(1L));
+        Assert.assertFalse(cache.contains(thumbnail));
+        Assert.assertFalse(service.getThumbnailExists(thumbnail));
+        Assert.assertEquals(cache.getBytes(), 0);
+    }
+}
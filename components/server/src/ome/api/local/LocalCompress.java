@@ -21,6 +21,12 @@ import java.io.OutputStream;
  */
 public interface LocalCompress {
 
+    /** Lossy JPEG compression, the default. */
+    String FORMAT_JPEG = "jpeg";
+
+    /** Lossless PNG compression, for clients analysing the images. */
+    String FORMAT_PNG = "png";
+
     /**
      * Compresses a buffered image to an output stream.
      * 
@@ -34,6 +40,25 @@ public interface LocalCompress {
 	void compressToStream(BufferedImage image, OutputStream outputStream)
 		throws IOException;
 
+    /**
+     * Compresses a packed integer RGB image to an output stream. The array
+     * is wrapped rather than copied.
+     *
+     * @param buf
+     *            the image, one <code>0x00RRGGBB</code> integer per pixel.
+     * @param sizeX
+     *            the width of the image.
+     * @param sizeY
+     *            the height of the image.
+     * @param outputStream
+     *            the stream to write to.
+     * @throws IOException
+     *             if there is a problem when writing to <i>stream</i>.
+     * @since 5.3
+     */
+    void compressToStream(int[] buf, int sizeX, int sizeY,
+            OutputStream outputStream) throws IOException;
+
 	/**
 	 * Sets the current compression level for the service. (The default is 85%)
 	 * 
@@ -49,4 +74,22 @@ public interface LocalCompress {
 	 * @return the current compression level
 	 */
 	float getCompressionLevel();
+
+    /**
+     * Sets the format images are compressed to: {@link #FORMAT_JPEG} (the
+     * default) or {@link #FORMAT_PNG}. The compression level only applies to
+     * JPEG.
+     *
+     * @param format the format.
+     * @throws ome.conditions.ApiUsageException if the format is not supported.
+     * @since 5.3
+     */
+    void setCompressionFormat(String format);
+
+    /**
+     * Returns the format images are compressed to.
+     * @return the current compression format
+     * @since 5.3
+     */
+    String getCompressionFormat();
 }
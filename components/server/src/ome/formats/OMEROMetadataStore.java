@@ -2276,10 +2276,12 @@ public class OMEROMetadataStore
     	StopWatch s1 = new Slf4JStopWatch("omero.saveImportGraph");
     	Image[] imageArray = 
     		imageList.values().toArray(new Image[imageList.size()]);
+    	List<List<PlaneInfo>> planeInfos = detachPlaneInfo(imageArray);
     	IObject[] saved = sf.getUpdateService().saveAndReturnArray(imageArray);
     	s1.stop();
     	
     	List<Pixels> toReturn = new ArrayList<Pixels>();
+    	List<PlaneInfo> toInsert = new ArrayList<PlaneInfo>();
     	Image image;
     	Pixels pixels;
     	for (int i = 0; i < saved.length; i++)
@@ -2288,11 +2290,54 @@ public class OMEROMetadataStore
     		pixels = image.getPrimaryPixels();
     		pixelsList.put(i, pixels);
     		toReturn.add(pixels);
+    		for (PlaneInfo planeInfo : planeInfos.get(i))
+    		{
+    			planeInfo.setPixels(pixels);
+    			toInsert.add(planeInfo);
+    		}
     	}
-    	//s2.stop();
+
+    	// The details of the saved pixels, as set by the security system,
+    	// are given to their plane infos.
+    	StopWatch s2 = new Slf4JStopWatch("omero.saveImportPlaneInfo");
+    	sql.insertPlaneInfo(toInsert);
+    	s2.stop();
    		return toReturn;
     }
 
+    /**
+     * Removes the plane infos from the pixels of the images so that they are
+     * not saved through Hibernate along with the rest of the graph. There is
+     * one for each plane, so they make up most of the rows of large images
+     * and plates; they are inserted with JDBC batches once their pixels have
+     * been saved. Plane infos with annotations stay in the graph.
+     * @param images The images about to be saved.
+     * @return The plane infos removed from the primary pixels of each image,
+     * in the order of the images.
+     */
+    private List<List<PlaneInfo>> detachPlaneInfo(Image[] images)
+    {
+    	List<List<PlaneInfo>> planeInfos = new ArrayList<List<PlaneInfo>>();
+    	for (Image image : images)
+    	{
+    		List<PlaneInfo> detached = new ArrayList<PlaneInfo>();
+    		Pixels pixels = image.getPrimaryPixels();
+    		if (pixels != null)
+    		{
+    			for (PlaneInfo planeInfo : pixels.copyPlaneInfo())
+    			{
+    				if (planeInfo.sizeOfAnnotationLinks() <= 0)
+    				{
+    					pixels.removePlaneInfo(planeInfo);
+    					detached.add(planeInfo);
+    				}
+    			}
+    		}
+    		planeInfos.add(detached);
+    	}
+    	return planeInfos;
+    }
+
     /**
      * Checks if the format is a graphics format or not.
      *
@@ -8,21 +8,50 @@
 package ome.logic;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
 import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 
 import ome.api.local.LocalCompress;
+import ome.conditions.ApiUsageException;
 
 public class CompressImpl implements LocalCompress {
 
+    /** The colour model of images wrapping packed integer RGB pixels. */
+    private static final DirectColorModel PACKED_RGB =
+            new DirectColorModel(24, 0x00ff0000, 0x0000ff00, 0x000000ff);
+
+    /**
+     * The image writers of the current thread by format. Looking up a writer
+     * and setting it up is costly compared to encoding a tile, so writers are
+     * kept and reset after each image rather than obtained for each one.
+     */
+    private static final ThreadLocal<Map<String, ImageWriter>> writers =
+            new ThreadLocal<Map<String, ImageWriter>>() {
+        @Override
+        protected Map<String, ImageWriter> initialValue() {
+            return new HashMap<String, ImageWriter>();
+        }
+    };
+
 	/** The default compression quality in fractional percent. */
     private float quality = 0.85F;
+
+    /** The format images are compressed to. */
+    private String format = FORMAT_JPEG;
 	
     /* (non-Javadoc)
      * @see ome.api.ICompress#compressToStream(java.awt.image.BufferedImage, java.io.OutputStream)
@@ -30,27 +59,84 @@ public class CompressImpl implements LocalCompress {
     public void compressToStream(BufferedImage image, OutputStream outputStream)
     	throws IOException
     {
-        // Get a JPEG image writer
-        ImageWriter jpegWriter =
-        	ImageIO.getImageWritersByFormatName("jpeg").next();
-
-        // Setup the compression value from (0.05, 0.75 and 0.95)
-        ImageWriteParam iwp = jpegWriter.getDefaultWriteParam();
-        iwp.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-        iwp.setCompressionQuality(quality);
+        ImageWriter writer = getWriter(format);
+        ImageWriteParam iwp = null;
+        if (FORMAT_JPEG.equals(format)) {
+            // Setup the compression value from (0.05, 0.75 and 0.95)
+            iwp = writer.getDefaultWriteParam();
+            iwp.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            iwp.setCompressionQuality(quality);
+        }
 
-        // Write the JPEG to our ByteArray stream
+        // Write the image to the stream, buffering in memory rather than in
+        // a temporary file as ImageIO.createImageOutputStream() may
     	ImageOutputStream imageOutputStream = null;
+        boolean written = false;
         try {
-        	imageOutputStream = ImageIO.createImageOutputStream(outputStream);
-        	jpegWriter.setOutput(imageOutputStream);
-        	jpegWriter.write(null, new IIOImage(image, null, null), iwp);
+        	imageOutputStream = new MemoryCacheImageOutputStream(outputStream);
+        	writer.setOutput(imageOutputStream);
+        	writer.write(null, new IIOImage(image, null, null), iwp);
+            written = true;
         } finally {
+            if (written) {
+                writer.reset();
+            } else {
+                discardWriter(format);
+            }
         	if (imageOutputStream != null)
         		imageOutputStream.close();
         }
     }
 
+    /* (non-Javadoc)
+     * @see ome.api.local.LocalCompress#compressToStream(int[], int, int, java.io.OutputStream)
+     */
+    public void compressToStream(int[] buf, int sizeX, int sizeY,
+            OutputStream outputStream) throws IOException
+    {
+        // Wrap the array as the single bank of a packed raster.
+        DataBufferInt j2DBuf = new DataBufferInt(buf, sizeX * sizeY);
+        WritableRaster raster = Raster.createPackedRaster(j2DBuf, sizeX,
+                sizeY, sizeX, PACKED_RGB.getMasks(), null);
+        compressToStream(new BufferedImage(PACKED_RGB, raster, false, null),
+                outputStream);
+    }
+
+    /**
+     * Returns the writer of the current thread for a format, creating it if
+     * required.
+     * @param format The format to write.
+     * @return See above.
+     */
+    private static ImageWriter getWriter(String format)
+    {
+        Map<String, ImageWriter> byFormat = writers.get();
+        ImageWriter writer = byFormat.get(format);
+        if (writer == null) {
+            Iterator<ImageWriter> it =
+                ImageIO.getImageWritersByFormatName(format);
+            if (!it.hasNext()) {
+                throw new ApiUsageException("No writer for format: " + format);
+            }
+            writer = it.next();
+            byFormat.put(format, writer);
+        }
+        return writer;
+    }
+
+    /**
+     * Disposes of the writer of the current thread for a format, which may
+     * have been left in an unknown state by a failed write.
+     * @param format The format written.
+     */
+    private static void discardWriter(String format)
+    {
+        ImageWriter writer = writers.get().remove(format);
+        if (writer != null) {
+            writer.dispose();
+        }
+    }
+
 	/* (non-Javadoc)
 	 * @see ome.api.ICompress#setCompressionLevel(float)
 	 */
@@ -66,4 +152,24 @@ public class CompressImpl implements LocalCompress {
 	{
 		return quality;
 	}
+
+    /* (non-Javadoc)
+     * @see ome.api.local.LocalCompress#setCompressionFormat(java.lang.String)
+     */
+    public void setCompressionFormat(String format)
+    {
+        if (!FORMAT_JPEG.equals(format) && !FORMAT_PNG.equals(format)) {
+            throw new ApiUsageException(
+                    "Unsupported compression format: " + format);
+        }
+        this.format = format;
+    }
+
+    /* (non-Javadoc)
+     * @see ome.api.local.LocalCompress#getCompressionFormat()
+     */
+    public String getCompressionFormat()
+    {
+        return format;
+    }
 }
@@ -8,11 +8,13 @@
 package ome.services;
 
 import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -30,15 +32,18 @@ import ome.conditions.ValidationException;
 import ome.io.nio.DimensionsOutOfBoundsException;
 import ome.io.nio.PixelBuffer;
 import ome.io.nio.PixelsService;
+import ome.io.nio.PlaneStatistics;
+import ome.io.nio.PlaneStatisticsFile;
 import ome.io.nio.RomioPixelBuffer;
 import ome.model.core.Channel;
 import ome.model.core.Pixels;
 import ome.parameters.Parameters;
+import ome.services.pixeldata.StatisticsEngine;
 import ome.util.PixelData;
 import ome.util.ShallowCopy;
 import ome.util.SqlAction;
+import omeis.providers.re.RenderedImageCache;
 import omeis.providers.re.data.PlaneDef;
-import omeis.providers.re.metadata.StatsFactory;
 
 import org.apache.commons.codec.binary.Hex;
 import org.slf4j.Logger;
@@ -98,6 +103,12 @@ public class RawPixelsBean extends AbstractStatefulBean implements
     /** The server's OMERO data directory. */
     private transient String omeroDataDir;
 
+    /** Computes histograms and minima and maxima of planes. */
+    private transient StatisticsEngine statisticsEngine;
+
+    /** Cache of the images rendered from pixels sets. */
+    private transient RenderedImageCache imageCache;
+
     /**
      * default constructor
      */
@@ -149,6 +160,27 @@ public class RawPixelsBean extends AbstractStatefulBean implements
         this.sql = sql;
     }
 
+    /**
+     * Statistics engine Bean injector
+     * @param statisticsEngine a <code>StatisticsEngine</code>
+     */
+    public synchronized final void setStatisticsEngine(
+            StatisticsEngine statisticsEngine) {
+        getBeanHelper().throwIfAlreadySet(this.statisticsEngine,
+                statisticsEngine);
+        this.statisticsEngine = statisticsEngine;
+    }
+
+    /**
+     * Rendered image cache Bean injector
+     * @param imageCache a <code>RenderedImageCache</code>
+     */
+    public synchronized final void setRenderedImageCache(
+            RenderedImageCache imageCache) {
+        getBeanHelper().throwIfAlreadySet(this.imageCache, imageCache);
+        this.imageCache = imageCache;
+    }
+
     // ~ Lifecycle methods
     // =========================================================================
 
@@ -198,6 +230,10 @@ public class RawPixelsBean extends AbstractStatefulBean implements
 
             iUpdate.flush();
             modified = false;
+            if (imageCache != null) {
+                // Images rendered while writing may not show every write.
+                imageCache.invalidate(id);
+            }
             return new ShallowCopy().copy(pixelsInstance);
         }
         return null;
@@ -682,62 +718,62 @@ public class RawPixelsBean extends AbstractStatefulBean implements
             int binCount, boolean globalRange, PlaneDef plane) {
         errorIfNotLoaded();
 
-        if (requiresPixelsPyramid())
-            throw new ApiUsageException(
-                    "This method can not handle tiled images yet.");
-
         if (binCount <= 0)
             binCount = DEFAULT_HISTOGRAM_BINSIZE;
 
-        int imgWidth = buffer.getSizeX();
-
         int z = (plane != null && plane.getZ() >= 0) ? plane.getZ() : 0;
         int t = (plane != null && plane.getT() >= 0) ? plane.getT() : 0;
-        int x = (plane != null && plane.getRegion() != null && plane
-                .getRegion().getX() >= 0) ? plane.getRegion().getX() : 0;
-        int y = (plane != null && plane.getRegion() != null && plane
-                .getRegion().getY() >= 0) ? plane.getRegion().getY() : 0;
-        int w = (plane != null && plane.getRegion() != null && plane
-                .getRegion().getWidth() > 0) ? plane.getRegion().getWidth()
-                : imgWidth;
-        int h = (plane != null && plane.getRegion() != null && plane
-                .getRegion().getHeight() > 0) ? plane.getRegion().getHeight()
-                : buffer.getSizeY();
+        Rectangle region = null;
+        if (plane != null && plane.getRegion() != null) {
+            int x = plane.getRegion().getX() >= 0 ? plane.getRegion().getX() : 0;
+            int y = plane.getRegion().getY() >= 0 ? plane.getRegion().getY() : 0;
+            int w = plane.getRegion().getWidth() > 0 ? plane.getRegion()
+                    .getWidth() : Integer.MAX_VALUE - x;
+            int h = plane.getRegion().getHeight() > 0 ? plane.getRegion()
+                    .getHeight() : Integer.MAX_VALUE - y;
+            region = new Rectangle(x, y, w, h);
+        }
 
         Map<Integer, int[]> result = new HashMap<Integer, int[]>();
 
         try {
+            PlaneStatisticsFile stored = storedStatistics();
+            // the stored histograms are only those of whole planes
+            boolean wholePlane = stored != null
+                    && binCount == PlaneStatistics.BIN_COUNT
+                    && stored.getSizeX() == buffer.getSizeX()
+                    && stored.getSizeY() == buffer.getSizeY()
+                    && (region == null || region.contains(
+                            new Rectangle(0, 0, buffer.getSizeX(),
+                                    buffer.getSizeY())));
+            List<Integer> planeRange = new ArrayList<Integer>();
+            Map<Integer, double[]> ranges = new HashMap<Integer, double[]>();
             for (int ch : channels) {
                 Channel channel = pixelsInstance.getChannel(ch);
                 if (channel == null)
                     continue;
-                PixelData px = buffer.getPlane(z, ch, t);
-                int[] data = new int[binCount];
-
-                double[] minmax = determineHistogramMinMax(px, channel,
-                        globalRange);
-                double min = minmax[0];
-                double max = minmax[1];
-
-                double range = max - min + 1;
-                double binRange = range / binCount;
-                for (int i = 0; i < px.size(); i++) {
-                    int pxx = i % imgWidth;
-                    int pxy = i / imgWidth;
-                    if (pxx >= x && pxx < (x + w) && pxy >= y && pxy < (y + h)) {
-                        int bin = (int) ((px.getPixelValue(i) - min) / binRange);
-                        // if there are more bins than values (binRange < 1) the bin will be offset by -1.
-                        // e.g. min=0.0, max=127.0, binCount=256: a pixel with max value 127.0 would go
-                        // into bin 254 (expected: 255). Therefore increment by one for these cases.
-                        if (bin > 0 && binRange < 1)
-                            bin++;
-
-                        if (bin >= 0 && bin < binCount)
-                            data[bin]++;
+                double[] minmax = globalRange ? globalMinMax(channel) : null;
+                PlaneStatistics stats = stored == null ? null
+                        : stored.get(z, ch, t);
+                if (minmax == null && stats != null) {
+                    if (wholePlane) {
+                        result.put(ch, stats.getHistogram());
+                    } else {
+                        ranges.put(ch, new double[] { stats.getMin(),
+                                stats.getMax() });
                     }
+                } else if (minmax == null) {
+                    planeRange.add(ch);
+                } else {
+                    ranges.put(ch, minmax);
                 }
-                result.put(ch, data);
             }
+            if (!planeRange.isEmpty()) {
+                ranges.putAll(statistics().findMinMax(buffer,
+                        pixelsInstance.getId(), toArray(planeRange), z, t));
+            }
+            result.putAll(statistics().getHistogram(buffer,
+                    pixelsInstance.getId(), ranges, z, t, region, binCount));
         } catch (Exception e) {
             handleException(e);
         }
@@ -748,20 +784,82 @@ public class RawPixelsBean extends AbstractStatefulBean implements
     @RolesAllowed("user")
     public synchronized Map<Integer, double[]> findMinMax(int[] channels) {
         Map<Integer, double[]> result = new HashMap<Integer, double[]>();
-        
-        if (requiresPixelsPyramid())
-            return result;
 
         try {
+            PlaneStatisticsFile stored = storedStatistics();
+            int z = buffer.getSizeZ() > 1 ? (buffer.getSizeZ() - 1) / 2 : 0;
+            int t = buffer.getSizeT() > 1 ? (buffer.getSizeT() - 1) / 2 : 0;
+            List<Integer> present = new ArrayList<Integer>();
             for (int ch : channels) {
-                Channel channel = pixelsInstance.getChannel(ch);
-                if (channel == null)
+                if (pixelsInstance.getChannel(ch) == null)
+                    continue;
+                PlaneStatistics stats = stored == null ? null
+                        : stored.get(z, ch, t);
+                if (stats != null) {
+                    result.put(ch, new double[] { stats.getMin(),
+                            stats.getMax() });
+                } else {
+                    present.add(ch);
+                }
+            }
+            result.putAll(statistics().findMinMax(buffer,
+                    pixelsInstance.getId(), toArray(present), z, t));
+        } catch (IOException e) {
+            handleException(e);
+        }
+        return result;
+    }
+
+    /**
+     * Invalidates the cached statistics and rendered images of the pixels
+     * set as its data is modified.
+     */
+    @Override
+    protected void modified() {
+        boolean first = !modified;
+        super.modified();
+        if (pixelsInstance != null && pixelsInstance.getId() != null) {
+            if (statisticsEngine != null) {
+                statisticsEngine.invalidate(pixelsInstance.getId());
+            }
+            if (first && dataService != null) {
+                dataService.removePlaneStatistics(pixelsInstance.getId());
+            }
+            if (first && imageCache != null) {
+                imageCache.invalidate(pixelsInstance.getId());
+            }
+        }
+    }
+
+    @RolesAllowed("user")
+    public synchronized Map<Integer, double[]> getPlaneStatistics(
+            int[] channels, int z, int t) {
+        errorIfNotLoaded();
+
+        Map<Integer, double[]> result = new HashMap<Integer, double[]>();
+        try {
+            PlaneStatisticsFile stored = storedStatistics();
+            List<Integer> compute = new ArrayList<Integer>();
+            for (int ch : channels) {
+                if (pixelsInstance.getChannel(ch) == null)
                     continue;
-                int z = buffer.getSizeZ() > 1 ? (buffer.getSizeZ() - 1) / 2 : 0;
-                int t = buffer.getSizeT() > 1 ? (buffer.getSizeT() - 1) / 2 : 0;
-                PixelData px = buffer.getPlane(z, ch, t);
-                double[] minmax = determineHistogramMinMax(px, channel, false);
-                result.put(ch, minmax);
+                PlaneStatistics stats = stored == null ? null
+                        : stored.get(z, ch, t);
+                if (stats != null) {
+                    result.put(ch, toArray(stats));
+                } else {
+                    compute.add(ch);
+                }
+            }
+            if (!compute.isEmpty()) {
+                Map<Integer, PlaneStatistics> computed =
+                        statistics().getPlaneStatistics(buffer,
+                                pixelsInstance.getId(), toArray(compute),
+                                z, t);
+                for (Map.Entry<Integer, PlaneStatistics> entry :
+                        computed.entrySet()) {
+                    result.put(entry.getKey(), toArray(entry.getValue()));
+                }
             }
         } catch (IOException e) {
             handleException(e);
@@ -773,44 +871,82 @@ public class RawPixelsBean extends AbstractStatefulBean implements
     // =========================================================================
     
     /**
-     * Get the minimum and maximum value to use for the histogram. If useGlobal
-     * is <code>true</code> and the channel has stats calculated the global
-     * minimum and maximum will be used, otherwise the minimum and maximum value
-     * of the plane will be used.
+     * Get the global minimum and maximum of a channel to use for the
+     * histogram, if it has stats calculated.
      * 
-     * @param px
-     *            The {@link PixelData}
      * @param channel
      *            The {@link Channel}
-     * @param useGlobal
-     *            Try to use the global minimum/maximum
-     * @return See above
+     * @return See above or <code>null</code> if the plane minimum and maximum
+     *         have to be used.
      */
-    private double[] determineHistogramMinMax(PixelData px, Channel channel,
-            boolean useGlobal) {
-        double min, max;
-
-        if (useGlobal && channel != null && channel.getStatsInfo() != null) {
-            min = channel.getStatsInfo().getGlobalMin();
-            max = channel.getStatsInfo().getGlobalMax();
+    private double[] globalMinMax(Channel channel) {
+        if (channel.getStatsInfo() != null) {
+            double min = channel.getStatsInfo().getGlobalMin();
+            double max = channel.getStatsInfo().getGlobalMax();
             // if max == 1.0 the global min/max probably has not been
             // calculated; fall back to plane min/max
             if (max != 1.0)
                 return new double[] { min, max };
         }
+        return null;
+    }
 
-        StatsFactory sf = new StatsFactory();
-        double[] pixelMinMax = sf.initPixelsRange(channel.getPixels());
+    /**
+     * Get the per-plane statistics stored along with the pixel data, unless
+     * the data has been modified since or they were read from a different
+     * resolution level than the statistics engine reads, so that the results
+     * do not depend on which of the two provides them.
+     *
+     * @return See above or <code>null</code> if there are none.
+     */
+    private PlaneStatisticsFile storedStatistics() {
+        if (modified || dataService == null
+                || pixelsInstance.getId() == null) {
+            return null;
+        }
+        PlaneStatisticsFile stored =
+                dataService.getPlaneStatistics(pixelsInstance.getId());
+        if (stored == null || !statistics().isReadSize(buffer,
+                stored.getSizeX(), stored.getSizeY())) {
+            return null;
+        }
+        return stored;
+    }
 
-        min = pixelMinMax[1];
-        max = pixelMinMax[0];
+    /**
+     * Lays out the statistics of a plane as returned by
+     * {@link #getPlaneStatistics(int[], int, int)}.
+     *
+     * @param stats The statistics.
+     * @return The minimum, maximum and mean followed by the percentiles.
+     */
+    private static double[] toArray(PlaneStatistics stats) {
+        double[] percentiles = stats.getPercentiles();
+        double[] values = new double[3 + percentiles.length];
+        values[0] = stats.getMin();
+        values[1] = stats.getMax();
+        values[2] = stats.getMean();
+        System.arraycopy(percentiles, 0, values, 3, percentiles.length);
+        return values;
+    }
 
-        for (int i = 0; i < px.size(); i++) {
-            min = Math.min(min, px.getPixelValue(i));
-            max = Math.max(max, px.getPixelValue(i));
+    /**
+     * Returns the statistics engine, or one computing on the calling thread
+     * if none was injected.
+     */
+    private StatisticsEngine statistics() {
+        if (statisticsEngine == null) {
+            statisticsEngine = new StatisticsEngine();
         }
+        return statisticsEngine;
+    }
 
-        return new double[] { min, max };
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
     }
     
     private synchronized byte[] bufferAsByteArrayWithExceptionIfNull(ByteBuffer buffer) {
@@ -5,7 +5,6 @@
 package ome.services;
 
 import java.awt.Dimension;
-import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
@@ -33,6 +32,7 @@ import ome.conditions.ValidationException;
 import ome.io.nio.InMemoryPlanarPixelBuffer;
 import ome.io.nio.PixelBuffer;
 import ome.io.nio.PixelsService;
+import ome.io.nio.PyramidTileCache.FileVersion;
 import ome.model.IObject;
 import ome.model.core.Channel;
 import ome.model.core.OriginalFile;
@@ -51,9 +51,9 @@ import ome.services.util.Executor;
 import ome.system.EventContext;
 import ome.system.ServiceFactory;
 import ome.system.SimpleEventContext;
-import ome.util.ImageUtil;
 import ome.util.ShallowCopy;
 import omeis.providers.re.RGBBuffer;
+import omeis.providers.re.RenderedImageCache;
 import omeis.providers.re.Renderer;
 import omeis.providers.re.RenderingEngine;
 import omeis.providers.re.codomain.CodomainChain;
@@ -160,6 +160,15 @@ public class RenderingBean implements RenderingEngine, Serializable {
     /** Reference to the helper used to retrieve luts.*/
     private final ScriptRepoHelper helper;
 
+    /** Cache of the images rendered by {@link #renderCompressed(PlaneDef)}. */
+    private transient RenderedImageCache imageCache;
+
+    /**
+     * The version of the file from which the renderer's pixel buffer was
+     * opened. Rendered images are cached only while the file is unchanged.
+     */
+    private transient FileVersion dataVersion;
+
     /** Notification that the bean has just returned from passivation. */
     private transient boolean wasPassivated = false;
 
@@ -197,6 +206,17 @@ public class RenderingBean implements RenderingEngine, Serializable {
         this.helper = helper;
     }
 
+    /**
+     * Sets the cache shared by the rendering engines of this server for the
+     * images they render and compress.
+     *
+     * @param imageCache
+     *          The cache, may be <code>null</code>.
+     */
+    public void setRenderedImageCache(RenderedImageCache imageCache) {
+        this.imageCache = imageCache;
+    }
+
     @RolesAllowed("user")
     public long getRenderingDefId() {
         if (rendDefObj == null || rendDefObj.getId() == null) {
@@ -420,6 +440,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
             QuantumFactory quantumFactory = new QuantumFactory(families);
             // Loading last to try to ensure that the buffer will get closed.
             PixelBuffer buffer = getPixelBuffer();
+            dataVersion = getDataVersion(buffer);
             List<File> luts = Collections.emptyList();
             try {
                 luts = loadLuts();
@@ -536,14 +557,28 @@ public class RenderingBean implements RenderingEngine, Serializable {
     /**
      * Implemented as specified by the {@link RenderingEngine} interface.
      * 
-     * @see LocalCompress#compressToStream(BufferedImage, java.io.OutputStream)
+     * @see LocalCompress#compressToStream(int[], int, int, java.io.OutputStream)
      */
     @RolesAllowed("user")
     public byte[] renderCompressed(PlaneDef pd) {
+        rwl.readLock().lock();
+        try {
+            final String state = getRenderedImageState(pd);
+            if (state != null) {
+                final byte[] cached = imageCache.get(pixelsObj.getId(), state);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+        } finally {
+            rwl.readLock().unlock();
+        }
+
         rwl.writeLock().lock();
 
         ByteArrayOutputStream byteStream = null;
         try {
+            final String state = getRenderedImageState(pd);
             final Map<byte[], Integer> overlays = getMasks(pd);
             if (overlays.size() > 0) {
                 renderer.setOverlays(overlays);
@@ -561,11 +596,14 @@ public class RenderingBean implements RenderingEngine, Serializable {
             }
             sizeX = sizeX/stride;
             sizeY = sizeY/stride;
-            BufferedImage image = ImageUtil.createBufferedImage(buf, sizeX,
-                    sizeY);
             byteStream = new ByteArrayOutputStream();
-            compressionSrv.compressToStream(image, byteStream);
-            return byteStream.toByteArray();
+            compressionSrv.compressToStream(buf, sizeX, sizeY, byteStream);
+            final byte[] compressed = byteStream.toByteArray();
+            // Not cached if the pixel data changed while rendering.
+            if (state != null && state.equals(getRenderedImageState(pd))) {
+                imageCache.put(pixelsObj.getId(), state, compressed);
+            }
+            return compressed;
         } catch (IOException e) {
             log.error("Could not compress rendered image.", e);
             throw new ResourceError(e.getMessage());
@@ -635,7 +673,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
     /**
      * Implemented as specified by the {@link RenderingEngine} interface.
      * 
-     * @see LocalCompress#compressToStream(BufferedImage, java.io.OutputStream)
+     * @see LocalCompress#compressToStream(int[], int, int, java.io.OutputStream)
      */
     @RolesAllowed("user")
     public byte[] renderProjectedCompressed(int algorithm, int timepoint,
@@ -652,10 +690,8 @@ public class RenderingBean implements RenderingEngine, Serializable {
                     stepping, start, end);
             int sizeX = pixelsObj.getSizeX();
             int sizeY = pixelsObj.getSizeY();
-            BufferedImage image = ImageUtil.createBufferedImage(buf, sizeX,
-                    sizeY);
             byteStream = new ByteArrayOutputStream();
-            compressionSrv.compressToStream(image, byteStream);
+            compressionSrv.compressToStream(buf, sizeX, sizeY, byteStream);
             return byteStream.toByteArray();
         } catch (IOException e) {
             log.error("Could not compress rendered image.", e);
@@ -736,6 +772,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
                     // *** Ticket #848 -- Chris Allan <callan@blackcat.ca> ***
                     load();
                 }
+                invalidateRenderedImages();
             }
             return rendDefObj.getId();
         } finally {
@@ -763,6 +800,26 @@ public class RenderingBean implements RenderingEngine, Serializable {
         return compressionSrv.getCompressionLevel();
     }
 
+    /**
+     * Implemented as specified by the {@link RenderingEngine} interface.
+     * 
+     * @see LocalCompress#setCompressionFormat(String)
+     */
+    @RolesAllowed("user")
+    public void setCompressionFormat(String format) {
+        compressionSrv.setCompressionFormat(format);
+    }
+
+    /**
+     * Implemented as specified by the {@link RenderingEngine} interface.
+     * 
+     * @see RenderingEngine#getCompressionFormat()
+     */
+    @RolesAllowed("user")
+    public String getCompressionFormat() {
+        return compressionSrv.getCompressionFormat();
+    }
+
     /**
      * Implemented as specified by the {@link RenderingEngine} interface.
      *
@@ -865,6 +922,12 @@ public class RenderingBean implements RenderingEngine, Serializable {
                 }
             }
         }
+        rwl.writeLock().lock();
+        try {
+            invalidateRenderedImages();
+        } finally {
+            rwl.writeLock().unlock();
+        }
     }
 
     /**
@@ -1033,6 +1096,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
                 // *** Ticket #848 -- Chris Allan <callan@blackcat.ca> ***
             }
             load();
+            invalidateRenderedImages();
             return id;
         } finally {
             rwl.writeLock().unlock();
@@ -2362,6 +2426,103 @@ public class RenderingBean implements RenderingEngine, Serializable {
         });
     }
 
+    /**
+     * Drops the images cached for the pixels set, whose rendering settings
+     * were saved or updated. Must be called holding the write lock.
+     */
+    private void invalidateRenderedImages() {
+        if (imageCache != null && pixelsObj != null
+                && pixelsObj.getId() != null) {
+            imageCache.invalidate(pixelsObj.getId());
+        }
+    }
+
+    /**
+     * Returns the version of the file from which the given buffer reads the
+     * pixel data. A pyramid that is regenerated or pixels that are written
+     * or deleted change the version.
+     *
+     * @param buffer The pixel buffer.
+     * @return See above or <code>null</code> if the buffer has no file.
+     */
+    private static FileVersion getDataVersion(PixelBuffer buffer) {
+        final String path = buffer == null ? null : buffer.getPath();
+        return path == null ? null : FileVersion.of(new File(path));
+    }
+
+    /**
+     * Describes the effective rendering state with which
+     * {@link #renderCompressed(PlaneDef)} would render the given plane, for
+     * use as the key of the {@link RenderedImageCache}. Must be called
+     * holding the read or write lock.
+     *
+     * @param pd The plane to render.
+     * @return See above or <code>null</code> if the image must not be cached,
+     *         e.g. if shapes are rendered over it.
+     */
+    private String getRenderedImageState(PlaneDef pd) {
+        if (imageCache == null || !imageCache.isEnabled() || renderer == null
+                || rendDefObj == null || pixelsObj == null
+                || pixelsObj.getId() == null || pd.getRenderShapes()) {
+            return null;
+        }
+        final Map<byte[], Integer> overlays = renderer.getOverlays();
+        if (overlays != null && !overlays.isEmpty()) {
+            return null;
+        }
+        // The buffer reads what it opened, so the file must be unchanged.
+        final FileVersion version = getDataVersion(renderer.getPixels());
+        if (version == null || !version.equals(dataVersion)) {
+            return null;
+        }
+        final StringBuilder sb = new StringBuilder(256);
+        sb.append(pd.getSlice()).append(',').append(pd.getX()).append(',')
+            .append(pd.getY()).append(',').append(pd.getZ()).append(',')
+            .append(pd.getT()).append(",s=").append(pd.getStride());
+        final RegionDef region = pd.getRegion();
+        if (region != null) {
+            sb.append(",r=").append(region.getX()).append(',')
+                .append(region.getY()).append(',').append(region.getWidth())
+                .append(',').append(region.getHeight());
+        }
+        sb.append(";v=").append(version);
+        sb.append(";l=").append(resolutionLevel);
+        sb.append(";c=").append(compressionSrv.getCompressionFormat())
+            .append(',').append(compressionSrv.getCompressionLevel());
+        sb.append(";m=").append(rendDefObj.getModel().getValue());
+        final QuantumDef qd = rendDefObj.getQuantization();
+        sb.append(";q=").append(qd.getBitResolution()).append(',')
+            .append(qd.getCdStart()).append(',').append(qd.getCdEnd());
+        final ChannelBinding[] bindings = renderer.getChannelBindings();
+        for (int w = 0; w < bindings.length; w++) {
+            final ChannelBinding cb = bindings[w];
+            sb.append(";b=").append(cb.getActive());
+            if (!cb.getActive()) {
+                continue;
+            }
+            sb.append(',').append(cb.getFamily().getValue()).append(',')
+                .append(cb.getCoefficient()).append(',')
+                .append(cb.getNoiseReduction()).append(',')
+                .append(cb.getInputStart()).append(',')
+                .append(cb.getInputEnd()).append(',')
+                .append(cb.getRed()).append(',').append(cb.getGreen())
+                .append(',').append(cb.getBlue()).append(',')
+                .append(cb.getAlpha()).append(',')
+                .append(cb.getLookupTable());
+            final CodomainChain chain = renderer.getCodomainChain(w);
+            if (chain.hasMapContext()) {
+                for (CodomainMapContext ctx : chain.getContexts()) {
+                    if (!(ctx instanceof ReverseIntensityContext)) {
+                        // Other maps are not described, so never cached.
+                        return null;
+                    }
+                    sb.append(",reverse");
+                }
+            }
+        }
+        return sb.toString();
+    }
+
     /**
      * Get Mask attached to the image for rendering.
      */
@@ -269,8 +269,20 @@ public class SearchBean extends AbstractStatefulBean implements Search {
             return false;
         }
         SearchAction action = actions.popFirst();
+        FullText paged = null;
+        if (action instanceof FullText) {
+            // Only materialize a page of the hits at a time.
+            paged = (FullText) action;
+            if (!paged.isPaged()) {
+                paged.setPageSize(Math.max(values.batchSize,
+                        FullText.DEFAULT_PAGE_SIZE));
+            }
+        }
         List<IObject> list = (List<IObject>) executor.execute(null, action);
         results.add(list);
+        if (paged != null && paged.nextPage()) {
+            actions.addFirst(paged);
+        }
         return hasNext(); // recursive call
     }
 
@@ -744,6 +756,14 @@ public class SearchBean extends AbstractStatefulBean implements Search {
             return actions.size();
         }
 
+        /**
+         * Re-adds an action to be executed first, as for the next page of
+         * a paged {@link FullText}, leaving the state untouched.
+         */
+        synchronized void addFirst(SearchAction a) {
+            actions.add(0, a);
+        }
+
         synchronized void clear() {
             actions.clear();
         }
@@ -21,6 +21,10 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import ome.annotations.RolesAllowed;
@@ -132,6 +136,13 @@ public class ThumbnailBean extends AbstractLevel2Service
     /** If the file service checking for disk overflow. */
     private transient boolean diskSpaceChecking;
 
+    /**
+     * Bounded pool the thumbnails of a set are rendered, scaled and
+     * compressed on, may be <code>null</code> to create them one after the
+     * other.
+     */
+    private transient ExecutorService thumbnailExecutor;
+
     /** If the renderer is dirty. */
     private Boolean dirty = true;
 
@@ -174,6 +185,13 @@ public class ThumbnailBean extends AbstractLevel2Service
     /** The default MIME type. */
     public static final String DEFAULT_MIME_TYPE = "image/jpeg";
 
+    /**
+     * Maximum number of thumbnails of a set prepared before being created on
+     * the {@link #thumbnailExecutor}, which bounds the number of renderers
+     * and pixel buffers open at once.
+     */
+    public static final int THUMBNAIL_BATCH_SIZE = 32;
+
     /**
      * read-write lock to prevent READ-calls during WRITE operations.
      *
@@ -496,6 +514,19 @@ public class ThumbnailBean extends AbstractLevel2Service
         this.settingsService = settingsService;
     }
 
+    /**
+     * Thumbnail creation pool Bean injector.
+     *
+     * @param thumbnailExecutor
+     *            a bounded <code>ExecutorService</code> or <code>null</code>
+     *            to create the thumbnails of a set one after the other.
+     */
+    public void setThumbnailExecutor(ExecutorService thumbnailExecutor) {
+        getBeanHelper().throwIfAlreadySet(this.thumbnailExecutor,
+                thumbnailExecutor);
+        this.thumbnailExecutor = thumbnailExecutor;
+    }
+
     /**
      * Compresses a buffered image thumbnail to disk.
      *
@@ -615,6 +646,28 @@ public class ThumbnailBean extends AbstractLevel2Service
             return null;
         }
 
+        return renderScaledImage(renderer, pixels, settings,
+                thumbnailMetadata, theZ, theT);
+    }
+
+    /**
+     * Renders a plane and scales it to the size of a thumbnail. Only uses
+     * its arguments so that thumbnails can be created concurrently.
+     *
+     * @param renderer the renderer of the pixels set.
+     * @param pixels the pixels set.
+     * @param settings the rendering settings of the renderer.
+     * @param thumbnailMetadata the metadata of the thumbnail to create.
+     * @param theZ the optical section (offset across the Z-axis) requested.
+     * <pre>null</pre> signifies the rendering engine default.
+     * @param theT the timepoint (offset across the T-axis) requested.
+     * <pre>null</pre> signifies the rendering engine default.
+     * @return a scaled buffered image.
+     */
+    private BufferedImage renderScaledImage(Renderer renderer, Pixels pixels,
+            RenderingDef settings, Thumbnail thumbnailMetadata,
+            Integer theZ, Integer theT)
+    {
         // Retrieve our rendered data
         if (theZ == null)
             theZ = settings.getDefaultZ();
@@ -847,6 +900,25 @@ public class ThumbnailBean extends AbstractLevel2Service
     /** Actually does the work specified by {@link #createThumbnail(Integer, Integer)}. */
     private Thumbnail _createThumbnail() {
         StopWatch s1 = new Slf4JStopWatch("omero._createThumbnail");
+        prepareThumbnailMetadata();
+
+        BufferedImage image = createScaledImage(null, null);
+        try {
+            compressThumbnailToDisk(thumbnailMetadata, image);
+            s1.stop();
+            return thumbnailMetadata;
+        } catch (IOException e) {
+            log.error("Thumbnail could not be compressed.", e);
+            throw new ResourceError(e.getMessage());
+        }
+    }
+
+    /**
+     * Increments the version of the thumbnail metadata, or creates new
+     * metadata for the owner of the rendering settings, if the settings
+     * have changed since the thumbnail was created.
+     */
+    private void prepareThumbnailMetadata() {
         if (thumbnailMetadata == null) {
             throw new ValidationException("Missing thumbnail metadata.");
         } else if (ctx.dirtyMetadata(pixels.getId())) {
@@ -896,16 +968,6 @@ public class ThumbnailBean extends AbstractLevel2Service
         // dirtyMetadata is left false here because we may be creating a
         // thumbnail for the first time and the Thumbnail object has just been
         // created upstream of us.
-
-        BufferedImage image = createScaledImage(null, null);
-        try {
-            compressThumbnailToDisk(thumbnailMetadata, image);
-            s1.stop();
-            return thumbnailMetadata;
-        } catch (IOException e) {
-            log.error("Thumbnail could not be compressed.", e);
-            throw new ResourceError(e.getMessage());
-        }
     }
 
     private static void _setMetadataVersion(Thumbnail tb, boolean inProgress) {
@@ -1013,6 +1075,7 @@ public class ThumbnailBean extends AbstractLevel2Service
             @Override
             protected void actOnOneGroup(Set<Long> pixelsIds) {
                 final List<Thumbnail> toSave = new ArrayList<Thumbnail>();
+                final List<ThumbnailJob> jobs = new ArrayList<ThumbnailJob>();
                 for (final Long pixelsId : pixelsIds) {
                     // Ensure that the renderer has been made dirty otherwise the
                     // same renderer will be used to return all thumbnails with dirty
@@ -1031,19 +1094,31 @@ public class ThumbnailBean extends AbstractLevel2Service
                         pixels = ctx.getPixels(pixelsId);
                         settings = ctx.getSettings(pixelsId);
                         thumbnailMetadata = ctx.getMetadata(pixelsId);
-                        if (inProgress && !PROGRESS_VERSION.equals(thumbnailMetadata.getVersion())) {
-                            thumbnailMetadata.setVersion(PROGRESS_VERSION);
-                            dirtyMetadata = true;
-                        }
                         try {
-                            // At this point, we're sure that we have a thumbnail obj
-                            // that we want to use, but retrieveThumbnail likes to
-                            // re-generate. For the moment, we're saving and restoring
-                            // that value to prevent creating a new one.
-                            final byte[] thumbnail = retrieveThumbnail(false);
-                            toReturn.put(pixelsId, thumbnail);
-                            if (dirtyMetadata) {
-                                toSave.add(thumbnailMetadata);
+                            ThumbnailJob job = null;
+                            if (thumbnailExecutor != null && !inProgress
+                                    && !ctx.isThumbnailCached(pixelsId)) {
+                                // Rendered later on the thumbnail executor
+                                // unless the pyramid turns out to be in
+                                // progress when loading the renderer.
+                                job = prepareThumbnailJob();
+                            }
+                            if (job != null) {
+                                jobs.add(job);
+                            } else {
+                                if (inProgress && !PROGRESS_VERSION.equals(thumbnailMetadata.getVersion())) {
+                                    thumbnailMetadata.setVersion(PROGRESS_VERSION);
+                                    dirtyMetadata = true;
+                                }
+                                // At this point, we're sure that we have a thumbnail obj
+                                // that we want to use, but retrieveThumbnail likes to
+                                // re-generate. For the moment, we're saving and restoring
+                                // that value to prevent creating a new one.
+                                final byte[] thumbnail = retrieveThumbnail(false);
+                                toReturn.put(pixelsId, thumbnail);
+                                if (dirtyMetadata) {
+                                    toSave.add(thumbnailMetadata);
+                                }
                             }
                         } finally {
                             dirtyMetadata = false;
@@ -1052,7 +1127,11 @@ public class ThumbnailBean extends AbstractLevel2Service
                         log.warn("Retrieving thumbnail in set for " + "Pixels ID " + pixelsId + " failed.", t);
                         toReturn.put(pixelsId, null);
                     }
+                    if (jobs.size() >= THUMBNAIL_BATCH_SIZE) {
+                        runThumbnailJobs(jobs, toReturn, toSave);
+                    }
                 }
+                runThumbnailJobs(jobs, toReturn, toSave);
                 // We're doing the update or creation and save as a two-step
                 // process due to the possible unloaded Pixels. If we do not,
                 // Pixels will be unloaded and we will hit
@@ -1067,6 +1146,137 @@ public class ThumbnailBean extends AbstractLevel2Service
         return toReturn;
     }
 
+    /**
+     * Performs the database bound part of the creation of the thumbnail of
+     * the current pixels set: updates its metadata and loads its renderer,
+     * which is handed over to the returned job.
+     * @return The job creating the thumbnail or <code>null</code> if the
+     * pyramid of the pixels set is in progress, in which case there is no
+     * renderer and the in-progress image is to be returned instead.
+     */
+    private ThumbnailJob prepareThumbnailJob() {
+        prepareThumbnailMetadata();
+        errorIfInvalidState();
+        if (inProgress) {
+            return null;
+        }
+        ThumbnailJob job = new ThumbnailJob(pixels.getId(), pixels, settings,
+                thumbnailMetadata, renderer, dirtyMetadata);
+        renderer = null;
+        dirty = true;
+        return job;
+    }
+
+    /**
+     * Creates the thumbnails of a batch of jobs on the
+     * {@link #thumbnailExecutor}, collecting their bytes and the metadata to
+     * save in the order of the jobs.
+     * @param jobs The jobs to run, cleared on return.
+     * @param toReturn Map of Pixels ID vs. thumbnail bytes to fill.
+     * @param toSave List of the dirty metadata to fill.
+     */
+    private void runThumbnailJobs(List<ThumbnailJob> jobs,
+            Map<Long, byte[]> toReturn, List<Thumbnail> toSave)
+    {
+        if (jobs.isEmpty()) {
+            return;
+        }
+        if (diskSpaceChecking) {
+            iRepositoryInfo.sanityCheckRepository();
+        }
+        List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+        try {
+            for (ThumbnailJob job : jobs) {
+                futures.add(thumbnailExecutor.submit(job));
+            }
+            for (int i = 0; i < jobs.size(); i++) {
+                ThumbnailJob job = jobs.get(i);
+                try {
+                    toReturn.put(job.pixelsId, futures.get(i).get());
+                    if (job.dirtyMetadata) {
+                        toSave.add(job.thumbnailMetadata);
+                    }
+                } catch (ExecutionException e) {
+                    log.warn("Retrieving thumbnail in set for " + "Pixels ID "
+                            + job.pixelsId + " failed.", e.getCause());
+                    toReturn.put(job.pixelsId, null);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalException(
+                    "Interrupted while creating thumbnails.");
+        } finally {
+            for (int i = 0; i < jobs.size(); i++) {
+                if (i >= futures.size() || futures.get(i).cancel(false)) {
+                    // Never run, so never closed its renderer.
+                    jobs.get(i).close();
+                }
+            }
+            jobs.clear();
+        }
+    }
+
+    /**
+     * Renders, scales and compresses the thumbnail of a pixels set with its
+     * own renderer, writing it to disk. Closes the renderer once done.
+     */
+    private class ThumbnailJob implements Callable<byte[]> {
+
+        final long pixelsId;
+
+        final Pixels pixels;
+
+        final RenderingDef settings;
+
+        final Thumbnail thumbnailMetadata;
+
+        final boolean dirtyMetadata;
+
+        /** <code>null</code> once closed. */
+        private Renderer renderer;
+
+        ThumbnailJob(long pixelsId, Pixels pixels, RenderingDef settings,
+                Thumbnail thumbnailMetadata, Renderer renderer,
+                boolean dirtyMetadata) {
+            this.pixelsId = pixelsId;
+            this.pixels = pixels;
+            this.settings = settings;
+            this.thumbnailMetadata = thumbnailMetadata;
+            this.renderer = renderer;
+            this.dirtyMetadata = dirtyMetadata;
+        }
+
+        public byte[] call() throws IOException {
+            StopWatch s1 = new Slf4JStopWatch("omero._createThumbnail");
+            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+            try {
+                BufferedImage image = renderScaledImage(renderer, pixels,
+                        settings, thumbnailMetadata, null, null);
+                compressionService.compressToStream(image, byteStream);
+            } finally {
+                close();
+            }
+            byte[] thumbnail = byteStream.toByteArray();
+            FileOutputStream stream =
+                    ioService.getThumbnailOutputStream(thumbnailMetadata);
+            try {
+                stream.write(thumbnail);
+            } finally {
+                stream.close();
+            }
+            s1.stop();
+            return thumbnail;
+        }
+
+        synchronized void close() {
+            if (renderer != null) {
+                renderer.close();
+                renderer = null;
+            }
+        }
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -24,6 +24,7 @@ import java.util.Map;
 import java.util.Set;
 
 import ome.io.nio.AbstractFileSystemService;
+import ome.io.nio.PyramidTileCache;
 import ome.system.OmeroContext;
 
 import org.slf4j.Logger;
@@ -81,7 +82,8 @@ public class FileDeleter {
         filesFailed += thumbFD.deleteLocal();
         bytesFailed += thumbFD.getBytesFailed();
 
-        pixelsFD = new PixelsFileDeletions(afs, load(Type.Pixels));
+        pixelsFD = new PixelsFileDeletions(afs, load(Type.Pixels),
+                tileCache());
         filesFailed += pixelsFD.deleteLocal();
         bytesFailed += pixelsFD.getBytesFailed();
 
@@ -110,6 +112,18 @@ public class FileDeleter {
         return deleteTargets.get(fileType.toString());
     }
 
+    /**
+     * Lookup the cache of pyramid tiles whose tiles of deleted pixels must
+     * be dropped.
+     * @return the cache or <code>null</code> if there is none
+     */
+    protected PyramidTileCache tileCache() {
+        if (ctx == null || !ctx.containsBean("pyramidTileCache")) {
+            return null;
+        }
+        return ctx.getBean("pyramidTileCache", PyramidTileCache.class);
+    }
+
     public HashMap<String, long[]> getUndeletedFiles() {
         return undeletedFiles;
     }
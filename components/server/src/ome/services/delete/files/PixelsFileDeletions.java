@@ -24,6 +24,7 @@ import java.util.Set;
 import ome.io.bioformats.BfPyramidPixelBuffer;
 import ome.io.nio.AbstractFileSystemService;
 import ome.io.nio.PixelsService;
+import ome.io.nio.PyramidTileCache;
 
 import org.apache.commons.io.filefilter.WildcardFileFilter;
 import org.slf4j.Logger;
@@ -40,9 +41,14 @@ public class PixelsFileDeletions extends AbstractFileDeletions {
 
     private static final Logger log = LoggerFactory.getLogger(PixelsFileDeletions.class);
 
-    public PixelsFileDeletions(AbstractFileSystemService afs, Set<Long> deletedIds) {
+    public PixelsFileDeletions(AbstractFileSystemService afs, Set<Long> deletedIds,
+            PyramidTileCache tileCache) {
         super(afs, deletedIds);
         for (Long id : deletedIds) {
+            if (tileCache != null) {
+                // Drop the tiles of the pyramid about to be deleted
+                tileCache.invalidate(id);
+            }
             final String filePath = afs.getPixelsPath(id);
             final File file = new File(filePath);
             final File pyrFile = new File(filePath + PixelsService.PYRAMID_SUFFIX);
@@ -56,6 +62,8 @@ public class PixelsFileDeletions extends AbstractFileDeletions {
             addLocalFile(pyrFile, id);
             // Now any lock file
             addLocalFile(lockFile, id);
+            // And any per-plane statistics
+            addLocalFile(new File(filePath + PixelsService.STATS_SUFFIX), id);
 
             // Now any tmp files
             FileFilter tmpFileFilter = new WildcardFileFilter("."
@@ -7,6 +7,7 @@
 
 package ome.services.eventlogs;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
@@ -207,6 +208,33 @@ public abstract class EventLogLoader implements Iterator<EventLog>,
         throw new UnsupportedOperationException("Cannot remove EventLogs");
     }
 
+    /**
+     * Returns the non-null {@link EventLog} instances of the next batch at
+     * once, for consumers which read a whole batch before processing it.
+     * Failures are reported as when iterating, by publishing an
+     * {@link EventLogFailure}, and {@link #batchProcessed()} must be called
+     * once the batch has been processed.
+     */
+    public List<EventLog> nextBatch() {
+        List<EventLog> logs = new ArrayList<EventLog>();
+        while (hasNext()) {
+            EventLog el = next();
+            if (el != null) {
+                logs.add(el);
+            }
+        }
+        return logs;
+    }
+
+    /**
+     * Called once the {@link EventLog} instances returned by
+     * {@link #nextBatch()} have been processed. Does nothing by default since
+     * implementations consider an {@link EventLog} processed once returned.
+     */
+    public void batchProcessed() {
+        // no-op
+    }
+
     public void rollback(EventLog el) {
         if (excludes.contains(el.getEntityType())) {
             if (log.isDebugEnabled()) {
@@ -19,6 +19,7 @@
 package ome.services.eventlogs;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -72,7 +73,9 @@ public class EventLogQueue extends PersistentEventLogLoader {
 
         /**
          * Marked on the <em>previous</em> {@link Entry} when
-         * {@link EventLogQueue#next} is about to return.
+         * {@link EventLogQueue#next} is about to return or, for batches, on
+         * the entries of the batch when
+         * {@link EventLogQueue#batchProcessed()} is called.
          */
         PASS,
 
@@ -325,6 +328,20 @@ public class EventLogQueue extends PersistentEventLogLoader {
             return entry;
         }
 
+        /**
+         * Puts an {@link Entry} which was returned but never processed back
+         * at the head of the queue unless a later log for the same object
+         * has been loaded since.
+         */
+        public void retry(Entry entry) {
+            Entries entries = entries(entry.objType);
+            if (entries.get(entry.objId) == null) {
+                entries.entries.put(entry.objId, entry);
+                priorityQ.add(0, entry);
+                priorityCount.inc();
+            }
+        }
+
         public void fail(EventLogFailure failure) {
             WrappedEventLog wrapped = (WrappedEventLog) failure.log;
             failureQ.add(wrapped);
@@ -382,12 +399,20 @@ public class EventLogQueue extends PersistentEventLogLoader {
     private int batchCount;
 
     /**
-     * Last {@link Entry} which was returned by the {@link #next()} method. If a
-     * {@link EventLogFailure} is received, then this should be marked as such.
-     * If {@link #next()} is called again without a failure, it can be assumed
-     * that the processing was successful.
+     * Entries returned by the {@link #next()} method and not yet processed, in
+     * order. If a {@link EventLogFailure} is received for one, then it is
+     * marked as such. If {@link #next()} is called again without a failure, it
+     * can be assumed that the processing was successful, unless the entries
+     * are read by {@link #nextBatch()}: they are then only considered
+     * processed by {@link #batchProcessed()}.
+     */
+    private final List<WrappedEventLog> outstanding =
+            new ArrayList<WrappedEventLog>();
+
+    /**
+     * Whether {@link #nextBatch()} is reading entries ahead of processing.
      */
-    private WrappedEventLog lastReturned;
+    private boolean batching;
 
     public EventLogQueue() {
         this(new NullMetrics(),
@@ -488,11 +513,21 @@ public class EventLogQueue extends PersistentEventLogLoader {
         if (arg0 instanceof EventLogFailure) {
             EventLogFailure failure = (EventLogFailure) arg0;
             if (failure.wasSource(this)) {
-                if (lastReturned != failure.log) {
-                    log.error("lastReturned is not failure item!");
+                WrappedEventLog failed = null;
+                for (Iterator<WrappedEventLog> it = outstanding.iterator();
+                        it.hasNext();) {
+                    WrappedEventLog wrapped = it.next();
+                    if (wrapped == failure.log) {
+                        it.remove(); // Prevent success later
+                        failed = wrapped;
+                        break;
+                    }
                 }
-                lastReturned.timer.stop(); // In case of fail
-                lastReturned = null; // Prevent success later
+                if (failed == null) {
+                    log.error("Failure item was not returned: " + failure.log);
+                    return;
+                }
+                failed.timer.stop(); // In case of fail
                 data.fail(failure);
             }
         } else {
@@ -501,28 +536,40 @@ public class EventLogQueue extends PersistentEventLogLoader {
     }
 
     /**
-     * Handles cleanup of the previously offered {@link Entry} and prepares the
-     * new {@link Entry} for processing.
+     * Handles cleanup of the previously offered {@link Entry} unless reading
+     * a batch and prepares the new {@link Entry} for processing.
      */
     private EventLog offer(Entry entry) {
         // First handle the previously returned
-        if (this.lastReturned != null) {
-            this.lastReturned.timer.stop(); // In case of success
-            Entry last = this.lastReturned.entry;
+        if (!batching) {
+            pass();
+        }
+
+        if (entry.state != State.OPEN) {
+            return null;
+        }
+        WrappedEventLog wrapped =
+                new WrappedEventLog(entry, processTime.time());
+        outstanding.add(wrapped);
+        return wrapped;
+    }
+
+    /**
+     * Marks the outstanding entries, which did not fail, as successfully
+     * handled.
+     */
+    private void pass() {
+        for (WrappedEventLog wrapped : outstanding) {
+            wrapped.timer.stop(); // In case of success
+            Entry last = wrapped.entry;
             last.pass();
             if (last.eventLog >= 0) {
                 setCurrentId(last.eventLog);
             }
             log.debug(String.format("Successfully handled %s. Skipped: %s",
                     last, last.skipped));
-            this.lastReturned = null;
-        }
-
-        if (entry.state != State.OPEN) {
-            return null;
         }
-        this.lastReturned = new WrappedEventLog(entry, processTime.time());
-        return this.lastReturned;
+        outstanding.clear();
     }
 
     //
@@ -562,6 +609,39 @@ public class EventLogQueue extends PersistentEventLogLoader {
         return offer(data.next());
     }
 
+    /**
+     * Reads the entries of a batch without considering any of them processed
+     * until {@link #batchProcessed()} is called. Entries of a previous batch
+     * which never got processed, as its processing failed, are first put back
+     * in the queue, as they were never handled.
+     */
+    @Override
+    public List<EventLog> nextBatch() {
+        if (batching) {
+            for (int i = outstanding.size() - 1; i >= 0; i--) {
+                WrappedEventLog wrapped = outstanding.get(i);
+                wrapped.timer.stop();
+                log.debug("Retrying unprocessed " + wrapped.entry);
+                data.retry(wrapped.entry);
+            }
+            outstanding.clear();
+        } else {
+            pass();
+        }
+        batching = true;
+        return super.nextBatch();
+    }
+
+    /**
+     * Marks the entries of the batch which did not fail as successfully
+     * handled.
+     */
+    @Override
+    public void batchProcessed() {
+        pass();
+        batching = false;
+    }
+
     //
     // PersistentEventLogLoader
     //
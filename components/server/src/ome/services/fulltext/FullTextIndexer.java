@@ -19,6 +19,12 @@
 
 package ome.services.fulltext;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import ome.model.IAnnotated;
 import ome.model.IGlobal;
@@ -68,12 +74,32 @@ public class FullTextIndexer extends SimpleWork implements ApplicationContextAwa
      */
     public final static int DEFAULT_REPORTING_LOOPS = 100;
 
+    /**
+     * Default number of actions whose Lucene documents are flushed to the
+     * indexes together if no external value is set.
+     */
+    public final static int DEFAULT_FLUSH_SIZE = 500;
+
+    /**
+     * Maximum number of ids loaded by a single prefetch query.
+     */
+    final static int PREFETCH_SIZE = 1000;
+
     abstract class Action {
         Class type;
         long id;
         IObject obj;
+        EventLog eventLog;
 
-        abstract void go(FullTextSession session);
+        /**
+         * Queues the work for this action without flushing it to the indexes.
+         */
+        abstract void queue(FullTextSession session);
+
+        void go(FullTextSession session) {
+            queue(session);
+            session.flushToIndexes();
+        }
 
         abstract void log(Logger log);
     }
@@ -85,9 +111,8 @@ public class FullTextIndexer extends SimpleWork implements ApplicationContextAwa
         }
 
         @Override
-        void go(FullTextSession session) {
+        void queue(FullTextSession session) {
             session.purge(type, id);
-            session.flushToIndexes();
         }
 
         @Override
@@ -100,14 +125,15 @@ public class FullTextIndexer extends SimpleWork implements ApplicationContextAwa
 
     class Index extends Action {
 
-        Index(IObject obj) {
+        Index(Class type, long id, IObject obj) {
+            this.type = type;
+            this.id = id;
             this.obj = obj;
         }
 
         @Override
-        void go(FullTextSession session) {
+        void queue(FullTextSession session) {
             session.index(obj);
-            session.flushToIndexes();
         }
 
         @Override
@@ -124,7 +150,9 @@ public class FullTextIndexer extends SimpleWork implements ApplicationContextAwa
 
     final protected Timer batchTimer;
 
-    final protected Histogram completeSlow, completeFast;
+    final protected Timer flushTimer;
+
+    final protected Histogram completeSlow, completeFast, batchSize;
 
     protected int reps = 5;
 
@@ -135,6 +163,11 @@ public class FullTextIndexer extends SimpleWork implements ApplicationContextAwa
      */
     protected int reportingLoops = DEFAULT_REPORTING_LOOPS;
 
+    /**
+     * Number of actions whose Lucene documents are flushed together.
+     */
+    protected int flushSize = DEFAULT_FLUSH_SIZE;
+
     protected boolean dryRun = false;
 
     protected OmeroContext context = null;
@@ -151,6 +184,14 @@ public class FullTextIndexer extends SimpleWork implements ApplicationContextAwa
         this.reportingLoops = loops;
     }
 
+    /**
+     * Spring injector. Sets the number of actions whose Lucene documents are
+     * flushed to the indexes together.
+     */
+    public void setFlushSize(int flushSize) {
+        this.flushSize = Math.max(flushSize, 1);
+    }
+
     public void setDryRun(boolean dryRun) {
         this.dryRun = dryRun;
     }
@@ -169,6 +210,10 @@ public class FullTextIndexer extends SimpleWork implements ApplicationContextAwa
         this.parserSession = new ParserSession();
         this.batchTimer =
                 metrics.timer(this, "batch");
+        this.flushTimer =
+                metrics.timer(this, "flush");
+        this.batchSize =
+                metrics.histogram(this, "batchSize");
         this.completeSlow=
                 metrics.histogram(this, "percentCompleteSlow");
         this.completeFast =
@@ -259,28 +304,132 @@ public class FullTextIndexer extends SimpleWork implements ApplicationContextAwa
         return rc;
     }
 
+    /**
+     * Indexes a whole batch of the {@link #loader}: the objects to index are
+     * prefetched with one query per type and chunk of {@link #PREFETCH_SIZE}
+     * ids, each object is indexed at most once per batch and the Lucene
+     * documents are flushed {@link #flushSize} actions at a time. The
+     * {@link #loader} is only told that the batch was processed once it has
+     * been flushed, failures having been reported per {@link EventLog}.
+     */
     public int doIndexing(FullTextSession session) {
 
-        int count = 0;
-
-        for (EventLog eventLog : loader) {
+        final List<EventLog> eventLogs = loader.nextBatch();
+        if (dryRun) {
+            eventLogs.clear();
+        }
+        batchSize.update(eventLogs.size());
+        if (eventLogs.isEmpty()) {
+            loader.batchProcessed();
+            return 0;
+        }
 
-            if (dryRun) {
+        final Map<Class, Map<Long, IObject>> prefetched =
+                prefetch(session, eventLogs);
+        final Set<String> indexed = new HashSet<String>();
+        final List<Action> pending = new ArrayList<Action>();
+        for (EventLog eventLog : eventLogs) {
+            Action action;
+            try {
+                action = createAction(session, eventLog, prefetched);
+                if (action == null) {
+                    continue;
+                }
+                String key = action.type.getName() + ":" + action.id;
+                if (action instanceof Purge) {
+                    indexed.remove(key);
+                } else if (indexed.contains(key)) {
+                    // Already indexed in this batch with the same graph.
+                    continue;
+                }
+                action.queue(session);
+                if (!(action instanceof Purge)) {
+                    indexed.add(key);
+                }
+            } catch (Exception e) {
+                // Only this log fails, the rest of the batch is indexed.
+                report(eventLog, e);
                 continue;
             }
-
-            if (eventLog != null) {
-                handleEventLog(session, eventLog);
-                count++;
+            pending.add(action);
+            if (pending.size() >= flushSize) {
+                flush(session, pending);
             }
-            session.flush();
-            parserSession.closeParsedFiles();
+        }
+        flush(session, pending);
+        session.flush();
+        parserSession.closeParsedFiles();
+        loader.batchProcessed();
+        return eventLogs.size();
+    }
 
+    /**
+     * Flushes the Lucene documents of the pending actions to the indexes
+     * together. If that fails, the actions are retried one at a time so that
+     * only the failing ones are reported.
+     */
+    private void flush(FullTextSession session, List<Action> pending) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        Timer.Context timer = flushTimer.time();
+        try {
+            session.flushToIndexes();
+            for (Action action : pending) {
+                action.log(log);
+            }
+        } catch (Exception e) {
+            log.warn(String.format("Failed to flush %s actions together, "
+                    + "retrying one at a time", pending.size()), e);
+            for (Action action : pending) {
+                go(session, action);
+            }
+        } finally {
+            timer.stop();
+            pending.clear();
         }
-        return count;
     }
 
     protected void handleEventLog(FullTextSession session, EventLog eventLog) {
+        Action action = createAction(session, eventLog,
+                new HashMap<Class, Map<Long, IObject>>());
+        if (action != null) {
+            go(session, action);
+        }
+    }
+
+    /**
+     * Performs a single action, reporting its failure.
+     */
+    private void go(FullTextSession session, Action action) {
+        try {
+            action.go(session);
+        } catch (Exception e) {
+            report(action.eventLog, e);
+        }
+        action.log(log);
+    }
+
+    /**
+     * Publishes the failure to index an {@link EventLog}.
+     */
+    private void report(EventLog eventLog, Exception e) {
+        try {
+            this.context.publishMessage(new EventLogFailure(loader, eventLog, e));
+        } catch (RuntimeException re) {
+            throw re;
+        } catch (Throwable e1) {
+            throw new RuntimeException(e1);
+        }
+    }
+
+    /**
+     * Creates the action for an {@link EventLog}, using the prefetched object
+     * if available.
+     * @return the action or null if there is nothing to do.
+     */
+    private Action createAction(FullTextSession session, EventLog eventLog,
+            Map<Class, Map<Long, IObject>> prefetched) {
         String act = eventLog.getAction();
         Class type = asClassOrNull(eventLog.getEntityType());
         if (type != null) {
@@ -290,7 +439,9 @@ public class FullTextIndexer extends SimpleWork implements ApplicationContextAwa
             if ("DELETE".equals(act)) {
                 action = new Purge(type, id);
             } else if ("REINDEX".equals(act) || "UPDATE".equals(act) || "INSERT".equals(act)) {
-                IObject obj = get(session, type, id);
+                Map<Long, IObject> objs = prefetched.get(type);
+                IObject obj = objs != null && objs.containsKey(id) ?
+                        objs.get(id) : get(session, type, id);
                 if (obj == null) {
                     // This object was deleted before the indexer caught up with
                     // the INSERT/UDPDATE log. Though this isn't a problem itself,
@@ -300,7 +451,7 @@ public class FullTextIndexer extends SimpleWork implements ApplicationContextAwa
                             .getName(), id, eventLog));
                     action = new Purge(type, id);
                 } else {
-                    action = new Index(obj);
+                    action = new Index(type, id, obj);
                 }
             } else {
                 // Likely CHGRP-VALIDATION, PIXELDATA or similar.
@@ -310,20 +461,58 @@ public class FullTextIndexer extends SimpleWork implements ApplicationContextAwa
             }
 
             if (action != null) {
-                try {
-                    action.go(session);
-                } catch (Exception e) {
-                    try {
-                        this.context.publishMessage(new EventLogFailure(loader, eventLog, e));
-                    } catch (RuntimeException re) {
-                        throw re;
-                    } catch (Throwable e1) {
-                        throw new RuntimeException(e1);
+                action.eventLog = eventLog;
+            }
+            return action;
+        }
+        return null;
+    }
+
+    /**
+     * Loads the object graphs of all the {@link EventLog}s to index, per type
+     * and in chunks of {@link #PREFETCH_SIZE} ids.
+     * @return the loaded objects by type and id. Ids with no object, as
+     * deleted since, are mapped to null.
+     */
+    protected Map<Class, Map<Long, IObject>> prefetch(Session session,
+            List<EventLog> eventLogs) {
+        final Map<Class, Set<Long>> ids = new HashMap<Class, Set<Long>>();
+        for (EventLog eventLog : eventLogs) {
+            String act = eventLog.getAction();
+            if ("REINDEX".equals(act) || "UPDATE".equals(act) || "INSERT".equals(act)) {
+                Class type = asClassOrNull(eventLog.getEntityType());
+                if (type != null) {
+                    Set<Long> typeIds = ids.get(type);
+                    if (typeIds == null) {
+                        typeIds = new HashSet<Long>();
+                        ids.put(type, typeIds);
                     }
+                    typeIds.add(eventLog.getEntityId());
                 }
-                action.log(log);
             }
         }
+        final Map<Class, Map<Long, IObject>> prefetched =
+                new HashMap<Class, Map<Long, IObject>>();
+        for (Map.Entry<Class, Set<Long>> entry : ids.entrySet()) {
+            Class type = entry.getKey();
+            Map<Long, IObject> objs = new HashMap<Long, IObject>();
+            List<Long> typeIds = new ArrayList<Long>(entry.getValue());
+            for (int i = 0; i < typeIds.size(); i += PREFETCH_SIZE) {
+                List<Long> chunk = typeIds.subList(i,
+                        Math.min(i + PREFETCH_SIZE, typeIds.size()));
+                for (Long id : chunk) {
+                    objs.put(id, null);
+                }
+                QueryBuilder qb = graphQuery(type, "select distinct this");
+                qb.where().and("this.id in (:ids)");
+                qb.paramList("ids", chunk);
+                for (Object obj : qb.query(session).list()) {
+                    objs.put(((IObject) obj).getId(), (IObject) obj);
+                }
+            }
+            prefetched.put(type, objs);
+        }
+        return prefetched;
     }
 
     /**
@@ -356,8 +545,20 @@ public class FullTextIndexer extends SimpleWork implements ApplicationContextAwa
     }
 
     protected IObject get(Session session, Class type, long id) {
+        QueryBuilder qb = graphQuery(type, "this");
+        qb.where().and("this.id = :id");
+        qb.param("id", id);
+
+        return (IObject) qb.query(session).uniqueResult();
+    }
+
+    /**
+     * Builds the query loading the graph of an object required by the
+     * bridges.
+     */
+    protected QueryBuilder graphQuery(Class type, String select) {
         QueryBuilder qb = new QueryBuilder();
-        qb.select("this").from(type.getName(), "this");
+        qb.select(select).from(type.getName(), "this");
         if (IAnnotated.class.isAssignableFrom(type)) {
             qb.join("this.annotationLinks", "l1", true, true);
             qb.join("l1.child", "a1", true, true);
@@ -372,9 +573,6 @@ public class FullTextIndexer extends SimpleWork implements ApplicationContextAwa
             qb.join("this.details.owner", "owner", false, true);
             qb.join("this.details.group", "group", false, true);
         }
-        qb.where().and("this.id = :id");
-        qb.param("id", id);
-
-        return (IObject) qb.query(session).uniqueResult();
+        return qb;
     }
 }
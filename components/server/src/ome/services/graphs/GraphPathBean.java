@@ -32,6 +32,8 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -140,6 +142,44 @@ public class GraphPathBean extends OnContextRefreshedEventListener {
     /* the properties of classes that have simple values, with only the top-level name */
     private final SetMultimap<String, String> simplePropertiesDirect = HashMultimap.create();
 
+    /* the executor on which graph traversal may run planning queries concurrently, may be null */
+    private ExecutorService planningExecutor = null;
+
+    /* the permits for the read-only sessions on which graph traversal may run planning queries, may be null */
+    private Semaphore planningSessionPermits = null;
+
+    /**
+     * Set the executor on which graph traversals may run the independent link queries of their planning concurrently.
+     * @param planningExecutor the executor, may be {@code null} for graph traversals to run their queries in turn
+     */
+    public void setPlanningExecutor(ExecutorService planningExecutor) {
+        this.planningExecutor = planningExecutor;
+    }
+
+    /**
+     * @return the executor on which graph traversals may run planning queries concurrently, may be {@code null}
+     */
+    public ExecutorService getPlanningExecutor() {
+        return planningExecutor;
+    }
+
+    /**
+     * Set how many read-only sessions graph traversals may have open at once for running planning queries concurrently.
+     * These are shared among all graph traversals and each holds a database connection, so the limit should be no more
+     * than the planning executor has threads and well below the size of the database connection pool.
+     * @param planningSessionLimit the maximum number of concurrent planning sessions
+     */
+    public void setPlanningSessionLimit(int planningSessionLimit) {
+        this.planningSessionPermits = new Semaphore(planningSessionLimit);
+    }
+
+    /**
+     * @return the permits for opening read-only sessions for running planning queries concurrently, may be {@code null}
+     */
+    public Semaphore getPlanningSessionPermits() {
+        return planningSessionPermits;
+    }
+
     /**
      * The application context after refresh should contain a usable Hibernate session factory.
      * If not already done, process the Hibernate domain object model from that bean.
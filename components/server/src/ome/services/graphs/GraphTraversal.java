@@ -32,13 +32,19 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.hibernate.Filter;
+import org.hibernate.FlushMode;
 import org.hibernate.Hibernate;
 import org.hibernate.Query;
 import org.hibernate.QueryException;
 import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.impl.FilterImpl;
 import org.hibernate.proxy.HibernateProxy;
 
 import com.google.common.base.Joiner;
@@ -461,6 +467,71 @@ public class GraphTraversal {
         void assertMayProcess(String className, long id, ome.model.internal.Details details) throws GraphException;
     }
 
+    /**
+     * Runs link queries on a given session.
+     * @since 5.3
+     */
+    private static class SessionQuerier implements LinkQueries.Querier {
+        final Session session;
+
+        SessionQuerier(Session session) {
+            this.session = session;
+        }
+
+        @Override
+        public List<Object[]> query(String query, Collection<Long> ids) {
+            return session.createQuery(query).setParameterList("ids", ids).list();
+        }
+    }
+
+    /**
+     * Opens read-only sessions for link queries that see the same as the graph traversal's own session:
+     * they have the same filters enabled with the same parameters.
+     * Such sessions see only committed data so are to be used only while the current transaction has changed nothing.
+     * @since 5.3
+     */
+    private static class ReadOnlySessions implements LinkQueries.QuerierSource {
+        final Session session;
+
+        ReadOnlySessions(Session session) {
+            this.session = session;
+        }
+
+        @Override
+        public LinkQueries.Querier open() {
+            final SessionFactory sessionFactory = session.getSessionFactory();
+            final Session readOnlySession = sessionFactory.openSession();
+            readOnlySession.setDefaultReadOnly(true);
+            readOnlySession.setFlushMode(FlushMode.MANUAL);
+            for (final String filterName : (Set<String>) sessionFactory.getDefinedFilterNames()) {
+                final Filter filter = session.getEnabledFilter(filterName);
+                if (filter != null) {
+                    final Filter readOnlyFilter = readOnlySession.enableFilter(filterName);
+                    for (final Entry<String, Object> parameter :
+                        ((Map<String, Object>) ((FilterImpl) filter).getParameters()).entrySet()) {
+                        if (parameter.getValue() instanceof Collection) {
+                            readOnlyFilter.setParameterList(parameter.getKey(), (Collection<?>) parameter.getValue());
+                        } else {
+                            readOnlyFilter.setParameter(parameter.getKey(), parameter.getValue());
+                        }
+                    }
+                }
+            }
+            readOnlySession.beginTransaction();
+            return new SessionQuerier(readOnlySession);
+        }
+
+        @Override
+        public void close(LinkQueries.Querier querier) {
+            final Session readOnlySession = ((SessionQuerier) querier).session;
+            try {
+                readOnlySession.getTransaction().rollback();
+            } finally {
+                readOnlySession.close();
+            }
+        }
+    }
+
     private final Session session;
     private final EventContext eventContext;
     private final boolean isCheckUserPermissions;
@@ -471,6 +542,7 @@ public class GraphTraversal {
     private final Planning planning;
     private final GraphPolicy policy;
     private final Processor processor;
+    private final LinkQueries linkQueries;
 
     /**
      * Construct a new instance of a graph traversal manager.
@@ -493,6 +565,29 @@ public class GraphTraversal {
         this.policy = policy;
         this.processor = log.isDebugEnabled() ? debugWrap(processor) : processor;
         this.isCheckUserPermissions = !LightAdminPrivileges.getAllPrivileges().equals(eventContext.getCurrentAdminPrivileges());
+        this.linkQueries = new LinkQueries(new SessionQuerier(session));
+    }
+
+    /**
+     * Determine if the current transaction has yet to change anything, either in the session or in the database.
+     * If so, separate read-only sessions see the same as this traversal's own session does.
+     * The current event is ignored: it is saved at the start of every transaction that may write.
+     * So are the current transaction's administrator privileges: they are written on every flush by an administrator.
+     * @return if the current transaction has changed nothing, {@code false} if that could not be determined
+     */
+    private boolean isTransactionUnchanged() {
+        try {
+            if (session.isDirty()) {
+                return false;
+            }
+            final Number changes = (Number) session.createSQLQuery(
+                    "SELECT COALESCE(SUM(n_tup_ins + n_tup_upd + n_tup_del), 0) FROM pg_stat_xact_all_tables " +
+                    "WHERE relid NOT IN ('event'::regclass, '_current_admin_privileges'::regclass)").uniqueResult();
+            return changes.longValue() == 0;
+        } catch (RuntimeException e) {
+            log.debug("could not determine if the current transaction has made changes", e);
+            return false;
+        }
     }
 
     /**
@@ -589,6 +684,14 @@ public class GraphTraversal {
      * @throws GraphException if the model objects were not as expected
      */
     private void planOperation() throws GraphException {
+        /* link queries may be run on other sessions only if they would see the same as this one */
+        final ExecutorService planningExecutor = model.getPlanningExecutor();
+        final Semaphore planningSessionPermits = model.getPlanningSessionPermits();
+        if (planningExecutor != null && planningSessionPermits != null && isTransactionUnchanged()) {
+            linkQueries.setConcurrent(planningExecutor, planningSessionPermits, new ReadOnlySessions(session));
+        } else {
+            linkQueries.setConcurrent(null, null, null);
+        }
         /* track state to guarantee progress in reprocessing objects whose orphan status is relevant */
         Set<CI> optimisticReprocess = null;
         /* set of not-last objects after latest review */
@@ -884,20 +987,14 @@ public class GraphTraversal {
     /**
      * Load a specific link property's object relationships into the various cache fields of {@link Planning}.
      * @param linkProperty the link property being processed
-     * @param query the HQL to query the property's object relationships
-     * @param ids the IDs of the related objects
+     * @param linkerToLinked the queried object relationships of the property, by object ID
      * @return which linker objects are related to which linked objects by the given property
      * @throws GraphException if the objects could not be converted to unloaded instances
      */
-    private List<Entry<CI,CI>> getLinksToCache(CP linkProperty, String query, Collection<Long> ids) throws GraphException {
+    private List<Entry<CI,CI>> getLinksToCache(CP linkProperty, SetMultimap<Long, Long> linkerToLinked)
+            throws GraphException {
         final String linkedClassName = getLinkedClass(linkProperty);
         final boolean propertyIsAccessible = model.isPropertyAccessible(linkProperty.className, linkProperty.propertyName);
-        final SetMultimap<Long, Long> linkerToLinked = HashMultimap.create();
-        for (final List<Long> idsBatch : Iterables.partition(ids, BATCH_SIZE)) {
-            for (final Object[] result : (List<Object[]>) session.createQuery(query).setParameterList("ids", idsBatch).list()) {
-                linkerToLinked.put((Long) result[0], (Long) result[1]);
-            }
-        }
         final List<Entry<CI,CI>> linkerLinked = new ArrayList<Entry<CI,CI>>();
         final Map<Long, CI> linkersById = findObjectDetails(linkProperty.className, linkerToLinked.keySet());
         final Map<Long, CI> linkedsById = findObjectDetails(linkedClassName, new HashSet<Long>(linkerToLinked.values()));
@@ -943,21 +1040,34 @@ public class GraphTraversal {
                 }
             }
         }
-        /* query and cache forward links */
+        /* query forward and backward links, the queries being independent of each other */
+        final List<CP> forwardLinkProperties = new ArrayList<CP>(forwardLinksWanted.keySet().size());
+        final List<CP> backwardLinkProperties = new ArrayList<CP>(backwardLinksWanted.keySet().size());
+        final List<Entry<String, Collection<Long>>> queries = new ArrayList<Entry<String, Collection<Long>>>();
         for (final Entry<CP, Collection<Long>> forwardLink : forwardLinksWanted.asMap().entrySet()) {
             final CP linkProperty = forwardLink.getKey();
             final String query = "SELECT linker.id, linked.id FROM " + linkProperty.className + " AS linker " +
                     "JOIN linker." + linkProperty.propertyName + " AS linked WHERE linker.id IN (:ids)";
-            for (final Entry<CI, CI> linkerLinked : getLinksToCache(linkProperty, query, forwardLink.getValue())) {
-                planning.forwardLinksCached.put(linkProperty.toCPI(linkerLinked.getKey().id), linkerLinked.getValue());
-            }
+            forwardLinkProperties.add(linkProperty);
+            queries.add(Maps.immutableEntry(query, forwardLink.getValue()));
         }
-        /* query and cache backward links */
         for (final Entry<CP, Collection<Long>> backwardLink : backwardLinksWanted.asMap().entrySet()) {
             final CP linkProperty = backwardLink.getKey();
             final String query = "SELECT linker.id, linked.id FROM " + linkProperty.className + " AS linker " +
                     "JOIN linker." + linkProperty.propertyName + " AS linked WHERE linked.id IN (:ids)";
-            for (final Entry<CI, CI> linkerLinked : getLinksToCache(linkProperty, query, backwardLink.getValue())) {
+            backwardLinkProperties.add(linkProperty);
+            queries.add(Maps.immutableEntry(query, backwardLink.getValue()));
+        }
+        final Iterator<SetMultimap<Long, Long>> results = linkQueries.query(queries).iterator();
+        /* cache forward links, in the same order as if queried in turn */
+        for (final CP linkProperty : forwardLinkProperties) {
+            for (final Entry<CI, CI> linkerLinked : getLinksToCache(linkProperty, results.next())) {
+                planning.forwardLinksCached.put(linkProperty.toCPI(linkerLinked.getKey().id), linkerLinked.getValue());
+            }
+        }
+        /* cache backward links */
+        for (final CP linkProperty : backwardLinkProperties) {
+            for (final Entry<CI, CI> linkerLinked : getLinksToCache(linkProperty, results.next())) {
                 planning.backwardLinksCached.put(linkProperty.toCPI(linkerLinked.getValue().id), linkerLinked.getKey());
             }
         }
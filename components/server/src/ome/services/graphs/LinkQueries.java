@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.graphs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
+
+/**
+ * Runs the link queries of a step of graph traversal planning. Each query selects pairs of linker and linked object IDs
+ * for a set of IDs, in batches whose size adapts to how long the batches take to query. The queries of a step are
+ * independent of each other so, if queriers on separate sessions are available, they may be run concurrently. The results
+ * are returned in the order of the queries regardless so the planning that consumes them is unaffected. The calling thread
+ * never waits for a querier to become available: it runs in turn any queries that no other querier takes.
+ * @since 5.3
+ */
+public class LinkQueries {
+
+    private static final Logger log = LoggerFactory.getLogger(LinkQueries.class);
+
+    /* the initial size of the batches of IDs, as used by the rest of the graph traversal */
+    public static final int INITIAL_BATCH_SIZE = 256;
+
+    /* the bounds of the size of the batches of IDs; the upper bound should still be suitable for IN (:ids) for HQL */
+    public static final int MIN_BATCH_SIZE = 64;
+    public static final int MAX_BATCH_SIZE = 4096;
+
+    /* batches quicker than this grow, those slower than this shrink */
+    public static final long FAST_BATCH_MS = 50;
+    public static final long SLOW_BATCH_MS = 500;
+
+    /**
+     * Queries for the linker and linked object IDs for a batch of IDs.
+     * @since 5.3
+     */
+    public interface Querier {
+        /**
+         * @param query the HQL to query the object relationships, with an {@code ids} parameter list
+         * @param ids the IDs to set for the {@code ids} parameter
+         * @return the linker and linked object IDs
+         */
+        List<Object[]> query(String query, Collection<Long> ids);
+    }
+
+    /**
+     * Provides queriers on their own sessions so that they may be used concurrently.
+     * Queriers are opened and closed on the thread that uses them.
+     * @since 5.3
+     */
+    public interface QuerierSource {
+        /**
+         * @return a new querier, on its own session
+         */
+        Querier open();
+
+        /**
+         * @param querier a querier from {@link #open()}, no longer used
+         */
+        void close(Querier querier);
+    }
+
+    private final Querier querier;
+
+    private ExecutorService executor = null;
+    private Semaphore querierPermits = null;
+    private QuerierSource querierSource = null;
+
+    private int batchSize = INITIAL_BATCH_SIZE;
+
+    /**
+     * Construct a new instance that runs the queries in turn with the given querier.
+     * @param querier the querier, typically on the session of the graph traversal
+     */
+    public LinkQueries(Querier querier) {
+        this.querier = querier;
+    }
+
+    /**
+     * Set how to run the queries of a step concurrently. The calling thread runs queries too, with its own querier.
+     * Each other querier needs a permit that is acquired without waiting: if none are available then the queries are
+     * run in turn on the calling thread. The permits may be shared among many instances to bound how many queriers are
+     * open at once, so should be no more than the executor has threads.
+     * @param executor the executor to run the queries on, may be {@code null} to run them in turn on the calling thread
+     * @param querierPermits the permits for opening queriers on the executor's threads
+     * @param querierSource the source of the queriers to use on the executor's threads
+     */
+    public void setConcurrent(ExecutorService executor, Semaphore querierPermits, QuerierSource querierSource) {
+        this.executor = querierPermits == null || querierSource == null ? null : executor;
+        this.querierPermits = querierPermits;
+        this.querierSource = querierSource;
+    }
+
+    /**
+     * @return if the queries are run concurrently
+     */
+    public boolean isConcurrent() {
+        return executor != null;
+    }
+
+    /**
+     * @return the size of the next batch of IDs to query
+     */
+    public synchronized int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Adjust the batch size according to how long a batch took to query.
+     * @param size the size of the batch
+     * @param elapsed how long the batch took to query, in milliseconds
+     */
+    private synchronized void adaptBatchSize(int size, long elapsed) {
+        if (size < batchSize) {
+            /* a short remainder says nothing about a full batch */
+            return;
+        }
+        if (elapsed < FAST_BATCH_MS && batchSize < MAX_BATCH_SIZE) {
+            batchSize = Math.min(batchSize * 2, MAX_BATCH_SIZE);
+        } else if (elapsed > SLOW_BATCH_MS && batchSize > MIN_BATCH_SIZE) {
+            batchSize = Math.max(batchSize / 2, MIN_BATCH_SIZE);
+        } else {
+            return;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("batch of " + size + " took " + elapsed + "ms, next batch size is " + batchSize);
+        }
+    }
+
+    /**
+     * Run a query for all the given IDs, batch by batch.
+     * @param querier the querier to use
+     * @param query the HQL to query the object relationships
+     * @param ids the IDs of the related objects
+     * @return which linker object IDs are related to which linked object IDs
+     */
+    private SetMultimap<Long, Long> query(Querier querier, String query, Collection<Long> ids) {
+        final SetMultimap<Long, Long> linkerToLinked = HashMultimap.create();
+        final Iterator<Long> idIterator = ids.iterator();
+        while (idIterator.hasNext()) {
+            final int size = getBatchSize();
+            final List<Long> idsBatch = new ArrayList<Long>(size);
+            while (idsBatch.size() < size && idIterator.hasNext()) {
+                idsBatch.add(idIterator.next());
+            }
+            final long start = System.currentTimeMillis();
+            for (final Object[] result : querier.query(query, idsBatch)) {
+                linkerToLinked.put((Long) result[0], (Long) result[1]);
+            }
+            adaptBatchSize(idsBatch.size(), System.currentTimeMillis() - start);
+        }
+        return linkerToLinked;
+    }
+
+    /**
+     * Runs queries from a shared list until none remain.
+     * @since 5.3
+     */
+    private class QueryRunner {
+        final List<Entry<String, Collection<Long>>> queries;
+        final List<SetMultimap<Long, Long>> results;
+        final AtomicInteger nextQuery = new AtomicInteger();
+
+        QueryRunner(List<Entry<String, Collection<Long>>> queries) {
+            this.queries = queries;
+            this.results = new ArrayList<SetMultimap<Long, Long>>(Collections.<SetMultimap<Long, Long>>nCopies(queries.size(), null));
+        }
+
+        /**
+         * @return if any queries remain to be run
+         */
+        boolean isRemaining() {
+            return nextQuery.get() < queries.size();
+        }
+
+        /**
+         * Stop the remaining queries from being run.
+         */
+        void stop() {
+            nextQuery.set(queries.size());
+        }
+
+        /**
+         * Run queries until none remain.
+         * @param querier the querier to use
+         */
+        void run(Querier querier) {
+            int index;
+            while ((index = nextQuery.getAndIncrement()) < queries.size()) {
+                final Entry<String, Collection<Long>> query = queries.get(index);
+                final SetMultimap<Long, Long> result = query(querier, query.getKey(), query.getValue());
+                synchronized (results) {
+                    results.set(index, result);
+                }
+            }
+        }
+
+        /**
+         * @return the results of the queries, in order
+         */
+        List<SetMultimap<Long, Long>> getResults() {
+            synchronized (results) {
+                return new ArrayList<SetMultimap<Long, Long>>(results);
+            }
+        }
+    }
+
+    /**
+     * Run the queries of a step of planning.
+     * @param queries the HQL to query object relationships, each with the IDs of the related objects
+     * @return for each query in turn, which linker object IDs are related to which linked object IDs
+     * @throws GraphException if the queries could not be run
+     */
+    public List<SetMultimap<Long, Long>> query(List<Entry<String, Collection<Long>>> queries) throws GraphException {
+        final QueryRunner runner = new QueryRunner(queries);
+        if (executor == null || queries.size() < 2) {
+            runner.run(querier);
+            return runner.getResults();
+        }
+        /* the calling thread runs queries too so one fewer querier suffices */
+        int helpers = 0;
+        while (helpers < queries.size() - 1 && querierPermits.tryAcquire()) {
+            helpers++;
+        }
+        final List<Future<?>> futures = new ArrayList<Future<?>>(helpers);
+        try {
+            while (helpers > 0) {
+                try {
+                    futures.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            try {
+                                if (runner.isRemaining()) {
+                                    final Querier sessionQuerier;
+                                    try {
+                                        sessionQuerier = querierSource.open();
+                                    } catch (RuntimeException e) {
+                                        /* the calling thread runs the queries instead */
+                                        log.debug("could not open querier for link queries", e);
+                                        return null;
+                                    }
+                                    try {
+                                        runner.run(sessionQuerier);
+                                    } finally {
+                                        querierSource.close(sessionQuerier);
+                                    }
+                                }
+                            } finally {
+                                querierPermits.release();
+                            }
+                            return null;
+                        }
+                    }));
+                } catch (RejectedExecutionException e) {
+                    querierPermits.release(helpers);
+                    helpers = 0;
+                    break;
+                }
+                helpers--;
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("running " + queries.size() + " link queries with " + futures.size() + " other queriers");
+            }
+            runner.run(querier);
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+            return runner.getResults();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GraphException("interrupted while querying links");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new GraphException("failed to query links: " + e.getCause());
+        } finally {
+            /* the other queriers stop after their current query, then close and release their permits */
+            runner.stop();
+        }
+    }
+}
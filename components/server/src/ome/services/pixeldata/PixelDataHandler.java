@@ -23,6 +23,7 @@ import ome.services.util.Executor.SimpleWork;
 import ome.system.ServiceFactory;
 import ome.util.SqlAction;
 
+import org.apache.commons.codec.binary.Hex;
 import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,6 +40,9 @@ public class PixelDataHandler extends SimpleWork {
 
     private final static Logger log = LoggerFactory.getLogger(PixelDataHandler.class);
 
+    /** The SHA-1 the import sets on pixels it does not read. */
+    private final static String PENDING_SHA1 = "Pending...";
+
     final protected EventLogLoader loader;
 
     final protected PixelsService pixelsService;
@@ -130,7 +134,7 @@ public class PixelDataHandler extends SimpleWork {
      * @param s
      * @return See above.
      */
-    public boolean process(Long id, ServiceFactory sf, Session s) {
+    public boolean process(final Long id, ServiceFactory sf, Session s) {
 
         final Pixels pixels = getPixels(id, sf);
 
@@ -141,7 +145,21 @@ public class PixelDataHandler extends SimpleWork {
 
         try
         {
-            StatsInfo[] statsInfo = pixelsService.makePyramid(pixels);
+            // Pixels too large for the import's pass over the data are only
+            // read here so take their SHA-1 from the same pass.
+            final PixelsService.DigestListener digestListener;
+            if (pixels.getSha1() == null || PENDING_SHA1.equals(pixels.getSha1())) {
+                digestListener = new PixelsService.DigestListener() {
+                    public void setSha1(byte[] sha1) {
+                        getSqlAction().setPixelsSha1(id,
+                                Hex.encodeHexString(sha1));
+                    }
+                };
+            } else {
+                digestListener = null;
+            }
+            StatsInfo[] statsInfo = pixelsService.makePyramid(pixels,
+                    digestListener);
             if(statsInfo == null) {
                 // Either exists or failed to be created, but that's
                 // the PixelsService's business. It should throw an exception
@@ -0,0 +1,576 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.pixeldata;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import ome.conditions.InternalException;
+import ome.io.nio.PixelBuffer;
+import ome.io.nio.PixelsService;
+import ome.io.nio.PlaneStatistics;
+import ome.util.PixelData;
+
+/**
+ * Computes the minimum, maximum, histogram and other statistics of the
+ * planes of a pixel buffer. Only the requested region is read, a tile at a
+ * time, and channels are processed concurrently on an optional
+ * {@link ExecutorService}. Reading the tiles is serialized on the buffer,
+ * which is not thread-safe, while their pixels are counted in parallel.
+ * <p>
+ * Planes larger than {@link #getMaxPixels()} are read from the largest
+ * resolution level of their pyramid which is not, so the results for such
+ * images are approximate: the counts of a histogram are those of the pixels
+ * of that level. Results are cached per pixels set until
+ * {@link #invalidate(long)} is called for it.
+ * </p>
+ *
+ * @since 5.3
+ */
+public class StatisticsEngine {
+
+    /**
+     * Default maximum number of pixels read per plane, as for the statistics
+     * stored along with a pyramid.
+     */
+    public static final long DEFAULT_MAX_PIXELS = PixelsService.STATS_MAX_PIXELS;
+
+    /** Number of pixels read at once from buffers which are not tiled. */
+    private static final int UNTILED_READ_SIZE = 1024 * 1024;
+
+    /** Key of cached results: their pixels set and what was computed. */
+    private static final class StatsKey {
+
+        final long pixelsId;
+
+        final String description;
+
+        StatsKey(long pixelsId, String description) {
+            this.pixelsId = pixelsId;
+            this.description = description;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof StatsKey)) {
+                return false;
+            }
+            StatsKey o = (StatsKey) obj;
+            return pixelsId == o.pixelsId && description.equals(o.description);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (pixelsId ^ (pixelsId >>> 32))
+                    + description.hashCode();
+        }
+    }
+
+    /** Executor the channels are processed on, may be <code>null</code>. */
+    private final ExecutorService executor;
+
+    /** Maximum number of pixels read per plane. */
+    private final long maxPixels;
+
+    /** Maximum number of results cached. */
+    private final int cacheSize;
+
+    /** Cached minima and maxima and histograms, the eldest first. */
+    private final LinkedHashMap<StatsKey, Object> cache =
+            new LinkedHashMap<StatsKey, Object>(256, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<StatsKey, Object> e) {
+            return size() > cacheSize;
+        }
+    };
+
+    /**
+     * Creates an engine working on the calling thread, without a cache.
+     */
+    public StatisticsEngine() {
+        this(null, DEFAULT_MAX_PIXELS, 0);
+    }
+
+    /**
+     * Creates an engine.
+     * @param executor Executor the channels are processed on or
+     * <code>null</code> to process them on the calling thread.
+     * @param maxPixels Maximum number of pixels read per plane, beyond which
+     * a lower resolution level is read if the buffer has any.
+     * @param cacheSize Maximum number of results cached, <code>0</code> to
+     * disable the cache.
+     */
+    public StatisticsEngine(ExecutorService executor, long maxPixels,
+            int cacheSize) {
+        this.executor = executor;
+        this.maxPixels = maxPixels > 0 ? maxPixels : DEFAULT_MAX_PIXELS;
+        this.cacheSize = Math.max(cacheSize, 0);
+    }
+
+    /**
+     * Returns the maximum number of pixels read per plane.
+     * @return See above.
+     */
+    public long getMaxPixels() {
+        return maxPixels;
+    }
+
+    /**
+     * Returns if statistics of planes of the given size are those which this
+     * engine computes for the buffer, i.e. if they were read from the same
+     * resolution level. Only such stored statistics agree with those
+     * computed by this engine.
+     * @param buffer The pixel buffer.
+     * @param sizeX The width of the planes read.
+     * @param sizeY The height of the planes read.
+     * @return See above.
+     */
+    public boolean isReadSize(PixelBuffer buffer, int sizeX, int sizeY) {
+        final Rectangle size = planeSize(buffer, selectLevel(buffer));
+        return size.width == sizeX && size.height == sizeY;
+    }
+
+    /**
+     * Returns the number of results currently cached.
+     * @return See above.
+     */
+    public synchronized int getCacheSize() {
+        return cache.size();
+    }
+
+    /**
+     * Removes all the cached results of a pixels set.
+     * @param pixelsId The id of the pixels set.
+     */
+    public synchronized void invalidate(long pixelsId) {
+        Iterator<StatsKey> it = cache.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().pixelsId == pixelsId) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Finds the minimum and maximum pixel value of a plane of each channel.
+     * @param buffer The buffer to read.
+     * @param pixelsId The id of the pixels set of the buffer, used to cache
+     * the results, <code>null</code> not to cache them.
+     * @param channels The channels.
+     * @param z The optical section.
+     * @param t The timepoint.
+     * @return The minimum and maximum by channel.
+     * @throws IOException If the buffer could not be read.
+     */
+    public Map<Integer, double[]> findMinMax(final PixelBuffer buffer,
+            final Long pixelsId, int[] channels, final int z, final int t)
+            throws IOException {
+        final int level = selectLevel(buffer);
+        final int original = buffer.getResolutionLevel();
+        if (level != original) {
+            buffer.setResolutionLevel(level);
+        }
+        try {
+            final Rectangle plane = planeSize(buffer, level);
+            List<Integer> order = new ArrayList<Integer>();
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+            for (final int c : channels) {
+                order.add(c);
+                tasks.add(new Callable<Object>() {
+                    public Object call() throws IOException {
+                        final String description = String.format(
+                                "minmax:%d,%d,%d;l=%d", z, c, t, level);
+                        double[] minMax = (double[]) lookup(pixelsId,
+                                description);
+                        if (minMax == null) {
+                            minMax = minMax(buffer, z, c, t, plane);
+                            store(pixelsId, description, minMax);
+                        }
+                        return minMax;
+                    }
+                });
+            }
+            List<Object> results = run(tasks);
+            Map<Integer, double[]> minMax = new HashMap<Integer, double[]>();
+            for (int i = 0; i < order.size(); i++) {
+                minMax.put(order.get(i), (double[]) results.get(i));
+            }
+            return minMax;
+        } finally {
+            if (level != original) {
+                buffer.setResolutionLevel(original);
+            }
+        }
+    }
+
+    /**
+     * Computes the histogram of a region of a plane of each channel. The
+     * bins of a channel split the range from its minimum to its maximum
+     * evenly; values outside of the range are not counted.
+     * @param buffer The buffer to read.
+     * @param pixelsId The id of the pixels set of the buffer, used to cache
+     * the results, <code>null</code> not to cache them.
+     * @param ranges The minimum and maximum by channel, the histograms of
+     * these channels are computed.
+     * @param z The optical section.
+     * @param t The timepoint.
+     * @param region The region, in the coordinates of the full resolution
+     * plane, or <code>null</code> for the whole plane.
+     * @param binCount The number of bins.
+     * @return The histogram by channel.
+     * @throws IOException If the buffer could not be read.
+     */
+    public Map<Integer, int[]> getHistogram(final PixelBuffer buffer,
+            final Long pixelsId, Map<Integer, double[]> ranges, final int z,
+            final int t, Rectangle region, final int binCount)
+            throws IOException {
+        final int level = selectLevel(buffer);
+        final int original = buffer.getResolutionLevel();
+        final Rectangle full =
+                planeSize(buffer, buffer.getResolutionLevels() - 1);
+        if (level != original) {
+            buffer.setResolutionLevel(level);
+        }
+        try {
+            final Rectangle scaled = scale(region == null ? full : region,
+                    full, planeSize(buffer, level));
+            List<Integer> order = new ArrayList<Integer>();
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+            for (Map.Entry<Integer, double[]> entry : ranges.entrySet()) {
+                final int c = entry.getKey();
+                final double min = entry.getValue()[0];
+                final double max = entry.getValue()[1];
+                order.add(c);
+                tasks.add(new Callable<Object>() {
+                    public Object call() throws IOException {
+                        final String description = String.format(
+                                "histogram:%d,%d,%d;l=%d;r=%d,%d,%d,%d;"
+                                + "b=%d;%s,%s", z, c, t, level, scaled.x,
+                                scaled.y, scaled.width, scaled.height,
+                                binCount, min, max);
+                        int[] histogram = (int[]) lookup(pixelsId,
+                                description);
+                        if (histogram == null) {
+                            histogram = histogram(buffer, z, c, t, scaled,
+                                    binCount, min, max);
+                            store(pixelsId, description, histogram);
+                        }
+                        return histogram;
+                    }
+                });
+            }
+            List<Object> results = run(tasks);
+            Map<Integer, int[]> histograms = new HashMap<Integer, int[]>();
+            for (int i = 0; i < order.size(); i++) {
+                histograms.put(order.get(i), (int[]) results.get(i));
+            }
+            return histograms;
+        } finally {
+            if (level != original) {
+                buffer.setResolutionLevel(original);
+            }
+        }
+    }
+
+    /**
+     * Computes the minimum, maximum, mean, percentiles and histogram of a
+     * plane of each channel, as the per-plane statistics stored by the
+     * {@link ome.io.nio.PixelsService} are computed, for pixels sets which
+     * have none stored.
+     * @param buffer The buffer to read.
+     * @param pixelsId The id of the pixels set of the buffer, used to cache
+     * the results, <code>null</code> not to cache them.
+     * @param channels The channels.
+     * @param z The optical section.
+     * @param t The timepoint.
+     * @return The statistics by channel.
+     * @throws IOException If the buffer could not be read.
+     */
+    public Map<Integer, PlaneStatistics> getPlaneStatistics(
+            final PixelBuffer buffer, final Long pixelsId, int[] channels,
+            final int z, final int t) throws IOException {
+        final int level = selectLevel(buffer);
+        final int original = buffer.getResolutionLevel();
+        if (level != original) {
+            buffer.setResolutionLevel(level);
+        }
+        try {
+            final Rectangle plane = planeSize(buffer, level);
+            List<Integer> order = new ArrayList<Integer>();
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+            for (final int c : channels) {
+                order.add(c);
+                tasks.add(new Callable<Object>() {
+                    public Object call() throws IOException {
+                        final String description = String.format(
+                                "stats:%d,%d,%d;l=%d", z, c, t, level);
+                        PlaneStatistics stats = (PlaneStatistics) lookup(
+                                pixelsId, description);
+                        if (stats == null) {
+                            final PixelData px = read(buffer, z, c, t, plane);
+                            try {
+                                stats = PlaneStatistics.compute(px);
+                            } finally {
+                                px.dispose();
+                            }
+                            store(pixelsId, description, stats);
+                        }
+                        return stats;
+                    }
+                });
+            }
+            List<Object> results = run(tasks);
+            Map<Integer, PlaneStatistics> stats =
+                    new HashMap<Integer, PlaneStatistics>();
+            for (int i = 0; i < order.size(); i++) {
+                stats.put(order.get(i), (PlaneStatistics) results.get(i));
+            }
+            return stats;
+        } finally {
+            if (level != original) {
+                buffer.setResolutionLevel(original);
+            }
+        }
+    }
+
+    // ~ Reading
+    // =========================================================================
+
+    /**
+     * Returns the resolution level to read: the largest one with no more
+     * than {@link #maxPixels} pixels, or the smallest one if none has.
+     */
+    private int selectLevel(PixelBuffer buffer) {
+        final int levels = buffer.getResolutionLevels();
+        if (levels <= 1) {
+            return buffer.getResolutionLevel();
+        }
+        // Descriptions go from the largest level, numbered levels - 1, down.
+        final List<List<Integer>> sizes = buffer.getResolutionDescriptions();
+        for (int i = 0; i < sizes.size(); i++) {
+            final long pixels = (long) sizes.get(i).get(0)
+                    * sizes.get(i).get(1);
+            if (pixels <= maxPixels) {
+                return levels - 1 - i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the size of the planes of a resolution level.
+     */
+    private static Rectangle planeSize(PixelBuffer buffer, int level) {
+        final int levels = buffer.getResolutionLevels();
+        if (levels <= 1) {
+            return new Rectangle(0, 0, buffer.getSizeX(), buffer.getSizeY());
+        }
+        final List<Integer> size =
+                buffer.getResolutionDescriptions().get(levels - 1 - level);
+        return new Rectangle(0, 0, size.get(0), size.get(1));
+    }
+
+    /**
+     * Scales a region of the full resolution plane to a resolution level,
+     * keeping at least one pixel and clipping it to the plane.
+     */
+    private static Rectangle scale(Rectangle region, Rectangle full,
+            Rectangle level) {
+        if (full.width == level.width && full.height == level.height) {
+            return region.intersection(level);
+        }
+        final double sx = (double) level.width / full.width;
+        final double sy = (double) level.height / full.height;
+        final int x = (int) Math.floor(region.x * sx);
+        final int y = (int) Math.floor(region.y * sy);
+        final int w = Math.max(1, (int) Math.ceil(region.width * sx));
+        final int h = Math.max(1, (int) Math.ceil(region.height * sy));
+        return new Rectangle(x, y, w, h).intersection(level);
+    }
+
+    /**
+     * Returns the tiles covering a region, aligned on the tiles of the
+     * buffer so that each is read once.
+     */
+    private static List<Rectangle> tiles(PixelBuffer buffer,
+            Rectangle region) {
+        final List<Rectangle> tiles = new ArrayList<Rectangle>();
+        if (region.isEmpty()) {
+            return tiles;
+        }
+        final Dimension tileSize = buffer.getTileSize();
+        final int tw = tileSize == null ? region.width
+                : Math.max(1, (int) tileSize.getWidth());
+        final int th = tileSize == null
+                ? Math.max(1, UNTILED_READ_SIZE / region.width)
+                : Math.max(1, (int) tileSize.getHeight());
+        final int right = region.x + region.width;
+        final int bottom = region.y + region.height;
+        for (int ty = region.y / th * th; ty < bottom; ty += th) {
+            final int y0 = Math.max(ty, region.y);
+            final int y1 = Math.min(ty + th, bottom);
+            for (int tx = region.x / tw * tw; tx < right; tx += tw) {
+                final int x0 = Math.max(tx, region.x);
+                final int x1 = Math.min(tx + tw, right);
+                tiles.add(new Rectangle(x0, y0, x1 - x0, y1 - y0));
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Reads a tile, holding the lock of the buffer.
+     */
+    private static PixelData read(PixelBuffer buffer, int z, int c, int t,
+            Rectangle tile) throws IOException {
+        synchronized (buffer) {
+            return buffer.getTile(z, c, t, tile.x, tile.y, tile.width,
+                    tile.height);
+        }
+    }
+
+    private static double[] minMax(PixelBuffer buffer, int z, int c, int t,
+            Rectangle region) throws IOException {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (Rectangle tile : tiles(buffer, region)) {
+            final PixelData px = read(buffer, z, c, t, tile);
+            try {
+                final int size = px.size();
+                for (int i = 0; i < size; i++) {
+                    final double value = px.getPixelValue(i);
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                }
+            } finally {
+                px.dispose();
+            }
+        }
+        return new double[] { min, max };
+    }
+
+    private static int[] histogram(PixelBuffer buffer, int z, int c, int t,
+            Rectangle region, int binCount, double min, double max)
+            throws IOException {
+        final int[] data = new int[binCount];
+        final double binRange = (max - min + 1) / binCount;
+        for (Rectangle tile : tiles(buffer, region)) {
+            final PixelData px = read(buffer, z, c, t, tile);
+            try {
+                final int size = px.size();
+                for (int i = 0; i < size; i++) {
+                    int bin = (int) ((px.getPixelValue(i) - min) / binRange);
+                    // if there are more bins than values (binRange < 1) the
+                    // bin will be offset by -1. e.g. min=0.0, max=127.0,
+                    // binCount=256: a pixel with max value 127.0 would go
+                    // into bin 254 (expected: 255). Therefore increment by
+                    // one for these cases.
+                    if (bin > 0 && binRange < 1)
+                        bin++;
+
+                    if (bin >= 0 && bin < binCount)
+                        data[bin]++;
+                }
+            } finally {
+                px.dispose();
+            }
+        }
+        return data;
+    }
+
+    // ~ Caching and execution
+    // =========================================================================
+
+    private Object lookup(Long pixelsId, String description) {
+        if (pixelsId == null || cacheSize == 0) {
+            return null;
+        }
+        final Object cached;
+        synchronized (this) {
+            cached = cache.get(new StatsKey(pixelsId, description));
+        }
+        return copy(cached);
+    }
+
+    private void store(Long pixelsId, String description, Object result) {
+        if (pixelsId == null || cacheSize == 0) {
+            return;
+        }
+        final Object copy = copy(result);
+        synchronized (this) {
+            cache.put(new StatsKey(pixelsId, description), copy);
+        }
+    }
+
+    /** Cached arrays are never handed out, callers may modify theirs. */
+    private static Object copy(Object result) {
+        if (result instanceof int[]) {
+            return ((int[]) result).clone();
+        }
+        if (result instanceof double[]) {
+            return ((double[]) result).clone();
+        }
+        return result;
+    }
+
+    private List<Object> run(List<Callable<Object>> tasks)
+            throws IOException {
+        List<Object> results = new ArrayList<Object>(tasks.size());
+        if (executor == null || tasks.size() <= 1) {
+            for (Callable<Object> task : tasks) {
+                try {
+                    results.add(task.call());
+                } catch (IOException e) {
+                    throw e;
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new InternalException(e.getMessage());
+                }
+            }
+            return results;
+        }
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        try {
+            for (Callable<Object> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            for (Future<Object> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalException(
+                    "Interrupted while computing statistics.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new InternalException(e.getCause().getMessage());
+        } finally {
+            for (Future<Object> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+}
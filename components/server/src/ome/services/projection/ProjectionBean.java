@@ -52,6 +52,9 @@ public class ProjectionBean extends AbstractLevel2Service implements IProjection
     /** Reference to the service used to retrieve the pixels data. */
     protected transient PixelsService pixelsService;
     
+    /** The engine performing the projections. */
+    protected transient ProjectionEngine projectionEngine;
+    
     /**
      * Returns the interface this implementation is for.
      * @see AbstractLevel2Service#getServiceInterface()
@@ -81,6 +84,18 @@ public class ProjectionBean extends AbstractLevel2Service implements IProjection
         this.pixelsService = pixelsService;
     }
     
+    /**
+     * ProjectionEngine bean injector. For use during configuration. Can only
+     * be called once. If never called, projections are performed on the
+     * calling thread.
+     */
+    public void setProjectionEngine(ProjectionEngine projectionEngine)
+    {
+        getBeanHelper().throwIfAlreadySet(
+                this.projectionEngine, projectionEngine);
+        this.projectionEngine = projectionEngine;
+    }
+    
     /* (non-Javadoc)
      * @see ome.api.IProjection#projectStack(long, ome.model.enums.PixelsType, int, int, int, int, int, int)
      */
@@ -95,6 +110,7 @@ public class ProjectionBean extends AbstractLevel2Service implements IProjection
                 ctx.pixels, false);
         zIntervalBoundsCheck(start, end, ctx.pixels.getSizeZ());
         outOfBoundsStepping(stepping);
+        algorithmCheck(algorithm);
         outOfBoundsCheck(channelIndex, "channel");
         outOfBoundsCheck(timepoint, "timepoint");
         Integer v = ctx.pixels.getSizeT();
@@ -123,29 +139,7 @@ public class ProjectionBean extends AbstractLevel2Service implements IProjection
             ctx.from = pixelBuffer.getStack(channelIndex, timepoint);
             ctx.to = new PixelData(pixelsType.getValue(), ByteBuffer.wrap(buf));
 
-            switch (algorithm)
-            {
-                case IProjection.MAXIMUM_INTENSITY:
-                {
-                    projectStackMax(ctx, stepping, start, end, false);
-                    break;
-                }
-                case IProjection.MEAN_INTENSITY:
-                {
-                    projectStackMean(ctx, stepping, start, end, false);
-                    break;
-                }
-                case IProjection.SUM_INTENSITY:
-                {
-                    projectStackSum(ctx, stepping, start, end, false);
-                    break;
-                }
-                default:
-                {
-                    throw new IllegalArgumentException(
-                            "Unknown algorithm: " + algorithm);
-                }
-            }
+            project(ctx, algorithm, stepping, start, end, false);
             return buf;
         }
         catch (IOException e)
@@ -201,6 +195,7 @@ public class ProjectionBean extends AbstractLevel2Service implements IProjection
         //Add control for z
         zIntervalBoundsCheck(zStart, zEnd, ctx.pixels.getSizeZ());
         outOfBoundsStepping(stepping);
+        algorithmCheck(algorithm);
 
         Integer sizeT = tEnd-tStart+1;
         if (tStart > tEnd)
@@ -247,29 +242,8 @@ public class ProjectionBean extends AbstractLevel2Service implements IProjection
                         try
                         {
                             ctx.from = sourceBuffer.getStack(c, t);
-                            switch (algorithm)
-                            {
-                                case IProjection.MAXIMUM_INTENSITY:
-                                {
-                                    projectStackMax(ctx, stepping, zStart, zEnd, true);
-                                    break;
-                                }
-                                case IProjection.MEAN_INTENSITY:
-                                {
-                                    projectStackMean(ctx, stepping, zStart, zEnd, true);
-                                    break;
-                                }
-                                case IProjection.SUM_INTENSITY:
-                                {
-                                    projectStackSum(ctx, stepping, zStart, zEnd, true);
-                                    break;
-                                }
-                                default:
-                                {
-                                    throw new IllegalArgumentException(
-                                            "Unknown algorithm: " + algorithm);
-                                }
-                            }
+                            project(ctx, algorithm, stepping, zStart, zEnd,
+                                    true);
                             destinationBuffer.setPlane(buf, 0, newC, t-tStart);
                         }
                         catch (IOException e)
@@ -379,96 +353,24 @@ public class ProjectionBean extends AbstractLevel2Service implements IProjection
     }
     
     /**
-     * Projects a stack based on the maximum intensity at each XY coordinate.
-     * @param ctx The context of our projection.
-     * @param stepping Stepping value to use while calculating the projection.
-     * For example, <code>stepping=1</code> will use every optical section from
-     * <code>start</code> to <code>end</code> where <code>stepping=2</code> will
-     * use every other section from <code>start</code> to <code>end</code> to
-     * perform the projection.
-     * @param start Optical section to start projecting from.
-     * @param end Optical section to finish projecting.
-     * @param doMinMax Whether or not to calculate the minimum and maximum of
-     * the projected pixel data.
+     * Ensures that a projection algorithm is known.
+     * @param algorithm The algorithm to check.
+     * @throws IllegalArgumentException If <code>algorithm</code> is unknown.
      */
-    private void projectStackMax(ProjectionContext ctx, int stepping,
-                                 int start, int end, boolean doMinMax)
+    private void algorithmCheck(int algorithm)
     {
-        int currentPlaneStart;
-        double projectedValue, stackValue;
-        double minimum = ctx.minimum;
-        double maximum = ctx.maximum;
-        for (int i = 0; i < ctx.planeSizeInPixels; i++)
+        if (algorithm < 0
+            || algorithm >= IProjection.METHODOLOGY_STRINGS.length)
         {
-            projectedValue = 0;
-            for (int z = start; z <= end; z += stepping)
-            {
-                currentPlaneStart = ctx.planeSizeInPixels * z;
-                stackValue = ctx.from.getPixelValue(currentPlaneStart + i);
-                if (stackValue > projectedValue)
-                {
-                    projectedValue = stackValue;
-                }
-            }
-            ctx.to.setPixelValue(i, projectedValue);
-            if (doMinMax)
-            {
-                minimum = projectedValue < minimum? projectedValue : minimum;
-                maximum = projectedValue > maximum? projectedValue : maximum;
-            }
+            throw new IllegalArgumentException(
+                    "Unknown algorithm: " + algorithm);
         }
-        ctx.minimum = minimum;
-        ctx.maximum = maximum;
-    }
-    
-    /**
-     * Projects a stack based on the mean intensity at each XY coordinate.
-     * @param from The raw pixel data from the stack to project from.
-     * @param ctx The context of our projection.
-     * source Pixels set pixels type will be used.
-     * @param stepping Stepping value to use while calculating the projection.
-     * For example, <code>stepping=1</code> will use every optical section from
-     * <code>start</code> to <code>end</code> where <code>stepping=2</code> will
-     * use every other section from <code>start</code> to <code>end</code> to
-     * perform the projection.
-     * @param start Optical section to start projecting from.
-     * @param end Optical section to finish projecting.
-     * @param doMinMax Whether or not to calculate the minimum and maximum of
-     * the projected pixel data.
-     */
-    private void projectStackMean(ProjectionContext ctx, int stepping, 
-                                  int start, int end, boolean doMinMax)
-    {
-        projectStackMeanOrSum(ctx, stepping, start, end, true, doMinMax);
-    }
-    
-    /**
-     * Projects a stack based on the sum intensity at each XY coordinate.
-     * @param ctx The context of our projection.
-     * @param pixelsType The destination Pixels type. If <code>null</code>, the
-     * source Pixels set pixels type will be used.
-     * @param stepping Stepping value to use while calculating the projection.
-     * For example, <code>stepping=1</code> will use every optical section from
-     * <code>start</code> to <code>end</code> where <code>stepping=2</code> will
-     * use every other section from <code>start</code> to <code>end</code> to
-     * perform the projection.
-     * @param start Optical section to start projecting from.
-     * @param end Optical section to finish projecting.
-     * @param doMinMax Whether or not to calculate the minimum and maximum of
-     * the projected pixel data.
-     */
-    private void projectStackSum(ProjectionContext ctx, int stepping, 
-                                 int start, int end, boolean doMinMax)
-    {
-        projectStackMeanOrSum(ctx, stepping, start, end, false, doMinMax);
     }
     
     /**
-     * Projects a stack based on the sum intensity at each XY coordinate with
-     * the option to also average the sum intensity.
+     * Projects a stack with the {@link #projectionEngine}.
      * @param ctx The context of our projection.
-     * @param pixelsType The destination Pixels type. If <code>null</code>, the
-     * source Pixels set pixels type will be used.
+     * @param algorithm The projection algorithm.
      * @param stepping Stepping value to use while calculating the projection.
      * For example, <code>stepping=1</code> will use every optical section from
      * <code>start</code> to <code>end</code> where <code>stepping=2</code> will
@@ -476,49 +378,22 @@ public class ProjectionBean extends AbstractLevel2Service implements IProjection
      * perform the projection.
      * @param start Optical section to start projecting from.
      * @param end Optical section to finish projecting.
-     * @param mean Whether or not we're performing an average post sum
-     * intensity projection.
      * @param doMinMax Whether or not to calculate the minimum and maximum of
      * the projected pixel data.
      */
-    private void projectStackMeanOrSum(ProjectionContext ctx, int stepping,
-                                       int start, int end, 
-                                       boolean mean, boolean doMinMax)
+    private void project(ProjectionContext ctx, int algorithm, int stepping,
+                         int start, int end, boolean doMinMax)
     {
-        double planeMaximum = ctx.to.getMaximum();
-
-        int currentPlaneStart;
-        double projectedValue, stackValue;
-        double minimum = ctx.minimum;
-        double maximum = ctx.maximum;
-        for (int i = 0; i < ctx.planeSizeInPixels; i++)
+        ProjectionEngine engine = projectionEngine == null?
+                new ProjectionEngine() : projectionEngine;
+        double[] minMax = engine.project(algorithm, ctx.from, ctx.to,
+                ctx.pixels.getSizeX(), ctx.pixels.getSizeY(),
+                stepping, start, end);
+        if (doMinMax)
         {
-            projectedValue = 0;
-            int projectedPlaneCount = 0;
-            for (int z = start; z < end; z += stepping)
-            {
-                currentPlaneStart = ctx.planeSizeInPixels * z;
-                stackValue = ctx.from.getPixelValue(currentPlaneStart + i);
-                projectedValue += stackValue;
-                projectedPlaneCount++;
-            }
-            if (mean)
-            {
-                projectedValue = projectedValue / projectedPlaneCount;
-            }
-            if (projectedValue > planeMaximum)
-            {
-                projectedValue = planeMaximum;
-            }
-            ctx.to.setPixelValue(i, projectedValue);
-            if (doMinMax)
-            {
-                minimum = projectedValue < minimum? projectedValue : minimum;
-                maximum = projectedValue > maximum? projectedValue : maximum;
-            }
+            ctx.minimum = Math.min(ctx.minimum, minMax[0]);
+            ctx.maximum = Math.max(ctx.maximum, minMax[1]);
         }
-        ctx.minimum = minimum;
-        ctx.maximum = maximum;
     }
     
     /**
@@ -0,0 +1,301 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.projection;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import ome.api.IProjection;
+import ome.conditions.InternalException;
+import ome.util.PixelData;
+
+/**
+ * Projects a stack of optical sections into a single plane. The stack is
+ * streamed plane by plane, a block of consecutive pixels at a time, into
+ * primitive accumulators small enough to stay in the processor cache instead
+ * of visiting every optical section for every pixel. Blocks of rows are
+ * projected concurrently on an optional {@link ExecutorService}.
+ *
+ * @since 5.3
+ */
+public class ProjectionEngine {
+
+    /** Number of consecutive pixels accumulated at once. */
+    static final int BLOCK_SIZE = 4096;
+
+    /** Executor the bands of rows are projected on, may be <code>null</code>. */
+    private final ExecutorService executor;
+
+    /** Number of bands of rows the plane is split into. */
+    private final int parallelism;
+
+    /**
+     * Creates an engine projecting on the calling thread.
+     */
+    public ProjectionEngine() {
+        this(null, 1);
+    }
+
+    /**
+     * Creates an engine.
+     * @param executor Executor the bands of rows are projected on or
+     * <code>null</code> to project on the calling thread.
+     * @param parallelism Number of bands of rows the plane is split into,
+     * usually the number of threads of <code>executor</code>.
+     */
+    public ProjectionEngine(ExecutorService executor, int parallelism) {
+        this.executor = executor;
+        this.parallelism = executor == null ? 1 : Math.max(parallelism, 1);
+    }
+
+    /**
+     * Projects a stack.
+     * @param algorithm One of the algorithms of {@link IProjection}.
+     * @param from The stack to project from.
+     * @param to The plane to project into.
+     * @param sizeX Width of the planes.
+     * @param sizeY Height of the planes.
+     * @param stepping Stepping value to use while calculating the projection.
+     * @param start Optical section to start projecting from.
+     * @param end Optical section to finish projecting.
+     * @return The minimum and maximum of the projected pixel values.
+     */
+    public double[] project(final int algorithm, final PixelData from,
+            final PixelData to, final int sizeX, int sizeY,
+            final int stepping, final int start, final int end) {
+        final int planeSizeInPixels = sizeX * sizeY;
+        final int[] planes = planes(algorithm, stepping, start, end);
+        int bands = Math.min(parallelism, sizeY);
+        int rowsPerBand = (sizeY + bands - 1) / bands;
+        List<Callable<double[]>> tasks = new ArrayList<Callable<double[]>>();
+        for (int y = 0; y < sizeY; y += rowsPerBand) {
+            final int first = y * sizeX;
+            final int last = Math.min(y + rowsPerBand, sizeY) * sizeX;
+            tasks.add(new Callable<double[]>() {
+                public double[] call() {
+                    return projectPixels(algorithm, from, to,
+                            planeSizeInPixels, first, last, planes);
+                }
+            });
+        }
+        double[] minMax = {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (double[] bandMinMax : run(tasks)) {
+            minMax[0] = Math.min(minMax[0], bandMinMax[0]);
+            minMax[1] = Math.max(minMax[1], bandMinMax[1]);
+        }
+        return minMax;
+    }
+
+    /**
+     * Returns the optical sections projected, in order.
+     */
+    private static int[] planes(int algorithm, int stepping, int start,
+            int end) {
+        // Sum and mean projections have always left out the last section.
+        int last = algorithm == IProjection.MEAN_INTENSITY
+                || algorithm == IProjection.SUM_INTENSITY ? end - 1 : end;
+        int count = last < start ? 0 : (last - start) / stepping + 1;
+        int[] planes = new int[count];
+        for (int i = 0; i < count; i++) {
+            planes[i] = start + i * stepping;
+        }
+        return planes;
+    }
+
+    private List<double[]> run(List<Callable<double[]>> tasks) {
+        List<double[]> results = new ArrayList<double[]>(tasks.size());
+        if (executor == null || tasks.size() == 1) {
+            for (Callable<double[]> task : tasks) {
+                try {
+                    results.add(task.call());
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new InternalException(e.getMessage());
+                }
+            }
+            return results;
+        }
+        List<Future<double[]>> futures = new ArrayList<Future<double[]>>();
+        try {
+            for (Callable<double[]> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            for (Future<double[]> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalException("Interrupted while projecting.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new InternalException(e.getCause().getMessage());
+        } finally {
+            for (Future<double[]> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Projects the pixels <code>[first, last)</code> of the plane a block at
+     * a time.
+     * @return The minimum and maximum of the projected pixel values.
+     */
+    private static double[] projectPixels(int algorithm, PixelData from,
+            PixelData to, int planeSizeInPixels, int first, int last,
+            int[] planes) {
+        // Maximum intensity projections have never been pinned.
+        double planeMaximum = algorithm == IProjection.MAXIMUM_INTENSITY ?
+                Double.POSITIVE_INFINITY : to.getMaximum();
+        boolean keepValues = algorithm == IProjection.MEDIAN_INTENSITY;
+        double[] values = new double[BLOCK_SIZE];
+        double[] acc = new double[BLOCK_SIZE];
+        double[] squares = new double[BLOCK_SIZE];
+        double[] stack = keepValues ? new double[BLOCK_SIZE * planes.length]
+                : null;
+        double minimum = Double.POSITIVE_INFINITY;
+        double maximum = Double.NEGATIVE_INFINITY;
+        for (int offset = first; offset < last; offset += BLOCK_SIZE) {
+            int count = Math.min(BLOCK_SIZE, last - offset);
+            Arrays.fill(acc, 0, count, 0);
+            Arrays.fill(squares, 0, count, 0);
+            for (int p = 0; p < planes.length; p++) {
+                read(from, planes[p] * planeSizeInPixels + offset, count,
+                        values);
+                switch (algorithm) {
+                    case IProjection.MAXIMUM_INTENSITY:
+                        for (int i = 0; i < count; i++) {
+                            if (values[i] > acc[i]) {
+                                acc[i] = values[i];
+                            }
+                        }
+                        break;
+                    case IProjection.MEAN_INTENSITY:
+                    case IProjection.SUM_INTENSITY:
+                        for (int i = 0; i < count; i++) {
+                            acc[i] += values[i];
+                        }
+                        break;
+                    case IProjection.STANDARD_DEVIATION:
+                        for (int i = 0; i < count; i++) {
+                            acc[i] += values[i];
+                            squares[i] += values[i] * values[i];
+                        }
+                        break;
+                    case IProjection.MEDIAN_INTENSITY:
+                        // Transposed so that the values of a pixel are
+                        // contiguous for the selection below.
+                        for (int i = 0; i < count; i++) {
+                            stack[i * planes.length + p] = values[i];
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException(
+                                "Unknown algorithm: " + algorithm);
+                }
+            }
+            int n = planes.length;
+            for (int i = 0; i < count; i++) {
+                double value;
+                switch (algorithm) {
+                    case IProjection.MEAN_INTENSITY:
+                        value = acc[i] / n;
+                        break;
+                    case IProjection.STANDARD_DEVIATION:
+                        double mean = acc[i] / n;
+                        value = Math.sqrt(
+                                Math.max(squares[i] / n - mean * mean, 0));
+                        break;
+                    case IProjection.MEDIAN_INTENSITY:
+                        value = median(stack, i * n, n);
+                        break;
+                    default:
+                        value = acc[i];
+                }
+                if (value > planeMaximum) {
+                    value = planeMaximum;
+                }
+                to.setPixelValue(offset + i, value);
+                minimum = value < minimum ? value : minimum;
+                maximum = value > maximum ? value : maximum;
+            }
+        }
+        return new double[] {minimum, maximum};
+    }
+
+    /**
+     * Returns the median of <code>values[from, from + n)</code>, sorting
+     * them in place.
+     */
+    private static double median(double[] values, int from, int n) {
+        if (n == 0) {
+            return Double.NaN;
+        }
+        Arrays.sort(values, from, from + n);
+        int middle = from + n / 2;
+        return n % 2 == 1 ? values[middle]
+                : (values[middle - 1] + values[middle]) / 2;
+    }
+
+    /**
+     * Reads <code>count</code> consecutive pixel values, switching on the
+     * pixels type once rather than per pixel.
+     * @param data The pixel data.
+     * @param offset Offset of the first pixel, in pixels.
+     * @param count Number of pixels to read.
+     * @param values Array the values are read into.
+     */
+    static void read(PixelData data, int offset, int count, double[] values) {
+        ByteBuffer buf = data.getData();
+        int bytesPerPixel = data.bytesPerPixel();
+        int position = offset * bytesPerPixel;
+        boolean signed = data.isSigned();
+        switch (data.javaType()) {
+            case PixelData.BYTE:
+                for (int i = 0; i < count; i++) {
+                    byte v = buf.get(position + i);
+                    values[i] = signed ? v : v & 0xFF;
+                }
+                return;
+            case PixelData.SHORT:
+                for (int i = 0; i < count; i++) {
+                    short v = buf.getShort(position + 2 * i);
+                    values[i] = signed ? v : v & 0xFFFF;
+                }
+                return;
+            case PixelData.INT:
+                for (int i = 0; i < count; i++) {
+                    int v = buf.getInt(position + 4 * i);
+                    values[i] = signed ? v : v & 0xFFFFFFFFL;
+                }
+                return;
+            case PixelData.FLOAT:
+                for (int i = 0; i < count; i++) {
+                    values[i] = buf.getFloat(position + 4 * i);
+                }
+                return;
+            case PixelData.DOUBLE:
+                for (int i = 0; i < count; i++) {
+                    values[i] = buf.getDouble(position + 8 * i);
+                }
+                return;
+            default:
+                for (int i = 0; i < count; i++) {
+                    values[i] = data.getPixelValue(offset + i);
+                }
+        }
+    }
+}
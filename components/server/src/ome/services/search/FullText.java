@@ -10,13 +10,9 @@ package ome.services.search;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 
 import ome.conditions.ApiUsageException;
 import ome.model.IAnnotated;
@@ -56,6 +52,16 @@ public class FullText extends SearchAction {
     public final static String ALL_PROJECTIONS = "__ALL_PROJECTIONS";
 
     public final static String TOTAL_SIZE = "TOTAL_SIZE";
+
+    /**
+     * Minimum number of hits materialized per page when paging.
+     */
+    public final static int DEFAULT_PAGE_SIZE = 1000;
+
+    /**
+     * Number of objects loaded by a single criteria query.
+     */
+    private final static int LOAD_SIZE = 1000;
     
     private static final DateFormat DATEFORMAT = new SimpleDateFormat(
             "yyyyMMdd");
@@ -70,6 +76,21 @@ public class FullText extends SearchAction {
 
     private final Class<? extends Analyzer> analyzer;
 
+    /**
+     * Offset of the first hit of the current page.
+     */
+    private int firstResult = 0;
+
+    /**
+     * Number of hits per page or -1 if all the hits are returned at once.
+     */
+    private int maxResults = -1;
+
+    /**
+     * Total number of hits found by the last execution.
+     */
+    private int totalSize = -1;
+
     /**
      * Constructs a new instance; Builds a Lucence query with the provided
      * arguments and passes it on the Lucene parser
@@ -303,6 +324,45 @@ public class FullText extends SearchAction {
                 ProjectionConstants.ID);
     }
 
+    /**
+     * Limits every execution to a page of the hits, starting with the first
+     * page. Only the objects of the page are then loaded. Use
+     * {@link #nextPage()} to move on to the next page.
+     *
+     * @param pageSize
+     *            the number of hits per page, must be positive.
+     */
+    public void setPageSize(int pageSize) {
+        if (pageSize < 1) {
+            throw new ApiUsageException("Page size must be positive: "
+                    + pageSize);
+        }
+        this.firstResult = 0;
+        this.maxResults = pageSize;
+    }
+
+    /**
+     * Returns whether this search is paged.
+     */
+    public boolean isPaged() {
+        return maxResults > 0;
+    }
+
+    /**
+     * Moves on to the next page of hits, if this search is paged and there
+     * are hits beyond the page last executed.
+     *
+     * @return true if there is a next page to execute.
+     */
+    public boolean nextPage() {
+        if (!isPaged() || totalSize < 0
+                || firstResult + maxResults >= totalSize) {
+            return false;
+        }
+        firstResult += maxResults;
+        return true;
+    }
+
     @Transactional(readOnly = true)
     public Object doWork(Session s, ServiceFactory sf) {
 
@@ -324,72 +384,78 @@ public class FullText extends SearchAction {
                 + "If you are recieving this error, please try using the \n"
                 + "intersection/union methods to achieve the same results.";
 
-        // Main query
+        // Main query, only materializing the current page if paged
         FullTextQuery ftQuery = session.createFullTextQuery(this.q, cls);
         initializeQuery(ftQuery);
+        if (isPaged()) {
+            ftQuery.setFirstResult(firstResult);
+            ftQuery.setMaxResults(maxResults);
+        }
         List<?> result = ftQuery.list();
-        int totalSize = ftQuery.getResultSize();
+        totalSize = ftQuery.getResultSize();
 
         if (result.size() == 0) {
             // EARLY EXIT 
             return result; // of wrong type but with generics it doesn't matter
         }
 
-        final Map<Long, Integer> order = new HashMap<Long, Integer>();
-        final Map<Long, Float> scores = new HashMap<Long, Float>();
-        final Map<Long, Object[]> projections = new HashMap<Long, Object[]>();
-        for (int i = 0; i < result.size(); i++) {
+        // Hits in score order, kept in primitive arrays
+        final int count = result.size();
+        final long[] hitIds = new long[count];
+        final float[] hitScores = new float[count];
+        final Object[][] projections = new Object[count][];
+        for (int i = 0; i < count; i++) {
             Object[] parts = (Object[]) result.get(i);
-            scores.put((Long) parts[1], (Float) parts[0]);
-            order.put((Long) parts[1], i);
-            projections.put((Long) parts[1], parts);
+            hitScores[i] = (Float) parts[0];
+            hitIds[i] = (Long) parts[1];
+            projections[i] = parts;
+        }
+        result = null;
+
+        // Position of every hit by id, for placing the loaded objects
+        final long[] sortedIds = hitIds.clone();
+        Arrays.sort(sortedIds);
+        final int[] positions = new int[count];
+        for (int i = 0; i < count; i++) {
+            positions[Arrays.binarySearch(sortedIds, hitIds[i])] = i;
         }
 
         // TODO Could add a performance optimization here on returnUnloaded
 
-        final LinkedList<Long> ids = new LinkedList<Long>(scores.keySet());
-        final List<IObject> check975 = new ArrayList<IObject>();
-
-        while (ids.size() > 0) {
+        final IObject[] ordered = new IObject[count];
+        for (int start = 0; start < count; start += LOAD_SIZE) {
             final List<Long> page = new ArrayList<Long>();
-            for (int i = 0; i < 1000 && ids.size() > 0; i++) {
-                page.add(ids.removeFirst());
+            for (int i = start; i < count && i < start + LOAD_SIZE; i++) {
+                page.add(hitIds[i]);
             }
             if (criteria == null) {
                 criteria = criteria(session);
             }
             criteria.add(Restrictions.in("id", page));
-            check975.addAll(criteria.list());
-            criteria = null;
-        }
-
-        for (IObject object : check975) {
-            // TODO This is now all but impossible. Remove
-            if (!cls.isAssignableFrom(object.getClass())) {
-                throw new ApiUsageException(String.format(ticket975, object
-                        .getClass(), cls));
-            } else {
+            for (Object loaded : criteria.list()) {
+                IObject object = (IObject) loaded;
+                // TODO This is now all but impossible. Remove
+                if (!cls.isAssignableFrom(object.getClass())) {
+                    throw new ApiUsageException(String.format(ticket975, object
+                            .getClass(), cls));
+                }
+                int i = positions[Arrays.binarySearch(sortedIds,
+                        object.getId())];
                 object.putAt(TOTAL_SIZE, totalSize);
-                object.putAt(ProjectionConstants.SCORE, scores.get(object
-                        .getId()));
-                object.putAt(ALL_PROJECTIONS, projections.get(object.getId()));
+                object.putAt(ProjectionConstants.SCORE, hitScores[i]);
+                object.putAt(ALL_PROJECTIONS, projections[i]);
+                ordered[i] = object;
             }
+            criteria = null;
         }
 
-        // Order return value based on the original ordering
-
-        final Comparator cmp = new Comparator() {
-            public int compare(Object obj1, Object obj2) {
-                IObject o1 = (IObject) obj1;
-                IObject o2 = (IObject) obj2;
-                Long id1 = o1.getId();
-                Long id2 = o2.getId();
-                Integer idx1 = order.get(id1);
-                Integer idx2 = order.get(id2);
-                return idx1.compareTo(idx2);
+        // Return value in the original ordering, less the filtered hits
+        final List<IObject> check975 = new ArrayList<IObject>(count);
+        for (IObject object : ordered) {
+            if (object != null) {
+                check975.add(object);
             }
-        };
-        Collections.sort(check975, cmp);
+        }
         return check975;
     }
 
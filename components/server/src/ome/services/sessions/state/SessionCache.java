@@ -10,6 +10,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import net.sf.ehcache.CacheManager;
@@ -70,12 +71,42 @@ public class SessionCache implements ApplicationContextAware {
         SessionContext reload(SessionContext context);
     }
 
+    /**
+     * Access information for a single session, shared by each {@link Data}
+     * instance which holds the session. Looking up a session only updates
+     * these fields rather than replacing the entry in {@link #sessions}, so
+     * that reads of the map never need to take a lock for writing. Since the
+     * instance is carried over on reload, an access which races a reload is
+     * not lost.
+     */
+    private static class Access {
+
+        volatile long lastAccessTime;
+
+        final AtomicLong hitCount;
+
+        Access() {
+            this.lastAccessTime = System.currentTimeMillis();
+            this.hitCount = new AtomicLong(1);
+        }
+
+        /**
+         * Uses the current time for {@link #lastAccessTime} and increments
+         * {@link #hitCount} by one. Used when updating the access time for a
+         * session.
+         */
+        void touch() {
+            lastAccessTime = System.currentTimeMillis();
+            hitCount.incrementAndGet();
+        }
+    }
+
     /**
      * Container which can be put in a single {@link AtomicReference} instance.
-     * Contains all the data for a single session immutably. Therefore any
-     * thread that manages to get access to this instance can work with this
-     * data even if another thread is currently in the process of removing this
-     * from the map.
+     * Contains all the data for a single session immutably, apart from its
+     * {@link Access} information. Therefore any thread that manages to get
+     * access to this instance can work with this data even if another thread
+     * is currently in the process of removing this from the map.
      */
     private static class Data {
 
@@ -93,51 +124,33 @@ public class SessionCache implements ApplicationContextAware {
         final AtomicInteger error = new AtomicInteger(0);
 
         final SessionContext sessionContext;
-        final long lastAccessTime;
-        final long hitCount;
+        final Access access;
 
         /**
          * Initial creation of a Data instance when a new session is
          * added to the cache.
          */
         Data(SessionContext sc) {
-            this(sc, System.currentTimeMillis(), 1);
-        }
-
-        /**
-         * Copy constructor which uses the current time for {@link #lastAccessTime} and
-         * increments {@link #hitCount} by one. Used when updating the access
-         * time for a session.
-         */
-        Data(Data old) {
-            this(old, true);
-        }
-
-        /**
-         * Copy constructor which uses either the current time for {@link #lastAccessTime}
-         * (if reset is true) or the previous lastAccessTime (if reset is false); and
-         * increments {@link #hitCount} by one. Used when reloading the session.
-         */
-        Data(Data old, boolean reset) {
-            this(old, old.sessionContext, reset);
+            this(sc, new Access());
         }
 
         /**
-         * Like {@link Data#Data(Data, boolean)} but allows setting the
-         * {@link SessionContext} which should be stored in the new instance.
-         * This is used on reload. See {@link SessionCache#doUpdate()}.
+         * Creates a Data instance holding the given {@link SessionContext}
+         * in place of the old one, keeping the previous
+         * {@link Access#lastAccessTime} and incrementing
+         * {@link Access#hitCount} by one. This is used on reload. See
+         * {@link SessionCache#doUpdate()}.
          * @param old
          * @param ctx
-         * @param reset
          */
-        Data(Data old, SessionContext ctx, boolean reset) {
-            this(ctx, reset ? System.currentTimeMillis() : old.lastAccessTime, old.hitCount+1);
+        Data(Data old, SessionContext ctx) {
+            this(ctx, old.access);
+            old.access.hitCount.incrementAndGet();
         }
 
-        Data(SessionContext sc, long last, long count) {
+        private Data(SessionContext sc, Access access) {
             this.sessionContext = sc;
-            this.lastAccessTime = last;
-            this.hitCount = count;
+            this.access = access;
             // clear context
             sc.getSession().getDetails().setContexts(null);
         }
@@ -342,7 +355,7 @@ public class SessionCache implements ApplicationContextAware {
      */
     private void refresh(String uuid, Data data, SessionContext replacement) {
         // Adding and upping hit information.
-        Data fresh = new Data(data, replacement, false);
+        Data fresh = new Data(data, replacement);
         this.sessions.put(uuid, fresh);
     }
 
@@ -370,7 +383,7 @@ public class SessionCache implements ApplicationContextAware {
 
         if (!quietly) {
             // Up'ing access time
-            this.sessions.put(uuid, new Data(data));
+            data.access.touch();
         }
         return data.sessionContext;
     }
@@ -392,14 +405,14 @@ public class SessionCache implements ApplicationContextAware {
 
         if (!quietly) {
             // Up'ing access time
-            this.sessions.put(uuid, new Data(data));
+            data.access.touch();
         }
 
         return new ImmutableMap.Builder<String, Object>()
             .put("class", getClass().getName())
             .put("sessionContext", data.sessionContext)
-            .put("hitCount", data.hitCount)
-            .put("lastAccessTime", data.lastAccessTime)
+            .put("hitCount", data.access.hitCount.get())
+            .put("lastAccessTime", data.access.lastAccessTime)
             // .put("error", data.error.get())
             .build();
     }
@@ -436,8 +449,8 @@ public class SessionCache implements ApplicationContextAware {
             }
         }
 
-        long lastAccess = data.lastAccessTime;
-        long hits = data.hitCount;
+        long lastAccess = data.access.lastAccessTime;
+        long hits = data.access.hitCount.get();
 
         // Get session info
         SessionContext ctx = data.sessionContext;
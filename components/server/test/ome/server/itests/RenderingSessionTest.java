@@ -7,14 +7,19 @@
 
 package ome.server.itests;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import javax.imageio.ImageIO;
+
 import ome.api.IPixels;
 import ome.api.ThumbnailStore;
+import ome.api.local.LocalCompress;
 import ome.conditions.ApiUsageException;
 import ome.conditions.InternalException;
 import ome.conditions.ReadOnlyGroupSecurityViolation;
@@ -168,6 +173,39 @@ public class RenderingSessionTest extends AbstractManagedContextTest {
         // });
     }
 
+    @Test
+    public void testPngCompressionIsLossless() throws Exception {
+        Fixture f = new Fixture();
+        try {
+            assertEquals(LocalCompress.FORMAT_JPEG,
+                    f.re.getCompressionFormat());
+            f.re.setCompressionFormat(LocalCompress.FORMAT_PNG);
+            assertEquals(LocalCompress.FORMAT_PNG,
+                    f.re.getCompressionFormat());
+            PlaneDef pd = new PlaneDef(PlaneDef.XY, 0);
+            int[] packed = f.re.renderAsPackedInt(pd);
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(
+                    f.re.renderCompressed(pd)));
+            int sizeX = image.getWidth();
+            for (int i = 0; i < packed.length; i++) {
+                assertEquals(packed[i] & 0xffffff,
+                        image.getRGB(i % sizeX, i / sizeX) & 0xffffff);
+            }
+        } finally {
+            f.re.close();
+        }
+    }
+
+    @Test(expectedExceptions = { ApiUsageException.class })
+    public void testUnsupportedCompressionFormat() {
+        RenderingEngine re = this.factory.createRenderingEngine();
+        try {
+            re.setCompressionFormat("gif");
+        } finally {
+            re.close();
+        }
+    }
+
     @Test
     public void testReadWriteMethodViaThumbnails() throws Exception {
         final ServiceFactory sf = this.factory;// new InternalServiceFactory();
@@ -173,6 +173,32 @@ public class ThumbnailServiceTest extends AbstractManagedContextTest {
         assertTrue(before.length != after.length);
     }
 
+    @Test
+    public void testUserViewsThumbnailSetWithPyramidInProgress()
+        throws Exception {
+        Experimenter e1 = loginNewUser();
+        Pixels pix1 = makePixels();
+        Pixels pix2 = makePixels();
+        // Make pix2 a big image whose pyramid is yet to be generated: its
+        // rendering settings exist but loading its renderer fails.
+        loginRoot();
+        Pixels big = iQuery.get(Pixels.class, pix2.getId());
+        big.setSizeX(10000);
+        big.setSizeY(10000);
+        iUpdate.saveObject(big);
+        loginUser(e1.getOmeName());
+        Set<Long> pixelsIds = new HashSet<Long>();
+        pixelsIds.add(pix1.getId());
+        pixelsIds.add(pix2.getId());
+        ThumbnailStore tb = this.factory.createThumbnailService();
+        // A size not requested before so that neither thumbnail is cached.
+        Map<Long, byte[]> thumbnails = tb.getThumbnailSet(
+                48, 48, pixelsIds);
+        assertEquals(2, thumbnails.size());
+        assertNotNull(thumbnails.get(pix1.getId()));
+        assertNotNull(thumbnails.get(pix2.getId()));
+    }
+
     @Test(groups = {"ticket:3161"})
     public void testTicket3161ThreeUserView() throws Exception {
         Experimenter e1 = loginNewUser();
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.server.itests.graphs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hibernate.Session;
+import org.springframework.transaction.annotation.Transactional;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.SetMultimap;
+
+import ome.api.local.LocalAdmin;
+import ome.model.containers.Dataset;
+import ome.model.containers.Project;
+import ome.model.core.Image;
+import ome.security.ACLVoter;
+import ome.server.itests.AbstractManagedContextTest;
+import ome.services.graphs.GraphException;
+import ome.services.graphs.GraphPathBean;
+import ome.services.graphs.GraphPolicy;
+import ome.services.graphs.GraphPolicy.Ability;
+import ome.services.graphs.GraphPolicyRule;
+import ome.services.graphs.GraphTraversal;
+import ome.services.util.Executor;
+import ome.system.ServiceFactory;
+
+/**
+ * Checks that {@link GraphTraversal} plans the same operation whether its link queries are run in turn or concurrently.
+ * @since 5.3
+ */
+@Test(groups = "integration")
+public class GraphTraversalPlanningTest extends AbstractManagedContextTest {
+
+    /* the rules of deletion for projects, datasets and images, as in blitz-delete-rules.xml */
+    private static final String[][] DELETE_RULES = {
+        {"L:ProjectDatasetLink.parent = [D], L.child = D:[E]{i}/d", "D:{r}"},
+        {"L:DatasetImageLink.parent = [D], L.child = I:[E]{i}/d", "I:{r}"},
+        {"L:ProjectDatasetLink[E].parent = [E]{ia}, L.child = D:[E]{r}", "D:{a}"},
+        {"L:DatasetImageLink[E].parent = [E]{ia}, L.child = I:[E]{r}", "I:{a}"},
+        {"D:Dataset[E]{o}/d", "D:[D]"},
+        {"I:Image[E]{o}/d", "I:[D]"},
+        {"L:ProjectDatasetLink[E].parent = [D]", "L:[D]/n"},
+        {"L:ProjectDatasetLink[E].child = [D]", "L:[D]/n"},
+        {"L:DatasetImageLink[E].parent = [D]", "L:[D]/n"},
+        {"L:DatasetImageLink[E].child = [D]", "L:[D]/n"}
+    };
+
+    /**
+     * Does not process anything: the traversals are only planned.
+     */
+    private static final GraphTraversal.Processor NO_PROCESSING = new GraphTraversal.Processor() {
+        @Override
+        public void nullProperties(String className, String propertyName, Collection<Long> ids) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void deleteInstances(String className, Collection<Long> ids) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void processInstances(String className, Collection<Long> ids) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Set<Ability> getRequiredPermissions() {
+            return EnumSet.of(Ability.DELETE);
+        }
+
+        @Override
+        public void assertMayProcess(String className, long id, ome.model.internal.Details details) {
+        }
+    };
+
+    /**
+     * Create a project of datasets of images. Some images are in more than one dataset and one is also in a dataset
+     * outside the project so the plan must determine which images are orphaned.
+     * @return the ID of the project
+     */
+    private long createProject() {
+        final Dataset otherDataset = new Dataset();
+        otherDataset.setName("other dataset");
+        final Project project = new Project();
+        project.setName("project");
+        final List<Dataset> datasets = new ArrayList<Dataset>();
+        for (int d = 0; d < 4; d++) {
+            final Dataset dataset = new Dataset();
+            dataset.setName("dataset " + d);
+            project.linkDataset(dataset);
+            datasets.add(dataset);
+            for (int i = 0; i < 10; i++) {
+                dataset.linkImage(new_Image("image " + d + "." + i));
+            }
+        }
+        for (int i = 0; i < 5; i++) {
+            final Image image = new_Image("shared image " + i);
+            datasets.get(0).linkImage(image);
+            datasets.get(1).linkImage(image);
+        }
+        final Image image = new_Image("image also outside project");
+        datasets.get(2).linkImage(image);
+        otherDataset.linkImage(image);
+        iUpdate.saveObject(otherDataset);
+        return iUpdate.saveAndReturnObject(project).getId();
+    }
+
+    /**
+     * Plan the deletion of a project.
+     * @param session the Hibernate session
+     * @param sf the service factory
+     * @param projectId the ID of the project
+     * @return the objects included in the operation, and the deleted objects
+     * @throws GraphException if the planning failed
+     */
+    private Entry<SetMultimap<String, Long>, SetMultimap<String, Long>> planDeletion(Session session, ServiceFactory sf,
+            long projectId) throws GraphException {
+        final GraphPathBean graphPathBean = applicationContext.getBean("graphPathBean", GraphPathBean.class);
+        final List<GraphPolicyRule> rules = new ArrayList<GraphPolicyRule>();
+        for (final String[] deleteRule : DELETE_RULES) {
+            final GraphPolicyRule rule = new GraphPolicyRule();
+            rule.setMatches(deleteRule[0]);
+            rule.setChanges(deleteRule[1]);
+            rules.add(rule);
+        }
+        final GraphPolicy policy = GraphPolicyRule.parseRules(graphPathBean, rules);
+        final GraphTraversal traversal = new GraphTraversal(session, ((LocalAdmin) sf.getAdminService()).getEventContextQuiet(),
+                applicationContext.getBean("aclVoter", ACLVoter.class), graphPathBean,
+                ImmutableSetMultimap.<String, String>of(), policy, NO_PROCESSING);
+        final SetMultimap<String, Long> targets = HashMultimap.create();
+        targets.put(Project.class.getName(), projectId);
+        return traversal.planOperation(targets, false, true);
+    }
+
+    /**
+     * Assert that planning with the link queries run concurrently gives the same plan as running them in turn,
+     * in a transaction that may write so has saved its event.
+     * @param description a description of the work
+     * @throws Exception unexpected
+     */
+    private void assertConcurrentPlanMatchesSerial(final String description) throws Exception {
+        final long projectId = createProject();
+        final GraphPathBean graphPathBean = applicationContext.getBean("graphPathBean", GraphPathBean.class);
+        final ExecutorService planningExecutor = graphPathBean.getPlanningExecutor();
+        final AtomicInteger tasks = new AtomicInteger();
+        final ExecutorService countingExecutor = new ThreadPoolExecutor(4, 4, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>()) {
+            @Override
+            protected void beforeExecute(Thread thread, Runnable task) {
+                tasks.incrementAndGet();
+            }
+        };
+        final List<Entry<SetMultimap<String, Long>, SetMultimap<String, Long>>> plans =
+                new ArrayList<Entry<SetMultimap<String, Long>, SetMultimap<String, Long>>>();
+        try {
+            executor.execute(loginAop.p, new Executor.SimpleWork(this, description) {
+                @Override
+                @Transactional(readOnly = false)
+                public Object doWork(Session session, ServiceFactory sf) {
+                    try {
+                        graphPathBean.setPlanningExecutor(null);
+                        plans.add(planDeletion(session, sf, projectId));
+                        graphPathBean.setPlanningExecutor(countingExecutor);
+                        plans.add(planDeletion(session, sf, projectId));
+                    } catch (GraphException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return null;
+                }
+            });
+        } finally {
+            graphPathBean.setPlanningExecutor(planningExecutor);
+            countingExecutor.shutdown();
+        }
+        assertTrue("link queries should have been run concurrently", tasks.get() > 0);
+        final Entry<SetMultimap<String, Long>, SetMultimap<String, Long>> serial = plans.get(0);
+        final Entry<SetMultimap<String, Long>, SetMultimap<String, Long>> concurrent = plans.get(1);
+        assertEquals(concurrent.getKey(), serial.getKey());
+        assertEquals(concurrent.getValue(), serial.getValue());
+        assertTrue(serial.getValue().containsEntry(Project.class.getName(), projectId));
+        assertEquals(serial.getValue().get(Dataset.class.getName()).size(), 4);
+        assertEquals(serial.getValue().get(Image.class.getName()).size(), 45);
+    }
+
+    /**
+     * Test that planning with the link queries run concurrently gives the same plan as running them in turn.
+     * @throws Exception unexpected
+     */
+    @Test
+    public void testConcurrentPlanMatchesSerial() throws Exception {
+        loginNewUser();
+        assertConcurrentPlanMatchesSerial("testConcurrentPlanMatchesSerial");
+    }
+
+    /**
+     * Test that planning with the link queries run concurrently gives the same plan as running them in turn
+     * for an administrator, whose transactions also note their privileges.
+     * @throws Exception unexpected
+     */
+    @Test
+    public void testConcurrentPlanMatchesSerialAsAdmin() throws Exception {
+        loginRoot();
+        assertConcurrentPlanMatchesSerial("testConcurrentPlanMatchesSerialAsAdmin");
+    }
+}
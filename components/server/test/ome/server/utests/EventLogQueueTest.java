@@ -26,6 +26,7 @@ import java.util.Map;
 import ome.model.containers.Dataset;
 import ome.model.containers.Project;
 import ome.model.meta.EventLog;
+import ome.services.eventlogs.EventLogFailure;
 import ome.services.eventlogs.EventLogQueue;
 import ome.util.SqlAction;
 
@@ -45,6 +46,8 @@ public class EventLogQueueTest extends MockObjectTestCase {
 
     List<Object[]> results;
 
+    List<Long> currentIds;
+
     SqlAction sql;
 
     Mock sqlMock;
@@ -52,6 +55,7 @@ public class EventLogQueueTest extends MockObjectTestCase {
     @BeforeMethod
     public void setup() {
         results = new ArrayList<Object[]>();
+        currentIds = new ArrayList<Long>();
         q = new EventLogQueue() {
             @Override
             protected List<Object[]> lookup() {
@@ -59,6 +63,10 @@ public class EventLogQueueTest extends MockObjectTestCase {
                results.clear();
                return copy;
             }
+            @Override
+            public void setCurrentId(long id) {
+                currentIds.add(id);
+            }
         };
         sqlMock = mock(SqlAction.class);
         sqlMock.setDefaultStub(new DefaultResultStub());
@@ -181,4 +189,52 @@ public class EventLogQueueTest extends MockObjectTestCase {
         q.setStop(false);
         assertTrue(q.hasNext());
     }
+
+    @Test
+    public void testBatchPassedOnceProcessed() {
+        results.add(project(1, "INSERT", 0));
+        results.add(project(2, "INSERT", 0));
+        List<EventLog> batch = q.nextBatch();
+        assertEquals(2, batch.size());
+        assertTrue(currentIds.isEmpty());
+        q.batchProcessed();
+        assertEquals(Arrays.asList(batch.get(0).getId(),
+                batch.get(1).getId()), currentIds);
+    }
+
+    @Test
+    public void testTwoFailuresInOneBatch() {
+        results.add(project(1, "INSERT", 0));
+        results.add(project(2, "INSERT", 0));
+        results.add(project(3, "INSERT", 0));
+        List<EventLog> batch = q.nextBatch();
+        assertEquals(3, batch.size());
+        q.onApplicationEvent(new EventLogFailure(q, batch.get(0),
+                new RuntimeException("first")));
+        q.onApplicationEvent(new EventLogFailure(q, batch.get(2),
+                new RuntimeException("second")));
+        q.batchProcessed();
+        assertEquals(Arrays.asList(batch.get(1).getId()), currentIds);
+        assertFalse(q.hasNext());
+    }
+
+    @Test
+    public void testUnprocessedBatchRetried() {
+        results.add(project(1, "INSERT", 0));
+        results.add(dataset(2, "INSERT", 0));
+        List<EventLog> batch = q.nextBatch();
+        assertEquals(2, batch.size());
+        // Processing failed: batchProcessed() is never called.
+        List<EventLog> retried = q.nextBatch();
+        assertEquals(2, retried.size());
+        assertEquals(batch.get(0).getEntityType(),
+                retried.get(0).getEntityType());
+        assertEquals(batch.get(0).getEntityId(), retried.get(0).getEntityId());
+        assertEquals(batch.get(1).getEntityType(),
+                retried.get(1).getEntityType());
+        assertEquals(batch.get(1).getEntityId(), retried.get(1).getEntityId());
+        assertTrue(currentIds.isEmpty());
+        q.batchProcessed();
+        assertEquals(2, currentIds.size());
+    }
 }
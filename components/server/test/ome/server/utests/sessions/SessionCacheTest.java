@@ -9,6 +9,7 @@ import java.sql.Timestamp;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CyclicBarrier;
 
@@ -311,6 +312,40 @@ public class SessionCacheTest extends TestCase {
         }
     }
 
+    /**
+     * Lookups now update the access information of the session in place
+     * rather than putting a new entry, so the counts must still be kept and
+     * must survive a refresh of the context.
+     */
+    @Test
+    public void testAccessInformationIsKeptAcrossLookupsAndRefresh()
+            throws Exception {
+        final Session s = sess();
+        final SessionContext sc = sc(s);
+        cache.putSession(s.getUuid(), sc);
+        for (int i = 0; i < 5; i++) {
+            assertSame(sc, cache.getSessionContext(s.getUuid()));
+        }
+        cache.getSessionContext(s.getUuid(), true);
+        Map<String, Object> data = cache.getSessionData(s.getUuid(), true);
+        assertEquals(6L, data.get("hitCount"));
+        final long lastAccess = (Long) data.get("lastAccessTime");
+
+        final SessionContext replacement = sc(s);
+        cache.refresh(s.getUuid(), replacement);
+        data = cache.getSessionData(s.getUuid(), true);
+        assertSame(replacement, data.get("sessionContext"));
+        assertEquals(7L, data.get("hitCount"));
+        assertEquals(lastAccess, data.get("lastAccessTime"));
+
+        Thread.sleep(10L);
+        cache.getSessionData(s.getUuid(), false);
+        assertEquals(8L, cache.getSessionData(s.getUuid(), true)
+                .get("hitCount"));
+        assertTrue(lastAccess < (Long) cache.getSessionData(s.getUuid(), true)
+                .get("lastAccessTime"));
+    }
+
     /**
      * For {@link #testGetSessionDoesUpdateTheTimestamp()} we changed from
      * cache.putQuiet(new Element) to cache.put(new Element) but we want to make
@@ -6,12 +6,16 @@
 package ome.services.db;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
 import ome.model.core.Image;
 import ome.model.core.OriginalFile;
 import ome.model.core.Pixels;
+import ome.model.core.PlaneInfo;
+import ome.model.enums.UnitsTime;
+import ome.model.units.Time;
 import ome.model.meta.Experimenter;
 import ome.parameters.Parameters;
 import ome.server.itests.AbstractManagedContextTest;
@@ -139,6 +143,43 @@ public class SqlActionTest extends AbstractManagedContextTest {
 
     }
 
+    @Test
+    public void testInsertPlaneInfo() {
+        final List<PlaneInfo> planeInfos = new ArrayList<PlaneInfo>();
+        for (int z = 0; z < 2; z++) {
+            PlaneInfo pi = new PlaneInfo();
+            pi.setPixels(p);
+            pi.setTheZ(z);
+            pi.setTheC(0);
+            pi.setTheT(0);
+            pi.setDeltaT(new Time(z * 1.5, UnitsTime.SECOND));
+            planeInfos.add(pi);
+        }
+        sql.insertPlaneInfo(planeInfos);
+
+        for (PlaneInfo pi : planeInfos) {
+            assertNotNull(pi.getId());
+            PlaneInfo saved = iQuery.get(PlaneInfo.class, pi.getId());
+            assertEquals(saved.getPixels().getId(), p.getId());
+            assertEquals(saved.getTheZ(), pi.getTheZ());
+            assertEquals(saved.getDeltaT().getValue(), pi.getDeltaT().getValue());
+            assertEquals(saved.getDeltaT().getUnit(), UnitsTime.SECOND);
+            assertNull(saved.getExposureTime());
+            assertEquals(saved.getDetails().getOwner().getId(),
+                    p.getDetails().getOwner().getId());
+            assertEquals(saved.getDetails().getGroup().getId(),
+                    p.getDetails().getGroup().getId());
+        }
+        Parameters params = new Parameters();
+        params.addList("ids", Arrays.asList(planeInfos.get(0).getId(),
+                planeInfos.get(1).getId()));
+        List<Object[]> logs = iQuery.projection("select el.entityId from "
+                + "EventLog el where el.action = 'INSERT' and "
+                + "el.entityType = 'ome.model.core.PlaneInfo' and "
+                + "el.entityId in (:ids)", params);
+        assertEquals(logs.size(), 2);
+    }
+
     //
     // HELPERS
     //
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2017 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.graphs.utests;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+
+import ome.services.graphs.GraphException;
+import ome.services.graphs.LinkQueries;
+
+/**
+ * Checks that {@link LinkQueries} returns the same links whether the queries are run in turn or concurrently,
+ * by traversing synthetic deep hierarchies, and that the batch size adapts to the query time.
+ * @since 5.3
+ */
+@Test(groups = "unit")
+public class LinkQueriesTest {
+
+    /* the number of children of each object at each level of the synthetic hierarchy, like screen, plate, well, ... */
+    private static final int[] FAN_OUT = {200, 12, 3, 1, 1, 2};
+
+    private ExecutorService executor;
+
+    /* for each level, the parent-child links into that level */
+    private List<SetMultimap<Long, Long>> levels;
+
+    @BeforeClass
+    public void setup() {
+        executor = Executors.newFixedThreadPool(4);
+        levels = new ArrayList<SetMultimap<Long, Long>>();
+        List<Long> parents = Collections.singletonList(0L);
+        long nextId = 1;
+        for (final int fanOut : FAN_OUT) {
+            final SetMultimap<Long, Long> links = HashMultimap.create();
+            final List<Long> children = new ArrayList<Long>();
+            for (final Long parent : parents) {
+                for (int i = 0; i < fanOut; i++) {
+                    links.put(parent, nextId);
+                    children.add(nextId++);
+                }
+            }
+            levels.add(links);
+            parents = children;
+        }
+    }
+
+    @AfterClass
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Queries the synthetic hierarchy. A query is named {@code forward:N} or {@code backward:N} for the links into level N,
+     * selecting by parent or child ID respectively.
+     */
+    private class HierarchyQuerier implements LinkQueries.Querier {
+        final AtomicInteger batches = new AtomicInteger();
+        final AtomicInteger largestBatch = new AtomicInteger();
+        final long delay;
+        Thread thread = null;
+
+        HierarchyQuerier(long delay) {
+            this.delay = delay;
+        }
+
+        @Override
+        public List<Object[]> query(String query, Collection<Long> ids) {
+            synchronized (this) {
+                if (thread == null) {
+                    thread = Thread.currentThread();
+                } else {
+                    Assert.assertSame(Thread.currentThread(), thread, "queriers must not be shared between threads");
+                }
+            }
+            batches.incrementAndGet();
+            while (true) {
+                final int largest = largestBatch.get();
+                if (ids.size() <= largest || largestBatch.compareAndSet(largest, ids.size())) {
+                    break;
+                }
+            }
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            final boolean isForward = query.startsWith("forward:");
+            final SetMultimap<Long, Long> links = levels.get(Integer.parseInt(query.substring(query.indexOf(':') + 1)));
+            final Set<Long> idSet = new HashSet<Long>(ids);
+            final List<Object[]> results = new ArrayList<Object[]>();
+            for (final Entry<Long, Long> link : links.entries()) {
+                if (idSet.contains(isForward ? link.getKey() : link.getValue())) {
+                    results.add(new Object[] {link.getKey(), link.getValue()});
+                }
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Provides a new querier for every other thread that runs queries, noting how many are open.
+     */
+    private class HierarchyQuerierSource implements LinkQueries.QuerierSource {
+        final AtomicInteger opened = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+
+        @Override
+        public LinkQueries.Querier open() {
+            opened.incrementAndGet();
+            return new HierarchyQuerier(0);
+        }
+
+        @Override
+        public void close(LinkQueries.Querier querier) {
+            closed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Traverse the synthetic hierarchy from its root, as graph traversal planning does: at each step query the links
+     * both into and out of every level for all the objects found by the previous step.
+     * @param linkQueries the link queries to use
+     * @return the results of every step's queries, in order
+     * @throws GraphException if the queries failed
+     */
+    private List<SetMultimap<Long, Long>> traverse(LinkQueries linkQueries) throws GraphException {
+        final List<SetMultimap<Long, Long>> allResults = new ArrayList<SetMultimap<Long, Long>>();
+        final Set<Long> found = new HashSet<Long>();
+        Set<Long> toQuery = Collections.singleton(0L);
+        while (!toQuery.isEmpty()) {
+            found.addAll(toQuery);
+            final List<Entry<String, Collection<Long>>> queries = new ArrayList<Entry<String, Collection<Long>>>();
+            for (int level = 0; level < levels.size(); level++) {
+                queries.add(Maps.<String, Collection<Long>>immutableEntry("forward:" + level, toQuery));
+                queries.add(Maps.<String, Collection<Long>>immutableEntry("backward:" + level, toQuery));
+            }
+            final List<SetMultimap<Long, Long>> results = linkQueries.query(queries);
+            Assert.assertEquals(results.size(), queries.size());
+            final Set<Long> next = new HashSet<Long>();
+            for (final SetMultimap<Long, Long> result : results) {
+                next.addAll(result.keySet());
+                next.addAll(result.values());
+            }
+            next.removeAll(found);
+            allResults.addAll(results);
+            toQuery = next;
+        }
+        int expectedCount = 1;
+        for (final SetMultimap<Long, Long> links : levels) {
+            expectedCount += links.size();
+        }
+        Assert.assertEquals(found.size(), expectedCount);
+        return allResults;
+    }
+
+    /**
+     * Test that concurrent link queries find the same links in the same order as when run in turn.
+     * @throws GraphException unexpected
+     */
+    @Test
+    public void testConcurrentQueriesMatchSerial() throws GraphException {
+        final List<SetMultimap<Long, Long>> serial = traverse(new LinkQueries(new HierarchyQuerier(0)));
+        final HierarchyQuerierSource source = new HierarchyQuerierSource();
+        final LinkQueries concurrentQueries = new LinkQueries(new HierarchyQuerier(0));
+        final Semaphore permits = new Semaphore(4);
+        concurrentQueries.setConcurrent(executor, permits, source);
+        Assert.assertTrue(concurrentQueries.isConcurrent());
+        final List<SetMultimap<Long, Long>> concurrent = traverse(concurrentQueries);
+        Assert.assertEquals(concurrent, serial);
+        Assert.assertTrue(source.opened.get() > 0);
+        Assert.assertEquals(source.closed.get(), source.opened.get());
+        Assert.assertEquals(permits.availablePermits(), 4);
+    }
+
+    /**
+     * Test that link queries are run in turn on the calling thread, without waiting, if no permits are available.
+     * @throws GraphException unexpected
+     */
+    @Test
+    public void testSerialWithoutPermits() throws GraphException {
+        final List<SetMultimap<Long, Long>> serial = traverse(new LinkQueries(new HierarchyQuerier(0)));
+        final HierarchyQuerierSource source = new HierarchyQuerierSource();
+        final LinkQueries linkQueries = new LinkQueries(new HierarchyQuerier(0));
+        linkQueries.setConcurrent(executor, new Semaphore(0), source);
+        Assert.assertEquals(traverse(linkQueries), serial);
+        Assert.assertEquals(source.opened.get(), 0);
+    }
+
+    /**
+     * Test that link queries are run by the calling thread if other queriers cannot be opened.
+     * @throws GraphException unexpected
+     */
+    @Test
+    public void testSerialIfOpenFails() throws GraphException {
+        final List<SetMultimap<Long, Long>> serial = traverse(new LinkQueries(new HierarchyQuerier(0)));
+        final LinkQueries linkQueries = new LinkQueries(new HierarchyQuerier(0));
+        final Semaphore permits = new Semaphore(2);
+        linkQueries.setConcurrent(executor, permits, new HierarchyQuerierSource() {
+            @Override
+            public LinkQueries.Querier open() {
+                throw new IllegalStateException("no session");
+            }
+        });
+        Assert.assertEquals(traverse(linkQueries), serial);
+        Assert.assertEquals(permits.availablePermits(), 2);
+    }
+
+    /**
+     * Test that link queries are run in turn if no querier source is set.
+     * @throws GraphException unexpected
+     */
+    @Test
+    public void testSerialWithoutSource() throws GraphException {
+        final LinkQueries linkQueries = new LinkQueries(new HierarchyQuerier(0));
+        linkQueries.setConcurrent(executor, new Semaphore(4), null);
+        Assert.assertFalse(linkQueries.isConcurrent());
+        traverse(linkQueries);
+    }
+
+    /**
+     * Test that quick batches grow up to the maximum batch size.
+     * @throws GraphException unexpected
+     */
+    @Test
+    public void testBatchSizeGrows() throws GraphException {
+        final HierarchyQuerier querier = new HierarchyQuerier(0);
+        final LinkQueries linkQueries = new LinkQueries(querier);
+        Assert.assertEquals(linkQueries.getBatchSize(), LinkQueries.INITIAL_BATCH_SIZE);
+        final List<Long> ids = new ArrayList<Long>();
+        for (long id = 0; id < 4 * LinkQueries.MAX_BATCH_SIZE; id++) {
+            ids.add(id);
+        }
+        final Entry<String, Collection<Long>> query = Maps.<String, Collection<Long>>immutableEntry("backward:0", ids);
+        linkQueries.query(Collections.singletonList(query));
+        Assert.assertEquals(linkQueries.getBatchSize(), LinkQueries.MAX_BATCH_SIZE);
+        Assert.assertEquals(querier.largestBatch.get(), LinkQueries.MAX_BATCH_SIZE);
+        Assert.assertTrue(querier.batches.get() < ids.size() / LinkQueries.INITIAL_BATCH_SIZE);
+    }
+
+    /**
+     * Test that slow batches shrink down to the minimum batch size.
+     * @throws GraphException unexpected
+     */
+    @Test
+    public void testBatchSizeShrinks() throws GraphException {
+        final HierarchyQuerier querier = new HierarchyQuerier(LinkQueries.SLOW_BATCH_MS + 50);
+        final LinkQueries linkQueries = new LinkQueries(querier);
+        final List<Long> ids = new ArrayList<Long>();
+        for (long id = 0; id < LinkQueries.INITIAL_BATCH_SIZE + LinkQueries.INITIAL_BATCH_SIZE / 2; id++) {
+            ids.add(id);
+        }
+        final Entry<String, Collection<Long>> query = Maps.<String, Collection<Long>>immutableEntry("backward:0", ids);
+        linkQueries.query(Collections.singletonList(query));
+        Assert.assertEquals(querier.batches.get(), 2);
+        Assert.assertEquals(linkQueries.getBatchSize(), LinkQueries.INITIAL_BATCH_SIZE / 4);
+        Assert.assertTrue(linkQueries.getBatchSize() >= LinkQueries.MIN_BATCH_SIZE);
+    }
+
+    /**
+     * Test that a failed concurrent query fails the step.
+     * @throws GraphException unexpected
+     */
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testConcurrentFailure() throws GraphException {
+        final HierarchyQuerier failingQuerier = new HierarchyQuerier(0) {
+            @Override
+            public List<Object[]> query(String query, Collection<Long> ids) {
+                throw new IllegalStateException("query failed");
+            }
+        };
+        final LinkQueries linkQueries = new LinkQueries(failingQuerier);
+        linkQueries.setConcurrent(executor, new Semaphore(4), new HierarchyQuerierSource() {
+            @Override
+            public LinkQueries.Querier open() {
+                super.open();
+                return failingQuerier;
+            }
+        });
+        final Collection<Long> ids = Collections.singleton(0L);
+        final List<Entry<String, Collection<Long>>> queries = new ArrayList<Entry<String, Collection<Long>>>();
+        queries.add(Maps.immutableEntry("forward:0", ids));
+        queries.add(Maps.immutableEntry("backward:0", ids));
+        linkQueries.query(queries);
+    }
+}
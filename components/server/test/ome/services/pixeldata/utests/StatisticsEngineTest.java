@@ -0,0 +1,237 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.pixeldata.utests;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import ome.io.nio.PixelBuffer;
+import ome.services.pixeldata.StatisticsEngine;
+import ome.util.PixelData;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that the {@link StatisticsEngine} reads only the requested region,
+ * falls back to a lower resolution level for large planes and caches its
+ * results until they are invalidated.
+ * @since 5.3
+ */
+@Test
+public class StatisticsEngineTest {
+
+    private static final int SIZE = 10;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(3);
+
+    @AfterClass
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * A two level pyramid of unsigned 8-bit pixels, <code>SIZE</code>
+     * pixels square at full resolution, read in tiles of 3 by 3 pixels.
+     * Counts the pixels read.
+     */
+    private static class FakePyramid implements InvocationHandler {
+
+        int level = 1;
+
+        int pixelsRead = 0;
+
+        static int value(int level, int c, int x, int y) {
+            return level == 1 ? (c * 50 + x + SIZE * y) & 0xff : 200 + c;
+        }
+
+        int size() {
+            return level == 1 ? SIZE : SIZE / 2;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            final String name = method.getName();
+            if (name.equals("getResolutionLevels")) {
+                return 2;
+            } else if (name.equals("getResolutionLevel")) {
+                return level;
+            } else if (name.equals("setResolutionLevel")) {
+                level = (Integer) args[0];
+                return null;
+            } else if (name.equals("getResolutionDescriptions")) {
+                return Arrays.asList(Arrays.asList(SIZE, SIZE),
+                        Arrays.asList(SIZE / 2, SIZE / 2));
+            } else if (name.equals("getSizeX") || name.equals("getSizeY")) {
+                return size();
+            } else if (name.equals("getTileSize")) {
+                return new Dimension(3, 3);
+            } else if (name.equals("getTile")) {
+                final int c = (Integer) args[1];
+                final int x = (Integer) args[3];
+                final int y = (Integer) args[4];
+                final int w = (Integer) args[5];
+                final int h = (Integer) args[6];
+                Assert.assertTrue(w <= 3 && h <= 3);
+                Assert.assertTrue(x + w <= size() && y + h <= size());
+                final byte[] data = new byte[w * h];
+                for (int j = 0; j < h; j++) {
+                    for (int i = 0; i < w; i++) {
+                        data[i + j * w] = (byte) value(level, c, x + i, y + j);
+                    }
+                }
+                synchronized (this) {
+                    pixelsRead += data.length;
+                }
+                return new PixelData("uint8", ByteBuffer.wrap(data));
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            }
+            throw new UnsupportedOperationException(name);
+        }
+    }
+
+    private static PixelBuffer buffer(FakePyramid pyramid) {
+        return (PixelBuffer) Proxy.newProxyInstance(
+                StatisticsEngineTest.class.getClassLoader(),
+                new Class<?>[] { PixelBuffer.class }, pyramid);
+    }
+
+    private static int[] expectedHistogram(int c, Rectangle region,
+            int binCount, double min, double max) {
+        final int[] data = new int[binCount];
+        final double binRange = (max - min + 1) / binCount;
+        for (int y = region.y; y < region.y + region.height; y++) {
+            for (int x = region.x; x < region.x + region.width; x++) {
+                int bin = (int) ((FakePyramid.value(1, c, x, y) - min)
+                        / binRange);
+                if (bin > 0 && binRange < 1)
+                    bin++;
+                if (bin >= 0 && bin < binCount)
+                    data[bin]++;
+            }
+        }
+        return data;
+    }
+
+    public void testHistogramOfRegionReadsOnlyTheRegion() throws Exception {
+        final FakePyramid pyramid = new FakePyramid();
+        final StatisticsEngine engine =
+                new StatisticsEngine(executor, SIZE * SIZE, 0);
+        final Rectangle region = new Rectangle(2, 4, 5, 3);
+        final Map<Integer, double[]> ranges =
+                new HashMap<Integer, double[]>();
+        ranges.put(0, new double[] { 0, 99 });
+        ranges.put(1, new double[] { 60, 120 });
+        final Map<Integer, int[]> histograms = engine.getHistogram(
+                buffer(pyramid), 1L, ranges, 0, 0, region, 8);
+        Assert.assertEquals(histograms.get(0),
+                expectedHistogram(0, region, 8, 0, 99));
+        Assert.assertEquals(histograms.get(1),
+                expectedHistogram(1, region, 8, 60, 120));
+        Assert.assertEquals(pyramid.pixelsRead, 2 * 15);
+        Assert.assertEquals(pyramid.level, 1);
+    }
+
+    public void testMinMaxOfWholePlane() throws Exception {
+        final FakePyramid pyramid = new FakePyramid();
+        final StatisticsEngine engine =
+                new StatisticsEngine(executor, SIZE * SIZE, 0);
+        final Map<Integer, double[]> minMax = engine.findMinMax(
+                buffer(pyramid), 1L, new int[] { 0, 1, 2 }, 0, 0);
+        for (int c = 0; c < 3; c++) {
+            Assert.assertEquals(minMax.get(c)[0], 50.0 * c, 0);
+            Assert.assertEquals(minMax.get(c)[1], 50.0 * c + 99, 0);
+        }
+        Assert.assertEquals(pyramid.pixelsRead, 3 * SIZE * SIZE);
+    }
+
+    public void testLargePlanesReadFromLowerLevel() throws Exception {
+        final FakePyramid pyramid = new FakePyramid();
+        final StatisticsEngine engine = new StatisticsEngine(null,
+                (SIZE / 2) * (SIZE / 2), 0);
+        final PixelBuffer buffer = buffer(pyramid);
+        final Map<Integer, double[]> minMax = engine.findMinMax(buffer, 1L,
+                new int[] { 1 }, 0, 0);
+        Assert.assertEquals(minMax.get(1)[0], 201.0, 0);
+        Assert.assertEquals(minMax.get(1)[1], 201.0, 0);
+        Assert.assertEquals(pyramid.level, 1);
+
+        final Map<Integer, double[]> ranges =
+                new HashMap<Integer, double[]>();
+        ranges.put(1, new double[] { 0, 255 });
+        pyramid.pixelsRead = 0;
+        final int[] histogram = engine.getHistogram(buffer, 1L, ranges, 0, 0,
+                new Rectangle(0, 0, 4, 4), 256).get(1);
+        // The region is halved along with the plane.
+        Assert.assertEquals(histogram[201], 4);
+        Assert.assertEquals(pyramid.pixelsRead, 4);
+        Assert.assertEquals(pyramid.level, 1);
+    }
+
+    public void testReadSizeIsThatOfLevelRead() throws Exception {
+        final FakePyramid pyramid = new FakePyramid();
+        final PixelBuffer buffer = buffer(pyramid);
+        final StatisticsEngine lower = new StatisticsEngine(null,
+                (SIZE / 2) * (SIZE / 2), 0);
+        Assert.assertTrue(lower.isReadSize(buffer, SIZE / 2, SIZE / 2));
+        Assert.assertFalse(lower.isReadSize(buffer, SIZE, SIZE));
+        final StatisticsEngine full = new StatisticsEngine(null,
+                SIZE * SIZE, 0);
+        Assert.assertTrue(full.isReadSize(buffer, SIZE, SIZE));
+        Assert.assertFalse(full.isReadSize(buffer, SIZE / 2, SIZE / 2));
+    }
+
+    public void testResultsCachedUntilInvalidated() throws Exception {
+        final FakePyramid pyramid = new FakePyramid();
+        final StatisticsEngine engine =
+                new StatisticsEngine(executor, SIZE * SIZE, 16);
+        final PixelBuffer buffer = buffer(pyramid);
+        final Map<Integer, double[]> ranges =
+                new HashMap<Integer, double[]>();
+        ranges.put(0, new double[] { 0, 99 });
+        final int[] first = engine.getHistogram(buffer, 1L, ranges, 0, 0,
+                null, 4).get(0);
+        Assert.assertEquals(pyramid.pixelsRead, SIZE * SIZE);
+        first[0] = -1;
+        final int[] second = engine.getHistogram(buffer, 1L, ranges, 0, 0,
+                null, 4).get(0);
+        Assert.assertEquals(pyramid.pixelsRead, SIZE * SIZE);
+        Assert.assertEquals(second, expectedHistogram(0,
+                new Rectangle(0, 0, SIZE, SIZE), 4, 0, 99));
+        engine.getHistogram(buffer, 2L, ranges, 0, 0, null, 4);
+        Assert.assertEquals(pyramid.pixelsRead, 2 * SIZE * SIZE);
+        Assert.assertEquals(engine.getCacheSize(), 2);
+
+        engine.invalidate(1L);
+        Assert.assertEquals(engine.getCacheSize(), 1);
+        engine.getHistogram(buffer, 1L, ranges, 0, 0, null, 4);
+        Assert.assertEquals(pyramid.pixelsRead, 3 * SIZE * SIZE);
+    }
+
+    public void testCacheDisabledWithoutPixelsId() throws Exception {
+        final FakePyramid pyramid = new FakePyramid();
+        final StatisticsEngine engine =
+                new StatisticsEngine(null, SIZE * SIZE, 16);
+        final PixelBuffer buffer = buffer(pyramid);
+        engine.findMinMax(buffer, null, new int[] { 0 }, 0, 0);
+        engine.findMinMax(buffer, null, new int[] { 0 }, 0, 0);
+        Assert.assertEquals(pyramid.pixelsRead, 2 * SIZE * SIZE);
+        Assert.assertEquals(engine.getCacheSize(), 0);
+    }
+}
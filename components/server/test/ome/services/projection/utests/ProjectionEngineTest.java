@@ -0,0 +1,198 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.services.projection.utests;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import ome.api.IProjection;
+import ome.services.projection.ProjectionEngine;
+import ome.util.PixelData;
+
+import org.perf4j.LoggingStopWatch;
+import org.perf4j.StopWatch;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Compares the {@link ProjectionEngine} with a projection looping over the
+ * optical sections of every pixel, both for correctness and timing, on the
+ * calling thread and split across threads.
+ */
+public class ProjectionEngineTest
+{
+    private static final int SIZE_X = 1031;
+
+    private static final int SIZE_Y = 517;
+
+    private static final int SIZE_Z = 20;
+
+    private static final int PLANE_SIZE = SIZE_X * SIZE_Y;
+
+    private static final int RUN_COUNT = 3;
+
+    private ExecutorService executor;
+
+    private PixelData stack;
+
+    @BeforeClass
+    public void setUp()
+    {
+        executor = Executors.newFixedThreadPool(4);
+        ByteBuffer buf = ByteBuffer.allocate(PLANE_SIZE * SIZE_Z * 2);
+        stack = new PixelData("uint16", buf);
+        for (int i = 0; i < PLANE_SIZE * SIZE_Z; i++)
+        {
+            stack.setPixelValue(i, (i * 7919) % 65536);
+        }
+    }
+
+    @AfterClass
+    public void tearDown()
+    {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Projects a pixel at a time, visiting every optical section, as the
+     * projections were originally performed.
+     */
+    private PixelData reference(int algorithm, int stepping, int start,
+            int end)
+    {
+        PixelData to = new PixelData("uint16",
+                ByteBuffer.allocate(PLANE_SIZE * 2));
+        boolean exclusive = algorithm == IProjection.MEAN_INTENSITY
+                || algorithm == IProjection.SUM_INTENSITY;
+        for (int i = 0; i < PLANE_SIZE; i++)
+        {
+            double[] values = new double[SIZE_Z];
+            int n = 0;
+            for (int z = start; exclusive? z < end : z <= end; z += stepping)
+            {
+                values[n++] = stack.getPixelValue(PLANE_SIZE * z + i);
+            }
+            double sum = 0, squares = 0, max = 0;
+            for (int k = 0; k < n; k++)
+            {
+                sum += values[k];
+                squares += values[k] * values[k];
+                max = Math.max(max, values[k]);
+            }
+            double value;
+            switch (algorithm)
+            {
+                case IProjection.MAXIMUM_INTENSITY:
+                    value = max;
+                    break;
+                case IProjection.MEAN_INTENSITY:
+                    value = sum / n;
+                    break;
+                case IProjection.SUM_INTENSITY:
+                    value = sum;
+                    break;
+                case IProjection.MEDIAN_INTENSITY:
+                    Arrays.sort(values, 0, n);
+                    value = n % 2 == 1? values[n / 2]
+                            : (values[n / 2 - 1] + values[n / 2]) / 2;
+                    break;
+                default:
+                    value = Math.sqrt(Math.max(
+                            squares / n - (sum / n) * (sum / n), 0));
+            }
+            to.setPixelValue(i, Math.min(value, to.getMaximum()));
+        }
+        return to;
+    }
+
+    private PixelData project(ProjectionEngine engine, int algorithm,
+            int stepping, int start, int end, String tag)
+    {
+        PixelData to = null;
+        for (int i = 0; i < RUN_COUNT; i++)
+        {
+            to = new PixelData("uint16", ByteBuffer.allocate(PLANE_SIZE * 2));
+            StopWatch stopWatch = new LoggingStopWatch(tag);
+            engine.project(algorithm, stack, to, SIZE_X, SIZE_Y,
+                    stepping, start, end);
+            stopWatch.stop();
+        }
+        return to;
+    }
+
+    private void assertProjection(int algorithm, int stepping, int start,
+            int end)
+    {
+        byte[] expected =
+            reference(algorithm, stepping, start, end).getData().array();
+        String tag = IProjection.METHODOLOGY_STRINGS[algorithm];
+        Assert.assertEquals(project(new ProjectionEngine(), algorithm,
+                stepping, start, end, tag + ".serial").getData().array(),
+                expected);
+        Assert.assertEquals(project(new ProjectionEngine(executor, 4),
+                algorithm, stepping, start, end, tag + ".parallel")
+                .getData().array(), expected);
+    }
+
+    @Test(timeOut=120000)
+    public void testMaximum()
+    {
+        assertProjection(IProjection.MAXIMUM_INTENSITY, 1, 0, SIZE_Z - 1);
+    }
+
+    @Test(timeOut=120000)
+    public void testMean()
+    {
+        assertProjection(IProjection.MEAN_INTENSITY, 1, 0, SIZE_Z - 1);
+    }
+
+    @Test(timeOut=120000)
+    public void testSumIsPinned()
+    {
+        assertProjection(IProjection.SUM_INTENSITY, 1, 0, SIZE_Z - 1);
+    }
+
+    @Test(timeOut=120000)
+    public void testMedian()
+    {
+        assertProjection(IProjection.MEDIAN_INTENSITY, 1, 0, SIZE_Z - 1);
+        assertProjection(IProjection.MEDIAN_INTENSITY, 1, 1, SIZE_Z - 1);
+    }
+
+    @Test(timeOut=120000)
+    public void testStandardDeviation()
+    {
+        assertProjection(IProjection.STANDARD_DEVIATION, 1, 0, SIZE_Z - 1);
+    }
+
+    @Test(timeOut=120000)
+    public void testStepping()
+    {
+        assertProjection(IProjection.MAXIMUM_INTENSITY, 3, 2, SIZE_Z - 2);
+        assertProjection(IProjection.MEAN_INTENSITY, 3, 2, SIZE_Z - 2);
+    }
+
+    @Test
+    public void testMinMax()
+    {
+        PixelData to = new PixelData("uint16",
+                ByteBuffer.allocate(PLANE_SIZE * 2));
+        double[] minMax = new ProjectionEngine(executor, 4).project(
+                IProjection.MAXIMUM_INTENSITY, stack, to, SIZE_X, SIZE_Y,
+                1, 0, SIZE_Z - 1);
+        double min = Double.MAX_VALUE, max = 0;
+        for (int i = 0; i < PLANE_SIZE; i++)
+        {
+            min = Math.min(min, to.getPixelValue(i));
+            max = Math.max(max, to.getPixelValue(i));
+        }
+        Assert.assertEquals(minMax[0], min);
+        Assert.assertEquals(minMax[1], max);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.utests;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import javax.imageio.ImageIO;
+
+import ome.api.local.LocalCompress;
+import ome.conditions.ApiUsageException;
+import ome.logic.CompressImpl;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that {@link CompressImpl} encodes packed images, both lossy and
+ * lossless, and keeps encoding with the same thread's writer.
+ * @since 5.3
+ */
+@Test
+public class CompressImplTest {
+
+    private static final int SIZE_X = 7;
+
+    private static final int SIZE_Y = 5;
+
+    private static int[] packed() {
+        int[] buf = new int[SIZE_X * SIZE_Y];
+        for (int i = 0; i < buf.length; i++) {
+            buf[i] = (i * 37 & 0xff) << 16 | (i * 11 & 0xff) << 8 | i & 0xff;
+        }
+        return buf;
+    }
+
+    private static BufferedImage decode(ByteArrayOutputStream out)
+            throws Exception {
+        return ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    public void testPngIsLossless() throws Exception {
+        CompressImpl compress = new CompressImpl();
+        compress.setCompressionFormat(LocalCompress.FORMAT_PNG);
+        int[] buf = packed();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        compress.compressToStream(buf, SIZE_X, SIZE_Y, out);
+        BufferedImage image = decode(out);
+        Assert.assertEquals(image.getWidth(), SIZE_X);
+        Assert.assertEquals(image.getHeight(), SIZE_Y);
+        for (int i = 0; i < buf.length; i++) {
+            Assert.assertEquals(image.getRGB(i % SIZE_X, i / SIZE_X)
+                    & 0xffffff, buf[i]);
+        }
+    }
+
+    public void testWriterReusedAcrossImages() throws Exception {
+        CompressImpl compress = new CompressImpl();
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        compress.compressToStream(packed(), SIZE_X, SIZE_Y, first);
+        compress.compressToStream(packed(), SIZE_X, SIZE_Y, second);
+        Assert.assertTrue(first.size() > 0);
+        Assert.assertEquals(second.toByteArray(), first.toByteArray());
+        Assert.assertEquals(decode(second).getWidth(), SIZE_X);
+    }
+
+    @Test(expectedExceptions = ApiUsageException.class)
+    public void testUnsupportedFormat() {
+        new CompressImpl().setCompressionFormat("gif");
+    }
+}
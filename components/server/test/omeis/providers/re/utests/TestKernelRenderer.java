@@ -0,0 +1,122 @@
+/*
+ *   Copyright (C) 2016 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.utests;
+
+import ome.model.enums.PixelsType;
+import omeis.providers.re.data.PlaneDef;
+
+import org.testng.annotations.Test;
+
+/**
+ * Checks that the kernel rendering of 8 and 16-bit planes produces images
+ * identical to the ones produced by the reference implementation.
+ */
+public class TestKernelRenderer extends BaseRenderingTest
+{
+	private String type = "uint16";
+
+	private int bitSize = 16;
+
+	@Override
+	protected int getSizeX()
+	{
+		return 509;
+	}
+
+	@Override
+	protected int getSizeY()
+	{
+		return 311;
+	}
+
+	@Override
+	protected int getBytesPerPixel()
+	{
+		return bitSize / 8;
+	}
+
+	@Override
+	protected PixelsType getPixelsType()
+	{
+		PixelsType pixelsType = new PixelsType();
+		pixelsType.setValue(type);
+		pixelsType.setBitSize(bitSize);
+		return pixelsType;
+	}
+
+	private void setPixelsType(String type, int bitSize)
+	{
+		this.type = type;
+		this.bitSize = bitSize;
+		setUp();
+	}
+
+	private int[] render(boolean kernel) throws Exception
+	{
+		renderer.getOptimizations().setKernelRendering(kernel);
+		return renderer.renderAsPackedInt(
+				new PlaneDef(PlaneDef.XY, 0), pixelBuffer);
+	}
+
+	private void assertGolden() throws Exception
+	{
+		int[] golden = render(false);
+		int[] actual = render(true);
+		assertEquals(golden.length, actual.length);
+		for (int i = 0; i < golden.length; i++)
+		{
+			assertEquals("Pixel " + i, golden[i], actual[i]);
+		}
+	}
+
+	private void assertGoldenColors() throws Exception
+	{
+		// Primary colours.
+		renderer.setRGBA(0, 255, 0, 0, 255);
+		renderer.setRGBA(1, 0, 255, 0, 255);
+		renderer.setRGBA(2, 0, 0, 255, 255);
+		assertGolden();
+		// Mixed colours, alphaless.
+		renderer.setRGBA(0, 255, 128, 0, 255);
+		renderer.setRGBA(1, 0, 200, 255, 255);
+		assertGolden();
+		// Pre-multiplied alpha.
+		renderer.setRGBA(2, 90, 30, 255, 127);
+		assertGolden();
+		// Narrow window.
+		renderer.setChannelWindow(0, 30, 100);
+		assertGolden();
+	}
+
+	@Test
+	public void testUint8() throws Exception
+	{
+		setPixelsType("uint8", 8);
+		assertGoldenColors();
+	}
+
+	@Test
+	public void testInt8() throws Exception
+	{
+		setPixelsType("int8", 8);
+		assertGoldenColors();
+	}
+
+	@Test
+	public void testUint16() throws Exception
+	{
+		setPixelsType("uint16", 16);
+		assertGoldenColors();
+	}
+
+	@Test
+	public void testInt16() throws Exception
+	{
+		setPixelsType("int16", 16);
+		assertGoldenColors();
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ *   Copyright 2016 Glencoe Software, Inc. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.utests;
+
+import java.util.Arrays;
+
+import omeis.providers.re.RenderedImageCache;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that the {@link RenderedImageCache} serves an image only for the
+ * exact rendering state which produced it, stays within its bounds and
+ * forgets the images of a pixels set when it is invalidated.
+ * @since 5.3
+ */
+public class TestRenderedImageCache {
+
+    private static byte[] image(int length, int value) {
+        byte[] buf = new byte[length];
+        Arrays.fill(buf, (byte) value);
+        return buf;
+    }
+
+    @Test
+    public void testHitOnlyForSameState() {
+        RenderedImageCache cache = new RenderedImageCache(1024);
+        cache.put(1L, "0,0,0,0,0;l=0;b=true", image(10, 1));
+        Assert.assertEquals(cache.get(1L, "0,0,0,0,0;l=0;b=true"),
+                image(10, 1));
+        Assert.assertNull(cache.get(1L, "0,0,0,0,0;l=1;b=true"));
+        Assert.assertNull(cache.get(2L, "0,0,0,0,0;l=0;b=true"));
+        Assert.assertEquals(cache.getHitRatio(), 1.0 / 3, 1e-9);
+    }
+
+    @Test
+    public void testCallersCannotModifyCachedImages() {
+        RenderedImageCache cache = new RenderedImageCache(1024);
+        byte[] buf = image(10, 1);
+        cache.put(1L, "s", buf);
+        buf[0] = 2;
+        cache.get(1L, "s")[1] = 2;
+        Assert.assertEquals(cache.get(1L, "s"), image(10, 1));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() {
+        RenderedImageCache cache = new RenderedImageCache(30);
+        cache.put(1L, "a", image(10, 1));
+        cache.put(1L, "b", image(10, 2));
+        cache.put(1L, "c", image(10, 3));
+        cache.get(1L, "a");
+        cache.put(1L, "d", image(10, 4));
+        Assert.assertEquals(cache.getBytes(), 30);
+        Assert.assertNull(cache.get(1L, "b"));
+        Assert.assertNotNull(cache.get(1L, "a"));
+        Assert.assertNotNull(cache.get(1L, "d"));
+        cache.put(1L, "big", image(31, 5));
+        Assert.assertNull(cache.get(1L, "big"));
+    }
+
+    @Test
+    public void testInvalidateDropsOnlyThePixelsSet() {
+        RenderedImageCache cache = new RenderedImageCache(1024);
+        cache.put(1L, "a", image(10, 1));
+        cache.put(1L, "b", image(10, 2));
+        cache.put(2L, "a", image(10, 3));
+        cache.invalidate(1L);
+        Assert.assertNull(cache.get(1L, "a"));
+        Assert.assertNull(cache.get(1L, "b"));
+        Assert.assertEquals(cache.get(2L, "a"), image(10, 3));
+        Assert.assertEquals(cache.getBytes(), 10);
+    }
+
+    @Test
+    public void testDisabled() {
+        RenderedImageCache cache = new RenderedImageCache(0);
+        Assert.assertFalse(cache.isEnabled());
+        cache.put(1L, "a", image(1, 1));
+        Assert.assertNull(cache.get(1L, "a"));
+    }
+}
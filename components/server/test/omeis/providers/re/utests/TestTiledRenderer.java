@@ -0,0 +1,94 @@
+/*
+ *   Copyright (C) 2016 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.utests;
+
+import java.util.Arrays;
+
+import omeis.providers.re.data.PlaneDef;
+
+import org.perf4j.LoggingStopWatch;
+import org.perf4j.StopWatch;
+import org.testng.annotations.Test;
+
+/**
+ * Compares the tiled rendering with the split of the plane into bands of
+ * rows, both for correctness and timing, with 1, 3 and 6 channels.
+ */
+public class TestTiledRenderer extends BaseRenderingTest
+{
+	private int sizeC = 1;
+
+	@Override
+	protected int getSizeX()
+	{
+		return 2047;
+	}
+
+	@Override
+	protected int getSizeY()
+	{
+		return 2039;
+	}
+
+	@Override
+	protected int getSizeC()
+	{
+		return sizeC;
+	}
+
+	private void setSizeC(int sizeC)
+	{
+		this.sizeC = sizeC;
+		setUp();
+		for (int c = 0; c < sizeC; c++)
+		{
+			renderer.setActive(c, true);
+		}
+	}
+
+	private int[] render(boolean tiled, String tag) throws Exception
+	{
+		renderer.getOptimizations().setTiledRendering(tiled);
+		PlaneDef def = new PlaneDef(PlaneDef.XY, 0);
+		int[] buf = null;
+		for (int i = 0; i < RUN_COUNT; i++)
+		{
+			StopWatch stopWatch = new LoggingStopWatch(tag);
+			buf = renderer.renderAsPackedInt(def, pixelBuffer);
+			stopWatch.stop();
+		}
+		return buf;
+	}
+
+	private void compare(int channels) throws Exception
+	{
+		setSizeC(channels);
+		int[] rows = render(false,
+				"testRenderAsPackedIntRows." + channels + "ch");
+		int[] tiles = render(true,
+				"testRenderAsPackedIntTiles." + channels + "ch");
+		assertTrue(Arrays.equals(rows, tiles));
+	}
+
+	@Test(timeOut=60000)
+	public void testOneChannel() throws Exception
+	{
+		compare(1);
+	}
+
+	@Test(timeOut=60000)
+	public void testThreeChannels() throws Exception
+	{
+		compare(3);
+	}
+
+	@Test(timeOut=60000)
+	public void testSixChannels() throws Exception
+	{
+		compare(6);
+	}
+}